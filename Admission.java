@@ -0,0 +1,249 @@
+/**
+ * Version 1.0
+ * Author: MK2022
+ * Date: 18/10/2026
+ *
+ * The Admission class decides which connections the server accepts, before any thread or buffer is spent on them.
+ * It binds the listening port with a configurable accept backlog, optionally several times with SO_REUSEPORT so each acceptor thread
+ * has its own queue in the kernel, and caps the connections open in total and from each source address.
+ * A refused connection is sent a notice encoded once at startup, with one non-blocking write, and closed straight away,
+ * so a reconnect storm is turned away as fast as it can be accepted rather than left waiting in the kernel.
+ * With TLS on the notice is not sent, as the client expects a handshake and refusing should cost less than one, so the connection is only closed
+ */
+import java.io.IOException; // Necessary imports
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+
+
+public class Admission
+{
+
+	public static final String FULL_NOTICE = "Server is full, please try again later"; // Sent to a connection refused by the connection limit
+	public static final String ADDRESS_NOTICE = "Too many connections from your address"; // Sent to a connection refused by the per-address limit
+
+	private static final ByteBuffer FULL = notice(FULL_NOTICE); // Notices as sent, shared read-only and written through duplicates
+	private static final ByteBuffer ADDRESS = notice(ADDRESS_NOTICE);
+	private static final ByteBuffer BUSY = notice(RateLimiter.BUSY_NOTICE);
+
+	private static int backlog = 4096; // Connections the kernel queues before they are accepted, capped by net.core.somaxconn
+	private static int acceptors = 1; // Threads accepting connections
+	private static int maxConnections = 0; // Connections open at once, unlimited if 0
+	private static int maxPerAddress = 0; // Connections open at once from one source address, unlimited if 0
+
+	private static AtomicInteger open = new AtomicInteger(); // Connections admitted and not yet released
+	private static ConcurrentHashMap<InetAddress, Integer> perAddress = new ConcurrentHashMap<InetAddress, Integer>(); // Open connections by source, only kept with a per-address limit
+
+	/**
+	 * Constructor for Admission, not used as the limits are shared by the whole server
+	 */
+	private Admission()
+	{
+	}
+
+	/**
+	 * Reads admission options from the command line, ignoring options it does not know
+	 * @param args
+	 * 			Command line arguments, given as option and value pairs
+	 */
+	public static void configure(String[] args)
+	{
+		for (int i = 0; i + 1 < args.length; i += 2)
+		{
+			if (!ChatClient.isInt(args[i + 1]))
+				continue;
+			if (args[i].equalsIgnoreCase("-backlog"))
+				backlog = Math.max(Integer.parseInt(args[i + 1]), 1);
+			else if (args[i].equalsIgnoreCase("-acceptors"))
+				acceptors = Math.max(Integer.parseInt(args[i + 1]), 1);
+			else if (args[i].equalsIgnoreCase("-maxconnections"))
+				maxConnections = Integer.parseInt(args[i + 1]);
+			else if (args[i].equalsIgnoreCase("-maxperip"))
+				maxPerAddress = Integer.parseInt(args[i + 1]);
+		}
+	}
+
+	/**
+	 * Binds the port once for each acceptor, with SO_REUSEPORT so the kernel shares connections between them,
+	 * or once for all of them if the platform cannot
+	 * @param port
+	 * 			Port to listen to
+	 * @return
+	 * 			Channel for each acceptor to accept from, in blocking mode
+	 * @throws IOException
+	 * 			If the port cannot be bound
+	 */
+	public static ServerSocketChannel[] bind(int port) throws IOException
+	{
+		ServerSocketChannel[] listeners = new ServerSocketChannel[acceptors];
+		ServerSocketChannel first = ServerSocketChannel.open();
+		boolean reusePort = acceptors > 1 && first.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+		try
+		{
+			for (int i = 0; i < acceptors; i++)
+			{
+				if (i > 0 && !reusePort)
+				{
+					listeners[i] = listeners[0]; // Acceptors take turns on the one channel
+					continue;
+				}
+				listeners[i] = i == 0 ? first : ServerSocketChannel.open();
+				if (reusePort)
+					listeners[i].setOption(StandardSocketOptions.SO_REUSEPORT, true);
+				listeners[i].bind(new InetSocketAddress(port), backlog);
+			}
+		} catch (IOException e)
+		{
+			for (int i = 0; i < acceptors; i++)
+			{
+				if (listeners[i] != null)
+					listeners[i].close();
+			}
+			first.close();
+			throw e;
+		}
+		return listeners;
+	}
+
+	/**
+	 * Counts a newly accepted connection against the limits, or refuses it
+	 * @param sc
+	 * 			Accepted channel
+	 * @return
+	 * 			True if the connection may be served, in which case release must be called when it closes,
+	 * 			false if it was over a limit and has been refused and closed
+	 */
+	public static boolean admit(SocketChannel sc)
+	{
+		if (maxConnections > 0 && open.incrementAndGet() > maxConnections)
+		{
+			open.decrementAndGet();
+			refuse(sc, FULL);
+			return false;
+		}
+		else if (maxConnections <= 0)
+			open.incrementAndGet();
+
+		if (maxPerAddress > 0 && !claim(sc.socket().getInetAddress()))
+		{
+			open.decrementAndGet();
+			refuse(sc, ADDRESS);
+			return false;
+		}
+
+		if (!RateLimiter.admitAccept()) // Over the accept rate, refuses the connection rather than queueing it
+		{
+			release(sc.socket().getInetAddress());
+			refuse(sc, BUSY);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Releases a connection's place once it has closed
+	 * @param address
+	 * 			Source address of the connection, as it was when admitted
+	 */
+	public static void release(InetAddress address)
+	{
+		open.decrementAndGet();
+		if (maxPerAddress > 0 && address != null)
+		{
+			perAddress.computeIfPresent(address, new BiFunction<InetAddress, Integer, Integer>()
+			{
+				public Integer apply(InetAddress key, Integer count)
+				{
+					return count > 1 ? count - 1 : null; // The entry goes with the address's last connection
+				}
+			});
+		}
+	}
+
+	/**
+	 * @return
+	 * 			Connections admitted and not yet closed
+	 */
+	public static int getOpen()
+	{
+		return open.get();
+	}
+
+	/**
+	 * @return
+	 * 			Source addresses with connections open, only counted with a per-address limit
+	 */
+	public static int getAddresses()
+	{
+		return perAddress.size();
+	}
+
+	/**
+	 * Takes one of an address's places, unless it has used them all
+	 * @param address
+	 * 			Source address
+	 * @return
+	 * 			False if the address is at its limit
+	 */
+	private static boolean claim(InetAddress address)
+	{
+		final boolean[] claimed = new boolean[1];
+		perAddress.compute(address, new BiFunction<InetAddress, Integer, Integer>()
+		{
+			public Integer apply(InetAddress key, Integer count)
+			{
+				int current = count == null ? 0 : count;
+				claimed[0] = current < maxPerAddress;
+				return claimed[0] ? current + 1 : count;
+			}
+		});
+		return claimed[0];
+	}
+
+	/**
+	 * Sends a refused connection its notice, if the socket will take it without waiting and it is not expecting TLS, and closes it
+	 * @param sc
+	 * 			Refused channel
+	 * @param notice
+	 * 			Encoded notice
+	 */
+	private static void refuse(SocketChannel sc, ByteBuffer notice)
+	{
+		Metrics.ACCEPTS_REFUSED.increment();
+		try
+		{
+			if (!Tls.isEnabled())
+			{
+				sc.configureBlocking(false);
+				sc.write(notice.duplicate()); // A new socket's send buffer is empty, so this never waits
+			}
+		} catch (IOException e)
+		{
+			// The client has gone already
+		}
+		try
+		{
+			sc.close();
+		} catch (IOException e)
+		{
+			// Nothing left to do with it
+		}
+	}
+
+	/**
+	 * @param text
+	 * 			Notice to send
+	 * @return
+	 * 			Read-only buffer holding the notice as a line
+	 */
+	private static ByteBuffer notice(String text)
+	{
+		return ByteBuffer.wrap((text + System.lineSeparator()).getBytes(SharedBuffer.CHARSET)).asReadOnlyBuffer();
+	}
+}
@@ -0,0 +1,728 @@
+/**
+ * Version 1.0
+ * Author: MK2022
+ * Date: 18/10/2026
+ *
+ * The BenchmarkSuite class runs the server's main costs as repeatable benchmarks: broadcast fan-out through a Room to 10 up to 10000
+ * recipients, finding text lines and binary frames in a read buffer, relaying each message found to a room either decoded into a String
+ * or straight from the buffer, registering and unregistering connections from several threads at once,
+ * and end-to-end latency through a real server engine and ClientConnection sockets on loopback.
+ * Benchmarks run on the calling thread also report the heap bytes they allocate per operation, as JMH's gc profiler does.
+ * Text lines are only relayed without decoding when the default charset is UTF-8, as it always is from Java 18, so on older JVMs
+ * run with -Dfile.encoding=UTF-8 to measure that path.
+ * Each benchmark runs warmup iterations, then measured iterations of a fixed time, and reports the mean with a 99.9% confidence interval,
+ * as JMH does. With -json the results are written in JMH's JSON layout, so runs can be kept and compared over time with the same tools.
+ * The same fixtures run under JMH itself, with forked JVMs and its profilers, through the module in benchmarks/ and workload below.
+ * Run with: java BenchmarkSuite [-bench <regex>] [-json <file>] [-warmup <iterations>] [-iterations <n>] [-time <ms per iteration>]
+ */
+import java.io.FileWriter; // Necessary imports
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Pattern;
+
+
+public class BenchmarkSuite
+{
+
+	private static final int[] RECIPIENTS = {10, 100, 1000, 10000};
+	private static final int[] LENGTHS = {32, 512}; // Message lengths for decoding, a short line and a long one
+	private static final int[] THREADS = {1, 4, 16}; // Threads connecting and disconnecting at once
+	private static final String[] ENGINES = {"nio", "blocking"};
+	private static final int PORT = 14199;
+	private static final int MESSAGES = 100; // Messages in the buffer a decode or relay batch handles, below 128 so its boxed count is cached
+
+	private static int warmups = 3; // Iterations run before measuring
+	private static int iterations = 5; // Iterations measured
+	private static long iterationNanos = 1000000000L; // Length of each iteration
+	private static Pattern filter = Pattern.compile(".*"); // Benchmarks to run, by name
+	private static PrintStream console = System.out; // Results, as the servers started here print to System.out
+	private static ArrayList<String> results = new ArrayList<String>(); // Each result as a JSON object
+	private static long sink; // Kept so the JIT cannot remove the work
+	private static boolean configured; // Whether the server has been set up to be benchmarked
+
+	/**
+	 * Work measured by a benchmark
+	 */
+	private interface Operation
+	{
+		/**
+		 * Repeats the operation until the deadline
+		 * @param deadline
+		 * 			System.nanoTime at which to stop
+		 * @return
+		 * 			Number of operations done
+		 * @throws Exception
+		 * 			If the operation fails, which ends the benchmark
+		 */
+		long run(long deadline) throws Exception;
+	}
+
+	/**
+	 * Main method, runs every benchmark matching the filter and prints a table of results
+	 * @param args
+	 * 			Options, given as option and value pairs
+	 * @throws Exception
+	 * 			If a benchmark fails
+	 */
+	public static void main(String[] args) throws Exception
+	{
+		String json = null;
+		for (int i = 0; i + 1 < args.length; i += 2)
+		{
+			if (args[i].equalsIgnoreCase("-bench"))
+				filter = Pattern.compile(args[i + 1]);
+			else if (args[i].equalsIgnoreCase("-json"))
+				json = args[i + 1];
+			else if (args[i].equalsIgnoreCase("-warmup") && ChatClient.isInt(args[i + 1]))
+				warmups = Integer.parseInt(args[i + 1]);
+			else if (args[i].equalsIgnoreCase("-iterations") && ChatClient.isInt(args[i + 1]))
+				iterations = Math.max(Integer.parseInt(args[i + 1]), 2);
+			else if (args[i].equalsIgnoreCase("-time") && ChatClient.isInt(args[i + 1]))
+				iterationNanos = Long.parseLong(args[i + 1]) * 1000000;
+		}
+		configure();
+
+		console.printf("%-28s %-22s %5s %14s %12s  %s%n", "benchmark", "params", "mode", "score", "error", "units");
+		for (int n : RECIPIENTS)
+			broadcast(n);
+		for (int length : LENGTHS)
+		{
+			decode(false, length);
+			decode(true, length);
+		}
+		for (int length : LENGTHS)
+		{
+			relay(false, length);
+			relay(true, length);
+		}
+		for (int threads : THREADS)
+			registry(threads);
+		int port = PORT;
+		for (String engine : ENGINES)
+			loopback(engine, port++);
+
+		if (json != null)
+		{
+			FileWriter out = new FileWriter(json);
+			out.write("[" + System.lineSeparator() + String.join("," + System.lineSeparator(), results) + System.lineSeparator() + "]" + System.lineSeparator());
+			out.close();
+			console.println("Results written to " + json);
+		}
+		console.println("(" + sink + ")");
+		System.exit(0); // Server threads are still running
+	}
+
+	/**
+	 * Measures broadcasting one message to a room, each member's queue then being emptied as its writer would
+	 * @param recipients
+	 * 			Members of the room
+	 */
+	private static void broadcast(int recipients) throws Exception
+	{
+		if (!filter.matcher("broadcast").find())
+			return;
+		measure("broadcast", params("recipients", recipients), "us/op", 1, repeat(broadcasting(recipients)), null, true);
+	}
+
+	/**
+	 * Measures finding messages in a full read buffer and decoding their text, as the server does for each message read
+	 * @param binary
+	 * 			Whether the buffer holds binary frames rather than text lines
+	 * @param length
+	 * 			Length of each message
+	 */
+	private static void decode(boolean binary, int length) throws Exception
+	{
+		String name = binary ? "decode.frame" : "decode.line";
+		if (!filter.matcher(name).find())
+			return;
+		measure(name, params("length", length), "ns/op", 1, repeat(decoding(binary, length)), null, true);
+	}
+
+	/**
+	 * Measures handling the text lines in a full read buffer as a connection does: finding each one, checking it is not the disconnect line,
+	 * and relaying it to a room of ten members and the server output, whose queues are then emptied
+	 * @param bytes
+	 * 			Whether messages are relayed straight from the buffer, rather than decoded into a String first as they used to be
+	 * @param length
+	 * 			Length of each message
+	 */
+	private static void relay(boolean bytes, int length) throws Exception
+	{
+		String name = bytes ? "relay.bytes" : "relay.string";
+		if (!filter.matcher(name).find())
+			return;
+		measure(name, params("length", length), "ns/op", 1, repeat(relaying(bytes, length)), null, true);
+	}
+
+	/**
+	 * Measures connections registering, claiming a username and unregistering, from several threads at once
+	 * @param threads
+	 * 			Threads doing so at the same time
+	 */
+	private static void registry(final int threads) throws Exception
+	{
+		if (!filter.matcher("registry").find())
+			return;
+		final Callable<Integer> churn = churning();
+		measure("registry.churn", params("threads", threads), "ops/ms", threads, new Operation()
+		{
+			public long run(final long deadline) throws Exception
+			{
+				final AtomicLong ops = new AtomicLong();
+				final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+				Thread[] workers = new Thread[threads];
+				for (int t = 0; t < threads; t++)
+				{
+					workers[t] = new Thread(new Runnable()
+					{
+						public void run()
+						{
+							long done = 0;
+							try
+							{
+								while (System.nanoTime() < deadline)
+									done += churn.call();
+							}
+							catch (Exception e)
+							{
+								failure.compareAndSet(null, e);
+							}
+							ops.addAndGet(done);
+						}
+					});
+					workers[t].start();
+				}
+				for (Thread worker : workers)
+					worker.join();
+				if (failure.get() != null)
+					throw failure.get();
+				return ops.get();
+			}
+		}, null, false);
+	}
+
+	/**
+	 * Builds a benchmark's fixture for the JMH benchmarks in benchmarks/, which have to be in a named package and so cannot name
+	 * the server's classes themselves
+	 * @param name
+	 * 			"broadcast", "decode.line", "decode.frame", "relay.string", "relay.bytes" or "registry.churn"
+	 * @param param
+	 * 			Recipients for broadcast, message length for decode and relay, unused for registry.churn
+	 * @return
+	 * 			One batch of the benchmark's work, returning the number of operations it did. Only registry.churn may be called from several threads
+	 * @throws Exception
+	 * 			If the name is unknown
+	 */
+	public static Callable<Integer> workload(String name, int param) throws Exception
+	{
+		configure();
+		if (name.equals("broadcast"))
+			return broadcasting(param);
+		if (name.startsWith("decode."))
+			return decoding(name.equals("decode.frame"), param);
+		if (name.startsWith("relay."))
+			return relaying(name.equals("relay.bytes"), param);
+		if (name.equals("registry.churn"))
+			return churning();
+		throw new IllegalArgumentException("No benchmark named " + name);
+	}
+
+	/**
+	 * Sets the server up to be benchmarked, the first time it is called
+	 */
+	private static synchronized void configure()
+	{
+		if (configured)
+			return;
+		configured = true;
+		RateLimiter.configure(new String[] {"-msgrate", "0"}); // The benchmark is the load, not an abusive client
+		RoomHistory.configure(new String[] {"-history", "0"}); // Only the fan-out is measured
+		System.setOut(new PrintStream(new FlushBenchmark.NullOutputStream())); // Servers log every message, which would swamp the results
+		System.setErr(System.out); // Connections closed at the end of the loopback cases are reported too
+	}
+
+	/**
+	 * @return
+	 * 			Operation calling the batch until the deadline
+	 */
+	private static Operation repeat(final Callable<Integer> batch)
+	{
+		return new Operation()
+		{
+			public long run(long deadline) throws Exception
+			{
+				long ops = 0;
+				while (System.nanoTime() < deadline)
+					ops += batch.call();
+				return ops;
+			}
+		};
+	}
+
+	/**
+	 * @return
+	 * 			Batch broadcasting one message to a room with the given number of members, then emptying their queues
+	 */
+	private static Callable<Integer> broadcasting(int recipients)
+	{
+		final Room room = new Room("bench", true);
+		final QueueSession[] members = new QueueSession[recipients];
+		for (int i = 0; i < recipients; i++)
+		{
+			members[i] = new QueueSession(i, "user" + i);
+			room.add(members[i]);
+		}
+		final String text = "alice: the quick brown fox jumps over the lazy dog";
+		return new Callable<Integer>()
+		{
+			public Integer call()
+			{
+				ChatMessage message = new ChatMessage(text);
+				room.broadcast(message);
+				message.release();
+				for (QueueSession member : members)
+					member.drain();
+				return 1;
+			}
+		};
+	}
+
+	/**
+	 * @return
+	 * 			Batch finding and decoding every message in a buffer of MESSAGES text lines or binary frames of the given length
+	 */
+	private static Callable<Integer> decoding(boolean binary, int length)
+	{
+		String message = text(length);
+		final ByteBuffer buffer = ByteBuffer.allocate(MESSAGES * (length + Frame.HEADER + 2));
+		for (int i = 0; i < MESSAGES; i++)
+		{
+			SharedBuffer encoded = binary ? SharedBuffer.frame(Frame.MESSAGE, 0, message) : SharedBuffer.encode(message);
+			buffer.put(encoded.view());
+			encoded.release();
+		}
+		buffer.flip();
+		final FrameDecoder decoder = new FrameDecoder();
+		decoder.setBinary(binary);
+		return new Callable<Integer>()
+		{
+			public Integer call() throws IOException
+			{
+				buffer.position(0);
+				while (decoder.next(buffer))
+					sink += decoder.getText(buffer, SharedBuffer.CHARSET).length();
+				return MESSAGES;
+			}
+		};
+	}
+
+	/**
+	 * @return
+	 * 			Batch relaying every line in a buffer of MESSAGES text lines of the given length to a room of ten members and the server output,
+	 * 			emptying the members' queues after each
+	 */
+	private static Callable<Integer> relaying(final boolean bytes, int length)
+	{
+		String message = text(length);
+		final ByteBuffer buffer = ByteBuffer.allocateDirect(MESSAGES * (length + 2)); // Read buffers are direct
+		for (int i = 0; i < MESSAGES; i++)
+		{
+			SharedBuffer encoded = SharedBuffer.encode(message);
+			buffer.put(encoded.view());
+			encoded.release();
+		}
+		buffer.flip();
+		final FrameDecoder decoder = new FrameDecoder();
+		final ChatRouter router = new ChatRouter();
+		final QueueSession[] members = new QueueSession[10];
+		for (int i = 0; i < members.length; i++)
+		{
+			members[i] = new QueueSession(i, "user" + i);
+			router.enter(members[i]);
+		}
+		final QueueSession sender = members[0];
+		return new Callable<Integer>()
+		{
+			public Integer call() throws IOException
+			{
+				buffer.position(0);
+				while (decoder.next(buffer))
+				{
+					if (bytes && decoder.isUtf8(buffer, SharedBuffer.CHARSET) && !decoder.payloadEqualsIgnoreCase(buffer, "Disconnect me"))
+						ServerLog.write(router.handle(sender, buffer, decoder.getPayloadStart(), decoder.getPayloadLength()));
+					else
+					{
+						String userInput = decoder.getText(buffer, SharedBuffer.CHARSET);
+						if (!userInput.equalsIgnoreCase("Disconnect me"))
+							ServerLog.write(router.handle(sender, userInput));
+					}
+					for (QueueSession member : members)
+						member.drain();
+				}
+				return MESSAGES;
+			}
+		};
+	}
+
+	/**
+	 * @return
+	 * 			Batch registering a connection, claiming a username for it and unregistering it, among 10000 connected users.
+	 * 			Safe to call from several threads at once
+	 */
+	private static Callable<Integer> churning()
+	{
+		final ConnectionRegistry registry = new ConnectionRegistry();
+		for (int i = 0; i < 10000; i++) // Connected users the churn happens among
+		{
+			QueueSession resident = new QueueSession(registry.nextSessionID(), "resident" + i);
+			registry.claimName(resident, resident.getID());
+			registry.register(resident);
+		}
+		return new Callable<Integer>()
+		{
+			public Integer call()
+			{
+				long sessionID = registry.nextSessionID();
+				QueueSession session = new QueueSession(sessionID, "w" + sessionID);
+				if (registry.claimName(session, session.getID()))
+				{
+					registry.register(session);
+					registry.unregister(session);
+				}
+				return 1;
+			}
+		};
+	}
+
+	/**
+	 * @return
+	 * 			Message text of the given length
+	 */
+	private static String text(int length)
+	{
+		StringBuilder text = new StringBuilder();
+		while (text.length() < length)
+			text.append("the quick brown fox jumps over the lazy dog ");
+		return text.substring(0, length);
+	}
+
+	/**
+	 * Measures the time from a client sending a message to another client receiving it, through a real server engine on loopback.
+	 * One message is in flight at a time, so this is latency rather than throughput
+	 * @param engine
+	 * 			"nio", "blocking" or "virtual"
+	 * @param port
+	 * 			Port for the server
+	 */
+	private static void loopback(String engine, int port) throws Exception
+	{
+		if (!filter.matcher("loopback").find())
+			return;
+		Object server = FlushBenchmark.startServer(engine, port);
+		final LatencyHistogram latency = new LatencyHistogram();
+		final Semaphore received = new Semaphore(0);
+		Probe receiver = new Probe(latency, received);
+		final Probe sender = new Probe(null, null);
+		if (!receiver.connect("localhost", port) || !sender.connect("localhost", port))
+			throw new IOException("Could not connect to the " + engine + " server on " + port);
+		receiver.setID("receiver" + port);
+		receiver.start();
+		sender.setID("sender" + port);
+		sender.start();
+		Thread.sleep(200); // Both are in the lobby
+		measure("loopback", params("engine", engine), "us/op", 1, new Operation()
+		{
+			public long run(long deadline) throws InterruptedException
+			{
+				long ops = 0;
+				while (System.nanoTime() < deadline)
+				{
+					sender.send(Long.toString(System.nanoTime()));
+					if (!received.tryAcquire(1, TimeUnit.SECONDS))
+						throw new IllegalStateException("Message was not delivered within a second");
+					ops++;
+				}
+				return ops;
+			}
+		}, latency, false);
+		sender.disconnect();
+		receiver.disconnect();
+		FlushBenchmark.stopServer(server);
+	}
+
+	/**
+	 * Runs a benchmark's iterations, prints its result and keeps it for the JSON output
+	 * @param name
+	 * 			Benchmark name
+	 * @param params
+	 * 			Parameters of this run
+	 * @param unit
+	 * 			"ns/op" or "us/op" for average time per operation, "ops/ms" for throughput
+	 * @param threads
+	 * 			Threads the operation runs on
+	 * @param operation
+	 * 			Work to measure
+	 * @param latency
+	 * 			Histogram the benchmark records individual operations in, reported as a secondary metric, or null
+	 * @param allocation
+	 * 			Whether to report heap bytes allocated per operation, only meaningful if the operation runs on the calling thread
+	 */
+	private static void measure(String name, Map<String, String> params, String unit, int threads, Operation operation, LatencyHistogram latency,
+		boolean allocation) throws Exception
+	{
+		double[] scores = new double[iterations];
+		long allocated = 0; // Bytes allocated by the measured iterations
+		long measuredOps = 0;
+		for (int i = -warmups; i < iterations; i++)
+		{
+			if (i == 0 && latency != null)
+				latency.reset();
+			long allocatedBefore = allocatedBytes();
+			long start = System.nanoTime();
+			long ops = operation.run(start + iterationNanos);
+			long elapsed = System.nanoTime() - start;
+			if (i >= 0)
+			{
+				scores[i] = score(unit, ops, elapsed);
+				allocated += allocatedBytes() - allocatedBefore;
+				measuredOps += ops;
+			}
+		}
+		double allocatedPerOp = allocation ? allocated / (double) Math.max(measuredOps, 1) : -1;
+		double mean = 0;
+		for (double score : scores)
+			mean += score;
+		mean /= iterations;
+		double variance = 0;
+		for (double score : scores)
+			variance += (score - mean) * (score - mean);
+		double error = studentT999(iterations - 1) * Math.sqrt(variance / (iterations - 1)) / Math.sqrt(iterations);
+
+		console.printf("%-28s %-22s %5s %14.3f %12.3f  %s%n", name, params.toString(), unit.endsWith("/op") ? "avgt" : "thrpt", mean, error, unit);
+		if (latency != null)
+			console.printf("%-28s %-22s %5s   %s%n", "", "", "", latency.summary());
+		if (allocation)
+			console.printf("%-28s %-22s %5s %14.3f %12s  %s%n", name + ":gc.alloc.rate.norm", params.toString(), "avgt", allocatedPerOp, "", "B/op");
+		results.add(json(name, params, unit, threads, scores, mean, error, latency, allocatedPerOp));
+	}
+
+	/**
+	 * @return
+	 * 			Bytes allocated on the heap by this thread so far, or 0 if the JVM cannot tell
+	 */
+	private static long allocatedBytes()
+	{
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean)
+			return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+		return 0;
+	}
+
+	/**
+	 * @return
+	 * 			Score of one iteration in the given unit
+	 */
+	private static double score(String unit, long ops, long elapsed)
+	{
+		if (unit.equals("ops/ms"))
+			return ops / (elapsed / 1000000.0);
+		double perOp = elapsed / (double) Math.max(ops, 1);
+		return unit.equals("us/op") ? perOp / 1000 : perOp;
+	}
+
+	/**
+	 * @param degrees
+	 * 			Degrees of freedom
+	 * @return
+	 * 			Student's t for a two-sided 99.9% confidence interval, as JMH reports
+	 */
+	private static double studentT999(int degrees)
+	{
+		double[] table = {636.62, 31.60, 12.92, 8.61, 6.87, 5.96, 5.41, 5.04, 4.78, 4.59};
+		if (degrees <= table.length)
+			return table[degrees - 1];
+		return 3.29 + 13.0 / degrees; // Within 1% of the exact value above 10 degrees of freedom
+	}
+
+	/**
+	 * @return
+	 * 			Parameter map with one entry
+	 */
+	private static Map<String, String> params(String name, Object value)
+	{
+		Map<String, String> params = new LinkedHashMap<String, String>();
+		params.put(name, value.toString());
+		return params;
+	}
+
+	/**
+	 * Describes a result in the layout of JMH's JSON output
+	 * @return
+	 * 			JSON object
+	 */
+	private static String json(String name, Map<String, String> params, String unit, int threads, double[] scores, double mean, double error, LatencyHistogram latency,
+		double allocatedPerOp)
+	{
+		double[] sorted = scores.clone();
+		java.util.Arrays.sort(sorted);
+		StringBuilder json = new StringBuilder("  {\"benchmark\": \"BenchmarkSuite.").append(name).append("\", ");
+		json.append("\"mode\": \"").append(unit.endsWith("/op") ? "avgt" : "thrpt").append("\", \"threads\": ").append(threads).append(", \"forks\": 1, ");
+		json.append("\"jvm\": \"").append(escape(System.getProperty("java.home"))).append("\", ");
+		json.append("\"jdkVersion\": \"").append(escape(System.getProperty("java.version"))).append("\", ");
+		json.append("\"warmupIterations\": ").append(warmups).append(", \"warmupTime\": \"").append(iterationNanos / 1000000).append(" ms\", ");
+		json.append("\"measurementIterations\": ").append(iterations).append(", \"measurementTime\": \"").append(iterationNanos / 1000000).append(" ms\", ");
+		json.append("\"params\": {");
+		String separator = "";
+		for (Map.Entry<String, String> param : params.entrySet())
+		{
+			json.append(separator).append("\"").append(param.getKey()).append("\": \"").append(escape(param.getValue())).append("\"");
+			separator = ", ";
+		}
+		json.append("}, \"primaryMetric\": {\"score\": ").append(mean).append(", \"scoreError\": ").append(error);
+		json.append(", \"scoreConfidence\": [").append(mean - error).append(", ").append(mean + error).append("], ");
+		json.append("\"scorePercentiles\": {\"0.0\": ").append(sorted[0]).append(", \"50.0\": ").append(sorted[sorted.length / 2]);
+		json.append(", \"100.0\": ").append(sorted[sorted.length - 1]).append("}, \"scoreUnit\": \"").append(unit).append("\", \"rawData\": [[");
+		for (int i = 0; i < scores.length; i++)
+			json.append(i == 0 ? "" : ", ").append(scores[i]);
+		json.append("]]}, \"secondaryMetrics\": {");
+		if (latency != null)
+		{
+			json.append("\"latency\": {\"score\": ").append(latency.getMean() / 1000).append(", \"scoreUnit\": \"us\", \"count\": ").append(latency.getCount());
+			json.append(", \"scorePercentiles\": {\"50.0\": ").append(latency.getPercentile(50) / 1000.0);
+			json.append(", \"90.0\": ").append(latency.getPercentile(90) / 1000.0).append(", \"99.0\": ").append(latency.getPercentile(99) / 1000.0);
+			json.append(", \"99.9\": ").append(latency.getPercentile(99.9) / 1000.0).append(", \"100.0\": ").append(latency.getMax() / 1000.0).append("}}");
+		}
+		if (allocatedPerOp >= 0)
+			json.append(latency != null ? ", " : "").append("\"gc.alloc.rate.norm\": {\"score\": ").append(allocatedPerOp).append(", \"scoreUnit\": \"B/op\"}");
+		return json.append("}}").toString();
+	}
+
+	/**
+	 * @return
+	 * 			Text with backslashes and quotes escaped for a JSON string
+	 */
+	private static String escape(String text)
+	{
+		return text.replace("\\", "\\\\").replace("\"", "\\\"");
+	}
+
+	/**
+	 * Session standing in for a connection, whose queue is emptied by the benchmark rather than a writer thread
+	 */
+	private static class QueueSession implements Session
+	{
+		private long sessionID;
+		private String id;
+		private byte[] prefix;
+		private OutboundQueue queue = new OutboundQueue();
+		private Room room;
+
+		private QueueSession(long sessionID, String id)
+		{
+			this.sessionID = sessionID;
+			this.id = id;
+			prefix = (id + ": ").getBytes(Frame.CHARSET);
+		}
+
+		public long getSessionID()
+		{
+			return sessionID;
+		}
+
+		public String getID()
+		{
+			return id;
+		}
+
+		public byte[] getPrefix()
+		{
+			return prefix;
+		}
+
+		public int getFormat()
+		{
+			return queue.getFormat();
+		}
+
+		public void send(SharedBuffer message)
+		{
+			queue.offer(message);
+		}
+
+		public void send(String message)
+		{
+			SharedBuffer buffer = ChatMessage.encode(message, queue.getFormat());
+			send(buffer);
+			buffer.release();
+		}
+
+		public OutboundQueue getQueue()
+		{
+			return queue;
+		}
+
+		public Room getRoom()
+		{
+			return room;
+		}
+
+		public void setRoom(Room room)
+		{
+			this.room = room;
+		}
+
+		public void close()
+		{
+			queue.discard();
+		}
+
+		/**
+		 * Releases every queued message, as if it had been written
+		 */
+		private void drain()
+		{
+			SharedBuffer message;
+			while ((message = queue.poll()) != null)
+			{
+				sink += message.length();
+				message.release();
+			}
+		}
+	}
+
+	/**
+	 * ClientConnection which, rather than showing messages, records the latency of each timestamped message it receives
+	 */
+	private static class Probe extends ClientConnection
+	{
+		private LatencyHistogram latency; // Null for a client which only sends
+		private Semaphore received; // Released for each timestamped message
+
+		private Probe(LatencyHistogram latency, Semaphore received)
+		{
+			super((ChatClient) null);
+			this.latency = latency;
+			this.received = received;
+		}
+
+		public void write(String message)
+		{
+			int colon = message == null ? -1 : message.indexOf(": ");
+			if (latency == null || colon < 0 || !message.startsWith("sender") || !ChatClient.isInt(message.substring(colon + 2)))
+				return; // Notices, or the sender's own copy
+			latency.record(System.nanoTime() - Long.parseLong(message.substring(colon + 2)));
+			received.release();
+		}
+	}
+}
@@ -0,0 +1,192 @@
+/**
+ * Version 1.0
+ * Author: MK2022
+ * Date: 18/10/2026
+ *
+ * The BroadcastBenchmark class compares the old broadcast paths, a PrintWriter per recipient (blocking mode) or a ByteBuffer encoded
+ * per recipient (nio mode), with the SharedBuffer path, where the message is encoded once and every recipient writes from a view of
+ * the same direct buffer. It reports time and heap allocation per broadcast for several room and message sizes.
+ * Run with: java BroadcastBenchmark [message length]
+ */
+import java.io.OutputStream; // Necessary imports
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+
+
+public class BroadcastBenchmark
+{
+
+	private static final int[] RECIPIENTS = {10, 100, 1000, 5000};
+	private static final int[] LENGTHS = {100, 4000}; // A chat line and a pasted stack trace
+	private static final String[] PATHS = {"printwriter", "encode-each", "shared"};
+	private static final long RUN_NANOS = 2000000000L; // Time spent measuring each case
+
+	private static long sink; // Bytes written, kept so the JIT cannot remove the work
+
+	/**
+	 * Main method, runs every path for each message length and room size and prints tables of results
+	 * @param args
+	 * 			Optional message length
+	 */
+	public static void main(String[] args)
+	{
+		int[] lengths = args.length >= 1 && ChatClient.isInt(args[0]) ? new int[] {Integer.parseInt(args[0])} : LENGTHS;
+		for (int length : lengths)
+			run(length);
+		System.out.println("(" + sink + " bytes written)");
+	}
+
+	/**
+	 * Runs every path for each room size with one message length
+	 * @param length
+	 * 			Message length in characters
+	 */
+	private static void run(int length)
+	{
+		StringBuilder text = new StringBuilder("alice: ");
+		while (text.length() < length)
+			text.append("the quick brown fox jumps over the lazy dog ");
+		String message = text.substring(0, length);
+
+		System.out.println("Message length " + length + ", " + (RUN_NANOS / 1000000) + " ms per case");
+		System.out.printf("%-10s %-14s %14s %18s%n", "recipients", "path", "us/broadcast", "bytes alloc/bcast");
+		for (int n : RECIPIENTS)
+		{
+			OutputStream[] streams = new OutputStream[n];
+			PrintWriter[] writers = new PrintWriter[n];
+			WriteBatch[] batches = new WriteBatch[n];
+			for (int i = 0; i < n; i++)
+			{
+				streams[i] = new NullOutputStream();
+				writers[i] = new PrintWriter(streams[i], true); // As ServerConnection used to create them
+				batches[i] = new WriteBatch();
+			}
+			NullChannel channel = new NullChannel();
+
+			for (String path : PATHS)
+			{
+				measure(n, path, message, writers, batches, channel, true); // Warm up before measuring
+				report(n, path, measure(n, path, message, writers, batches, channel, false));
+			}
+		}
+	}
+
+	/**
+	 * Broadcasts the message repeatedly for a fixed time
+	 * @return
+	 * 			Broadcasts done, nanoseconds taken and bytes allocated
+	 */
+	private static long[] measure(int n, String path, String message, PrintWriter[] writers, WriteBatch[] batches, NullChannel channel, boolean warmup)
+	{
+		long runFor = warmup ? RUN_NANOS / 4 : RUN_NANOS;
+		long allocatedBefore = allocatedBytes();
+		long start = System.nanoTime();
+		long broadcasts = 0;
+		try
+		{
+			while (System.nanoTime() - start < runFor)
+			{
+				if (path.equals("printwriter"))
+				{
+					for (int i = 0; i < n; i++)
+						writers[i].println(message); // Encodes and copies for every recipient
+				}
+				else if (path.equals("encode-each"))
+				{
+					for (int i = 0; i < n; i++)
+						channel.write(SharedBuffer.CHARSET.encode(message + System.lineSeparator())); // As NioConnection used to queue them
+				}
+				else
+				{
+					SharedBuffer buffer = SharedBuffer.encode(message); // Encodes once
+					for (int i = 0; i < n; i++)
+					{
+						batches[i].add(buffer.retain());
+						batches[i].write(channel);
+					}
+					buffer.release();
+				}
+				broadcasts++;
+			}
+		} catch (java.io.IOException e)
+		{
+			e.printStackTrace();
+		}
+		long elapsed = System.nanoTime() - start;
+		return new long[] {broadcasts, elapsed, allocatedBytes() - allocatedBefore};
+	}
+
+	/**
+	 * Prints one row of the results table
+	 */
+	private static void report(int n, String path, long[] result)
+	{
+		System.out.printf("%-10d %-14s %14.2f %18d%n", n, path, result[1] / 1000.0 / result[0], result[2] / result[0]);
+	}
+
+	/**
+	 * @return
+	 * 			Bytes allocated on the heap by this thread so far, or 0 if the JVM cannot tell
+	 */
+	private static long allocatedBytes()
+	{
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean)
+			return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+		return 0;
+	}
+
+	/**
+	 * OutputStream standing in for a socket, counting bytes
+	 */
+	private static class NullOutputStream extends OutputStream
+	{
+		public void write(int b)
+		{
+			sink++;
+		}
+
+		public void write(byte[] b, int off, int len)
+		{
+			sink += len;
+		}
+	}
+
+	/**
+	 * Channel standing in for a SocketChannel, consuming the bytes of every buffer it is given
+	 */
+	private static class NullChannel implements GatheringByteChannel
+	{
+		public int write(ByteBuffer src)
+		{
+			int n = src.remaining();
+			src.position(src.limit());
+			sink += n;
+			return n;
+		}
+
+		public long write(ByteBuffer[] srcs, int offset, int length)
+		{
+			long n = 0;
+			for (int i = offset; i < offset + length; i++)
+				n += write(srcs[i]);
+			return n;
+		}
+
+		public long write(ByteBuffer[] srcs)
+		{
+			return write(srcs, 0, srcs.length);
+		}
+
+		public boolean isOpen()
+		{
+			return true;
+		}
+
+		public void close()
+		{
+		}
+	}
+}
@@ -0,0 +1,187 @@
+/**
+ * Version 1.0
+ * Author: MK2022
+ * Date: 18/10/2026
+ *
+ * The BufferPool class recycles direct ByteBuffers in power of two size classes, from 64 bytes to 64 KB.
+ * Encoded messages and connections' read buffers are borrowed from it and given back once they are no longer needed,
+ * so memory is only tied up while data is in flight and an idle connection holds no buffer at all.
+ * Direct buffers are costly to allocate and are freed late by the garbage collector, so keeping them is cheaper than making new ones.
+ * Larger requests are allocated exactly and left to the garbage collector when given back.
+ * Each size class keeps its free buffers on an array stack under its own lock, so borrowing and giving back allocate nothing on the heap,
+ * and the buffer most recently given back, the one most likely still in the CPU's cache, is the next one borrowed
+ */
+import java.nio.ByteBuffer; // Necessary imports
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+public class BufferPool
+{
+
+	private static final int MIN_CLASS = 6; // Smallest recycled buffer is 64 bytes
+	private static final int MAX_CLASS = 16; // Largest recycled buffer is 64 KB
+	private static final int MAX_FREE = 1024; // Free buffers kept per size
+
+	private static ByteBuffer[][] free = new ByteBuffer[MAX_CLASS + 1][]; // Free direct buffers by size class, each a stack
+	private static int[] freeCount = new int[MAX_CLASS + 1]; // Buffers on each stack, guarded by its lock
+	private static ReentrantLock[] locks = new ReentrantLock[MAX_CLASS + 1]; // Guard each stack
+	private static AtomicInteger[] borrowed = new AtomicInteger[MAX_CLASS + 1]; // Buffers of each size taken and not yet given back
+	private static LongAdder[] allocated = new LongAdder[MAX_CLASS + 1]; // Buffers of each size allocated because none were free
+	private static LongAdder oversized = new LongAdder(); // Buffers too large to be recycled, allocated exactly
+
+	static
+	{
+		for (int i = MIN_CLASS; i <= MAX_CLASS; i++)
+		{
+			free[i] = new ByteBuffer[MAX_FREE];
+			locks[i] = new ReentrantLock();
+			borrowed[i] = new AtomicInteger();
+			allocated[i] = new LongAdder();
+		}
+	}
+
+	/**
+	 * Constructor for BufferPool, not used as the pool is shared by the whole process
+	 */
+	private BufferPool()
+	{
+	}
+
+	/**
+	 * Takes a free direct buffer of at least the given size, or allocates one
+	 * @param size
+	 * 			Bytes needed
+	 * @return
+	 * 			Cleared direct buffer, to be given back with release
+	 */
+	public static ByteBuffer acquire(int size)
+	{
+		int sizeClass = sizeClass(size);
+		if (sizeClass > MAX_CLASS)
+		{
+			oversized.increment();
+			return ByteBuffer.allocateDirect(size);
+		}
+		borrowed[sizeClass].incrementAndGet();
+		ByteBuffer buffer = null;
+		locks[sizeClass].lock();
+		try
+		{
+			if (freeCount[sizeClass] > 0)
+			{
+				buffer = free[sizeClass][--freeCount[sizeClass]];
+				free[sizeClass][freeCount[sizeClass]] = null;
+			}
+		}
+		finally
+		{
+			locks[sizeClass].unlock();
+		}
+		if (buffer == null)
+		{
+			allocated[sizeClass].increment();
+			return ByteBuffer.allocateDirect(1 << sizeClass);
+		}
+		buffer.clear();
+		return buffer;
+	}
+
+	/**
+	 * Gives a buffer back, keeping it for reuse unless enough of its size are already free
+	 * @param buffer
+	 * 			Buffer from acquire, which must not be used again
+	 */
+	public static void release(ByteBuffer buffer)
+	{
+		int sizeClass = sizeClass(buffer.capacity());
+		if (sizeClass > MAX_CLASS || buffer.capacity() != 1 << sizeClass || !buffer.isDirect())
+			return; // Not from a size class, left to the garbage collector
+		borrowed[sizeClass].decrementAndGet();
+		locks[sizeClass].lock();
+		try
+		{
+			if (freeCount[sizeClass] < MAX_FREE) // Otherwise enough free buffers of this size already
+				free[sizeClass][freeCount[sizeClass]++] = buffer;
+		}
+		finally
+		{
+			locks[sizeClass].unlock();
+		}
+	}
+
+	/**
+	 * @param size
+	 * 			Bytes needed
+	 * @return
+	 * 			Power of two of the smallest size class that fits
+	 */
+	private static int sizeClass(int size)
+	{
+		int sizeClass = 32 - Integer.numberOfLeadingZeros(Math.max(size, 1) - 1);
+		return Math.max(sizeClass, MIN_CLASS);
+	}
+
+	/**
+	 * @return
+	 * 			Bytes in buffers which are borrowed
+	 */
+	public static long getBorrowedBytes()
+	{
+		long bytes = 0;
+		for (int i = MIN_CLASS; i <= MAX_CLASS; i++)
+			bytes += (long) borrowed[i].get() << i;
+		return bytes;
+	}
+
+	/**
+	 * @return
+	 * 			Bytes in buffers which are free for reuse
+	 */
+	public static long getFreeBytes()
+	{
+		long bytes = 0;
+		for (int i = MIN_CLASS; i <= MAX_CLASS; i++)
+			bytes += (long) freeCount(i) << i;
+		return bytes;
+	}
+
+	/**
+	 * @param sizeClass
+	 * 			Power of two of the size class
+	 * @return
+	 * 			Buffers free in the size class
+	 */
+	private static int freeCount(int sizeClass)
+	{
+		locks[sizeClass].lock();
+		try
+		{
+			return freeCount[sizeClass];
+		}
+		finally
+		{
+			locks[sizeClass].unlock();
+		}
+	}
+	
+	/**
+	 * Describes the pool, one line per size class which has been used
+	 * @return
+	 * 			Borrowed, free and allocated buffers by size
+	 */
+	public static String report()
+	{
+		StringBuilder report = new StringBuilder(String.format("%8s %10s %10s %12s%n", "Size", "Borrowed", "Free", "Allocated"));
+		for (int i = MIN_CLASS; i <= MAX_CLASS; i++)
+		{
+			long made = allocated[i].sum();
+			if (made > 0)
+				report.append(String.format("%8d %10d %10d %12d%n", 1 << i, borrowed[i].get(), freeCount(i), made));
+		}
+		report.append(String.format("Borrowed %d KB, free %d KB, %d buffers over 64 KB allocated outside the pool%n", getBorrowedBytes() / 1024,
+			getFreeBytes() / 1024, oversized.sum()));
+		return report.toString();
+	}
+}
@@ -1,6 +1,7 @@
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.util.Arrays;
 
 /**
  * Version 1.3
@@ -81,7 +82,7 @@ public class ChatClient implements Runnable
 			
 			connection.setID(id); // Sends username to server
 			
-			new Thread(connection).start(); // Starts a thread listening to server
+			connection.start(); // Starts a thread listening to server
 
 			write("To disconnect, please enter \"Disconnect Me\" and then confirm when prompted:");
 			write("Welcome to the chatroom:");
@@ -142,13 +143,9 @@ public class ChatClient implements Runnable
 				}
 				if (input != null && !input.equals("") && thread) // if the thread variable is stil true, then transmission is sent.
 					connection.send(input); // Sends message to server
-				Thread.sleep(250);
 			}
 			System.exit(0);
 		} catch (IOException e) 
-		{
-			e.printStackTrace();
-		} catch (InterruptedException e) 
 		{
 			e.printStackTrace();
 		}
@@ -192,6 +189,31 @@ public class ChatClient implements Runnable
 		String address = "localhost"; // Sets default values
 		int port = 14001;
 		
+		if (args.length >= 1 && args[0].equals("-load")) // Simulated clients for capacity planning rather than a user's client
+		{
+			try
+			{
+				LoadGenerator.main(Arrays.copyOfRange(args, 1, args.length));
+			} catch (Exception e)
+			{
+				e.printStackTrace();
+			}
+			return;
+		}
+		
+		Tls.configure(args); // -tls on, with -truststore if the server's certificate is not one the JDK trusts
+		for (int i = 0; i < args.length; i++) // Virtual threads can be requested alongside the other options
+		{
+			if (args[i].equals("-virtual"))
+				ClientConnection.useVirtualThreads(true);
+			else if (args[i].equals("-text")) // For servers which only speak the text protocol
+				ClientConnection.useFraming(false);
+			else if (args[i].equals("-scrollback") && i + 1 < args.length && isInt(args[i + 1])) // Lines kept by the GUI
+				ClientGUI.setScrollback(Integer.parseInt(args[++i]));
+			else if (args[i].equals("-fps") && i + 1 < args.length && isInt(args[i + 1])) // GUI updates a second
+				ClientGUI.setFrameRate(Integer.parseInt(args[++i]));
+		}
+		
 		if (args.length >= 2) // ensures arguments are not null
 		{
 			if (args[0].equals("-cca")) // Checks for address entry
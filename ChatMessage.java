@@ -0,0 +1,191 @@
+/**
+ * Version 1.0
+ * Author: MK2022
+ * Date: 18/10/2026
+ * 
+ * The ChatMessage class is a broadcast waiting to be queued for its recipients. Each wire format the recipients use is
+ * encoded once, the first time a recipient needs it, and then shared by every recipient using that format,
+ * so a large message is compressed once however many recipients agreed to compression.
+ * A user's message relayed straight from a read buffer is held as UTF-8 bytes, sender's prefix first, and each format is copied from them,
+ * so its text is only decoded if something needs it as a String.
+ * A room message is numbered by its room, and recipients which agreed reliable delivery get it led by a SEQUENCE frame in the same buffer,
+ * so a slow consumer policy dropping it drops its number too and the client sees the gap
+ */
+import java.nio.ByteBuffer; // Necessary imports
+
+
+public class ChatMessage
+{
+	
+	public static final int TEXT = 0; // Newline delimited text, as old clients expect
+	public static final int FRAMED = 1; // MESSAGE frames
+	public static final int COMPRESSED = 2; // MESSAGE frames, deflated when large enough
+	public static final int SEQUENCED = 4; // Added to FRAMED or COMPRESSED when the client agreed reliable delivery, room messages are then numbered
+	private static final int FORMATS = SEQUENCED * 2; // Every format, with and without SEQUENCED
+	
+	private String text; // Message to be sent, null until needed if the message was built from bytes
+	private String sequence; // Payload of the SEQUENCE frame, epoch:sequence, null unless the message was said in a room
+	private SharedBuffer utf8; // UTF-8 bytes of the message if it was built from them, otherwise null
+	private SharedBuffer[] encoded; // Encoding of the message in each format, null until needed
+	
+	/**
+	 * Constructor for ChatMessage
+	 * @param text
+	 * 			Message to be sent
+	 */
+	public ChatMessage(String text)
+	{
+		this.text = text;
+		encoded = new SharedBuffer[FORMATS];
+	}
+	
+	/**
+	 * Constructor for ChatMessage, copying a user's message from a read buffer after the sender's prefix without decoding it
+	 * @param prefix
+	 * 			UTF-8 bytes leading the message, the sender's ID and separator
+	 * @param buffer
+	 * 			Buffer holding the message as well formed UTF-8
+	 * @param start
+	 * 			Index of the message in the buffer
+	 * @param length
+	 * 			Bytes of the message
+	 */
+	public ChatMessage(byte[] prefix, ByteBuffer buffer, int start, int length)
+	{
+		utf8 = SharedBuffer.join(prefix, buffer, start, length);
+		encoded = new SharedBuffer[FORMATS];
+	}
+	
+	/**
+	 * @return
+	 * 			Message text, decoded the first time it is asked for if the message was built from bytes
+	 */
+	public String getText()
+	{
+		if (text == null)
+			text = Frame.CHARSET.decode(utf8.view()).toString();
+		return text;
+	}
+	
+	/**
+	 * @return
+	 * 			UTF-8 bytes of the message, owned by this ChatMessage, or null if it was built from text
+	 */
+	public SharedBuffer getUtf8()
+	{
+		return utf8;
+	}
+	
+	/**
+	 * Numbers a room message, before it is first encoded
+	 * @param epoch
+	 * 			Epoch of the room
+	 * @param number
+	 * 			Sequence number of the message in the room
+	 */
+	public void setSequence(long epoch, long number)
+	{
+		sequence = epoch + ":" + number;
+	}
+	
+	/**
+	 * Gets the message encoded for a wire format, encoding it if no recipient has needed that format yet
+	 * @param format
+	 * 			TEXT, FRAMED or COMPRESSED, FRAMED and COMPRESSED possibly with SEQUENCED
+	 * @return
+	 * 			Encoded message, owned by this ChatMessage, which recipients' queues retain
+	 */
+	public SharedBuffer encoded(int format)
+	{
+		if ((format & SEQUENCED) != 0 && sequence == null)
+			return encoded(format & ~SEQUENCED); // Notices are not numbered
+		if (encoded[format] == null && (format & SEQUENCED) != 0)
+			encoded[format] = sequenced(encoded(format & ~SEQUENCED));
+		else if (encoded[format] == null && utf8 != null)
+			encoded[format] = copy(format);
+		else if (encoded[format] == null && format == COMPRESSED)
+		{
+			encoded[format] = Compression.compress(text);
+			if (encoded[format] == null) // Too small to compress, so the same bytes as a plain frame
+				encoded[format] = encoded(FRAMED).retain();
+		}
+		else if (encoded[format] == null)
+			encoded[format] = encode(text, format);
+		return encoded[format];
+	}
+	
+	/**
+	 * Builds one format from the UTF-8 bytes of the message
+	 * @param format
+	 * 			TEXT, FRAMED or COMPRESSED
+	 * @return
+	 * 			SharedBuffer with one reference, owned by this ChatMessage
+	 */
+	private SharedBuffer copy(int format)
+	{
+		if (format == COMPRESSED)
+		{
+			SharedBuffer compressed = Compression.compress(utf8);
+			return compressed != null ? compressed : encoded(FRAMED).retain(); // Too small to compress, so the same bytes as a plain frame
+		}
+		if (format == FRAMED)
+			return SharedBuffer.frame(Frame.MESSAGE, 0, utf8);
+		if (SharedBuffer.UTF8_TEXT)
+			return SharedBuffer.line(utf8);
+		return SharedBuffer.encode(getText()); // Rare, for servers whose default charset is not UTF-8
+	}
+	
+	/**
+	 * Leads an encoded message with its SEQUENCE frame
+	 * @param message
+	 * 			Message encoded as MESSAGE frames
+	 * @return
+	 * 			SharedBuffer with one reference, owned by this ChatMessage
+	 */
+	private SharedBuffer sequenced(SharedBuffer message)
+	{
+		byte[] number = sequence.getBytes(Frame.CHARSET);
+		SharedBuffer joined = SharedBuffer.allocateShared(Frame.HEADER + number.length + message.length());
+		joined.contents().put((byte) Frame.SEQUENCE).put((byte) 0).putInt(number.length).put(number).put(message.view());
+		return joined.seal();
+	}
+	
+	/**
+	 * Encodes a message for a single recipient, never numbered as it is not a room message
+	 * @param text
+	 * 			Message to be sent
+	 * @param format
+	 * 			TEXT, FRAMED or COMPRESSED, with or without SEQUENCED
+	 * @return
+	 * 			SharedBuffer with one reference, which the caller must release
+	 */
+	public static SharedBuffer encode(String text, int format)
+	{
+		format &= ~SEQUENCED;
+		if (format == COMPRESSED)
+		{
+			SharedBuffer compressed = Compression.compress(text);
+			if (compressed != null)
+				return compressed;
+		}
+		if (format != TEXT)
+			return SharedBuffer.frame(Frame.MESSAGE, 0, text);
+		return SharedBuffer.encode(text);
+	}
+	
+	/**
+	 * Releases the encodings, once the message has been queued for every recipient
+	 */
+	public void release()
+	{
+		for (int i = 0; i < FORMATS; i++)
+		{
+			if (encoded[i] != null)
+				encoded[i].release();
+			encoded[i] = null;
+		}
+		if (utf8 != null)
+			utf8.release();
+		utf8 = null;
+	}
+}
@@ -0,0 +1,462 @@
+/**
+ * Version 1.0
+ * Author: MK2022
+ * Date: 18/10/2026
+ * 
+ * The ChatRouter class decides where each message from a client goes, for both server engines.
+ * Every session is in one room, starting in the lobby, and its messages go only to that room's members.
+ * Messages starting with / are commands: /join <room>, /leave, /rooms, /msg <user> <text> and /history [n]. A message meant to start with / is sent as //.
+ * Joining a room, the lobby included, replays its last messages first. /history asking for more than the room's history keeps
+ * is answered from the MessageLog, if it is on.
+ * A direct message finds its recipient in the ConnectionRegistry's username index, and only the sender and recipient are sent anything.
+ * In a Cluster, room messages and notices are relayed to the other nodes' members of the room, and a direct message to a user
+ * on another node goes to that node.
+ * A message still in its sender's read buffer is relayed from there without being decoded, and logged as the same UTF-8 bytes.
+ * A client under reliable delivery which reconnects with the Position it had reached goes straight back to its room, if that room is still open,
+ * and is sent only the messages it missed rather than the lobby's history
+ */
+import java.nio.ByteBuffer; // Necessary imports
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+public class ChatRouter
+{
+	
+	public static final String LOBBY = "lobby"; // Room every user starts in
+	public static final String HELP = "Commands are /join <room>, /leave, /rooms, /msg <user> <text> and /history [n], start a message with // to send it starting with /";
+	private static final int MAX_NAME = 32; // Longest room name
+	
+	private static ChatRouter instance = new ChatRouter(); // Shared by every connection, as the ConnectionRegistry is
+	private static ConnectionRegistry connections = ConnectionRegistry.getInstance(); // Finds the recipients of direct messages
+	
+	private ConcurrentHashMap<String, Room> rooms; // Open rooms by name
+	private Room lobby;
+	
+	/**
+	 * Constructor for ChatRouter
+	 */
+	public ChatRouter()
+	{
+		rooms = new ConcurrentHashMap<String, Room>();
+		lobby = new Room(LOBBY, true);
+		rooms.put(LOBBY, lobby);
+	}
+	
+	/**
+	 * @return
+	 * 			Router shared by the whole server
+	 */
+	public static ChatRouter getInstance()
+	{
+		return instance;
+	}
+	
+	/**
+	 * Puts a session which has just sent its user ID in the lobby and announces it there
+	 * @param session
+	 * 			Session, already in the ConnectionRegistry
+	 * @return
+	 * 			Line for the server output
+	 */
+	public String enter(Session session)
+	{
+		return enter(session, null);
+	}
+	
+	/**
+	 * Puts a session which has just sent its user ID back in the room it was in before its connection was lost, or in the lobby
+	 * if that room has closed since, and announces it there
+	 * @param session
+	 * 			Session, already in the ConnectionRegistry
+	 * @param resume
+	 * 			Position the client had reached, given in its hello line, or null if it is not resuming
+	 * @return
+	 * 			Line for the server output
+	 */
+	public String enter(Session session, Position resume)
+	{
+		if (resume != null && (session.getFormat() & ChatMessage.SEQUENCED) != 0)
+		{
+			Room room = rooms.get(resume.getRoom());
+			if (room != null && room.getEpoch() == resume.getEpoch() && resume.getSequence() <= room.getSequence() && room.add(session, resume.getSequence()))
+			{
+				session.setRoom(room);
+				return announce(room, "User: " + session.getID() + " has reconnected");
+			}
+			if (!resume.getRoom().equals(LOBBY))
+				session.send("#" + resume.getRoom() + " has closed since you were connected, you are back in the lobby");
+		}
+		lobby.add(session); // A new position there, as the lobby's numbering has started again if the server restarted
+		session.setRoom(lobby);
+		return announce(lobby, "User: " + session.getID() + " has connected"); // Informs other users that a new user has connected
+	}
+	
+	/**
+	 * Records a client's acknowledgement of its room's messages, ignoring one for a room it has since left
+	 * @param session
+	 * 			Session under reliable delivery
+	 * @param text
+	 * 			Payload of the ACK frame, epoch:sequence
+	 */
+	public void acknowledge(Session session, String text)
+	{
+		String[] parts = text.split(":");
+		Room room = session.getRoom();
+		if ((session.getFormat() & ChatMessage.SEQUENCED) != 0 && parts.length == 2 && Position.isNumber(parts[0]) && Position.isNumber(parts[1]) && room.getEpoch() == Long.parseLong(parts[0]))
+			session.getQueue().setAcknowledged(Math.min(Long.parseLong(parts[1]), room.getSequence()));
+	}
+	
+	/**
+	 * Sends a client which found a gap in its room's messages the messages after the last one it had, ignoring a request for a room it has since left
+	 * @param session
+	 * 			Session under reliable delivery
+	 * @param text
+	 * 			Payload of the RESUME frame, a Position
+	 */
+	public void resume(Session session, String text)
+	{
+		Position position = Position.parse(text);
+		Room room = session.getRoom();
+		if ((session.getFormat() & ChatMessage.SEQUENCED) != 0 && position != null && room.getEpoch() == position.getEpoch() && position.getSequence() <= room.getSequence())
+			room.resume(session, position.getSequence());
+	}
+	
+	/**
+	 * Puts a message read back from the MessageLog in its room's history. Only the lobby is open when the server starts,
+	 * other rooms start afresh when they are next created
+	 * @param room
+	 * 			Room the message was sent to
+	 * @param sender
+	 * 			Username of the sender
+	 * @param text
+	 * 			Message text
+	 */
+	public void restore(String room, String sender, String text)
+	{
+		if (room.equals(LOBBY))
+			lobby.restore(sender, text);
+	}
+	
+	/**
+	 * Takes a disconnecting session out of its room and announces it there
+	 * @param session
+	 * 			Session which has disconnected
+	 * @param reason
+	 * 			Why the server disconnected it, null if the client left by itself
+	 * @return
+	 * 			Line for the server output, or null if the session never entered a room
+	 */
+	public String leave(Session session, String reason)
+	{
+		Room room = session.getRoom();
+		if (room == null)
+			return null;
+		remove(room, session);
+		if (reason == null)
+			return announce(room, "User " + session.getID() + " has disconnected"); // Informs other users that a user has disconnected
+		return announce(room, "User " + session.getID() + " has disconnected (" + reason + ")");
+	}
+	
+	/**
+	 * Handles a message from a client, either a command or a message for the client's room
+	 * @param session
+	 * 			Session which sent the message
+	 * @param text
+	 * 			Message as typed
+	 * @return
+	 * 			Line for the server output, or null if there is nothing to log
+	 */
+	public String handle(Session session, String text)
+	{
+		Metrics.MESSAGES_IN.increment();
+		if (text.startsWith("/") && !text.startsWith("//"))
+			return command(session, text);
+		if (text.startsWith("//"))
+			text = text.substring(1);
+		Room room = session.getRoom();
+		String message = room.post(session.getID(), text); // Message led by user ID, kept in the room's history
+		return room == lobby ? message : "#" + room.getName() + " " + message;
+	}
+	
+	/**
+	 * Handles a message from a client while it is still in the read buffer. A message for the client's room is copied from there
+	 * behind the sender's cached prefix and logged as it was broadcast, so no String is made for it; a command is decoded and run
+	 * @param session
+	 * 			Session which sent the message
+	 * @param buffer
+	 * 			Read buffer holding the message as well formed UTF-8, its position and limit are not used
+	 * @param start
+	 * 			Index of the message in the buffer
+	 * @param length
+	 * 			Bytes of the message
+	 * @return
+	 * 			Line for the server output after a command, or null if there is nothing left to log
+	 */
+	public String handle(Session session, ByteBuffer buffer, int start, int length)
+	{
+		boolean slash = length > 0 && buffer.get(start) == '/';
+		if (slash && (length == 1 || buffer.get(start + 1) != '/'))
+		{
+			ByteBuffer command = buffer.duplicate();
+			command.limit(start + length).position(start);
+			return handle(session, Frame.CHARSET.decode(command).toString()); // Commands need their words, and are rare
+		}
+		Metrics.MESSAGES_IN.increment();
+		if (slash) // Sent as // so it could start with /
+		{
+			start++;
+			length--;
+		}
+		Room room = session.getRoom();
+		SharedBuffer line = room.post(session, buffer, start, length); // Message led by user ID, kept in the room's history
+		if (room == lobby)
+			ServerLog.write(line);
+		else
+		{
+			SharedBuffer tagged = SharedBuffer.join(room.getTag(), line.contents(), 0, line.length());
+			ServerLog.write(tagged);
+			tagged.release();
+		}
+		line.release();
+		return null;
+	}
+	
+	/**
+	 * Runs a command
+	 * @return
+	 * 			Line for the server output, or null if there is nothing to log
+	 */
+	private String command(Session session, String text)
+	{
+		String[] words = text.trim().split("\\s+", 3); // A direct message keeps the spacing of its text
+		String command = words[0].toLowerCase(Locale.ROOT);
+		if (command.equals("/join") && words.length == 2)
+			return join(session, words[1].startsWith("#") ? words[1].substring(1) : words[1]);
+		if (command.equals("/leave") && words.length == 1)
+		{
+			if (session.getRoom() == lobby)
+			{
+				session.send("You are in the lobby, use /join <room> to join a room");
+				return null;
+			}
+			return join(session, LOBBY);
+		}
+		if (command.equals("/rooms") && words.length == 1)
+		{
+			session.send(listRooms());
+			return null;
+		}
+		if (command.equals("/history") && (words.length == 1 || (words.length == 2 && ChatClient.isInt(words[1]) && words[1].length() < 10)))
+		{
+			int wanted = words.length == 2 ? Integer.parseInt(words[1]) : RoomHistory.getReplayCount();
+			Room room = session.getRoom();
+			if (MessageLog.getInstance() != null && wanted > room.getKept())
+				MessageLog.getInstance().replay(session, room.getName(), Math.min(wanted, MessageLog.MAX_REPLAY)); // Read back from disk, on the log's thread
+			else if (room.replay(session, Math.min(wanted, RoomHistory.getMaxEntries())) == 0)
+				session.send("No messages have been kept in #" + room.getName());
+			return null;
+		}
+		if (command.equals("/msg") && words.length == 3)
+		{
+			message(session, words[1], words[2]);
+			return null; // Direct messages are private, so not written to the server output
+		}
+		session.send(HELP);
+		return null;
+	}
+	
+	/**
+	 * Moves a session to a room, creating the room if it does not exist
+	 * @param session
+	 * 			Session to be moved
+	 * @param name
+	 * 			Name of the room
+	 * @return
+	 * 			Line for the server output, or null if the session did not move
+	 */
+	public String join(Session session, String name)
+	{
+		if (!isValidName(name))
+		{
+			session.send("Room names are 1 to " + MAX_NAME + " letters, digits, - or _");
+			return null;
+		}
+		name = name.toLowerCase(Locale.ROOT);
+		Room old = session.getRoom();
+		if (old.getName().equals(name))
+		{
+			session.send("You are already in #" + name);
+			return null;
+		}
+		Room room;
+		while (true)
+		{
+			room = rooms.get(name);
+			if (room == null)
+			{
+				Room created = new Room(name, false);
+				room = rooms.putIfAbsent(name, created);
+				if (room == null)
+					room = created;
+			}
+			if (room.add(session))
+				break;
+			rooms.remove(name, room); // Emptied and closed since it was looked up, so it is created again
+		}
+		remove(old, session);
+		session.setRoom(room);
+		announce(old, "User " + session.getID() + " has left #" + old.getName());
+		return announce(room, "User " + session.getID() + " has joined #" + name + " (" + room.size() + (room.size() == 1 ? " user)" : " users)"));
+	}
+	
+	/**
+	 * Sends a direct message to one user
+	 * @param session
+	 * 			Session of the sender
+	 * @param name
+	 * 			Username of the recipient
+	 * @param text
+	 * 			Message
+	 */
+	public void message(Session session, String name, String text)
+	{
+		Session recipient = connections.getByName(name);
+		String to = recipient != null ? recipient.getID() : null;
+		if (recipient != null)
+			recipient.send("[from " + session.getID() + "] " + text);
+		else if (Cluster.getInstance() != null)
+			to = Cluster.getInstance().direct(session.getID(), name, text); // Null unless the user is on another node
+		if (to == null)
+		{
+			session.send("No user called " + name + " is connected");
+			return;
+		}
+		session.send("[to " + to + "] " + text); // Echoed so the sender sees it in their own conversation
+	}
+	
+	/**
+	 * Delivers a direct message relayed from another node of the Cluster
+	 * @param from
+	 * 			Username of the sender
+	 * @param to
+	 * 			Username of the recipient
+	 * @param text
+	 * 			Message
+	 */
+	public void deliver(String from, String to, String text)
+	{
+		Session recipient = connections.getByName(to);
+		if (recipient != null) // Unless the user left while the message was on its way
+			recipient.send("[from " + from + "] " + text);
+	}
+	
+	/**
+	 * Broadcasts a message relayed from another node of the Cluster to this node's members of the room
+	 * @param name
+	 * 			Name of the room
+	 * @param sender
+	 * 			Username of the sender
+	 * @param text
+	 * 			Message text
+	 * @return
+	 * 			Line for the server output, or null if nobody here is in the room
+	 */
+	public String relay(String name, String sender, String text)
+	{
+		Room room = rooms.get(name);
+		if (room == null)
+			return null;
+		String message = room.relayed(sender, text);
+		return room == lobby ? message : "#" + room.getName() + " " + message;
+	}
+	
+	/**
+	 * Broadcasts a notice relayed from another node of the Cluster to this node's members of the room
+	 * @param name
+	 * 			Name of the room
+	 * @param text
+	 * 			Notice
+	 * @return
+	 * 			Line for the server output, or null if nobody here is in the room
+	 */
+	public String relayNotice(String name, String text)
+	{
+		Room room = rooms.get(name);
+		if (room == null)
+			return null;
+		ChatMessage broadcast = new ChatMessage(text);
+		room.broadcast(broadcast);
+		broadcast.release();
+		return room == lobby ? text : "#" + room.getName() + " " + text;
+	}
+	
+	/**
+	 * @return
+	 * 			Every open room with its number of members
+	 */
+	public String listRooms()
+	{
+		StringBuilder list = new StringBuilder("Rooms:");
+		Iterator<Room> i = rooms.values().iterator();
+		while (i.hasNext())
+		{
+			Room room = i.next();
+			list.append(" #").append(room.getName()).append(" (").append(room.size()).append(")").append(i.hasNext() ? "," : "");
+		}
+		return list.toString();
+	}
+	
+	/**
+	 * @return
+	 * 			Number of open rooms
+	 */
+	public int getRoomCount()
+	{
+		return rooms.size();
+	}
+	
+	/**
+	 * Removes a session from a room, forgetting the room if that closed it
+	 */
+	private void remove(Room room, Session session)
+	{
+		if (room.remove(session))
+			rooms.remove(room.getName(), room);
+	}
+	
+	/**
+	 * Broadcasts a message to a room, on every node of the Cluster
+	 * @return
+	 * 			Line for the server output, led by the room unless it is the lobby
+	 */
+	private String announce(Room room, String message)
+	{
+		ChatMessage broadcast = new ChatMessage(message); // Encoded once per format for the whole room
+		room.broadcast(broadcast);
+		broadcast.release();
+		if (Cluster.getInstance() != null)
+			Cluster.getInstance().announce(room.getName(), message);
+		return room == lobby ? message : "#" + room.getName() + " " + message;
+	}
+	
+	/**
+	 * @param name
+	 * 			Room name given by a user
+	 * @return
+	 * 			Whether it can be used as a room name
+	 */
+	private static boolean isValidName(String name)
+	{
+		if (name.length() == 0 || name.length() > MAX_NAME)
+			return false;
+		for (int i = 0; i < name.length(); i++)
+		{
+			char c = name.charAt(i);
+			if (!Character.isLetterOrDigit(c) && c != '-' && c != '_')
+				return false;
+		}
+		return true;
+	}
+}
@@ -4,28 +4,38 @@
  * Date: 06/03/2018
  * 
  * The ChatServer is the starting point for the Server side of the server chat program
- * It runs a thread to accept connections from clients
+ * It runs a thread to accept connections from clients, either handing each to its own ServerConnection thread
+ * (a platform thread in blocking mode, a virtual thread in virtual mode) or to a group of Selector reactor threads through a NioServer (nio mode)
+ * Each ServerConnection also has a writer thread draining its outbound queue, so blocking mode costs two platform threads per connection.
+ * That keeps a slow reader from holding up a broadcast, and is cheap in virtual mode; nio mode is the choice for many connections on platform threads
+ * Admission binds the port and decides which connections are served, and with -acceptors there is one accepting thread per listener
+ * With -tls on every connection is encrypted, see Tls for the keystore and session resumption options
  */
 
 import java.io.BufferedReader; // Necessary imports
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.net.ServerSocket;
 import java.net.Socket;
-import java.net.SocketException;
-import java.util.ArrayList;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.ExecutorService;
 
 
 public class ChatServer implements Runnable
 {
 
-	private static ServerSocket in; // ServerSocket object needed for Socket creation
-	private ServerConnection mcs; // ServerConnection which handles connections
-	private static ArrayList<ServerConnection> connections; // List of ServerConnection objects, used for disconnecting
-	private static boolean thread; // Variable to run loop in thread
+	private static ServerSocketChannel[] listeners; // Channel each acceptor accepts connections from, backed by a ServerSocket
+	private static ConnectionRegistry connections = ConnectionRegistry.getInstance(); // Registry of connected clients, used for disconnecting
+	private static volatile boolean thread; // Variable to run loop in thread
+	private ExecutorService executor; // Runs ServerConnection threads, virtual threads in virtual mode
 	private ServerGUI sg; // GUI object to write to
 	int port; // port to be used
 	private boolean gui;
+	private String mode; // Server engine, "blocking", "virtual" or "nio"
+	private int reactors; // Number of reactor threads used in nio mode, number of cores if less than 1
+	private NioServer nio; // Non-blocking server, only used in nio mode
 	
 	/**
 	 * Constructor for ChatServer
@@ -35,47 +45,88 @@ public class ChatServer implements Runnable
 	 * 			Whether a GUI is used
 	 */
 	public ChatServer(int port, boolean gui)
+	{
+		this(port, gui, "blocking", 0);
+	}
+	
+	/**
+	 * Constructor for ChatServer with a choice of server engine
+	 * @param port
+	 * 			Port to listen to
+	 * @param gui
+	 * 			Whether a GUI is used
+	 * @param mode
+	 * 			"blocking" for a thread per connection, "virtual" for a virtual thread per connection, "nio" for Selector reactor threads
+	 * @param reactors
+	 * 			Number of reactor threads in nio mode, number of cores if less than 1
+	 */
+	public ChatServer(int port, boolean gui, String mode, int reactors)
 	{
 		this.port = port;
 		this.gui = gui;
+		this.mode = mode;
+		this.reactors = reactors;
 		if (gui)
+		{
 			sg = new ServerGUI(port, this); // Creates GUI object
+			ServerLog.useGUI(sg); // Server output goes to the GUI rather than the console
+		}
 		else
 			startServer(port); // Starts server directly
 	}
 	
 	/**
-	 * Thread method, waits for connection requests and spawns ServerConnection threads, which handle the connections
+	 * Thread method, starts an acceptor for each other listener then accepts connections from the first
 	 */
 	public void run()
 	{
 		thread = true;
-		connections = new ArrayList<ServerConnection>(); // Initialises ArrayList
+		for (int i = 1; i < listeners.length; i++)
+		{
+			final ServerSocketChannel listener = listeners[i];
+			new Thread(new Runnable()
+			{
+				public void run()
+				{
+					accept(listener);
+				}
+			}, "acceptor-" + i).start();
+		}
+		accept(listeners[0]);
+	}
+	
+	/**
+	 * Waits for connection requests and spawns ServerConnection threads, which handle the connections
+	 * @param listener
+	 * 			Channel to accept connections from
+	 */
+	private void accept(ServerSocketChannel listener)
+	{
 		try
 		{
 			while (thread)
 			{
-				Socket s = in.accept(); // Waits to accept connection
+				SocketChannel sc = listener.accept(); // Waits to accept connection
+				if (!Admission.admit(sc)) // Over a limit, already refused
+					continue;
 				
-				System.out.println("Server accepted connection on " + in.getLocalPort() + " ; " + s.getPort()); // Informs of successful connections in command line
+				Metrics.ACCEPTS.increment();
+				Socket s = sc.socket();
+				ServerLog.write("Server accepted connection on " + s.getLocalPort() + " ; " + s.getPort()); // Informs of successful connections in command line
+				ServerConnection mcs; // ServerConnection which handles the connection
 				if (gui)
 					mcs = new ServerConnection(s, sg); //Creates new ServerConnection object
 				else
 					mcs = new ServerConnection(s);
-				addConnection(mcs); // ServerConnection object to arraylist so threads can be handled
-				
-				new Thread(mcs).start(); // Starts ServerConnection thread to deal with connection
-				Thread.sleep(250);
+				executor.execute(mcs); // Starts ServerConnection thread to deal with connection
+				executor.execute(mcs.getWriter()); // Starts thread writing to the connection, a second platform thread per connection in blocking mode
 			}
-		}catch (SocketException e) 
+		}catch (ClosedChannelException e) 
 		{
-			// Happens when closing the connections, as loop will be waiting for connect request when ServerSocket object is closed
+			// Happens when closing the connections, as loop will be waiting for connect request when the channel is closed
 		} 
 		catch (IOException e) 
-			{
-				e.printStackTrace();
-			} catch (InterruptedException e) 
-			{
+		{
 			e.printStackTrace();
 		}
 		finally
@@ -92,12 +143,20 @@ public class ChatServer implements Runnable
 	 */
 	private synchronized void closeConnections()
 	{
-		for(int i = 0; i < connections.size(); i++)
+		if (MessageLog.getInstance() != null)
+			MessageLog.getInstance().close(); // Forces the last messages to disk before exiting
+		if (nio != null)
 		{
-			getConnection(i).stopThread();
+			nio.close(); // Reactors close their own channels
+			System.exit(0);
+		}
+		for (Session connection : connections)
+		{
+			connection.close();
 		}
 		try {
-			in.close(); // Closes ServerSocket object
+			for (int i = 0; listeners != null && i < listeners.length; i++)
+				listeners[i].close(); // Closes ServerSocket objects
 			System.exit(0); // Exits system
 		} catch (IOException e) 
 		{
@@ -105,28 +164,6 @@ public class ChatServer implements Runnable
 		}
 	}
 	
-	/**
-	 * Adds a ServerConnection object to the connections ArrayList
-	 * @param mcs
-	 * 		ServerConnectionobject to be added to the ArrayList
-	 */
-	private synchronized void addConnection(ServerConnection mcs)
-	{
-		connections.add(mcs);
-	}
-
-	/**
-	 * Returns the (i-1)th element in the ArrayList
-	 * @param i
-	 * 		The index to be accessed
-	 * @return
-	 * 		(i-1)th ServerConnection object in the ArrayList
-	 */
-	public synchronized ServerConnection getConnection(int i)
-	{
-		return connections.get(i);
-	}
-	
 	/**
 	 * Instantiates ServerSocket object, and starts thread to listen for connections
 	 * @param port
@@ -137,8 +174,24 @@ public class ChatServer implements Runnable
 	public synchronized boolean startServer(int port)
 	{
 		try {
-			in = new ServerSocket(port); // Creates ServerSocket object
-			new Thread(this).start();
+			if (mode.equalsIgnoreCase("nio"))
+			{
+				nio = new NioServer(port, reactors); // Binds port and starts reactor threads
+				new Thread(nio).start();
+			}
+			else
+			{
+				listeners = Admission.bind(port); // Creates ServerSocket objects, backed by channels so connections can use gathering writes
+				executor = ThreadMode.newExecutor(ThreadMode.isVirtual(mode), "server-connection");
+				new Thread(this).start();
+			}
+			try
+			{
+				Cluster.start(); // Links to the other nodes, if clustering is on
+			} catch (IOException e)
+			{
+				ServerLog.write("Cluster port could not be bound, running as a single node: " + e.getMessage());
+			}
 			return true;
 		} catch (IOException e) 
 		{
@@ -162,8 +215,64 @@ public class ChatServer implements Runnable
 	public static void main(String[]args)
 	{
 		int port = 14001;
-		if (args.length >= 2 && args[0].equalsIgnoreCase("-csp")) // ensures arguments are not null
-			port = Integer.parseInt(args[1]); // Assigns port value
+		String mode = "blocking";
+		int reactors = 0;
+		for (int i = 0; i + 1 < args.length; i += 2) // ensures arguments are not null, options come in pairs
+		{
+			if (args[i].equalsIgnoreCase("-csp"))
+				port = Integer.parseInt(args[i + 1]); // Assigns port value
+			else if (args[i].equalsIgnoreCase("-mode"))
+				mode = args[i + 1]; // "blocking", "virtual" or "nio"
+			else if (args[i].equalsIgnoreCase("-reactors") && ChatClient.isInt(args[i + 1]))
+				reactors = Integer.parseInt(args[i + 1]); // Number of reactor threads for nio mode
+		}
+		ServerLog.configure(args); // Logging first, so anything written while starting goes where it was asked to
+		Admission.configure(args);
+		Heartbeat.configure(args);
+		Tls.configure(args);
+		RateLimiter.configure(args); // Rate limit and queue options are read from the same arguments
+		OutboundQueue.configure(args);
+		WriteBatch.configure(args);
+		Compression.configure(args);
+		RoomHistory.configure(args);
+		MessageLog.configure(args);
+		Cluster.configure(args);
+		Metrics.configure(args);
+		if (Tls.isEnabled())
+		{
+			try
+			{
+				Tls.open(); // Loads the key before anything is accepted, rather than failing each handshake
+			} catch (IOException e)
+			{
+				System.out.println("TLS could not be started, the server will not run unencrypted: " + e.getMessage());
+				System.exit(1);
+			} catch (GeneralSecurityException e)
+			{
+				System.out.println("TLS could not be started, the server will not run unencrypted: " + e.getMessage());
+				System.exit(1);
+			}
+		}
+		try
+		{
+			Metrics.start(); // JMX, and the scrape endpoint if a metrics port was given
+		} catch (IOException e)
+		{
+			ServerLog.write("Metrics port could not be bound, metrics are only available over JMX: " + e.getMessage());
+		}
+		try
+		{
+			MessageLog.open(new MessageLog.Visitor() // Messages in the active segment refill the lobby's history
+			{
+				public void record(long offset, long time, String room, String sender, String text)
+				{
+					ChatRouter.getInstance().restore(room, sender, text);
+				}
+			});
+		} catch (IOException e)
+		{
+			ServerLog.write("Message log could not be opened, messages will not be kept: " + e.getMessage());
+		}
 		try 
 		{
 			
@@ -183,13 +292,16 @@ public class ChatServer implements Runnable
 				gui = true;
 			else
 				gui = false;
-			ChatServer cs = new ChatServer(port, gui);  // Creates ChatServer object
-			
-			connections = new ArrayList<ServerConnection>(); // instantiates ArrayList
+			Footprint.mark(); // Memory before any connection, which the Memory command measures against
+			ChatServer cs = new ChatServer(port, gui, mode, reactors);  // Creates ChatServer object
 			
 			do
 			{
 				input = userIn.readLine();
+				if (input != null && input.equalsIgnoreCase("Queues")) // Shows how far behind each client is
+					System.out.print(connections.queueReport());
+				else if (input != null && input.equalsIgnoreCase("Memory")) // Shows what each connection costs, after a full garbage collection
+					System.out.print(Footprint.report());
 			}while (input != null && !input.equalsIgnoreCase("Exit")); // Listens until user enters exit in terminal to end connection
 				cs.disconnect();
 			
@@ -4,27 +4,63 @@
  * Date: 06/03/2018
  * 
  * The Client class handles connections to MultiClientServer objects, and passes received messages to its usingGUI object, and sends messages from the usingGUI to the server
+ * Before sending the user ID the client offers binary framing in a hello line, and uses frames if the server accepts, otherwise newline delimited text.
+ * Messages are decoded straight from the read buffer by a FrameDecoder, and compressed frames are inflated from it.
+ * With TLS on the connection goes through a TlsChannel, which checks the server's certificate names the host and offers the session
+ * agreed on the last connection to the same server, so reconnecting skips the full handshake.
+ * The client also offers reliable delivery. If the server agrees, each room message arrives with its sequence number, the client acknowledges
+ * the last it has whenever it has caught up, and asks for the messages it missed if it finds a gap. When the connection is lost the client
+ * reconnects by itself, giving the Position it had reached, and is sent only what it missed. Messages it has already shown are dropped,
+ * so the user sees each message once
  */
-import java.io.BufferedReader; // Necessary imports
-import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.IOException; // Necessary imports
 import java.net.ConnectException;
-import java.net.Socket;
+import java.net.InetSocketAddress;
 import java.net.SocketException;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.UnresolvedAddressException;
+import javax.net.ssl.SSLException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
 
 public class ClientConnection implements Runnable
 {
 	
-	private Socket server;
+	private static ExecutorService executor = ThreadMode.newExecutor(false, "client-connection"); // Runs the thread listening to the server
+	
+	private static boolean framing = true; // Whether binary framing is offered to the server
+	private static final int RECONNECT_ATTEMPTS = 10; // Tries at restoring a lost connection before giving up
+	private static final long RECONNECT_DELAY = 500; // Milliseconds before the first try, doubled before each of the next
+	private static final long MAX_RECONNECT_DELAY = 8000;
+	private static final long RESUME_RETRY = TimeUnit.SECONDS.toNanos(5); // Time before a gap is asked for again, in case the answer was dropped
+	
+	private SocketChannel server;
+	private String address; // Server, kept for reconnecting
+	private int port;
+	private String id; // User ID, sent again on reconnecting
+	private TlsChannel tls; // Encrypts the connection, null without TLS
 	private ChatClient userConsole;
 	private ClientGUI userGUI;
-	private BufferedReader serverIn;
-	private PrintWriter out;
-	private boolean thread;
+	private ByteBuffer serverIn; // Bytes read from the server, in read mode between reads
+	private FrameDecoder decoder; // Finds messages in serverIn
+	private Compression compression = new Compression(); // Inflates compressed frames
+	private volatile boolean thread;
 	private boolean usingGUI;
+	private ReentrantLock lock = new ReentrantLock(); // Guards the socket and streams
+	private volatile boolean reliable; // Whether the server agreed reliable delivery
+	private String room; // Room the client is in, null until the server gives a position, the position only used by the listening thread
+	private long epoch; // Epoch of the room's numbering
+	private long sequence; // Sequence number of the last room message shown
+	private long acknowledged; // Sequence number last acknowledged to the server
+	private long numberEpoch; // Epoch from the SEQUENCE frame just read
+	private long number = -1; // Sequence number from the SEQUENCE frame just read, -1 if the next message is not numbered
+	private long requested = -1; // Sequence number a gap was last asked for after
+	private long requestedAt; // System.nanoTime the gap was asked for
+	private int attempts; // Tries at reconnecting since the server last gave a position
 	
 	/**
 	 * Constructor for Client object where GUI is not in use
@@ -51,13 +87,123 @@ public class ClientConnection implements Runnable
 	}
 	
 	/**
-	 * Sends user ID to server for informing other connected clients that user has connected
+	 * Chooses the executor used by start, must be called before any connection is started
+	 * @param virtual
+	 * 			Whether the thread listening to the server should be a virtual thread
+	 */
+	public static void useVirtualThreads(boolean virtual)
+	{
+		executor.shutdown(); // No threads have been started yet
+		executor = ThreadMode.newExecutor(virtual, "client-connection");
+	}
+	
+	/**
+	 * Chooses whether binary framing is offered, it can be turned off for servers which only speak the text protocol
+	 * @param offer
+	 * 			Whether to offer binary framing
+	 */
+	public static void useFraming(boolean offer)
+	{
+		framing = offer;
+	}
+	
+	/**
+	 * Starts the thread listening to the server, called after setID so the handshake is complete
+	 */
+	public void start()
+	{
+		executor.execute(this);
+	}
+	
+	/**
+	 * Agrees the framing with the server, then sends user ID to server for informing other connected clients that user has connected
 	 * @param id
 	 * 			String to set user ID to
 	 */
 	public void setID(String id)
 	{
-		out.println(id); // Prints the user ID to the server, which is written in front of all messages from the user
+		this.id = id;
+		try
+		{
+			hello();
+		} catch (SSLException e)
+		{
+			write("Secure connection failed: " + e.getMessage()); // Most often a certificate which is not trusted, which the user should see
+		} catch (IOException e)
+		{
+			// Connection lost, the listening thread will report it
+		}
+	}
+	
+	/**
+	 * Agrees the framing and delivery with the server, offering the position reached if the client is reconnecting, then sends the user ID
+	 * @throws IOException
+	 * 			If the connection fails
+	 */
+	private void hello() throws IOException
+	{
+		reliable = false;
+		number = -1;
+		if (framing)
+		{
+			transmit(SharedBuffer.encode(Handshake.offer(room == null ? null : new Position(room, epoch, sequence)))); // Offered as a text line, which any server can read
+			if (readFrame())
+			{
+				String answer = decoder.getText(serverIn, SharedBuffer.CHARSET);
+				if (Handshake.isHello(answer) && new Handshake(answer).isBinary())
+				{
+					decoder.setBinary(true);
+					reliable = new Handshake(answer).isReliable();
+				}
+			}
+		}
+		if (decoder.isBinary())
+			transmit(SharedBuffer.frame(Frame.ID, 0, id));
+		else
+			transmit(SharedBuffer.encode(id)); // Prints the user ID to the server, which is written in front of all messages from the user
+	}
+	
+	/**
+	 * Reads from the server until a complete message is in the read buffer
+	 * @return
+	 * 			False if the server closed the connection first
+	 * @throws IOException
+	 * 			If reading fails or the server sends a message which is too long
+	 */
+	private boolean readFrame() throws IOException
+	{
+		while (!decoder.next(serverIn))
+		{
+			serverIn = FrameDecoder.compact(serverIn);
+			int n = tls != null ? tls.read(serverIn) : server.read(serverIn);
+			serverIn.flip();
+			if (n < 0)
+				return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Writes an encoded message to the server and releases it
+	 * @param message
+	 * 			Encoded message
+	 * @throws IOException
+	 * 			If the write fails
+	 */
+	private void transmit(SharedBuffer message) throws IOException
+	{
+		lock.lock();
+		try
+		{
+			ByteBuffer view = message.view();
+			while (view.hasRemaining())
+				(tls != null ? tls : server).write(view);
+		}
+		finally
+		{
+			lock.unlock();
+			message.release();
+		}
 	}
 
 	
@@ -66,12 +212,18 @@ public class ClientConnection implements Runnable
 	 * @return
 	 * 		True if successful connection, otherwise false
 	 */
-	public synchronized boolean connect(String address, int port)
+	public boolean connect(String address, int port)
 	{
+		lock.lock();
 		try {
-			server = new Socket(address, port); // Connects to server
-			serverIn = new BufferedReader(new InputStreamReader(server.getInputStream())); // Creates input and output streams
-			out = new PrintWriter(server.getOutputStream(), true);
+			this.address = address;
+			this.port = port;
+			server = SocketChannel.open(new InetSocketAddress(address, port)); // Connects to server
+			if (Tls.isEnabled())
+				tls = Tls.client(server, address, port); // Handshakes as the hello line is sent
+			serverIn = ByteBuffer.allocate(8192);
+			serverIn.flip(); // Nothing read yet
+			decoder = new FrameDecoder(); // Text until the handshake agrees on frames
 			
 			return true;
 		}catch (ConnectException e) 
@@ -81,17 +233,24 @@ public class ClientConnection implements Runnable
 		catch (UnknownHostException e) 
 		{
 			return false;
+		} catch (UnresolvedAddressException e)
+		{
+			return false; // SocketChannel reports an unknown host this way
 		} catch (IOException e) 
 		{	
 			e.printStackTrace();
 		}
+		finally
+		{
+			lock.unlock();
+		}
 		return false;
 	}
 	
 	/**
 	 * Method to set variable in thread to false, ending the loop, and then the connection
 	 */
-	public synchronized void disconnect()
+	public void disconnect()
 	{
 		thread = false;
 	}
@@ -101,7 +260,7 @@ public class ClientConnection implements Runnable
 	 * @param message
 	 * 			Message to be displayed
 	 */
-	public synchronized void write(String message)
+	public void write(String message)
 	{
 		if (usingGUI) // Depending on whether a GUI is used, different methods are called
 		{
@@ -116,17 +275,23 @@ public class ClientConnection implements Runnable
 	/**
 	 * Closes the various input and output streams as well as the socket
 	 */
-	public synchronized void close()
+	public void close()
 	{
+		lock.lock();
 		try {
-			out.close();
-			server.close();
-			serverIn.close();
+			if (tls != null)
+				tls.close();
+			else
+				server.close();
 		}
 		catch (IOException e) 
 		{
 			e.printStackTrace();
 		}
+		finally
+		{
+			lock.unlock();
+		}
 	}
 	
 	/**
@@ -134,9 +299,164 @@ public class ClientConnection implements Runnable
 	 * @param message
 	 * 			Message to be sent
 	 */
-	public synchronized void send(String message)
+	public void send(String message)
 	{
-		out.println(message);
+		try
+		{
+			if (decoder.isBinary())
+				transmit(SharedBuffer.frame(Frame.MESSAGE, 0, message));
+			else
+				transmit(SharedBuffer.encode(message));
+		} catch (IOException e)
+		{
+			if (reliable && thread)
+				write("Not sent, the connection to the server is being restored"); // Otherwise the listening thread will report it
+		}
+	}
+	
+	/**
+	 * Reads from the server until there is a message to show the user. Pings are answered, and under reliable delivery the position is tracked,
+	 * room messages already shown are dropped, and the messages after the last one shown are confirmed once everything received is handled
+	 * @return
+	 * 			Message to be shown, or null if the server closed the connection
+	 * @throws IOException
+	 * 			If reading fails or the server sends a message which is too long
+	 */
+	private String receive() throws IOException
+	{
+		while (true)
+		{
+			if (reliable && !serverIn.hasRemaining() && sequence > acknowledged) // Caught up, so about to wait for the server
+			{
+				transmit(SharedBuffer.frame(Frame.ACK, 0, epoch + ":" + sequence));
+				acknowledged = sequence;
+			}
+			if (!readFrame())
+				return null;
+			int type = decoder.getType();
+			if (type == Frame.PING) // The server checking the client is still there
+			{
+				transmit(SharedBuffer.frame(Frame.PONG, 0, decoder.getText(serverIn, SharedBuffer.CHARSET)));
+				continue;
+			}
+			if (type == Frame.ROOM)
+				position(decoder.getText(serverIn, Frame.CHARSET));
+			else if (type == Frame.SEQUENCE)
+			{
+				String[] parts = decoder.getText(serverIn, Frame.CHARSET).split(":");
+				if (parts.length == 2 && Position.isNumber(parts[0]) && Position.isNumber(parts[1]))
+				{
+					numberEpoch = Long.parseLong(parts[0]);
+					number = Long.parseLong(parts[1]);
+				}
+			}
+			if (type != Frame.MESSAGE)
+				continue; // Other frame types are not sent by this protocol version
+			boolean shown = number < 0 || isNext(numberEpoch, number);
+			number = -1;
+			if (!shown)
+				continue;
+			String message;
+			if ((decoder.getFlags() & Frame.COMPRESSED) != 0)
+				message = compression.inflate(serverIn, decoder.getPayloadStart(), decoder.getPayloadLength());
+			else
+				message = decoder.getText(serverIn, SharedBuffer.CHARSET);
+			if (attempts > 0 && ConnectionRegistry.NAME_TAKEN_NOTICE.equals(message))
+				continue; // Still held by the lost connection, until the server finds it has gone, so reconnecting keeps trying
+			return message;
+		}
+	}
+	
+	/**
+	 * Takes the position the server has given, on joining a room or resuming
+	 * @param text
+	 * 			Payload of the ROOM frame, a Position
+	 */
+	private void position(String text)
+	{
+		Position position = Position.parse(text);
+		if (position == null)
+			return;
+		room = position.getRoom();
+		epoch = position.getEpoch();
+		sequence = position.getSequence();
+		acknowledged = sequence; // The server starts counting from here too
+		if (attempts > 0)
+			write("Reconnected to the server");
+		attempts = 0;
+	}
+	
+	/**
+	 * Decides whether a numbered room message is the next one to show. A message already shown, sent again after a resume, is dropped,
+	 * and after a gap the missed messages are asked for and later ones dropped until they come, so everything is shown in order
+	 * @param messageEpoch
+	 * 			Epoch of the message's room
+	 * @param messageNumber
+	 * 			Sequence number of the message
+	 * @return
+	 * 			Whether to show the message
+	 * @throws IOException
+	 * 			If asking for missed messages fails
+	 */
+	private boolean isNext(long messageEpoch, long messageNumber) throws IOException
+	{
+		if (room == null || messageEpoch != epoch)
+			return true; // From a room just left, shown as it is
+		if (messageNumber <= sequence)
+			return false; // Already shown
+		if (messageNumber > sequence + 1)
+		{
+			if (requested != sequence || System.nanoTime() - requestedAt > RESUME_RETRY)
+			{
+				transmit(SharedBuffer.frame(Frame.RESUME, 0, new Position(room, epoch, sequence).toString()));
+				requested = sequence;
+				requestedAt = System.nanoTime();
+			}
+			return false; // Sent again after the missed ones
+		}
+		sequence = messageNumber;
+		return true;
+	}
+	
+	/**
+	 * Connects again once the connection has been lost under reliable delivery, giving the position reached so only what was missed is sent.
+	 * Tries with a doubling delay, as the server may be restarting or not yet know the old connection has gone
+	 * @return
+	 * 			Whether a connection was made and the handshake sent, the server then gives a position
+	 */
+	private boolean reconnect()
+	{
+		close();
+		if (attempts == 0)
+			write("Connection to the server has been lost, reconnecting");
+		while (thread && attempts < RECONNECT_ATTEMPTS)
+		{
+			try
+			{
+				Thread.sleep(Math.min(RECONNECT_DELAY << attempts, MAX_RECONNECT_DELAY));
+			} catch (InterruptedException e)
+			{
+				return false;
+			}
+			attempts++;
+			lock.lock(); // Messages typed meanwhile wait for the handshake, rather than going before it
+			try
+			{
+				if (connect(address, port))
+				{
+					hello();
+					return true;
+				}
+			} catch (IOException e)
+			{
+				close(); // Tried again after the next delay
+			}
+			finally
+			{
+				lock.unlock();
+			}
+		}
+		return false;
 	}
 	
 	/**
@@ -145,24 +465,37 @@ public class ClientConnection implements Runnable
 	public void run()
 	{
 		try {
-			String serverRes;
+			String serverRes = null;
 			
 			while (thread) // When variable is false, user has requested a disconnect
 			{
-				serverRes = serverIn.readLine(); // Reads messages from server and sends to GUI
+				try
+				{
+					serverRes = receive(); // Reads messages from server and sends to GUI
+				} catch (IOException e)
+				{
+					if (!reliable || !thread)
+						throw e;
+					serverRes = null; // Restored below
+				}
+				if (serverRes == null && thread && reliable && reconnect())
+					continue;
 				if (serverRes == null)
-					thread = false;
-				write(serverRes);
-				Thread.sleep(250);
+					thread = false; // Server has gone, the finally block tells the user
+				else
+					write(serverRes);
 			}
-			send("Disconnect me"); // Sends message with passcode so server can shut down correctly rather than catch an exception, though that also works
+			if (serverRes == null)
+				return; // Nothing to tell a server which has gone
+			if (decoder.isBinary())
+				transmit(SharedBuffer.frame(Frame.DISCONNECT, 0, ""));
+			else
+				send("Disconnect me"); // Sends message with passcode so server can shut down correctly rather than catch an exception, though that also works
 		} catch (SocketException e) 
 		{
 			// Not much to do here, finally block will handle it
 		}catch (IOException e) {
 			e.printStackTrace();
-		} catch (InterruptedException e) {
-			e.printStackTrace();
 		}
 		finally
 		{
@@ -1,11 +1,12 @@
 /**
- * Version 1.3
+ * Version 1.4
  * Author: MK2022
  * Date: 06/03/2018
  * 
  * GUI to handle displaying messages received by a Client object, and for receiving messages for a Client object to transmit to server.
  * Also displays to the user if clients connect or disconnect, or if the connection to the server has dropped, 
  * and provides a button for the user to disconnect from the server.
+ * Messages may arrive on any thread, the chat is a ScrollbackView which adds them in batches on the event dispatch thread
  */
 import java.awt.BorderLayout; // Necessary imports
 import java.awt.Color;
@@ -16,15 +17,16 @@ import javax.swing.JButton;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
 import javax.swing.JPanel;
-import javax.swing.JScrollPane;
-import javax.swing.JTextArea;
 import javax.swing.JTextField;
 
 
 public class ClientGUI extends JFrame 
 {
 	
-	 	private JTextArea chat; // Displays chat messages
+	 	private static int scrollback = 100000; // Most lines kept in the chat list
+	 	private static int frameRate = 30; // Most times a second the chat list is updated
+	 	
+	 	private ScrollbackView chat; // Displays chat messages
 	    private JTextField message; // TextField for user to enter desired message
 	    private JTextField data; 
 	    private JTextField portField; // TextField for user to enter desired message
@@ -48,10 +50,9 @@ public class ClientGUI extends JFrame
 	{
 		super("Client Chat GUI"); // Calls superclass constructor
 		
-		chat = new JTextArea("", 80, 80); // Sets up elements in GUI
+		chat = new ScrollbackView(scrollback, frameRate); // Sets up elements in GUI, messages will continue to be able to fit in the window
 		JPanel chatPanel = new JPanel(new GridLayout(1,1));
-		chatPanel.add(new JScrollPane(chat)); // Using a JScrollPane, messages will continue to be able to fit in the window
-		chat.setEditable(false);
+		chatPanel.add(chat);
 		add(chatPanel, BorderLayout.CENTER); 
 		
 		JPanel messagePanel = new JPanel();
@@ -100,14 +101,33 @@ public class ClientGUI extends JFrame
 	}
 		
 	/**
-	 * Writes a String to the chat field
+	 * Sets the most lines kept in the chat list, must be called before a ClientGUI is created
+	 * @param lines
+	 * 			Lines of scrollback
+	 */
+	public static void setScrollback(int lines)
+	{
+		scrollback = Math.max(lines, 1);
+	}
+	
+	/**
+	 * Sets the most times a second the chat list is updated, must be called before a ClientGUI is created
+	 * @param fps
+	 * 			Updates a second
+	 */
+	public static void setFrameRate(int fps)
+	{
+		frameRate = Math.max(fps, 1);
+	}
+	
+	/**
+	 * Writes a String to the chat field, from any thread
 	 * @param str
 	 * 		Message to be written
 	 */
 	public void write(String str) 
 	{
-		chat.append(str + "\n"); // Writes incoming chat message
-		chat.setCaretPosition(chat.getText().length() - 1); // Sets cursor position in chat field
+		chat.write(str); // Shown by the next frame
 	}
 	
 	/**
@@ -146,9 +166,9 @@ public class ClientGUI extends JFrame
     			}
     			else // Procedure if connection is successful
     			{
-    				new Thread(client).start(); // Starts thread to receive messages from server
+    				client.setID(id); // Client object agrees the framing and informs server of user ID
     				
-    				client.setID(id); // Client object informs server of user ID
+    				client.start(); // Starts thread to receive messages from server, once the handshake is done
     				
     				message.setVisible(true);
     				disconnect.setVisible(true); // Successful connection means message and disconnect should now be visible
@@ -0,0 +1,595 @@
+/**
+ * Version 1.0
+ * Author: MK2022
+ * Date: 18/10/2026
+ *
+ * The Cluster class joins several ChatServer processes into one chat. Each node dials every node in its peer list over a PeerLink,
+ * and relays its own users' room messages, announcements, direct messages and presence to them; it receives theirs over the links they dial.
+ * Every node is expected to list every other, so the nodes form a full mesh: a message is sent once by the node its sender is on,
+ * straight to each other node, and is never forwarded, so it crosses each link once and the work per node grows only with its own users.
+ * Each relayed frame carries the node ID of its origin and a sequence number, increasing on every link, so a frame seen before,
+ * or one from this node itself, is dropped rather than looping.
+ * Usernames taken on other nodes are refused, and direct messages to them go over the link to their node only.
+ * Nodes do not authenticate each other, so the cluster port listens on 127.0.0.1 unless -clusterhost says otherwise,
+ * and only links dialled from the address of a node in the peer list are accepted.
+ * Turned on with -clusterport <port>, with -peers host:port,host:port and optionally -clusterhost <address> and -nodeid <id>
+ */
+import java.io.IOException; // Necessary imports
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.UnknownHostException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+public class Cluster
+{
+
+	public static final int HELLO = 16; // Node ID of the sender, the first frame each way on a link
+	public static final int USER_ON = 17; // Username claimed on the origin node
+	public static final int USER_OFF = 18; // Username released on the origin node
+	public static final int POST = 19; // Room, sender and text of a user's message
+	public static final int ANNOUNCE = 20; // Room and text of a notice
+	public static final int DIRECT = 21; // Sender, recipient and text of a direct message
+	private static final String SEPARATOR = "\u0000"; // Between the fields of a payload, the last field may hold anything
+	private static final long RETRY_MILLIS = 2000; // Time between attempts to dial a node which cannot be reached
+
+	private static int clusterPort; // Port other nodes dial, 0 if clustering is off
+	private static String clusterHost = "127.0.0.1"; // Address the cluster port listens on
+	private static String nodeID; // Name of this node, unique in the cluster
+	private static String[] peers = new String[0]; // Addresses of the other nodes, as host:port
+	private static Cluster instance; // Cluster of the server, null if clustering is off
+
+	private ServerSocketChannel acceptor; // Accepts links dialled by other nodes
+	private ChatRouter router; // Delivers what other nodes relay
+	private ConcurrentHashMap<String, PeerLink> links; // Links this node dialled, by node ID of the other end, which carry its frames
+	private ConcurrentHashMap<String, RemoteUser> users; // Users on other nodes, by lower case username
+	private ConcurrentHashMap<String, Long> lastSeen; // Sequence number of the last frame accepted from each node
+	private ReentrantLock sendLock; // Gives out sequence numbers in the order frames are queued, and orders presence with new links
+	private long sequence; // Sequence number of the last frame sent, guarded by sendLock
+
+	/**
+	 * A user connected to another node
+	 */
+	private static class RemoteUser
+	{
+		private String name; // Username, as the user typed it
+		private String node; // Node ID of the node the user is on
+
+		private RemoteUser(String name, String node)
+		{
+			this.name = name;
+			this.node = node;
+		}
+	}
+
+	/**
+	 * Constructor for Cluster, binds the port other nodes dial
+	 * @throws IOException
+	 * 			If the port cannot be bound
+	 */
+	private Cluster() throws IOException
+	{
+		router = ChatRouter.getInstance();
+		links = new ConcurrentHashMap<String, PeerLink>();
+		users = new ConcurrentHashMap<String, RemoteUser>();
+		lastSeen = new ConcurrentHashMap<String, Long>();
+		sendLock = new ReentrantLock();
+		acceptor = ServerSocketChannel.open().bind(new InetSocketAddress(clusterHost, clusterPort));
+	}
+
+	/**
+	 * Reads cluster options from the command line, ignoring options it does not know
+	 * @param args
+	 * 			Command line arguments, given as option and value pairs
+	 */
+	public static void configure(String[] args)
+	{
+		for (int i = 0; i + 1 < args.length; i += 2)
+		{
+			if (args[i].equalsIgnoreCase("-clusterport") && ChatClient.isInt(args[i + 1]))
+				clusterPort = Integer.parseInt(args[i + 1]);
+			else if (args[i].equalsIgnoreCase("-clusterhost"))
+				clusterHost = args[i + 1];
+			else if (args[i].equalsIgnoreCase("-peers")) // Comma separated host:port addresses
+				peers = args[i + 1].split(",");
+			else if (args[i].equalsIgnoreCase("-nodeid"))
+				nodeID = args[i + 1];
+		}
+		if (nodeID == null)
+		{
+			try
+			{
+				nodeID = InetAddress.getLocalHost().getHostName() + ":" + clusterPort;
+			} catch (UnknownHostException e)
+			{
+				nodeID = "localhost:" + clusterPort;
+			}
+		}
+	}
+
+	/**
+	 * Joins the cluster if a cluster port was given, accepting links from other nodes and dialling every peer
+	 * @throws IOException
+	 * 			If the cluster port cannot be bound
+	 */
+	public static void start() throws IOException
+	{
+		if (clusterPort == 0 || instance != null)
+			return;
+		instance = new Cluster();
+		instance.output("Node " + nodeID + " listening for other nodes on " + clusterHost + ":" + clusterPort);
+		Thread accept = new Thread(new Runnable()
+		{
+			public void run()
+			{
+				instance.accept();
+			}
+		}, "cluster-accept");
+		accept.setDaemon(true);
+		accept.start();
+		for (final String peer : peers)
+		{
+			if (peer.trim().length() == 0)
+				continue;
+			Thread dial = new Thread(new Runnable()
+			{
+				public void run()
+				{
+					instance.dial(peer.trim());
+				}
+			}, "cluster-dial-" + peer.trim());
+			dial.setDaemon(true);
+			dial.start();
+		}
+	}
+
+	/**
+	 * @return
+	 * 			Cluster of the server, or null if clustering is off
+	 */
+	public static Cluster getInstance()
+	{
+		return instance;
+	}
+
+	/**
+	 * @return
+	 * 			Name of this node
+	 */
+	public static String getNodeID()
+	{
+		return nodeID;
+	}
+
+	/**
+	 * @param name
+	 * 			Username
+	 * @return
+	 * 			Whether a user with that name is connected to another node
+	 */
+	public boolean isRemoteUser(String name)
+	{
+		return users.containsKey(name.toLowerCase(Locale.ROOT));
+	}
+
+	/**
+	 * Tells the other nodes a username has been claimed here
+	 * @param name
+	 * 			Username
+	 */
+	public void userOn(String name)
+	{
+		publish(null, USER_ON, name);
+	}
+
+	/**
+	 * Tells the other nodes a username has been released here
+	 * @param name
+	 * 			Username
+	 */
+	public void userOff(String name)
+	{
+		publish(null, USER_OFF, name);
+	}
+
+	/**
+	 * Relays a user's message to the other nodes, called under the room's lock so each node sees the room's messages in this order
+	 * @param room
+	 * 			Name of the room
+	 * @param sender
+	 * 			Username of the sender
+	 * @param text
+	 * 			Message text
+	 */
+	public void post(String room, String sender, String text)
+	{
+		publish(null, POST, room, sender, text);
+	}
+
+	/**
+	 * Relays a notice to the other nodes, for their members of the room
+	 * @param room
+	 * 			Name of the room
+	 * @param text
+	 * 			Notice
+	 */
+	public void announce(String room, String text)
+	{
+		publish(null, ANNOUNCE, room, text);
+	}
+
+	/**
+	 * Sends a direct message to a user on another node, over the link to that node only
+	 * @param from
+	 * 			Username of the sender
+	 * @param to
+	 * 			Username of the recipient
+	 * @param text
+	 * 			Message
+	 * @return
+	 * 			Username of the recipient as they typed it, or null if no node which can be reached has them
+	 */
+	public String direct(String from, String to, String text)
+	{
+		RemoteUser user = users.get(to.toLowerCase(Locale.ROOT));
+		if (user == null || !links.containsKey(user.node))
+			return null;
+		publish(user.node, DIRECT, from, user.name, text);
+		return user.name;
+	}
+
+	/**
+	 * Encodes a frame once and queues it on every link, or the link to one node
+	 * @param node
+	 * 			Node ID to send to, null for every node
+	 * @param type
+	 * 			Frame type
+	 * @param fields
+	 * 			Fields of the payload, after the origin and sequence number
+	 */
+	private void publish(String node, int type, String... fields)
+	{
+		sendLock.lock();
+		try
+		{
+			if (links.isEmpty())
+				return;
+			SharedBuffer frame = SharedBuffer.frame(type, 0, payload(++sequence, fields));
+			if (node == null)
+			{
+				for (PeerLink link : links.values())
+					link.send(frame);
+			}
+			else if (links.get(node) != null)
+				links.get(node).send(frame);
+			frame.release();
+		}
+		finally
+		{
+			sendLock.unlock();
+		}
+	}
+
+	/**
+	 * @return
+	 * 			Payload led by this node's ID and the sequence number
+	 */
+	private static String payload(long sequence, String... fields)
+	{
+		StringBuilder payload = new StringBuilder(nodeID).append(SEPARATOR).append(sequence);
+		for (String field : fields)
+			payload.append(SEPARATOR).append(field);
+		return payload.toString();
+	}
+
+	/**
+	 * Thread method of the acceptor, hands each link dialled by another node to its own thread
+	 */
+	private void accept()
+	{
+		try
+		{
+			while (true)
+			{
+				final SocketChannel channel = acceptor.accept();
+				InetAddress from = ((InetSocketAddress) channel.getRemoteAddress()).getAddress();
+				if (!isPeer(from))
+				{
+					output("Refused a link from " + from.getHostAddress() + ", which is not the address of a peer");
+					channel.close();
+					continue;
+				}
+				Thread serve = new Thread(new Runnable()
+				{
+					public void run()
+					{
+						serve(new PeerLink(channel));
+					}
+				}, "cluster-peer-" + channel.socket().getRemoteSocketAddress());
+				serve.setDaemon(true);
+				serve.start();
+			}
+		} catch (IOException e)
+		{
+			output("Cluster stopped accepting other nodes: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * @param address
+	 * 			Address a link was dialled from
+	 * @return
+	 * 			Whether a host in the peer list has that address, looked up again for each link so peers may move
+	 */
+	private static boolean isPeer(InetAddress address)
+	{
+		for (String peer : peers)
+		{
+			int colon = peer.trim().lastIndexOf(':');
+			if (colon <= 0)
+				continue;
+			try
+			{
+				for (InetAddress known : InetAddress.getAllByName(peer.trim().substring(0, colon)))
+				{
+					if (known.equals(address))
+						return true;
+				}
+			} catch (UnknownHostException e)
+			{
+				// A peer which cannot be looked up now is checked again on the next link
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Reads a link dialled by another node: its hello, which is answered, then every frame it relays
+	 * @param link
+	 * 			Accepted link
+	 */
+	private void serve(PeerLink link)
+	{
+		String node = null;
+		try
+		{
+			if (!link.readFrame())
+				return;
+			String[] hello = fields(link.getType(), link.getText());
+			if (link.getType() != HELLO)
+				throw new ProtocolException("Expected HELLO frame, received " + link.getType());
+			link.startWriter("cluster-answer");
+			answer(link);
+			if (hello[0].equals(nodeID))
+				return; // This node is in its own peer list
+			node = hello[0];
+			link.setNode(node);
+			forget(node); // A node which has restarted sends its users again
+			lastSeen.put(node, Long.parseLong(hello[1])); // Its frames count up from here
+			output("Node " + node + " joined the cluster");
+			while (link.readFrame())
+				receive(link.getType(), link.getText());
+		} catch (IOException e)
+		{
+			output("Link from node " + (node == null ? "?" : node) + " failed: " + e.getMessage());
+		} catch (NumberFormatException e)
+		{
+			output("Link from node " + (node == null ? "?" : node) + " sent a bad sequence number");
+		}
+		finally
+		{
+			link.finish(); // The hello answer still reaches a node which dialled itself
+			if (node != null)
+			{
+				forget(node);
+				output("Node " + node + " left the cluster");
+			}
+		}
+	}
+
+	/**
+	 * Queues this node's hello on a link
+	 */
+	private void answer(PeerLink link)
+	{
+		sendLock.lock();
+		try
+		{
+			SharedBuffer frame = SharedBuffer.frame(HELLO, 0, payload(sequence));
+			link.send(frame);
+			frame.release();
+		}
+		finally
+		{
+			sendLock.unlock();
+		}
+	}
+
+	/**
+	 * Thread method of a dialler, keeps a link to one node open, dialling it again whenever the link fails
+	 * @param address
+	 * 			Address of the node, as host:port
+	 */
+	private void dial(String address)
+	{
+		int colon = address.lastIndexOf(':');
+		if (colon < 0 || !ChatClient.isInt(address.substring(colon + 1)))
+		{
+			output("Peer " + address + " is not a host:port address");
+			return;
+		}
+		InetSocketAddress remote = new InetSocketAddress(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)));
+		boolean reported = false; // Whether a failure to reach the node has been reported, so retries are quiet
+		while (true)
+		{
+			PeerLink link = null;
+			String node = null;
+			try
+			{
+				link = new PeerLink(SocketChannel.open(remote));
+				link.startWriter("cluster-link-" + address);
+				answer(link);
+				if (!link.readFrame() || link.getType() != HELLO)
+					throw new ProtocolException("Expected HELLO frame");
+				node = fields(HELLO, link.getText())[0];
+				if (node.equals(nodeID))
+				{
+					output("Peer " + address + " is this node, not dialling it");
+					return;
+				}
+				link.setNode(node);
+				up(link);
+				reported = false;
+				while (link.readFrame())
+				{
+					// Nothing more is sent this way, reading only notices the link closing
+				}
+			} catch (IOException e)
+			{
+				if (!reported)
+					output("Node at " + address + " cannot be reached, retrying: " + e.getMessage());
+				reported = true;
+			}
+			finally
+			{
+				if (link != null)
+					link.close();
+				if (node != null && links.remove(node, link))
+					output("Link to node " + node + " closed");
+			}
+			try
+			{
+				Thread.sleep(RETRY_MILLIS);
+			} catch (InterruptedException e)
+			{
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Starts relaying on a dialled link, first telling the other node every username claimed here
+	 * @param link
+	 * 			Link whose hello has been read
+	 */
+	private void up(PeerLink link)
+	{
+		sendLock.lock();
+		try
+		{
+			PeerLink old = links.put(link.getNode(), link);
+			if (old != null)
+				old.close(); // Another link to the same node, such as two peer addresses for it
+			for (Session session : ConnectionRegistry.getInstance().named())
+			{
+				if (session.getID() != null)
+				{
+					SharedBuffer frame = SharedBuffer.frame(USER_ON, 0, payload(++sequence, session.getID()));
+					link.send(frame);
+					frame.release();
+				}
+			}
+		}
+		finally
+		{
+			sendLock.unlock();
+		}
+		output("Linked to node " + link.getNode());
+	}
+
+	/**
+	 * Acts on a frame relayed by another node, unless it has been seen before or came from this node
+	 * @param type
+	 * 			Frame type
+	 * @param text
+	 * 			Payload
+	 * @throws ProtocolException
+	 * 			If the frame is not one nodes send
+	 */
+	private void receive(int type, String text) throws ProtocolException
+	{
+		String[] fields = fields(type, text);
+		String origin = fields[0];
+		long sequence = Long.parseLong(fields[1]);
+		Long last = lastSeen.get(origin);
+		if (origin.equals(nodeID) || (last != null && sequence <= last))
+			return; // Looped back or already seen
+		lastSeen.put(origin, sequence);
+		if (type == USER_ON)
+			users.put(fields[2].toLowerCase(Locale.ROOT), new RemoteUser(fields[2], origin));
+		else if (type == USER_OFF)
+		{
+			RemoteUser user = users.get(fields[2].toLowerCase(Locale.ROOT));
+			if (user != null && user.node.equals(origin))
+				users.remove(fields[2].toLowerCase(Locale.ROOT), user);
+		}
+		else if (type == POST)
+			output(router.relay(fields[2], fields[3], fields[4]));
+		else if (type == ANNOUNCE)
+			output(router.relayNotice(fields[2], fields[3]));
+		else if (type == DIRECT)
+			router.deliver(fields[2], fields[3], fields[4]);
+	}
+
+	/**
+	 * Splits a payload into its fields, the origin and sequence number first
+	 * @param type
+	 * 			Frame type, which decides the number of fields
+	 * @param text
+	 * 			Payload
+	 * @return
+	 * 			Fields, the last of which keeps any separators in it
+	 * @throws ProtocolException
+	 * 			If the type is unknown or fields are missing
+	 */
+	private static String[] fields(int type, String text) throws ProtocolException
+	{
+		int count;
+		if (type == HELLO)
+			count = 2;
+		else if (type == USER_ON || type == USER_OFF)
+			count = 3;
+		else if (type == ANNOUNCE)
+			count = 4;
+		else if (type == POST || type == DIRECT)
+			count = 5;
+		else
+			throw new ProtocolException("Unknown frame type " + type);
+		String[] fields = text.split(SEPARATOR, count);
+		if (fields.length != count)
+			throw new ProtocolException("Frame type " + type + " has " + fields.length + " fields, expected " + count);
+		return fields;
+	}
+
+	/**
+	 * Forgets every user of a node which has left or restarted
+	 * @param node
+	 * 			Node ID
+	 */
+	private void forget(String node)
+	{
+		Iterator<Map.Entry<String, RemoteUser>> i = users.entrySet().iterator();
+		while (i.hasNext())
+		{
+			if (i.next().getValue().node.equals(node))
+				i.remove();
+		}
+	}
+
+	/**
+	 * Prints a message to server output, either console or GUI, through the ServerLog
+	 * @param msg
+	 * 			Message to write, nothing is written if null
+	 */
+	private void output(String msg)
+	{
+		ServerLog.write(msg);
+	}
+}
@@ -0,0 +1,210 @@
+/**
+ * Version 1.0
+ * Author: MK2022
+ * Date: 18/10/2026
+ * 
+ * The Compression class deflates large messages for clients which agreed to compression in their handshake.
+ * Each message is compressed on its own, so one compressed broadcast can be shared by every recipient, and the deflater is primed
+ * with a dictionary of common chat and stack trace text so even a single message compresses well. Messages below the size threshold,
+ * or which do not get smaller, are sent as plain frames. Compressed frames carry the Frame.COMPRESSED flag
+ */
+import java.io.IOException; // Necessary imports
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+
+public class Compression
+{
+	
+	/**
+	 * Preset dictionary shared by server and client, the most common text last as it is the cheapest to refer back to
+	 */
+	private static final byte[] DICTIONARY = ("Caused by: java.lang.RuntimeException: java.lang.IllegalStateException: "
+		+ "java.lang.IllegalArgumentException: java.lang.NullPointerException: java.io.IOException: Exception in thread \"main\" "
+		+ "at java.base/java.lang.Thread.run(Thread.java:) at java.base/java.util.concurrent.ThreadPoolExecutor$Worker.run( "
+		+ "at java.base/jdk.internal.reflect.NativeMethodAccessorImpl.invoke( at org.springframework. at com. at org. ... more "
+		+ "ERROR WARN INFO DEBUG TRACE [main] Traceback (most recent call last): File \"\", line , in "
+		+ "https://www. http:// .com/ .html .java .json .xml .txt null true false \"id\": \"name\": \"type\": \"value\": "
+		+ "thanks, please could you what is the the and that this with have for not are but was just can I'm it's don't "
+		+ "has disconnected has connected User: ").getBytes(Frame.CHARSET);
+	
+	private static boolean enabled = true; // Whether the server agrees to compression when a client offers it
+	private static int threshold = 512; // Payload bytes below which messages are never compressed
+	private static LongAdder bytesIn = new LongAdder(); // Payload bytes of compressed messages before compression
+	private static LongAdder bytesOut = new LongAdder(); // Payload bytes of compressed messages after compression
+	private static ThreadLocal<Deflater> deflaters = new ThreadLocal<Deflater>() // Deflaters keep state, so one per thread
+	{
+		protected Deflater initialValue()
+		{
+			return new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		}
+	};
+	
+	private Inflater inflater; // Used by one client connection
+	private byte[] inflated; // Output of the last inflate, grown as needed
+	
+	/**
+	 * Constructor for Compression, used by a client to inflate the compressed frames it receives
+	 */
+	public Compression()
+	{
+		inflater = new Inflater(true);
+		inflated = new byte[8192];
+	}
+	
+	/**
+	 * Reads compression options from the command line, ignoring options it does not know
+	 * @param args
+	 * 			Command line arguments, given as option and value pairs
+	 */
+	public static void configure(String[] args)
+	{
+		for (int i = 0; i + 1 < args.length; i += 2)
+		{
+			if (args[i].equalsIgnoreCase("-compression")) // on or off
+				enabled = args[i + 1].equalsIgnoreCase("on");
+			else if (args[i].equalsIgnoreCase("-compressmin"))
+				threshold = Integer.parseInt(args[i + 1]);
+		}
+	}
+	
+	/**
+	 * @return
+	 * 			Whether the server agrees to compression
+	 */
+	public static boolean isEnabled()
+	{
+		return enabled;
+	}
+	
+	/**
+	 * @return
+	 * 			Payload bytes below which messages are never compressed
+	 */
+	public static int getThreshold()
+	{
+		return threshold;
+	}
+	
+	/**
+	 * Compresses a message into a MESSAGE frame
+	 * @param text
+	 * 			Message to be sent
+	 * @return
+	 * 			Compressed frame with one reference, which the caller must release, or null if the message should be sent uncompressed
+	 */
+	public static SharedBuffer compress(String text)
+	{
+		if (text.length() * 3 < threshold) // Cannot reach the threshold even if every char takes 3 bytes
+			return null;
+		return deflate(ByteBuffer.wrap(text.getBytes(Frame.CHARSET)));
+	}
+	
+	/**
+	 * Compresses a message already encoded as UTF-8 into a MESSAGE frame
+	 * @param text
+	 * 			UTF-8 bytes of the message
+	 * @return
+	 * 			Compressed frame with one reference, which the caller must release, or null if the message should be sent uncompressed
+	 */
+	public static SharedBuffer compress(SharedBuffer text)
+	{
+		if (text.length() < threshold)
+			return null;
+		return deflate(text.view());
+	}
+	
+	/**
+	 * Deflates a payload into a MESSAGE frame
+	 * @param payload
+	 * 			UTF-8 bytes of the message, from the position to the limit
+	 * @return
+	 * 			Compressed frame with one reference, which the caller must release, or null if the message should be sent uncompressed
+	 */
+	private static SharedBuffer deflate(ByteBuffer payload)
+	{
+		int size = payload.remaining();
+		if (size < threshold)
+			return null;
+		Deflater deflater = deflaters.get();
+		deflater.reset();
+		deflater.setDictionary(DICTIONARY);
+		deflater.setInput(payload);
+		deflater.finish();
+		byte[] compressed = new byte[size]; // Only worth sending if it is smaller
+		int length = 0;
+		while (!deflater.finished() && length < compressed.length)
+			length += deflater.deflate(compressed, length, compressed.length - length);
+		if (!deflater.finished())
+			return null;
+		bytesIn.add(size);
+		bytesOut.add(length);
+		return SharedBuffer.frame(Frame.MESSAGE, Frame.COMPRESSED, compressed, length);
+	}
+	
+	/**
+	 * Inflates the payload of a compressed frame straight from the read buffer
+	 * @param buffer
+	 * 			Buffer holding the frame
+	 * @param start
+	 * 			Index of the payload
+	 * @param length
+	 * 			Length of the payload
+	 * @return
+	 * 			Message text
+	 * @throws IOException
+	 * 			If the payload is not valid or inflates to more than Frame.MAX_LENGTH
+	 */
+	public String inflate(ByteBuffer buffer, int start, int length) throws IOException
+	{
+		ByteBuffer payload = buffer.duplicate();
+		payload.limit(start + length).position(start);
+		inflater.reset();
+		inflater.setDictionary(DICTIONARY);
+		inflater.setInput(payload);
+		int size = 0;
+		try
+		{
+			while (!inflater.finished())
+			{
+				if (size == inflated.length)
+				{
+					if (size >= Frame.MAX_LENGTH)
+						throw new ProtocolException("Compressed frame inflates to more than " + Frame.MAX_LENGTH + " bytes");
+					inflated = Arrays.copyOf(inflated, Math.min(size * 2, Frame.MAX_LENGTH));
+				}
+				int n = inflater.inflate(inflated, size, inflated.length - size);
+				if (n == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+					throw new ProtocolException("Compressed frame is truncated");
+				size += n;
+			}
+		} catch (DataFormatException e)
+		{
+			throw new ProtocolException("Compressed frame is not valid: " + e.getMessage());
+		}
+		return new String(inflated, 0, size, Frame.CHARSET);
+	}
+	
+	/**
+	 * @return
+	 * 			Payload bytes of compressed messages before compression
+	 */
+	public static long getBytesIn()
+	{
+		return bytesIn.sum();
+	}
+	
+	/**
+	 * @return
+	 * 			Payload bytes of compressed messages after compression
+	 */
+	public static long getBytesOut()
+	{
+		return bytesOut.sum();
+	}
+}
@@ -0,0 +1,216 @@
+/**
+ * Version 1.0
+ * Author: MK2022
+ * Date: 18/10/2026
+ * 
+ * The ConnectionRegistry class holds every connected Session, keyed by session ID and by username.
+ * Usernames are unique, ignoring case, and are claimed atomically so two clients can never take the same name.
+ * A username is 1 to 32 characters with no whitespace or control characters, so it can be named in a /msg command
+ * and fits the length fields of cluster frames and the message log.
+ * In a Cluster, names in use on other nodes are refused too, and the other nodes are told of each name claimed and released here.
+ * Register and unregister are O(1), and iterating over the sessions is safe while other threads connect and disconnect,
+ * without copying: ConcurrentHashMap is split into independently locked bins, and its iterators are weakly consistent,
+ * seeing every session present for the whole iteration and never throwing
+ */
+import java.util.Iterator; // Necessary imports
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+public class ConnectionRegistry implements Iterable<Session>
+{
+	
+	public static final String NAME_TAKEN_NOTICE = "That username is already in use, please reconnect with another"; // Sent before a client with a taken username is disconnected
+	public static final int MAX_NAME = 32; // Longest username, in characters
+	public static final String NAME_INVALID_NOTICE = "Usernames are 1 to " + MAX_NAME + " characters with no spaces, please reconnect with another"; // Sent before a client with an invalid username is disconnected
+	
+	private static ConnectionRegistry instance = new ConnectionRegistry(); // Shared by every connection, as the static lists were
+	
+	private AtomicLong nextID; // Next session ID to be given out
+	private ConcurrentHashMap<Long, Session> sessions; // Sessions by session ID
+	private ConcurrentHashMap<String, Session> names; // Sessions by lower case username, once the username is known
+	
+	/**
+	 * Constructor for ConnectionRegistry
+	 */
+	public ConnectionRegistry()
+	{
+		nextID = new AtomicLong();
+		sessions = new ConcurrentHashMap<Long, Session>();
+		names = new ConcurrentHashMap<String, Session>();
+	}
+	
+	/**
+	 * @return
+	 * 			Registry shared by the whole server
+	 */
+	public static ConnectionRegistry getInstance()
+	{
+		return instance;
+	}
+	
+	/**
+	 * @return
+	 * 			New session ID
+	 */
+	public long nextSessionID()
+	{
+		return nextID.incrementAndGet();
+	}
+	
+	/**
+	 * Adds a session, which then receives broadcasts
+	 * @param session
+	 * 			Session to be added
+	 */
+	public void register(Session session)
+	{
+		sessions.put(session.getSessionID(), session);
+	}
+	
+	/**
+	 * Claims a username for a session so it can be looked up by name, unless it is not valid or another session already has it
+	 * @param session
+	 * 			Session whose client has sent its username
+	 * @param name
+	 * 			Username
+	 * @return
+	 * 			False if the username is not valid or is taken
+	 */
+	public boolean claimName(Session session, String name)
+	{
+		if (!isValidName(name))
+			return false;
+		Cluster cluster = Cluster.getInstance();
+		if (cluster != null && cluster.isRemoteUser(name))
+			return false;
+		if (names.putIfAbsent(key(name), session) != null)
+			return false;
+		if (cluster != null)
+			cluster.userOn(name);
+		return true;
+	}
+	
+	/**
+	 * @param name
+	 * 			Username sent by a client
+	 * @return
+	 * 			Whether it is 1 to MAX_NAME characters, none of them whitespace or control characters
+	 */
+	public static boolean isValidName(String name)
+	{
+		if (name == null || name.length() == 0 || name.length() > MAX_NAME)
+			return false;
+		for (int i = 0; i < name.length(); i++)
+		{
+			char c = name.charAt(i);
+			if (Character.isWhitespace(c) || Character.isSpaceChar(c) || Character.isISOControl(c))
+				return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * @param name
+	 * 			Username
+	 * @return
+	 * 			Key of the username in the index, so names differing only in case are the same user
+	 */
+	private static String key(String name)
+	{
+		return name.toLowerCase(Locale.ROOT);
+	}
+	
+	/**
+	 * Removes a session and its username
+	 * @param session
+	 * 			Session to be removed
+	 */
+	public void unregister(Session session)
+	{
+		sessions.remove(session.getSessionID());
+		if (session.getID() != null && names.remove(key(session.getID()), session) && Cluster.getInstance() != null) // Only if the name belongs to this session
+			Cluster.getInstance().userOff(session.getID());
+	}
+	
+	/**
+	 * @param sessionID
+	 * 			Session ID to look up
+	 * @return
+	 * 			Session, or null if not connected
+	 */
+	public Session get(long sessionID)
+	{
+		return sessions.get(sessionID);
+	}
+	
+	/**
+	 * @param name
+	 * 			Username to look up
+	 * @return
+	 * 			Session of the user, or null if not connected
+	 */
+	public Session getByName(String name)
+	{
+		return names.get(key(name));
+	}
+	
+	/**
+	 * @return
+	 * 			Number of connected sessions
+	 */
+	public int size()
+	{
+		return sessions.size();
+	}
+	
+	/**
+	 * @return
+	 * 			Sessions which have claimed a username, including any not yet registered
+	 */
+	public Iterable<Session> named()
+	{
+		return names.values();
+	}
+	
+	/**
+	 * @return
+	 * 			Iterator over the connected sessions, safe to use while sessions are added and removed
+	 */
+	public Iterator<Session> iterator()
+	{
+		return sessions.values().iterator();
+	}
+	
+	/**
+	 * Queues a message for every connected session, each in the format its client agreed
+	 * @param message
+	 * 			Message, encoded at most once per format
+	 */
+	public void broadcast(ChatMessage message)
+	{
+		for (Session session : sessions.values())
+		{
+			session.send(message.encoded(session.getFormat()));
+		}
+	}
+	
+	/**
+	 * Lists the outbound queue of every session, for monitoring
+	 * @return
+	 * 			One line per session
+	 */
+	public String queueReport()
+	{
+		StringBuilder report = new StringBuilder();
+		for (Session session : sessions.values())
+		{
+			OutboundQueue queue = session.getQueue();
+			report.append(session.getID()).append(": ").append(queue.getDepth()).append(" queued, ")
+				.append(queue.getDropped()).append(" dropped").append(queue.isSlow() ? ", slow" : "")
+				.append(System.lineSeparator());
+		}
+		return report.toString();
+	}
+}
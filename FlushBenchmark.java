@@ -0,0 +1,229 @@
+/**
+ * Version 1.0
+ * Author: MK2022
+ * Date: 18/10/2026
+ *
+ * The FlushBenchmark class measures the trade-off made by WriteBatch's latency budget. It starts a server engine on loopback,
+ * connects receiving clients and a few senders that broadcast timestamped messages at a fixed rate, and reports delivered throughput,
+ * messages carried per write call and send-to-receive latency, for each budget and for a busy and a light load.
+ * Run with: java FlushBenchmark [blocking|nio] [receivers]
+ */
+import java.io.BufferedReader; // Necessary imports
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+
+public class FlushBenchmark
+{
+
+	private static final int PORT = 14099;
+	private static final int SENDERS = 4;
+	private static final long[] BUDGETS = {0, 200, 1000}; // Latency budgets tried, in microseconds
+	private static final int[] RATES = {500, 20}; // Messages per second per sender, busy then light
+	private static final long WARMUP_NANOS = 1000000000L;
+	private static final long RUN_NANOS = 3000000000L;
+
+	private static volatile boolean measuring; // Whether receivers record what they see
+	private static LatencyHistogram latency = new LatencyHistogram(); // Send to receive time of every delivered message
+	private static LongAdder delivered = new LongAdder(); // Messages received while measuring
+
+	/**
+	 * Main method, runs every budget against a busy and a light load and prints a table of results
+	 * @param args
+	 * 			Optional engine and number of receivers
+	 * @throws Exception
+	 * 			If the server or clients cannot be set up
+	 */
+	public static void main(String[] args) throws Exception
+	{
+		String engine = args.length >= 1 ? args[0] : "nio";
+		int receivers = args.length >= 2 && ChatClient.isInt(args[1]) ? Integer.parseInt(args[1]) : 20;
+		RateLimiter.configure(new String[] {"-msgrate", "0"}); // The benchmark is the load, not an abusive client
+		PrintStream console = System.out;
+		System.setOut(new PrintStream(new NullOutputStream())); // Server logs every message, which would swamp the results
+		System.setErr(System.out); // Clients dropped at the end of each case are reported too
+
+		console.println("Engine " + engine + ", " + receivers + " receivers, " + SENDERS + " senders");
+		console.printf("%-10s %-12s %14s %12s %10s %10s%n", "budget us", "offered/s", "delivered/s", "msgs/write", "p50 us", "p99 us");
+		int port = PORT;
+		for (int rate : RATES)
+		{
+			for (long budget : BUDGETS)
+			{
+				WriteBatch.configure(new String[] {"-flushbudget", "" + budget});
+				long[] result = run(engine, port++, receivers, rate);
+				console.printf("%-10d %-12d %14d %12.2f %10.1f %10.1f%n", budget, rate * SENDERS, result[0],
+					result[1] / 100.0, result[2] / 1000.0, result[3] / 1000.0);
+			}
+		}
+		System.exit(0); // Server threads are still running
+	}
+
+	/**
+	 * Runs one case
+	 * @return
+	 * 			Delivered messages per second, messages per write times 100, p50 and p99 latency in nanoseconds
+	 */
+	private static long[] run(String engine, int port, int receivers, int rate) throws Exception
+	{
+		Object server = startServer(engine, port);
+		ArrayList<Socket> sockets = new ArrayList<Socket>();
+		for (int i = 0; i < receivers; i++)
+			sockets.add(receiver(port, "r" + i));
+		ArrayList<Thread> senders = new ArrayList<Thread>();
+		final long end = System.nanoTime() + WARMUP_NANOS + RUN_NANOS;
+		for (int i = 0; i < SENDERS; i++)
+			senders.add(sender(port, "s" + i, rate, end, sockets));
+
+		Thread.sleep(WARMUP_NANOS / 1000000);
+		latency.reset();
+		delivered.reset();
+		long writes = WriteBatch.getWrites();
+		long buffers = WriteBatch.getBuffersWritten();
+		measuring = true;
+		Thread.sleep(RUN_NANOS / 1000000);
+		measuring = false;
+		long perWrite = (WriteBatch.getBuffersWritten() - buffers) * 100 / Math.max(WriteBatch.getWrites() - writes, 1);
+
+		for (Thread t : senders)
+			t.join();
+		for (Socket s : sockets)
+			s.close();
+		stopServer(server);
+		return new long[] {delivered.sum() * 1000000000L / RUN_NANOS, perWrite, latency.getPercentile(50), latency.getPercentile(99)};
+	}
+
+	/**
+	 * Starts a server engine without ChatServer, whose shutdown exits the JVM. Also used by BenchmarkSuite
+	 * @return
+	 * 			NioServer or ServerSocketChannel, to be given to stopServer
+	 */
+	static Object startServer(String engine, int port) throws IOException
+	{
+		if (engine.equalsIgnoreCase("nio"))
+		{
+			NioServer nio = new NioServer(port, 0);
+			new Thread(nio).start();
+			return nio;
+		}
+		final ServerSocketChannel in = ServerSocketChannel.open().bind(new InetSocketAddress(port));
+		final ExecutorService executor = ThreadMode.newExecutor(ThreadMode.isVirtual(engine), "bench-connection");
+		new Thread(new Runnable()
+		{
+			public void run()
+			{
+				try
+				{
+					while (true)
+					{
+						ServerConnection mcs = new ServerConnection(in.socket().accept()); // As ChatServer.run does
+						executor.execute(mcs);
+						executor.execute(mcs.getWriter());
+					}
+				} catch (IOException e)
+				{
+					// Server channel closed at the end of the case
+				}
+			}
+		}).start();
+		return in;
+	}
+
+	/**
+	 * Stops a server started by startServer and disconnects anything left
+	 */
+	static void stopServer(Object server) throws IOException
+	{
+		if (server instanceof NioServer)
+			((NioServer) server).close();
+		else
+			((ServerSocketChannel) server).close();
+		for (Session session : ConnectionRegistry.getInstance())
+			session.close();
+	}
+
+	/**
+	 * Connects a receiving client whose thread records the latency of every message from a sender
+	 */
+	private static Socket receiver(int port, String name) throws IOException
+	{
+		final Socket s = SocketChannel.open(new InetSocketAddress("localhost", port)).socket();
+		new PrintWriter(s.getOutputStream(), true).println(name);
+		final BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream()));
+		new Thread(new Runnable()
+		{
+			public void run()
+			{
+				try
+				{
+					String line;
+					while ((line = in.readLine()) != null)
+					{
+						int colon = line.indexOf(": ");
+						if (measuring && line.startsWith("s") && colon > 0) // Sender messages are "sN: <send time>"
+						{
+							latency.record(System.nanoTime() - Long.parseLong(line.substring(colon + 2)));
+							delivered.increment();
+						}
+					}
+				} catch (IOException e)
+				{
+					// Closed at the end of the case
+				}
+			}
+		}).start();
+		return s;
+	}
+
+	/**
+	 * Starts a thread sending timestamped messages at a fixed rate until the end time
+	 */
+	private static Thread sender(int port, final String name, final int rate, final long end, ArrayList<Socket> sockets) throws IOException
+	{
+		final Socket s = SocketChannel.open(new InetSocketAddress("localhost", port)).socket();
+		sockets.add(s);
+		final PrintWriter out = new PrintWriter(s.getOutputStream(), true);
+		out.println(name);
+		Thread t = new Thread(new Runnable()
+		{
+			public void run()
+			{
+				long interval = 1000000000L / rate;
+				long next = System.nanoTime();
+				while (next < end)
+				{
+					LockSupport.parkNanos(next - System.nanoTime());
+					out.println(System.nanoTime());
+					next += interval;
+				}
+			}
+		});
+		t.start();
+		return t;
+	}
+
+	/**
+	 * OutputStream which discards everything
+	 */
+	static class NullOutputStream extends OutputStream
+	{
+		public void write(int b)
+		{
+		}
+
+		public void write(byte[] b, int off, int len)
+		{
+		}
+	}
+}
@@ -0,0 +1,210 @@
+/**
+ * Version 1.0
+ * Author: MK2022
+ * Date: 18/10/2026
+ *
+ * The Footprint class measures what each connection costs the server in memory.
+ * The server's "Memory" console command prints the BufferPool's usage and the heap, direct memory and threads per open connection,
+ * measured against a baseline taken when the server started, after a full garbage collection so only live objects are counted.
+ * Run on its own it is a measuring tool: it starts a server in this process, connects idle clients to it from a child process
+ * so the clients' objects are not counted, and prints the cost of each connection for every engine asked for.
+ * Usage: java Footprint [-modes nio,virtual,blocking] [-connections 2000] [-port 14003]
+ */
+import java.io.File; // Necessary imports
+import java.io.IOException;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+
+
+public class Footprint
+{
+
+	private static long baseHeap; // Heap in use when the server started
+	private static long baseDirect; // Direct memory in use when the server started
+	private static int baseThreads; // Live threads when the server started
+
+	/**
+	 * Constructor for Footprint, not used as everything it measures is shared
+	 */
+	private Footprint()
+	{
+	}
+
+	/**
+	 * Records the memory in use before any connection is accepted, which the report measures against
+	 */
+	public static void mark()
+	{
+		baseHeap = liveHeap();
+		baseDirect = directMemory();
+		baseThreads = ManagementFactory.getThreadMXBean().getThreadCount();
+	}
+
+	/**
+	 * Describes the buffer pool and what each open connection costs, running a full garbage collection first
+	 * @return
+	 * 			Report, several lines
+	 */
+	public static String report()
+	{
+		int open = Math.max(Admission.getOpen(), ConnectionRegistry.getInstance().size());
+		long heap = liveHeap() - baseHeap;
+		long direct = directMemory() - baseDirect;
+		int threads = ManagementFactory.getThreadMXBean().getThreadCount() - baseThreads;
+		StringBuilder report = new StringBuilder(BufferPool.report());
+		report.append(String.format("Connections %d, heap %d KB, direct %d KB, threads %d since the server started%n", open, heap / 1024,
+			direct / 1024, threads));
+		if (open > 0)
+			report.append(String.format("Per connection: heap %d bytes, direct %d bytes, threads %.2f%n", heap / open, direct / open,
+				threads / (double) open));
+		return report.toString();
+	}
+
+	/**
+	 * @return
+	 * 			Heap in use after a full garbage collection
+	 */
+	private static long liveHeap()
+	{
+		Runtime runtime = Runtime.getRuntime();
+		long used = Long.MAX_VALUE;
+		for (int i = 0; i < 3; i++) // Collections can leave objects freed by finalization or reference processing for the next one
+		{
+			System.gc();
+			used = Math.min(used, runtime.totalMemory() - runtime.freeMemory());
+		}
+		return used;
+	}
+
+	/**
+	 * @return
+	 * 			Bytes of direct buffers allocated and not yet freed
+	 */
+	private static long directMemory()
+	{
+		for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class))
+		{
+			if (pool.getName().equals("direct"))
+				return pool.getMemoryUsed();
+		}
+		return 0;
+	}
+
+	/**
+	 * Measures each engine, or when started with -clients, is the child process holding the idle clients open
+	 * @param args
+	 * 			Options, see the class comment
+	 * @throws Exception
+	 * 			If the server or clients cannot be started
+	 */
+	public static void main(String[] args) throws Exception
+	{
+		String modes = "nio,virtual,blocking";
+		int connections = 2000;
+		int port = 14003;
+		int clients = 0;
+		for (int i = 0; i + 1 < args.length; i += 2)
+		{
+			if (args[i].equals("-modes"))
+				modes = args[i + 1];
+			else if (args[i].equals("-connections"))
+				connections = Integer.parseInt(args[i + 1]);
+			else if (args[i].equals("-port"))
+				port = Integer.parseInt(args[i + 1]);
+			else if (args[i].equals("-clients"))
+				clients = Integer.parseInt(args[i + 1]);
+		}
+		if (clients > 0)
+		{
+			holdClients(port, clients);
+			return;
+		}
+
+		RateLimiter.configure(new String[] {"-acceptrate", "1000000", "-acceptburst", "1000000"}); // Clients connect as fast as they can
+		System.out.println(String.format("%-10s %12s %16s %16s %10s", "Engine", "Connections", "Heap bytes/conn", "Direct bytes/conn",
+			"Threads/conn"));
+		for (String mode : modes.split(","))
+		{
+			mark();
+			Object server = FlushBenchmark.startServer(mode, port);
+			Process child = new ProcessBuilder(new File(System.getProperty("java.home"), "bin/java").getPath(), "-cp",
+				System.getProperty("java.class.path"), "Footprint", "-port", "" + port, "-clients", "" + connections).inheritIO().start();
+			long deadline = System.currentTimeMillis() + 120000;
+			while (ConnectionRegistry.getInstance().size() < connections && System.currentTimeMillis() < deadline)
+				Thread.sleep(100);
+			Thread.sleep(1000); // Lets the last handshakes finish and the buffers they used go back to the pool
+			int open = ConnectionRegistry.getInstance().size();
+			long heap = liveHeap() - baseHeap;
+			long direct = directMemory() - baseDirect;
+			int threads = ManagementFactory.getThreadMXBean().getThreadCount() - baseThreads;
+			System.out.println(String.format("%-10s %12d %16d %16d %10.2f", mode, open, heap / Math.max(open, 1), direct / Math.max(open, 1),
+				threads / (double) Math.max(open, 1)));
+			child.destroy();
+			child.waitFor();
+			FlushBenchmark.stopServer(server);
+			while (ConnectionRegistry.getInstance().size() > 0 && System.currentTimeMillis() < deadline + 10000)
+				Thread.sleep(100);
+			port++; // The old port may still be closing
+		}
+		System.out.print(BufferPool.report());
+		System.exit(0); // Engines leave non-daemon threads behind
+	}
+
+	/**
+	 * Connects idle clients, each sending its user ID and then nothing, and keeps them open until the process is ended.
+	 * What the server sends them, such as other clients joining, is read and thrown away so it does not wait in the server's queues
+	 * @param port
+	 * 			Server port
+	 * @param clients
+	 * 			Number of clients
+	 * @throws Exception
+	 * 			If a client cannot connect
+	 */
+	private static void holdClients(int port, int clients) throws Exception
+	{
+		Selector selector = Selector.open();
+		ByteBuffer discard = ByteBuffer.allocateDirect(65536);
+		for (int i = 0; i < clients; i++)
+		{
+			SocketChannel sc = SocketChannel.open(new InetSocketAddress("localhost", port));
+			sc.write(ByteBuffer.wrap(("idle" + i + System.lineSeparator()).getBytes(SharedBuffer.CHARSET)));
+			sc.configureBlocking(false);
+			sc.register(selector, SelectionKey.OP_READ);
+			selector.selectNow();
+			discard(selector, discard); // Keeps up with the joins while connecting
+		}
+		while (true)
+		{
+			selector.select();
+			discard(selector, discard);
+		}
+	}
+
+	/**
+	 * Reads and throws away whatever the selected clients have been sent
+	 * @param selector
+	 * 			Selector whose selected keys are read
+	 * @param discard
+	 * 			Buffer read into
+	 * @throws IOException
+	 * 			If reading fails
+	 */
+	private static void discard(Selector selector, ByteBuffer discard) throws IOException
+	{
+		Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+		while (keys.hasNext())
+		{
+			SelectionKey key = keys.next();
+			keys.remove();
+			discard.clear();
+			if (((SocketChannel) key.channel()).read(discard) < 0)
+				key.cancel();
+		}
+	}
+}
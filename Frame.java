@@ -0,0 +1,67 @@
+/**
+ * Version 1.0
+ * Author: MK2022
+ * Date: 18/10/2026
+ * 
+ * The Frame class describes the binary framing used once a client and server have agreed on it in their handshake.
+ * Each frame is a 6 byte header, type (1 byte), flags (1 byte) and payload length (4 bytes, big endian), followed by the payload.
+ * Text payloads are UTF-8. Clients which do not ask for framing keep the original newline delimited text protocol.
+ * Clients which agreed reliable delivery are also sent ROOM and SEQUENCE frames numbering each room's messages, and send back ACK and RESUME frames,
+ * the positions they carry written as text, see Position
+ */
+import java.nio.charset.Charset; // Necessary imports
+import java.nio.charset.StandardCharsets;
+
+
+public class Frame
+{
+	
+	public static final int HEADER = 6; // Bytes before the payload
+	public static final int MAX_LENGTH = 1 << 20; // Largest payload accepted, also the longest text line
+	public static final Charset CHARSET = StandardCharsets.UTF_8; // Charset of text payloads
+	
+	public static final int MESSAGE = 1; // Chat text, from client to server to be broadcast, or from server to client to be displayed
+	public static final int ID = 2; // Username, the first frame a client sends
+	public static final int DISCONNECT = 3; // Client is leaving, replacing the "Disconnect me" text
+	public static final int PING = 4; // Asks the other side to show it is still there, answered with a PONG carrying the same payload
+	public static final int PONG = 5; // Answer to a PING
+	public static final int SEQUENCE = 6; // Epoch and sequence number of the room message in the MESSAGE frame which follows it
+	public static final int ROOM = 7; // Position a client has been given in a room, sent when it joins or resumes
+	public static final int ACK = 8; // Sequence number of the last room message the client has, every earlier one included
+	public static final int RESUME = 9; // Position a client asks to be sent the room's messages after, when it finds it has missed some
+	
+	public static final int COMPRESSED = 1; // Flag set when the payload is deflated, see Compression
+	
+	/**
+	 * @param type
+	 * 			Frame type
+	 * @return
+	 * 			Name of the type, for error messages
+	 */
+	public static String typeName(int type)
+	{
+		switch (type)
+		{
+			case MESSAGE:
+				return "MESSAGE";
+			case ID:
+				return "ID";
+			case DISCONNECT:
+				return "DISCONNECT";
+			case PING:
+				return "PING";
+			case PONG:
+				return "PONG";
+			case SEQUENCE:
+				return "SEQUENCE";
+			case ROOM:
+				return "ROOM";
+			case ACK:
+				return "ACK";
+			case RESUME:
+				return "RESUME";
+			default:
+				return "type " + type;
+		}
+	}
+}
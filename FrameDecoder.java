@@ -0,0 +1,274 @@
+/**
+ * Version 1.0
+ * Author: MK2022
+ * Date: 18/10/2026
+ * 
+ * The FrameDecoder class finds complete frames, or complete lines in text mode, in a read buffer without copying them.
+ * After next returns true the payload is described by its position and length in the buffer, and stays valid until the buffer is compacted.
+ * A payload can be compared and validated as UTF-8 where it lies, so a plain message need never be decoded into a String.
+ * Used by ServerConnection, NioConnection and ClientConnection
+ */
+import java.io.IOException; // Necessary imports
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+
+public class FrameDecoder
+{
+	
+	private boolean binary; // Whether frames or text lines are expected
+	private int type; // Type of the last frame found, MESSAGE for a text line
+	private int flags; // Flags of the last frame found
+	private int payloadStart; // Index of the payload in the buffer
+	private int payloadLength; // Length of the payload, without the line ending for a text line
+	private int scanned; // Bytes of an incomplete line already searched for a line ending
+	
+	/**
+	 * Switches between text lines and frames, once the handshake has decided
+	 * @param binary
+	 * 			Whether frames should be expected
+	 */
+	public void setBinary(boolean binary)
+	{
+		this.binary = binary;
+	}
+	
+	/**
+	 * @return
+	 * 			Whether frames are expected
+	 */
+	public boolean isBinary()
+	{
+		return binary;
+	}
+	
+	/**
+	 * Looks for a complete frame or line at the buffer's position, moving the position past it if found
+	 * @param buffer
+	 * 			Buffer in read mode
+	 * @return
+	 * 			True if one was found, false if more bytes must be read first
+	 * @throws IOException
+	 * 			If a frame or line is longer than Frame.MAX_LENGTH
+	 */
+	public boolean next(ByteBuffer buffer) throws IOException
+	{
+		if (binary)
+		{
+			if (buffer.remaining() < Frame.HEADER)
+				return false;
+			int start = buffer.position();
+			int length = buffer.getInt(start + 2);
+			if (length < 0 || length > Frame.MAX_LENGTH)
+				throw new ProtocolException("Frame of " + length + " bytes is too long");
+			if (buffer.remaining() < Frame.HEADER + length)
+				return false;
+			type = buffer.get(start) & 0xFF;
+			flags = buffer.get(start + 1) & 0xFF;
+			payloadStart = start + Frame.HEADER;
+			payloadLength = length;
+			buffer.position(payloadStart + length);
+			return true;
+		}
+		int start = buffer.position();
+		for (int i = start + scanned; i < buffer.limit(); i++)
+		{
+			if (buffer.get(i) == '\n')
+			{
+				int end = i;
+				if (end > start && buffer.get(end - 1) == '\r') // Accepts both \n and \r\n line endings, as readLine does
+					end--;
+				type = Frame.MESSAGE;
+				flags = 0;
+				payloadStart = start;
+				payloadLength = end - start;
+				scanned = 0;
+				buffer.position(i + 1);
+				return true;
+			}
+		}
+		scanned = buffer.remaining(); // No need to search these bytes again when more arrive
+		if (scanned > Frame.MAX_LENGTH)
+			throw new ProtocolException("Line is too long");
+		return false;
+	}
+	
+	/**
+	 * @return
+	 * 			Type of the last frame found
+	 */
+	public int getType()
+	{
+		return type;
+	}
+	
+	/**
+	 * @return
+	 * 			Flags of the last frame found
+	 */
+	public int getFlags()
+	{
+		return flags;
+	}
+	
+	/**
+	 * @return
+	 * 			Index of the last payload found in the buffer
+	 */
+	public int getPayloadStart()
+	{
+		return payloadStart;
+	}
+	
+	/**
+	 * @return
+	 * 			Length of the last payload found
+	 */
+	public int getPayloadLength()
+	{
+		return payloadLength;
+	}
+	
+	/**
+	 * Decodes the last payload found as text
+	 * @param buffer
+	 * 			Buffer the payload was found in, not compacted since
+	 * @param textCharset
+	 * 			Charset of text lines, frames are always UTF-8
+	 * @return
+	 * 			Payload as a String
+	 */
+	public String getText(ByteBuffer buffer, Charset textCharset)
+	{
+		ByteBuffer payload = buffer.duplicate();
+		payload.limit(payloadStart + payloadLength).position(payloadStart);
+		return (binary ? Frame.CHARSET : textCharset).decode(payload).toString();
+	}
+	
+	/**
+	 * Checks whether the last payload is well formed UTF-8, so its bytes can be relayed as they are
+	 * @param buffer
+	 * 			Buffer the payload was found in, not compacted since
+	 * @param textCharset
+	 * 			Charset of text lines, frames are always UTF-8
+	 * @return
+	 * 			False if it is not, or is a text line in a charset other than UTF-8
+	 */
+	public boolean isUtf8(ByteBuffer buffer, Charset textCharset)
+	{
+		if (!binary && !textCharset.equals(Frame.CHARSET))
+			return false;
+		return isUtf8(buffer, payloadStart, payloadLength);
+	}
+	
+	/**
+	 * Checks bytes for well formed UTF-8: no stray continuation bytes, truncated or overlong sequences, surrogates or code points past U+10FFFF
+	 * @param buffer
+	 * 			Buffer holding the bytes, its position and limit are not used
+	 * @param start
+	 * 			Index of the first byte
+	 * @param length
+	 * 			Number of bytes
+	 * @return
+	 * 			Whether decoding would need no replacement characters
+	 */
+	public static boolean isUtf8(ByteBuffer buffer, int start, int length)
+	{
+		int end = start + length;
+		int i = start;
+		while (i < end)
+		{
+			while (i + 8 <= end && (buffer.getLong(i) & 0x8080808080808080L) == 0) // Eight ASCII bytes at a time, most chat is ASCII
+				i += 8;
+			if (i == end)
+				break;
+			int b = buffer.get(i);
+			if (b >= 0)
+			{
+				i++;
+				continue;
+			}
+			int extra; // Continuation bytes which must follow
+			int min; // Smallest code point the sequence may encode, anything less is overlong
+			int codePoint;
+			if ((b & 0xE0) == 0xC0)
+			{
+				extra = 1;
+				min = 0x80;
+				codePoint = b & 0x1F;
+			}
+			else if ((b & 0xF0) == 0xE0)
+			{
+				extra = 2;
+				min = 0x800;
+				codePoint = b & 0x0F;
+			}
+			else if ((b & 0xF8) == 0xF0)
+			{
+				extra = 3;
+				min = 0x10000;
+				codePoint = b & 0x07;
+			}
+			else
+				return false; // A continuation byte with no lead, or a lead no longer used
+			if (end - i <= extra)
+				return false;
+			for (int j = 1; j <= extra; j++)
+			{
+				int c = buffer.get(i + j);
+				if ((c & 0xC0) != 0x80)
+					return false;
+				codePoint = (codePoint << 6) | (c & 0x3F);
+			}
+			if (codePoint < min || codePoint > 0x10FFFF || (codePoint >= 0xD800 && codePoint <= 0xDFFF))
+				return false;
+			i += extra + 1;
+		}
+		return true;
+	}
+	
+	/**
+	 * Compares the last payload with ASCII text, ignoring the case of letters, without decoding it
+	 * @param buffer
+	 * 			Buffer the payload was found in, not compacted since
+	 * @param text
+	 * 			ASCII text to compare with
+	 * @return
+	 * 			Whether the payload is the text
+	 */
+	public boolean payloadEqualsIgnoreCase(ByteBuffer buffer, String text)
+	{
+		if (payloadLength != text.length())
+			return false;
+		for (int i = 0; i < payloadLength; i++)
+		{
+			int b = buffer.get(payloadStart + i);
+			int c = text.charAt(i);
+			if (b != c && ((b | 0x20) != (c | 0x20) || (c | 0x20) < 'a' || (c | 0x20) > 'z')) // Letters differ in case by the 0x20 bit
+				return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Makes room in a read buffer for the next read, keeping any partial frame or line and growing the buffer if it is full of one
+	 * @param buffer
+	 * 			Buffer in read mode
+	 * @return
+	 * 			Buffer in write mode, either the same one compacted or a larger copy, a direct buffer's copy coming from the BufferPool
+	 */
+	public static ByteBuffer compact(ByteBuffer buffer)
+	{
+		if (buffer.position() == 0 && buffer.limit() == buffer.capacity()) // Full of one incomplete frame or line
+		{
+			if (!buffer.isDirect())
+				return ByteBuffer.allocate(buffer.capacity() * 2).put(buffer);
+			ByteBuffer larger = BufferPool.acquire(buffer.capacity() * 2); // Direct read buffers are borrowed from the pool
+			larger.put(buffer);
+			BufferPool.release(buffer);
+			return larger;
+		}
+		return buffer.compact();
+	}
+}
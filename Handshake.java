@@ -0,0 +1,144 @@
+/**
+ * Version 1.0
+ * Author: MK2022
+ * Date: 18/10/2026
+ * 
+ * The Handshake class builds and reads the hello lines a client and server exchange before the username is sent.
+ * A client able to use frames starts with a hello line listing the protocol versions and framings it supports,
+ * the server answers with the ones it chose, and both then switch. A hello line starts with a control character no username
+ * typed by a user can contain, so a client which sends its username first is an old client and keeps the text protocol.
+ * With binary framing a client may also offer compression, which the server accepts unless it has been turned off,
+ * and reliable delivery, under which room messages are numbered and a reconnecting client gives the Position it had reached
+ * in the resume option, so it is put back in its room and sent only what it missed
+ */
+import java.util.HashMap; // Necessary imports
+
+
+public class Handshake
+{
+	
+	public static final String PREFIX = "\u0001CHAT"; // Start of every hello line
+	public static final int VERSION = 1; // Highest protocol version supported
+	
+	private HashMap<String, String> options; // Options given in the hello line
+	
+	/**
+	 * Constructor for Handshake, reading a hello line
+	 * @param line
+	 * 			Hello line received
+	 */
+	public Handshake(String line)
+	{
+		options = new HashMap<String, String>();
+		String[] parts = line.substring(PREFIX.length()).trim().split(" ");
+		for (int i = 0; i < parts.length; i++)
+		{
+			int equals = parts[i].indexOf('=');
+			if (equals > 0)
+				options.put(parts[i].substring(0, equals), parts[i].substring(equals + 1));
+		}
+	}
+	
+	/**
+	 * @param line
+	 * 			First line received from a client
+	 * @return
+	 * 			Whether it is a hello line rather than a username
+	 */
+	public static boolean isHello(String line)
+	{
+		return line != null && line.startsWith(PREFIX);
+	}
+	
+	/**
+	 * @return
+	 * 			Hello line a client sends, offering every version and framing it supports
+	 */
+	public static String offer()
+	{
+		return PREFIX + " versions=" + VERSION + " framing=binary,text compression=deflate delivery=ack";
+	}
+	
+	/**
+	 * @param resume
+	 * 			Position reached before the connection was lost, or null for a first connection
+	 * @return
+	 * 			Hello line a reconnecting client sends, asking to resume from where it was
+	 */
+	public static String offer(Position resume)
+	{
+		return resume == null ? offer() : offer() + " resume=" + resume;
+	}
+	
+	/**
+	 * Chooses a version and framing from those a client offered
+	 * @return
+	 * 			Hello line the server answers with
+	 */
+	public String answer()
+	{
+		int version = 0;
+		for (String v : get("versions").split(","))
+		{
+			if (!v.equals("") && v.length() < 10 && ChatClient.isInt(v) && Integer.parseInt(v) <= VERSION)
+				version = Math.max(version, Integer.parseInt(v));
+		}
+		if (version == 0)
+			return PREFIX + " version=0 framing=text"; // No version in common, the client falls back to text
+		String framing = ("," + get("framing") + ",").contains(",binary,") ? "binary" : "text";
+		String compression = framing.equals("binary") && Compression.isEnabled() && ("," + get("compression") + ",").contains(",deflate,") ? "deflate" : "none";
+		String delivery = framing.equals("binary") && ("," + get("delivery") + ",").contains(",ack,") ? " delivery=ack" : ""; // Frames can carry sequence numbers, text lines cannot
+		return PREFIX + " version=" + version + " framing=" + framing + " compression=" + compression + delivery;
+	}
+	
+	/**
+	 * @param option
+	 * 			Name of an option
+	 * @return
+	 * 			Value of the option, or an empty String if it was not given
+	 */
+	public String get(String option)
+	{
+		String value = options.get(option);
+		return value == null ? "" : value;
+	}
+	
+	/**
+	 * @return
+	 * 			Whether binary framing was offered first or chosen
+	 */
+	public boolean isBinary()
+	{
+		return get("framing").equals("binary");
+	}
+	
+	/**
+	 * @return
+	 * 			Whether reliable delivery was chosen, so room messages are numbered
+	 */
+	public boolean isReliable()
+	{
+		return get("delivery").equals("ack");
+	}
+	
+	/**
+	 * @return
+	 * 			Position a reconnecting client asked to resume from, or null if it gave none
+	 */
+	public Position getResume()
+	{
+		return Position.parse(options.get("resume"));
+	}
+	
+	/**
+	 * @return
+	 * 			Wire format a server should send in after giving this answer
+	 */
+	public int getFormat()
+	{
+		if (!isBinary())
+			return ChatMessage.TEXT;
+		int format = get("compression").equals("deflate") ? ChatMessage.COMPRESSED : ChatMessage.FRAMED;
+		return isReliable() ? format | ChatMessage.SEQUENCED : format;
+	}
+}
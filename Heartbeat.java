@@ -0,0 +1,258 @@
+/**
+ * Version 1.0
+ * Author: MK2022
+ * Date: 18/10/2026
+ *
+ * The Heartbeat class watches one connection for the server, so clients which vanish without closing their socket are found and reaped.
+ * A client must send its user ID within the read timeout of connecting. After that a framed client which has been quiet for the ping interval
+ * is sent a PING frame, and is disconnected if nothing at all has been read from it within the read timeout of the ping.
+ * The text protocol has no ping, so text clients get TCP keepalive probes on the same intervals instead,
+ * and any client can be disconnected after the idle timeout without sending anything.
+ * Every heartbeat is a timeout on one shared TimingWheel, and reading only records the time, so watching a connection costs no thread
+ * and the wheel only hears from a connection once per interval
+ */
+import java.io.IOException; // Necessary imports
+import java.net.StandardSocketOptions;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import jdk.net.ExtendedSocketOptions;
+
+
+public class Heartbeat extends TimingWheel.Timeout
+{
+
+	/**
+	 * Connection watched by a heartbeat
+	 */
+	public interface Target
+	{
+		/**
+		 * Sends the client a PING frame, called on the wheel's thread so it must not block
+		 */
+		void ping();
+
+		/**
+		 * Disconnects the client, called on the wheel's thread so it must not block
+		 * @param reason
+		 * 			Reason given to other users
+		 */
+		void timeOut(String reason);
+	}
+
+	public static final String HANDSHAKE_REASON = "timed out before sending a user ID"; // Reasons given when a client is reaped
+	public static final String PING_REASON = "timed out";
+	public static final String IDLE_REASON = "idle for too long";
+
+	private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(100); // Timeouts fire up to this late
+	private static final int SLOTS = 512; // One turn of the wheel is 51.2 seconds
+
+	private static long pingInterval = TimeUnit.SECONDS.toNanos(30); // Quiet time before a framed client is pinged, never if 0
+	private static long readTimeout = TimeUnit.SECONDS.toNanos(15); // Time allowed to send a user ID, and to answer a ping, unlimited if 0
+	private static long idleTimeout = 0; // Quiet time before any client is disconnected, unlimited if 0
+	private static final TimingWheel wheel = new TimingWheel(SLOTS, TICK_NANOS, "heartbeat"); // Shared by every heartbeat, started when the class loads
+	private static LongAdder reaped = new LongAdder(); // Clients disconnected by a heartbeat
+
+	private Target target;
+	private volatile long lastRead; // System.nanoTime of the last read from the client
+	private volatile boolean joined; // Whether the client has sent its user ID
+	private volatile boolean framed; // Whether the client can be pinged
+	private volatile boolean stopped; // Whether the connection has closed
+	private long pingedAt; // System.nanoTime of the last ping, 0 if never pinged, only used on the wheel's thread
+
+	/**
+	 * Constructor for Heartbeat
+	 * @param target
+	 * 			Connection to watch
+	 */
+	private Heartbeat(Target target)
+	{
+		this.target = target;
+		lastRead = System.nanoTime(); // The user ID is due within the read timeout of connecting
+	}
+
+	/**
+	 * Reads heartbeat options from the command line, ignoring options it does not know
+	 * @param args
+	 * 			Command line arguments, given as option and value pairs, timeouts in seconds
+	 */
+	public static void configure(String[] args)
+	{
+		for (int i = 0; i + 1 < args.length; i += 2)
+		{
+			if (!ChatClient.isInt(args[i + 1]))
+				continue;
+			if (args[i].equalsIgnoreCase("-pinginterval"))
+				pingInterval = TimeUnit.SECONDS.toNanos(Long.parseLong(args[i + 1]));
+			else if (args[i].equalsIgnoreCase("-readtimeout"))
+				readTimeout = TimeUnit.SECONDS.toNanos(Long.parseLong(args[i + 1]));
+			else if (args[i].equalsIgnoreCase("-idletimeout"))
+				idleTimeout = TimeUnit.SECONDS.toNanos(Long.parseLong(args[i + 1]));
+		}
+	}
+
+	/**
+	 * Starts watching a newly accepted connection, which must send its user ID within the read timeout
+	 * @param target
+	 * 			Connection to watch
+	 * @return
+	 * 			Heartbeat to be told of reads, of the user ID, and when the connection closes
+	 */
+	public static Heartbeat watch(Target target)
+	{
+		Heartbeat heartbeat = new Heartbeat(target);
+		if (readTimeout > 0)
+			wheel.schedule(heartbeat, readTimeout);
+		return heartbeat;
+	}
+
+	/**
+	 * @return
+	 * 			Connections being watched
+	 */
+	public static int getWatched()
+	{
+		return wheel.size();
+	}
+
+	/**
+	 * @return
+	 * 			Clients disconnected by a heartbeat
+	 */
+	public static long getReaped()
+	{
+		return reaped.sum();
+	}
+
+	/**
+	 * Records that bytes were read from the client, which is all a ping needs as an answer
+	 */
+	public void read()
+	{
+		lastRead = System.nanoTime();
+	}
+
+	/**
+	 * Records that the client has sent its user ID, and starts pinging it or turns on TCP keepalive
+	 * @param sc
+	 * 			Client's channel
+	 * @param binary
+	 * 			Whether the client agreed framing, and so can be pinged
+	 */
+	public void joined(SocketChannel sc, boolean binary)
+	{
+		framed = binary;
+		joined = true;
+		if (!binary && pingInterval > 0)
+			keepAlive(sc);
+		if (stopped)
+			return;
+		long delay = binary && pingInterval > 0 ? pingInterval : 0;
+		if (idleTimeout > 0)
+			delay = delay == 0 ? idleTimeout : Math.min(delay, idleTimeout);
+		if (delay > 0)
+			wheel.schedule(this, delay);
+		else if (readTimeout > 0)
+			wheel.cancel(this); // Nothing left to watch for
+	}
+
+	/**
+	 * Stops watching the connection, once it has closed
+	 */
+	public void stop()
+	{
+		stopped = true;
+		wheel.cancel(this);
+	}
+
+	/**
+	 * Checks the connection once one of its deadlines has come, on the wheel's thread
+	 */
+	protected void expire()
+	{
+		if (stopped)
+			return;
+		long now = System.nanoTime();
+		if (!joined)
+		{
+			reap(HANDSHAKE_REASON);
+			return;
+		}
+
+		long last = lastRead;
+		long quiet = now - last;
+		if (idleTimeout > 0 && quiet >= idleTimeout)
+		{
+			reap(IDLE_REASON);
+			return;
+		}
+		long delay = idleTimeout > 0 ? idleTimeout - quiet : Long.MAX_VALUE;
+		if (framed && pingInterval > 0)
+		{
+			boolean awaiting = pingedAt != 0 && last - pingedAt < 0; // Nothing read since the last ping
+			if (awaiting && readTimeout > 0)
+			{
+				if (now - pingedAt >= readTimeout)
+				{
+					reap(PING_REASON);
+					return;
+				}
+				delay = Math.min(delay, pingedAt + readTimeout - now);
+			}
+			else
+			{
+				long since = now - (awaiting ? pingedAt : last); // Without a read timeout, pings keep going out each interval
+				if (since >= pingInterval)
+				{
+					target.ping();
+					pingedAt = now;
+					delay = Math.min(delay, readTimeout > 0 ? readTimeout : pingInterval);
+				}
+				else
+					delay = Math.min(delay, pingInterval - since);
+			}
+		}
+		if (delay != Long.MAX_VALUE && !stopped)
+			wheel.schedule(this, delay);
+	}
+
+	/**
+	 * Disconnects the client
+	 * @param reason
+	 * 			Reason given to other users
+	 */
+	private void reap(String reason)
+	{
+		stopped = true;
+		reaped.increment();
+		target.timeOut(reason);
+	}
+
+	/**
+	 * Turns on TCP keepalive, with probes on the heartbeat's intervals where the platform allows,
+	 * so the kernel notices a text client which has gone and the connection's next read fails
+	 * @param sc
+	 * 			Client's channel
+	 */
+	private static void keepAlive(SocketChannel sc)
+	{
+		try
+		{
+			sc.setOption(StandardSocketOptions.SO_KEEPALIVE, true);
+			if (sc.supportedOptions().contains(ExtendedSocketOptions.TCP_KEEPIDLE))
+			{
+				int probes = 3;
+				int interval = (int) Math.max(TimeUnit.NANOSECONDS.toSeconds(readTimeout > 0 ? readTimeout : pingInterval) / probes, 1);
+				sc.setOption(ExtendedSocketOptions.TCP_KEEPIDLE, (int) Math.max(TimeUnit.NANOSECONDS.toSeconds(pingInterval), 1));
+				sc.setOption(ExtendedSocketOptions.TCP_KEEPINTERVAL, interval);
+				sc.setOption(ExtendedSocketOptions.TCP_KEEPCOUNT, probes);
+			}
+		} catch (IOException e)
+		{
+			// Keepalive is a best effort, the idle timeout still applies
+		} catch (UnsupportedOperationException e)
+		{
+			// Likewise
+		}
+	}
+}
@@ -0,0 +1,208 @@
+/**
+ * Version 1.0
+ * Author: MK2022
+ * Date: 18/10/2026
+ *
+ * The LatencyHistogram class counts durations in log-linear buckets, in the style of an HDR histogram:
+ * values below 128 are exact, and above that each power of two is split into 64 buckets, so percentiles are within about 1.6%.
+ * Recording is a single atomic increment with no allocation, so it can be done from any number of threads on the hot path
+ */
+import java.util.concurrent.atomic.AtomicLong; // Necessary imports
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+
+public class LatencyHistogram
+{
+
+	private static final int EXACT = 128; // Values below this have a bucket each
+	private static final int SUB_BUCKETS = 64; // Buckets per power of two above that
+	private static final int BUCKETS = EXACT + 57 * SUB_BUCKETS; // Enough for any positive long
+
+	private AtomicLongArray counts; // Count per bucket
+	private LongAdder count; // Values recorded
+	private LongAdder total; // Sum of values recorded, for the mean
+	private AtomicLong max; // Largest value recorded
+
+	/**
+	 * Constructor for LatencyHistogram
+	 */
+	public LatencyHistogram()
+	{
+		counts = new AtomicLongArray(BUCKETS);
+		count = new LongAdder();
+		total = new LongAdder();
+		max = new AtomicLong();
+	}
+
+	/**
+	 * @param value
+	 * 			Value to find the bucket of
+	 * @return
+	 * 			Index of the bucket counting the value
+	 */
+	private static int index(long value)
+	{
+		if (value < EXACT)
+			return (int) Math.max(value, 0);
+		int shift = 63 - Long.numberOfLeadingZeros(value) - 6; // Keeps the top 7 bits, 64 to 127
+		return EXACT + (shift - 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+	}
+
+	/**
+	 * @param index
+	 * 			Index of a bucket
+	 * @return
+	 * 			Largest value counted by the bucket
+	 */
+	private static long highest(int index)
+	{
+		if (index < EXACT)
+			return index;
+		int shift = (index - EXACT) / SUB_BUCKETS + 1;
+		long mantissa = (index - EXACT) % SUB_BUCKETS + SUB_BUCKETS;
+		return ((mantissa + 1) << shift) - 1;
+	}
+
+	/**
+	 * Records a value
+	 * @param value
+	 * 			Value, usually in nanoseconds
+	 */
+	public void record(long value)
+	{
+		counts.incrementAndGet(index(value));
+		count.increment();
+		total.add(value);
+		long current;
+		while (value > (current = max.get()) && !max.compareAndSet(current, value))
+		{
+			// Another thread raised the maximum, check again
+		}
+	}
+
+	/**
+	 * Adds all values recorded by another histogram to this one
+	 * @param other
+	 * 			Histogram to add
+	 */
+	public void add(LatencyHistogram other)
+	{
+		for (int i = 0; i < BUCKETS; i++)
+		{
+			long n = other.counts.get(i);
+			if (n != 0)
+				counts.addAndGet(i, n);
+		}
+		count.add(other.count.sum());
+		total.add(other.total.sum());
+		long otherMax = other.max.get();
+		long current;
+		while (otherMax > (current = max.get()) && !max.compareAndSet(current, otherMax))
+		{
+			// Another thread raised the maximum, check again
+		}
+	}
+
+	/**
+	 * @param percentile
+	 * 			Percentile wanted, from 0 to 100
+	 * @return
+	 * 			Value below which the given percentage of recorded values fall, 0 if nothing was recorded
+	 */
+	public long getPercentile(double percentile)
+	{
+		long n = count.sum();
+		if (n == 0)
+			return 0;
+		long target = Math.max((long) Math.ceil(n * percentile / 100.0), 1);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++)
+		{
+			seen += counts.get(i);
+			if (seen >= target)
+				return Math.min(highest(i), max.get());
+		}
+		return max.get();
+	}
+
+	/**
+	 * @return
+	 * 			Number of values recorded
+	 */
+	public long getCount()
+	{
+		return count.sum();
+	}
+
+	/**
+	 * @return
+	 * 			Mean of the values recorded, 0 if nothing was recorded
+	 */
+	public double getMean()
+	{
+		long n = count.sum();
+		return n == 0 ? 0 : total.sum() / (double) n;
+	}
+
+	/**
+	 * @return
+	 * 			Largest value recorded
+	 */
+	public long getMax()
+	{
+		return max.get();
+	}
+
+	/**
+	 * Clears every value recorded
+	 */
+	public void reset()
+	{
+		for (int i = 0; i < BUCKETS; i++)
+			counts.set(i, 0);
+		count.reset();
+		total.reset();
+		max.set(0);
+	}
+
+	/**
+	 * Lists the recorded values at percentiles which halve the distance to 100% at each step, as HdrHistogram prints its distribution
+	 * @param scale
+	 * 			Divisor for the values, 1000 to print nanoseconds as microseconds
+	 * @return
+	 * 			Table of value, percentile, number of values at or below it and 1/(1-percentile), one line per step
+	 */
+	public String distribution(double scale)
+	{
+		StringBuilder table = new StringBuilder(String.format("%12s %14s %12s %14s%n", "Value", "Percentile", "TotalCount", "1/(1-Percentile)"));
+		long n = count.sum();
+		if (n == 0)
+			return table.toString();
+		for (double remaining = 100; ; remaining /= 2)
+		{
+			double percentile = 100 - remaining;
+			long value = getPercentile(percentile);
+			long atOrBelow = 0;
+			for (int i = 0; i <= index(value); i++)
+				atOrBelow += counts.get(i);
+			if (atOrBelow >= n || remaining * n < 100) // Beyond the last value, or finer than one value in the count
+				break;
+			table.append(String.format("%12.1f %14.6f %12d %14.2f%n", value / scale, percentile / 100, atOrBelow, 100 / remaining));
+		}
+		table.append(String.format("%12.1f %14.6f %12d %14s%n", getMax() / scale, 1.0, n, "inf"));
+		return table.toString();
+	}
+
+	/**
+	 * Describes the recorded values as microseconds
+	 * @return
+	 * 			Count, mean and the main percentiles
+	 */
+	public String summary()
+	{
+		return String.format("count=%d mean=%.1fus p50=%.1fus p90=%.1fus p99=%.1fus p99.9=%.1fus max=%.1fus", getCount(),
+			getMean() / 1000, getPercentile(50) / 1000.0, getPercentile(90) / 1000.0, getPercentile(99) / 1000.0,
+			getPercentile(99.9) / 1000.0, getMax() / 1000.0);
+	}
+}
@@ -0,0 +1,491 @@
+/**
+ * Version 1.0
+ * Author: MK2022
+ * Date: 18/10/2026
+ *
+ * The LoadGenerator class simulates many chat clients against a ChatServer, for capacity planning.
+ * Each simulated client speaks the text protocol ChatClient falls back to: it sends its username, joins its room, sends messages at the
+ * configured rate and says "Disconnect me" at the end. Clients are shared between a few event loop threads, each with its own Selector,
+ * so thousands of them need only a handful of threads.
+ * Every message carries the time it was due to be sent, and every client receiving it records the time since then in a LatencyHistogram,
+ * so a generator which falls behind shows the delay instead of hiding it. Throughput, errors and latency are reported as the run goes,
+ * and the full percentile distribution at the end.
+ * Run with: java LoadGenerator [-address <host>] [-port <port>] [-clients <n>] [-connectrate <per second>] [-msgrate <per client per second>]
+ * [-msgsize <bytes>] [-rooms <n>] [-distribution uniform|zipf] [-warmup <seconds>] [-duration <seconds>] [-report <seconds>] [-threads <n>],
+ * or through ChatClient with -load followed by the same options
+ */
+import java.io.IOException; // Necessary imports
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+
+public class LoadGenerator
+{
+
+	private static String address = "localhost";
+	private static int port = 14001;
+	private static int clients = 1000; // Simulated clients
+	private static double connectRate = 200; // Connections opened per second, 0 for as fast as possible
+	private static double messageRate = 1; // Messages per client per second, 0 for clients which only listen
+	private static int messageSize = 100; // Bytes per message, before the server adds the sender
+	private static int rooms = 1; // Rooms the clients are spread over, the lobby being the first
+	private static boolean zipf; // Whether the first rooms are busier, room i having weight 1/(i+1), rather than all the same
+	private static long warmupSeconds = 5; // Time after every client is connected before latency counts
+	private static long durationSeconds = 30; // Time measured after the warmup
+	private static long reportSeconds = 5; // Time between progress reports
+	private static int threads = Runtime.getRuntime().availableProcessors(); // Event loops
+
+	private static volatile boolean running = true;
+	private static LatencyHistogram latency = new LatencyHistogram(); // Send to receive time over the measured run
+	private static LatencyHistogram recent = new LatencyHistogram(); // Send to receive time since the last report
+	private static AtomicInteger connected = new AtomicInteger(); // Clients connected now
+	private static LongAdder sent = new LongAdder();
+	private static LongAdder received = new LongAdder(); // Timestamped messages received, one per recipient
+	private static LongAdder connectErrors = new LongAdder(); // Connections which could not be opened
+	private static LongAdder closedErrors = new LongAdder(); // Connections the server closed
+	private static LongAdder backlogErrors = new LongAdder(); // Messages not sent because the previous one was still being written
+	private static LongAdder rejectedErrors = new LongAdder(); // Notices from the server that a message or client was refused or skipped
+
+	/**
+	 * Main method, connects the clients at the connect rate, runs the load and prints reports
+	 * @param args
+	 * 			Options, given as option and value pairs
+	 * @throws Exception
+	 * 			If the event loops cannot be started
+	 */
+	public static void main(String[] args) throws Exception
+	{
+		configure(args);
+		EventLoop[] loops = new EventLoop[threads];
+		for (int i = 0; i < threads; i++)
+		{
+			loops[i] = new EventLoop();
+			new Thread(loops[i], "load-" + i).start();
+		}
+		Thread reporter = new Thread(new Runnable()
+		{
+			public void run()
+			{
+				report();
+			}
+		}, "load-report");
+		reporter.setDaemon(true);
+		reporter.start();
+
+		System.out.println("Connecting " + clients + " clients to " + address + ":" + port + " over " + rooms + (rooms == 1 ? " room" : " rooms"));
+		long start = System.nanoTime();
+		Random random = new Random(42); // Same rooms on every run
+		for (int i = 0; i < clients; i++)
+		{
+			if (connectRate > 0)
+			{
+				long due = start + (long) (i * 1e9 / connectRate);
+				while (System.nanoTime() < due)
+					LockSupport.parkNanos(due - System.nanoTime());
+			}
+			try
+			{
+				SocketChannel channel = SocketChannel.open(new InetSocketAddress(address, port));
+				channel.configureBlocking(false);
+				loops[i % threads].add(new Client(channel, "load" + i, room(random)));
+				connected.incrementAndGet();
+			} catch (IOException e)
+			{
+				connectErrors.increment();
+			}
+		}
+		System.out.println("Connected " + connected.get() + " clients in " + (System.nanoTime() - start) / 1000000 + " ms, warming up for " + warmupSeconds + " s");
+		Thread.sleep(warmupSeconds * 1000);
+		latency.reset();
+		long sentBefore = sent.sum();
+		long receivedBefore = received.sum();
+		long measured = System.nanoTime();
+		Thread.sleep(durationSeconds * 1000);
+		double seconds = (System.nanoTime() - measured) / 1e9;
+		running = false;
+		for (EventLoop loop : loops)
+			loop.wakeup();
+		Thread.sleep(500); // Clients say goodbye
+
+		System.out.println();
+		System.out.printf("Measured %.1f s: sent %.1f msg/s, received %.1f msg/s%n", seconds, (sent.sum() - sentBefore) / seconds,
+			(received.sum() - receivedBefore) / seconds);
+		System.out.println("Errors: " + errors());
+		System.out.println("Send to receive latency, us: " + latency.summary());
+		System.out.print(latency.distribution(1000));
+		System.exit(0);
+	}
+
+	/**
+	 * Reads the options, ignoring options it does not know
+	 */
+	private static void configure(String[] args)
+	{
+		for (int i = 0; i + 1 < args.length; i += 2)
+		{
+			String value = args[i + 1];
+			if (args[i].equalsIgnoreCase("-address"))
+				address = value;
+			else if (args[i].equalsIgnoreCase("-port"))
+				port = Integer.parseInt(value);
+			else if (args[i].equalsIgnoreCase("-clients"))
+				clients = Integer.parseInt(value);
+			else if (args[i].equalsIgnoreCase("-connectrate"))
+				connectRate = Double.parseDouble(value);
+			else if (args[i].equalsIgnoreCase("-msgrate"))
+				messageRate = Double.parseDouble(value);
+			else if (args[i].equalsIgnoreCase("-msgsize"))
+				messageSize = Integer.parseInt(value);
+			else if (args[i].equalsIgnoreCase("-rooms"))
+				rooms = Math.max(Integer.parseInt(value), 1);
+			else if (args[i].equalsIgnoreCase("-distribution")) // uniform or zipf
+				zipf = value.equalsIgnoreCase("zipf");
+			else if (args[i].equalsIgnoreCase("-warmup"))
+				warmupSeconds = Long.parseLong(value);
+			else if (args[i].equalsIgnoreCase("-duration"))
+				durationSeconds = Long.parseLong(value);
+			else if (args[i].equalsIgnoreCase("-report"))
+				reportSeconds = Math.max(Long.parseLong(value), 1);
+			else if (args[i].equalsIgnoreCase("-threads"))
+				threads = Math.max(Integer.parseInt(value), 1);
+		}
+	}
+
+	/**
+	 * Picks a client's room from the room distribution
+	 * @return
+	 * 			Room name, null for the lobby
+	 */
+	private static String room(Random random)
+	{
+		int room = random.nextInt(rooms);
+		if (zipf)
+		{
+			double total = 0;
+			for (int i = 0; i < rooms; i++)
+				total += 1.0 / (i + 1);
+			double pick = random.nextDouble() * total;
+			for (room = 0; room < rooms - 1 && (pick -= 1.0 / (room + 1)) > 0; room++)
+			{
+				// Finds the room the pick falls in
+			}
+		}
+		return room == 0 ? null : "load" + room;
+	}
+
+	/**
+	 * Prints throughput, errors and latency since the last report until the run ends
+	 */
+	private static void report()
+	{
+		long start = System.nanoTime();
+		long lastSent = 0;
+		long lastReceived = 0;
+		while (running)
+		{
+			try
+			{
+				Thread.sleep(reportSeconds * 1000);
+			} catch (InterruptedException e)
+			{
+				return;
+			}
+			long nowSent = sent.sum();
+			long nowReceived = received.sum();
+			System.out.printf("[%4ds] connected=%d sent=%.0f/s received=%.0f/s errors: %s | p50=%.0fus p99=%.0fus max=%.0fus%n",
+				(System.nanoTime() - start) / 1000000000L, connected.get(), (nowSent - lastSent) / (double) reportSeconds,
+				(nowReceived - lastReceived) / (double) reportSeconds, errors(), recent.getPercentile(50) / 1000.0,
+				recent.getPercentile(99) / 1000.0, recent.getMax() / 1000.0);
+			recent.reset();
+			lastSent = nowSent;
+			lastReceived = nowReceived;
+		}
+	}
+
+	/**
+	 * @return
+	 * 			Error counts
+	 */
+	private static String errors()
+	{
+		return "connect=" + connectErrors.sum() + " closed=" + closedErrors.sum() + " backlog=" + backlogErrors.sum() + " rejected=" + rejectedErrors.sum();
+	}
+
+	/**
+	 * One simulated client, used only by the event loop it belongs to
+	 */
+	private static class Client
+	{
+		private SocketChannel channel;
+		private String name; // Username
+		private String room; // Room joined, null for the lobby
+		private ByteBuffer in = ByteBuffer.allocate(8192); // Bytes read from the server, in read mode between reads
+		private FrameDecoder decoder = new FrameDecoder(); // Finds lines in the read buffer
+		private ByteBuffer out; // Bytes not yet written, null if everything has been
+		private long joined; // System.nanoTime once the client was in its room, older messages being replayed history
+		private long nextSend; // System.nanoTime the next message is due
+		private SelectionKey key;
+
+		private Client(SocketChannel channel, String name, String room)
+		{
+			this.channel = channel;
+			this.name = name;
+			this.room = room;
+			in.flip(); // Nothing read yet
+		}
+	}
+
+	/**
+	 * Thread running a share of the clients: reading what the server sends them and sending their messages when due
+	 */
+	private static class EventLoop implements Runnable
+	{
+		private Selector selector;
+		private ConcurrentLinkedQueue<Client> added = new ConcurrentLinkedQueue<Client>(); // Clients handed over by the connecting thread
+		private ArrayList<Client> clients = new ArrayList<Client>();
+		private PriorityQueue<Client> due = new PriorityQueue<Client>(11, new Comparator<Client>() // Senders by time of their next message
+		{
+			public int compare(Client a, Client b)
+			{
+				return Long.compare(a.nextSend, b.nextSend);
+			}
+		});
+		private Random random = new Random();
+		private StringBuilder padding = new StringBuilder(); // Fills each message to the message size
+
+		private EventLoop() throws IOException
+		{
+			selector = Selector.open();
+			while (padding.length() < messageSize)
+				padding.append("x");
+		}
+
+		/**
+		 * Hands a connected client to this loop
+		 */
+		private void add(Client client)
+		{
+			added.add(client);
+			selector.wakeup();
+		}
+
+		/**
+		 * Wakes the loop, so it notices the run has ended
+		 */
+		private void wakeup()
+		{
+			selector.wakeup();
+		}
+
+		public void run()
+		{
+			try
+			{
+				while (running)
+				{
+					long wait = due.isEmpty() ? 100 : Math.max((due.peek().nextSend - System.nanoTime()) / 1000000, 0);
+					if (wait == 0)
+						selector.selectNow();
+					else
+						selector.select(wait);
+					Client client;
+					while ((client = added.poll()) != null)
+						start(client);
+					for (SelectionKey key : selector.selectedKeys())
+						handle(key);
+					selector.selectedKeys().clear();
+					long now = System.nanoTime();
+					while (!due.isEmpty() && due.peek().nextSend <= now)
+					{
+						client = due.poll();
+						send(client, client.nextSend);
+						client.nextSend += (long) (1e9 / messageRate);
+						if (client.channel.isOpen())
+							due.add(client);
+					}
+				}
+				for (Client client : clients)
+					stop(client);
+			} catch (IOException e)
+			{
+				e.printStackTrace();
+			}
+		}
+
+		/**
+		 * Sends a client's username, joins its room and schedules its first message at a random point in its first interval
+		 */
+		private void start(Client client) throws IOException
+		{
+			client.key = client.channel.register(selector, SelectionKey.OP_READ, client);
+			clients.add(client);
+			write(client, client.name);
+			if (client.room != null)
+				write(client, "/join " + client.room);
+			client.joined = System.nanoTime();
+			if (messageRate > 0)
+			{
+				client.nextSend = client.joined + (long) (random.nextDouble() * 1e9 / messageRate);
+				due.add(client);
+			}
+		}
+
+		/**
+		 * Says goodbye to the server and closes the client's connection
+		 */
+		private void stop(Client client)
+		{
+			try
+			{
+				if (client.channel.isOpen())
+				{
+					client.out = null;
+					write(client, "Disconnect me");
+				}
+				client.channel.close();
+			} catch (IOException e)
+			{
+				// Closing anyway
+			}
+		}
+
+		/**
+		 * Sends one message, timestamped with when it was due rather than when it could be sent
+		 */
+		private void send(Client client, long due) throws IOException
+		{
+			if (!client.channel.isOpen())
+				return;
+			if (client.out != null)
+			{
+				backlogErrors.increment(); // The socket has not taken the last message yet
+				return;
+			}
+			String stamp = "t" + due + " ";
+			write(client, stamp + padding.substring(0, Math.max(messageSize - stamp.length(), 0)));
+			sent.increment();
+		}
+
+		/**
+		 * Writes a line, keeping whatever the socket does not take for when it is writable again
+		 */
+		private void write(Client client, String line) throws IOException
+		{
+			ByteBuffer bytes = ByteBuffer.wrap((line + "\n").getBytes(SharedBuffer.CHARSET)); // Text mode, so the server's charset
+			if (client.out != null)
+			{
+				ByteBuffer joined = ByteBuffer.allocate(client.out.remaining() + bytes.remaining());
+				client.out = joined.put(client.out).put(bytes).flip();
+				return;
+			}
+			try
+			{
+				client.channel.write(bytes);
+			} catch (IOException e)
+			{
+				close(client);
+				return;
+			}
+			if (bytes.hasRemaining())
+			{
+				client.out = bytes;
+				client.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+			}
+		}
+
+		/**
+		 * Reads from or writes to a client which is ready
+		 */
+		private void handle(SelectionKey key)
+		{
+			Client client = (Client) key.attachment();
+			try
+			{
+				if (key.isValid() && key.isWritable())
+				{
+					client.channel.write(client.out);
+					if (!client.out.hasRemaining())
+					{
+						client.out = null;
+						key.interestOps(SelectionKey.OP_READ);
+					}
+				}
+				if (key.isValid() && key.isReadable())
+				{
+					client.in = FrameDecoder.compact(client.in);
+					int n = client.channel.read(client.in);
+					client.in.flip();
+					if (n < 0)
+					{
+						close(client);
+						return;
+					}
+					while (client.decoder.next(client.in))
+						receive(client, client.decoder.getText(client.in, SharedBuffer.CHARSET));
+				}
+			} catch (IOException e)
+			{
+				close(client);
+			}
+		}
+
+		/**
+		 * Records the latency of a timestamped message, or counts a notice that something was refused
+		 */
+		private void receive(Client client, String line)
+		{
+			int stamp = line.indexOf(": t");
+			if (stamp > 0)
+			{
+				int end = line.indexOf(' ', stamp + 3);
+				String time = line.substring(stamp + 3, end < 0 ? line.length() : end);
+				if (time.length() > 0 && ChatClient.isInt(time))
+				{
+					long sentAt = Long.parseLong(time);
+					if (sentAt >= client.joined) // Older ones are the room's history being replayed
+					{
+						long now = System.nanoTime();
+						latency.record(now - sentAt);
+						recent.record(now - sentAt);
+						received.increment();
+					}
+					return;
+				}
+			}
+			if (line.equals(RateLimiter.DROP_NOTICE) || line.equals(RateLimiter.DISCONNECT_NOTICE) || line.equals(RateLimiter.BUSY_NOTICE)
+				|| line.equals(ConnectionRegistry.NAME_TAKEN_NOTICE) || line.endsWith("messages were skipped because you fell behind]"))
+				rejectedErrors.increment();
+		}
+
+		/**
+		 * Closes a client the server has dropped
+		 */
+		private void close(Client client)
+		{
+			if (!client.channel.isOpen())
+				return;
+			try
+			{
+				client.channel.close();
+			} catch (IOException e)
+			{
+				// Closing anyway
+			}
+			due.remove(client);
+			connected.decrementAndGet();
+			if (running)
+				closedErrors.increment();
+		}
+	}
+}
@@ -0,0 +1,465 @@
+/**
+ * Version 1.0
+ * Author: MK2022
+ * Date: 18/10/2026
+ * 
+ * The LogSegment class is one file of the MessageLog, named after the offset of its first record and memory mapped.
+ * The active segment is created at its full size and filled by appends; once full it is sealed: forced to disk, trimmed to the bytes used,
+ * and its sparse index saved beside it, so recovery can load the index instead of reading every record.
+ * Each record is its length, a CRC32 of the rest, its offset and time, then the room, sender and text as UTF-8.
+ * A length of 0, or a record whose CRC does not match, marks the end of the data
+ */
+import java.io.BufferedInputStream; // Necessary imports
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+
+public class LogSegment
+{
+	
+	public static final String SUFFIX = ".log";
+	public static final String INDEX_SUFFIX = ".index";
+	private static final int HEADER = 4 + 4 + 8 + 8; // Length, CRC, offset and time
+	private static final int INDEX_INTERVAL = 4096; // Bytes of records between index entries
+	
+	private File file; // Segment file
+	private long baseOffset; // Offset of the first record
+	private volatile MappedByteBuffer map; // Mapping of the file, read-write while active, null once sealed until it is read
+	private int end; // Bytes of records
+	private long nextOffset; // Offset the next record appended would have
+	private long[] indexOffsets = new long[16]; // Offset of each indexed record
+	private int[] indexPositions = new int[16]; // Position of each indexed record
+	private int indexCount;
+	private volatile boolean sealed;
+	
+	/**
+	 * Constructor for LogSegment, the file is not opened until create, recover or loadIndex is called
+	 * @param file
+	 * 			Segment file
+	 */
+	public LogSegment(File file)
+	{
+		this.file = file;
+		baseOffset = Long.parseLong(file.getName().substring(0, file.getName().length() - SUFFIX.length()));
+		nextOffset = baseOffset;
+	}
+	
+	/**
+	 * @param directory
+	 * 			Directory of the log
+	 * @param baseOffset
+	 * 			Offset of the first record
+	 * @return
+	 * 			File of the segment starting at that offset
+	 */
+	public static File fileFor(File directory, long baseOffset)
+	{
+		return new File(directory, String.format("%020d", baseOffset) + SUFFIX);
+	}
+	
+	/**
+	 * @return
+	 * 			Offset of the first record
+	 */
+	public long getBaseOffset()
+	{
+		return baseOffset;
+	}
+	
+	/**
+	 * @return
+	 * 			Offset the next record appended would have
+	 */
+	public long getNextOffset()
+	{
+		return nextOffset;
+	}
+	
+	/**
+	 * @return
+	 * 			Bytes of records
+	 */
+	public int getEnd()
+	{
+		return end;
+	}
+	
+	/**
+	 * @return
+	 * 			Segment file
+	 */
+	public File getFile()
+	{
+		return file;
+	}
+	
+	/**
+	 * Maps the file read-write at the given size, extending it if needed, so it can be appended to
+	 * @param size
+	 * 			Size of the segment in bytes
+	 * @throws IOException
+	 * 			If the file cannot be mapped
+	 */
+	public void openForAppend(int size) throws IOException
+	{
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE))
+		{
+			map = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(size, channel.size())); // The mapping stays valid once the channel is closed
+		}
+		sealed = false;
+		new File(file.getParentFile(), indexName()).delete(); // Out of date as soon as anything is appended
+	}
+	
+	/**
+	 * Appends a record if it fits
+	 * @param time
+	 * 			Time the message was sent, in milliseconds
+	 * @param room
+	 * 			Room the message was sent to
+	 * @param sender
+	 * 			Username of the sender
+	 * @param text
+	 * 			Message text
+	 * @param encoder
+	 * 			UTF-8 encoder to use
+	 * @param crc
+	 * 			CRC32 to use
+	 * @return
+	 * 			Offset of the record, or -1 if the segment is full
+	 */
+	public long append(long time, String room, String sender, String text, CharsetEncoder encoder, CRC32 crc)
+	{
+		int start = end;
+		if (start + HEADER + 4 > map.capacity())
+			return -1;
+		ByteBuffer out = map.duplicate();
+		out.position(start + HEADER);
+		if (!putString(out, room, encoder, true) || !putString(out, sender, encoder, true) || !putString(out, text, encoder, false))
+			return -1;
+		if (out.position() + 4 > map.capacity())
+			return -1; // No room left for the 0 length which ends the data
+		int length = out.position() - start - 4;
+		long offset = nextOffset;
+		map.putLong(start + 8, offset).putLong(start + 16, time);
+		crc.reset();
+		crc.update(out.limit(out.position()).position(start + 8));
+		map.putInt(start + 4, (int) crc.getValue());
+		map.putInt(start, length); // Written last, so a record is only seen once it is complete
+		if (start == 0 || start - indexPositions[indexCount - 1] >= INDEX_INTERVAL)
+			addIndex(offset, start);
+		end = start + 4 + length;
+		nextOffset++;
+		return offset;
+	}
+	
+	/**
+	 * Encodes a String into a record, led by its length as a short unless it is the last field
+	 * @return
+	 * 			False if it does not fit
+	 */
+	private static boolean putString(ByteBuffer out, String value, CharsetEncoder encoder, boolean sized)
+	{
+		int lengthAt = out.position();
+		if (sized)
+		{
+			if (out.remaining() < 2)
+				return false;
+			out.position(lengthAt + 2);
+		}
+		int start = out.position();
+		encoder.reset();
+		if (encoder.encode(CharBuffer.wrap(value), out, true).isOverflow() || encoder.flush(out).isOverflow())
+			return false;
+		if (sized)
+			out.putShort(lengthAt, (short) (out.position() - start));
+		return true;
+	}
+	
+	/**
+	 * Adds an entry to the sparse index
+	 */
+	private void addIndex(long offset, int position)
+	{
+		if (indexCount == indexOffsets.length)
+		{
+			indexOffsets = Arrays.copyOf(indexOffsets, indexCount * 2);
+			indexPositions = Arrays.copyOf(indexPositions, indexCount * 2);
+		}
+		indexOffsets[indexCount] = offset;
+		indexPositions[indexCount] = position;
+		indexCount++;
+	}
+	
+	/**
+	 * Forces appended bytes to disk
+	 * @param from
+	 * 			First byte not yet forced
+	 * @param to
+	 * 			Byte after the last to be forced
+	 */
+	public void force(int from, int to)
+	{
+		MappedByteBuffer mapped = map; // Sealing, which forces everything itself, may clear it meanwhile
+		if (to > from && mapped != null && !sealed)
+			mapped.force(from, to - from);
+	}
+	
+	/**
+	 * Reads every record from the start of the file, building the index and finding the end of the data
+	 * @param visitor
+	 * 			Told about every record found, may be null
+	 * @throws IOException
+	 * 			If the file cannot be read
+	 */
+	public void recover(MessageLog.Visitor visitor) throws IOException
+	{
+		if (map == null)
+			mapForReading();
+		indexCount = 0;
+		end = 0;
+		nextOffset = baseOffset;
+		CRC32 crc = new CRC32();
+		while (end + HEADER <= map.capacity())
+		{
+			int length = map.getInt(end);
+			if (length < HEADER - 4 || end + 4 + length > map.capacity())
+				break; // End of the data, or a record cut short
+			crc.reset();
+			crc.update(map.duplicate().limit(end + 4 + length).position(end + 8));
+			if ((int) crc.getValue() != map.getInt(end + 4) || map.getLong(end + 8) != nextOffset)
+				break; // Torn write, everything from here is discarded
+			if (end == 0 || end - indexPositions[indexCount - 1] >= INDEX_INTERVAL)
+				addIndex(nextOffset, end);
+			if (visitor != null)
+				visit(map, end, visitor);
+			end += 4 + length;
+			nextOffset++;
+		}
+		if (!sealed && end + 4 <= map.capacity())
+			map.putInt(end, 0); // Clears anything after a torn write so it is never mistaken for data
+	}
+	
+	/**
+	 * Maps the whole file read-only
+	 */
+	private void mapForReading() throws IOException
+	{
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ))
+		{
+			map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		sealed = true;
+	}
+	
+	/**
+	 * Decodes a record and tells the visitor about it
+	 */
+	private static void visit(ByteBuffer mapped, int position, MessageLog.Visitor visitor)
+	{
+		int length = mapped.getInt(position);
+		long offset = mapped.getLong(position + 8);
+		long time = mapped.getLong(position + 16);
+		int at = position + HEADER;
+		int roomLength = mapped.getShort(at) & 0xFFFF;
+		String room = decode(mapped, at + 2, roomLength);
+		at += 2 + roomLength;
+		int senderLength = mapped.getShort(at) & 0xFFFF;
+		String sender = decode(mapped, at + 2, senderLength);
+		at += 2 + senderLength;
+		visitor.record(offset, time, room, sender, decode(mapped, at, position + 4 + length - at));
+	}
+	
+	/**
+	 * @return
+	 * 			UTF-8 bytes of the mapping decoded as a String
+	 */
+	private static String decode(ByteBuffer mapped, int position, int length)
+	{
+		return Frame.CHARSET.decode(mapped.duplicate().limit(position + length).position(position)).toString();
+	}
+	
+	/**
+	 * @return
+	 * 			Whether the record at the position was sent to the room, compared without decoding it
+	 */
+	private static boolean isRoom(ByteBuffer mapped, int position, byte[] room)
+	{
+		int at = position + HEADER;
+		if ((mapped.getShort(at) & 0xFFFF) != room.length)
+			return false;
+		for (int i = 0; i < room.length; i++)
+		{
+			if (mapped.get(at + 2 + i) != room[i])
+				return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * @return
+	 * 			Offset of each record in the sparse index, in order, the first being the base offset if the segment holds any records.
+	 * 			Copied, so for the active segment it must be called under the log's lock
+	 */
+	public long[] getIndexedOffsets()
+	{
+		return Arrays.copyOf(indexOffsets, indexCount);
+	}
+	
+	/**
+	 * @return
+	 * 			Position of each record in the sparse index, matching getIndexedOffsets
+	 */
+	public int[] getIndexedPositions()
+	{
+		return Arrays.copyOf(indexPositions, indexCount);
+	}
+	
+	/**
+	 * Reads records from one in the index onwards, up to an offset
+	 * @param position
+	 * 			Position of the first record to look at, one of getIndexedPositions
+	 * @param to
+	 * 			Offset after the last record wanted
+	 * @param room
+	 * 			UTF-8 bytes of the name of the room whose records are wanted, null for every room
+	 * @param visitor
+	 * 			Told about each record
+	 * @param limit
+	 * 			Bytes of records which may be read, the end when it was looked at, so appends in progress are never read
+	 * @return
+	 * 			Number of records read
+	 * @throws IOException
+	 * 			If the segment cannot be mapped
+	 */
+	public int read(int position, long to, byte[] room, MessageLog.Visitor visitor, int limit) throws IOException
+	{
+		MappedByteBuffer mapped = map; // Sealing may clear it meanwhile, the file then holds the same records
+		if (mapped == null)
+		{
+			mapForReading();
+			mapped = map;
+		}
+		int read = 0;
+		while (position < limit && mapped.getLong(position + 8) < to)
+		{
+			if (room == null || isRoom(mapped, position, room))
+			{
+				visit(mapped, position, visitor);
+				read++;
+			}
+			position += 4 + mapped.getInt(position);
+		}
+		return read;
+	}
+	
+	/**
+	 * Seals the segment: forces it, trims the file to the records and saves the index
+	 * @throws IOException
+	 * 			If the file cannot be trimmed or the index written
+	 */
+	public void seal() throws IOException
+	{
+		map.force();
+		sealed = true;
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE))
+		{
+			channel.truncate(end);
+		} catch (IOException e)
+		{
+			// Some platforms cannot trim a mapped file, the unused space is only wasted
+		}
+		map = null; // Mapped again read-only if it is read
+		writeIndex(new File(file.getParentFile(), indexName()));
+	}
+	
+	/**
+	 * @return
+	 * 			Name of the index file
+	 */
+	private String indexName()
+	{
+		return file.getName().substring(0, file.getName().length() - SUFFIX.length()) + INDEX_SUFFIX;
+	}
+	
+	/**
+	 * Writes the index, written to a temporary file and renamed so it is never seen half written
+	 */
+	private void writeIndex(File index) throws IOException
+	{
+		File temporary = new File(index.getPath() + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary))))
+		{
+			out.writeInt(end);
+			out.writeLong(nextOffset);
+			out.writeInt(indexCount);
+			for (int i = 0; i < indexCount; i++)
+			{
+				out.writeLong(indexOffsets[i]);
+				out.writeInt(indexPositions[i]);
+			}
+		}
+		Files.move(temporary.toPath(), index.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+	
+	/**
+	 * Loads the index saved when the segment was sealed, checking it matches the file
+	 * @return
+	 * 			False if there is no usable index, and the segment must be recovered by reading it
+	 */
+	public boolean loadIndex()
+	{
+		File index = new File(file.getParentFile(), indexName());
+		if (!index.exists())
+			return false;
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(index))))
+		{
+			int savedEnd = in.readInt();
+			long savedNext = in.readLong();
+			int count = in.readInt();
+			if (savedEnd != file.length() || count < 0)
+				return false; // Written for another version of the file
+			long[] offsets = new long[Math.max(count, 1)];
+			int[] positions = new int[Math.max(count, 1)];
+			for (int i = 0; i < count; i++)
+			{
+				offsets[i] = in.readLong();
+				positions[i] = in.readInt();
+			}
+			end = savedEnd;
+			nextOffset = savedNext;
+			indexOffsets = offsets;
+			indexPositions = positions;
+			indexCount = count;
+			sealed = true;
+			return true;
+		} catch (IOException e)
+		{
+			return false;
+		}
+	}
+	
+	/**
+	 * Deletes the segment and its index
+	 */
+	public void delete()
+	{
+		map = null;
+		file.delete();
+		new File(file.getParentFile(), indexName()).delete();
+	}
+}
@@ -0,0 +1,621 @@
+/**
+ * Version 1.0
+ * Author: MK2022
+ * Date: 18/10/2026
+ * 
+ * The MessageLog class keeps every message said in a room on disk, in an append-only log of memory mapped LogSegments,
+ * so the chat survives the server stopping. Each message gets the next offset in the log.
+ * Appending only stages the message on a lock-free queue, so a room appending under its own lock never waits on another room.
+ * A flusher thread copies staged messages into the mapped active segment in the order they were staged, so each room's messages keep their order,
+ * and forces the data to disk according to the fsync policy, so many messages share one fsync and no connection ever waits for the disk.
+ * The flusher also rolls, deletes and merges segments:
+ * segments past the retention limits are deleted, and neighbouring small sealed segments are merged into one.
+ * On startup only the active segment is read, which also restores the lobby's history. Sealed segments load their saved indexes,
+ * in parallel and in the background, so a large log does not hold up accepting connections.
+ * A user asking for more of a room's messages than its RoomHistory keeps is sent them from the log, read back from its end
+ * a block of each segment's sparse index at a time, so only the blocks holding them and those after them are read.
+ * Turned on with -logdir <directory>
+ */
+import java.io.File; // Necessary imports
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+
+public class MessageLog
+{
+	
+	/**
+	 * When appended messages are forced to disk
+	 */
+	public enum FsyncPolicy
+	{
+		NONE, // Left to the operating system
+		INTERVAL, // Every -fsyncinterval milliseconds
+		EVERY // Once -fsyncevery messages have been appended
+	}
+	
+	/**
+	 * Told about each record read from the log
+	 */
+	public interface Visitor
+	{
+		/**
+		 * @param offset
+		 * 			Offset of the record
+		 * @param time
+		 * 			Time the message was sent, in milliseconds
+		 * @param room
+		 * 			Room the message was sent to
+		 * @param sender
+		 * 			Username of the sender
+		 * @param text
+		 * 			Message text
+		 */
+		void record(long offset, long time, String room, String sender, String text);
+	}
+	
+	/**
+	 * A message staged for the flusher to append
+	 */
+	private static class Staged
+	{
+		private long time; // Time the message was sent, in milliseconds
+		private String room;
+		private String sender;
+		private String text;
+		
+		private Staged(long time, String room, String sender, String text)
+		{
+			this.time = time;
+			this.room = room;
+			this.sender = sender;
+			this.text = text;
+		}
+	}
+	
+	private static final long MAINTENANCE_NANOS = 60000000000L; // Time between retention and compaction checks
+	private static final long SCAN_BYTES = 64L << 20; // Most bytes of records read back for one request for a room's messages
+	public static final int MAX_REPLAY = 1000; // Most messages a user can ask to see again from the log
+	
+	private static String directory; // Directory of the log, null if the log is off
+	private static int segmentBytes = 64 << 20; // Size of each segment
+	private static FsyncPolicy policy = FsyncPolicy.INTERVAL;
+	private static long fsyncInterval = 1000; // Milliseconds between forces under the interval policy
+	private static int fsyncEvery = 100; // Messages between forces under the every policy
+	private static long retentionBytes = 0; // Bytes of sealed segments kept, 0 for no limit
+	private static long retentionHours = 0; // Hours a sealed segment is kept, 0 for no limit
+	private static boolean compaction = true; // Whether small sealed segments are merged
+	private static long segmentHours = 24; // Hours before a segment is rolled even if not full, so time based retention can delete it
+	private static MessageLog instance; // Log of the server, null if the log is off
+	
+	private File dir;
+	private ConcurrentSkipListMap<Long, LogSegment> segments; // Every segment by base offset, the active one last
+	private LogSegment active; // Segment being appended to, guarded by lock
+	private ReentrantLock lock; // Guards the active segment and the segment list, only taken by the flusher and readers
+	private ConcurrentLinkedQueue<Staged> staged; // Messages waiting to be appended, in the order they were staged
+	private Thread flusher; // Appends staged messages and forces them to disk
+	private volatile boolean parked; // Whether the flusher is waiting, and must be woken when a message is staged
+	private int unforced; // Messages appended since the last force
+	private int forcedTo; // Bytes of the active segment already forced
+	private long forcedAt; // System.nanoTime of the last force
+	private long activeSince; // Time the active segment was opened, in milliseconds
+	private CountDownLatch loaded; // Counted down once every sealed segment has been recovered
+	private ExecutorService reader; // Reads messages back for users who ask for more than a room's history keeps
+	private CharsetEncoder encoder; // Used by appends, under lock
+	private CRC32 crc; // Used by appends, under lock
+	private volatile boolean closed;
+	
+	/**
+	 * Reads log options from the command line, ignoring options it does not know
+	 * @param args
+	 * 			Command line arguments, given as option and value pairs
+	 */
+	public static void configure(String[] args)
+	{
+		for (int i = 0; i + 1 < args.length; i += 2)
+		{
+			if (args[i].equalsIgnoreCase("-logdir"))
+				directory = args[i + 1];
+			else if (args[i].equalsIgnoreCase("-segmentmb"))
+				segmentBytes = Integer.parseInt(args[i + 1]) << 20;
+			else if (args[i].equalsIgnoreCase("-fsync")) // none, interval or every
+				policy = FsyncPolicy.valueOf(args[i + 1].toUpperCase());
+			else if (args[i].equalsIgnoreCase("-fsyncinterval"))
+				fsyncInterval = Long.parseLong(args[i + 1]);
+			else if (args[i].equalsIgnoreCase("-fsyncevery"))
+				fsyncEvery = Integer.parseInt(args[i + 1]);
+			else if (args[i].equalsIgnoreCase("-retentionmb"))
+				retentionBytes = Long.parseLong(args[i + 1]) << 20;
+			else if (args[i].equalsIgnoreCase("-retentionhours"))
+				retentionHours = Long.parseLong(args[i + 1]);
+			else if (args[i].equalsIgnoreCase("-segmenthours"))
+				segmentHours = Long.parseLong(args[i + 1]);
+			else if (args[i].equalsIgnoreCase("-compaction")) // on or off
+				compaction = args[i + 1].equalsIgnoreCase("on");
+		}
+	}
+	
+	/**
+	 * Opens the log if a directory was given, recovering what was written before
+	 * @param restore
+	 * 			Told about every message in the active segment, so recent history can be restored, may be null
+	 * @throws IOException
+	 * 			If the directory or active segment cannot be opened
+	 */
+	public static void open(Visitor restore) throws IOException
+	{
+		if (directory != null)
+			instance = new MessageLog(new File(directory), restore);
+	}
+	
+	/**
+	 * @return
+	 * 			Log of the server, or null if the log is off
+	 */
+	public static MessageLog getInstance()
+	{
+		return instance;
+	}
+	
+	/**
+	 * Constructor for MessageLog, recovering the active segment and starting the recovery of the others and the flusher thread
+	 */
+	private MessageLog(File dir, Visitor restore) throws IOException
+	{
+		this.dir = dir;
+		if (!dir.isDirectory() && !dir.mkdirs())
+			throw new IOException("Cannot create log directory " + dir);
+		segments = new ConcurrentSkipListMap<Long, LogSegment>();
+		lock = new ReentrantLock();
+		staged = new ConcurrentLinkedQueue<Staged>();
+		encoder = Frame.CHARSET.newEncoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+		crc = new CRC32();
+		
+		File[] files = dir.listFiles();
+		for (File file : files == null ? new File[0] : files)
+		{
+			if (file.getName().endsWith(LogSegment.SUFFIX))
+			{
+				LogSegment segment = new LogSegment(file);
+				segments.put(segment.getBaseOffset(), segment);
+			}
+		}
+		if (segments.isEmpty())
+			active = new LogSegment(LogSegment.fileFor(dir, 0));
+		else
+			active = segments.lastEntry().getValue();
+		active.openForAppend(segmentBytes);
+		active.recover(restore); // Only the active segment is read before the server starts
+		forcedTo = active.getEnd();
+		activeSince = System.currentTimeMillis();
+		segments.put(active.getBaseOffset(), active);
+		
+		loaded = new CountDownLatch(1);
+		reader = Executors.newSingleThreadExecutor(new ThreadFactory()
+		{
+			public Thread newThread(Runnable r)
+			{
+				Thread thread = new Thread(r, "message-log-reader");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		flusher = new Thread(new Runnable()
+		{
+			public void run()
+			{
+				recoverSealed();
+				flushLoop();
+			}
+		}, "message-log");
+		flusher.setDaemon(true);
+		flusher.start();
+	}
+	
+	/**
+	 * Recovers every sealed segment in parallel, loading its saved index or reading it if there is none,
+	 * then deletes any segment left behind by a merge which did not finish
+	 */
+	private void recoverSealed()
+	{
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(Runtime.getRuntime().availableProcessors(), 1));
+		for (final LogSegment segment : segments.headMap(active.getBaseOffset()).values())
+		{
+			pool.execute(new Runnable()
+			{
+				public void run()
+				{
+					try
+					{
+						if (!segment.loadIndex())
+							segment.recover(null);
+					} catch (IOException e)
+					{
+						e.printStackTrace();
+					}
+				}
+			});
+		}
+		pool.shutdown();
+		try
+		{
+			pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+		} catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
+		long next = -1;
+		for (LogSegment segment : new ArrayList<LogSegment>(segments.values()))
+		{
+			if (segment.getBaseOffset() < next && segment != active) // Its records were merged into the segment before it
+			{
+				segments.remove(segment.getBaseOffset(), segment);
+				segment.delete();
+			}
+			else
+				next = segment.getNextOffset();
+		}
+		loaded.countDown();
+	}
+	
+	/**
+	 * Stages a message to be appended by the flusher, never waiting. Messages staged by one thread are appended in the order it staged them
+	 * @param room
+	 * 			Room the message was sent to
+	 * @param sender
+	 * 			Username of the sender
+	 * @param text
+	 * 			Message text
+	 */
+	public void append(String room, String sender, String text)
+	{
+		if (closed)
+			return;
+		staged.offer(new Staged(System.currentTimeMillis(), room, sender, text));
+		if (parked)
+			LockSupport.unpark(flusher);
+	}
+	
+	/**
+	 * Appends every staged message to the active segment, rolling to a new segment when it is full, called while holding the lock
+	 */
+	private void drain()
+	{
+		Staged message;
+		while ((message = staged.poll()) != null)
+		{
+			try
+			{
+				long offset = active.append(message.time, message.room, message.sender, message.text, encoder, crc);
+				if (offset < 0 && active.getEnd() > 0) // Full, so the message goes at the start of a new segment
+				{
+					roll();
+					offset = active.append(message.time, message.room, message.sender, message.text, encoder, crc);
+				}
+				if (offset >= 0) // Still -1 for a message larger than a whole segment, which is not kept
+					unforced++;
+			} catch (IOException e)
+			{
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	/**
+	 * Seals the active segment and starts a new one, called while holding the lock
+	 */
+	private void roll() throws IOException
+	{
+		if (policy != FsyncPolicy.NONE)
+			forcedAt = System.nanoTime(); // Sealing forces the whole segment
+		LogSegment next = new LogSegment(LogSegment.fileFor(dir, active.getNextOffset()));
+		next.openForAppend(segmentBytes);
+		active.seal();
+		active = next;
+		segments.put(next.getBaseOffset(), next);
+		forcedTo = 0;
+		activeSince = System.currentTimeMillis();
+	}
+	
+	/**
+	 * Appends staged messages, forces them to disk according to the policy, and looks after retention and compaction, until the log is closed
+	 */
+	private void flushLoop()
+	{
+		long lastMaintenance = System.nanoTime();
+		long interval = TimeUnit.MILLISECONDS.toNanos(policy == FsyncPolicy.NONE ? 1000 : fsyncInterval); // The every policy also forces a quiet log now and then
+		forcedAt = System.nanoTime();
+		while (!closed)
+		{
+			LogSegment segment = null;
+			int from = 0;
+			int to = 0;
+			lock.lock();
+			try
+			{
+				drain();
+				boolean due = System.nanoTime() - forcedAt >= interval || (policy == FsyncPolicy.EVERY && unforced >= fsyncEvery);
+				if (due && policy != FsyncPolicy.NONE)
+				{
+					segment = active;
+					from = forcedTo;
+					to = active.getEnd();
+					forcedTo = to;
+				}
+				if (due)
+				{
+					unforced = 0;
+					forcedAt = System.nanoTime();
+				}
+			}
+			finally
+			{
+				lock.unlock();
+			}
+			if (segment != null)
+				segment.force(from, to); // Outside the lock, appends carry on meanwhile
+			if (System.nanoTime() - lastMaintenance > MAINTENANCE_NANOS)
+			{
+				lastMaintenance = System.nanoTime();
+				rollIfOld();
+				applyRetention();
+				if (compaction)
+					compact();
+			}
+			parked = true;
+			if (staged.isEmpty()) // Checked after parked is set, so a message staged meanwhile is either seen here or wakes the flusher
+				LockSupport.parkNanos(Math.max(forcedAt + interval - System.nanoTime(), 0));
+			parked = false;
+		}
+	}
+	
+	/**
+	 * Rolls the active segment if it holds messages and has been open longer than -segmenthours
+	 */
+	private void rollIfOld()
+	{
+		lock.lock();
+		try
+		{
+			if (active.getEnd() > 0 && System.currentTimeMillis() - activeSince > TimeUnit.HOURS.toMillis(segmentHours))
+				roll();
+		} catch (IOException e)
+		{
+			e.printStackTrace();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Deletes the oldest sealed segments while the log is over the retention limits
+	 */
+	private void applyRetention()
+	{
+		long sealedBytes = 0;
+		for (LogSegment segment : segments.headMap(active.getBaseOffset()).values())
+			sealedBytes += segment.getEnd();
+		long cutoff = System.currentTimeMillis() - TimeUnit.HOURS.toMillis(retentionHours);
+		for (Map.Entry<Long, LogSegment> entry : segments.headMap(active.getBaseOffset()).entrySet())
+		{
+			LogSegment segment = entry.getValue();
+			boolean tooBig = retentionBytes > 0 && sealedBytes > retentionBytes;
+			boolean tooOld = retentionHours > 0 && segment.getFile().lastModified() < cutoff;
+			if (!tooBig && !tooOld)
+				break; // Segments are in age order, so the rest are kept too
+			segments.remove(entry.getKey(), segment);
+			sealedBytes -= segment.getEnd();
+			segment.delete();
+		}
+	}
+	
+	/**
+	 * Merges neighbouring sealed segments which together fit in one segment, such as those left short by a restart.
+	 * The merged file replaces the first segment by an atomic rename, and a crash before the second is deleted is cleaned up on recovery
+	 */
+	private void compact()
+	{
+		LogSegment previous = null;
+		for (LogSegment segment : new ArrayList<LogSegment>(segments.headMap(active.getBaseOffset()).values()))
+		{
+			if (previous != null && previous.getEnd() + segment.getEnd() <= segmentBytes)
+			{
+				try
+				{
+					previous = merge(previous, segment);
+					continue;
+				} catch (IOException e)
+				{
+					e.printStackTrace();
+					return;
+				}
+			}
+			previous = segment;
+		}
+	}
+	
+	/**
+	 * Merges two neighbouring sealed segments into one
+	 * @return
+	 * 			Merged segment
+	 */
+	private LogSegment merge(LogSegment first, LogSegment second) throws IOException
+	{
+		File temporary = new File(dir, first.getFile().getName() + ".merge");
+		try (FileChannel out = FileChannel.open(temporary.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE))
+		{
+			for (LogSegment segment : new LogSegment[] {first, second})
+			{
+				try (FileChannel in = FileChannel.open(segment.getFile().toPath(), StandardOpenOption.READ))
+				{
+					long copied = 0;
+					while (copied < segment.getEnd())
+						copied += in.transferTo(copied, segment.getEnd() - copied, out);
+				}
+			}
+			out.force(true);
+		}
+		Files.move(temporary.toPath(), first.getFile().toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		LogSegment merged = new LogSegment(first.getFile());
+		merged.recover(null); // Builds the index of the merged records
+		merged.seal();
+		segments.put(merged.getBaseOffset(), merged);
+		segments.remove(second.getBaseOffset(), second);
+		second.delete();
+		return merged;
+	}
+	
+	/**
+	 * Sends a session a room's newest messages from the log, on the log's reader thread so the session's own thread never waits for the disk.
+	 * The log is read back from its end a block of the sparse index at a time, looking at no more than SCAN_BYTES of records,
+	 * and messages staged in the last moments may not have been appended yet
+	 * @param session
+	 * 			Session which asked for the messages
+	 * @param room
+	 * 			Name of the room
+	 * @param wanted
+	 * 			Number of messages wanted
+	 */
+	public void replay(final Session session, final String room, final int wanted)
+	{
+		reader.execute(new Runnable()
+		{
+			public void run()
+			{
+				try
+				{
+					ArrayList<String> lines = readBack(room, wanted);
+					if (lines.isEmpty())
+						session.send("No messages have been kept in #" + room);
+					for (String line : lines)
+						session.send(line);
+				} catch (IOException e)
+				{
+					session.send("Messages in #" + room + " could not be read: " + e.getMessage());
+				} catch (InterruptedException e)
+				{
+					Thread.currentThread().interrupt();
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Reads a room's newest messages, waiting for sealed segments to be recovered if they are needed
+	 * @param room
+	 * 			Name of the room
+	 * @param wanted
+	 * 			Number of messages wanted
+	 * @return
+	 * 			Messages as they were broadcast, sender then text, oldest first
+	 * @throws IOException
+	 * 			If a segment cannot be read
+	 * @throws InterruptedException
+	 * 			If interrupted while waiting for recovery
+	 */
+	private ArrayList<String> readBack(String room, int wanted) throws IOException, InterruptedException
+	{
+		loaded.await();
+		byte[] name = room.getBytes(Frame.CHARSET);
+		final ArrayList<String> found = new ArrayList<String>(); // Newest first
+		final ArrayList<String> block = new ArrayList<String>(); // Messages of one block, oldest first
+		MessageLog.Visitor collect = new MessageLog.Visitor()
+		{
+			public void record(long offset, long time, String room, String sender, String text)
+			{
+				block.add(sender + ": " + text);
+			}
+		};
+		long scanned = 0;
+		for (LogSegment segment : segments.descendingMap().values())
+		{
+			long[] offsets;
+			int[] positions;
+			long next;
+			int limit;
+			lock.lock();
+			try
+			{
+				offsets = segment.getIndexedOffsets(); // The index and end of the active segment change as the flusher appends
+				positions = segment.getIndexedPositions();
+				next = segment.getNextOffset();
+				limit = segment.getEnd(); // Appends beyond this are not read
+			}
+			finally
+			{
+				lock.unlock();
+			}
+			for (int i = offsets.length - 1; i >= 0 && found.size() < wanted; i--) // Newest block first
+			{
+				block.clear();
+				segment.read(positions[i], i + 1 < offsets.length ? offsets[i + 1] : next, name, collect, limit);
+				for (int j = block.size() - 1; j >= 0 && found.size() < wanted; j--)
+					found.add(block.get(j));
+				scanned += (i + 1 < positions.length ? positions[i + 1] : limit) - positions[i];
+				if (scanned >= SCAN_BYTES)
+					break;
+			}
+			if (found.size() >= wanted || scanned >= SCAN_BYTES)
+				break;
+		}
+		ArrayList<String> lines = new ArrayList<String>(found.size());
+		for (int i = found.size() - 1; i >= 0; i--)
+			lines.add(found.get(i));
+		return lines;
+	}
+	
+	/**
+	 * @return
+	 * 			Offset the next message will have
+	 */
+	public long getNextOffset()
+	{
+		lock.lock();
+		try
+		{
+			return active.getNextOffset();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Appends what is still staged, forces everything to disk and stops appending, called when the server shuts down
+	 */
+	public void close()
+	{
+		closed = true;
+		LockSupport.unpark(flusher);
+		lock.lock();
+		try
+		{
+			drain();
+			active.force(forcedTo, active.getEnd());
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+}
@@ -0,0 +1,511 @@
+/**
+ * Version 1.0
+ * Author: MK2022
+ * Date: 18/10/2026
+ *
+ * The Metrics class is the server's registry of counters, gauges and latency histograms.
+ * Counters are LongAdders, striped so connections counting at the same time do not contend, and histograms are LatencyHistograms,
+ * so recording anything is an atomic add with no allocation and can stay on in production. Gauges are read only when the metrics are.
+ * The metrics are exposed over JMX as attributes of the ChatServer:type=Metrics MBean, and with -metricsport <port> as plain text
+ * in the Prometheus exposition format at http://<host>:<port>/metrics, on 127.0.0.1 unless -metricshost says otherwise
+ */
+import com.sun.net.httpserver.HttpExchange; // Necessary imports
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+
+public class Metrics implements DynamicMBean
+{
+
+	/**
+	 * Value read when the metrics are, for things the server already keeps track of
+	 */
+	public interface Gauge
+	{
+		/**
+		 * @return
+		 * 			Current value
+		 */
+		long value();
+	}
+
+	private static final String[] QUANTILES = {"0.5", "0.9", "0.99", "0.999"};
+
+	private static CopyOnWriteArrayList<Metric> metrics = new CopyOnWriteArrayList<Metric>(); // Every metric, in the order registered
+	private static int port; // Port of the scrape endpoint, 0 if it is off
+	private static String host = "127.0.0.1"; // Address the scrape endpoint listens on
+	private static boolean jmx = true; // Whether the metrics are registered with the platform MBean server
+	private static HttpServer server; // Scrape endpoint, null if it is off
+
+	public static final LongAdder ACCEPTS = counter("chat_accepts_total", "Connections accepted");
+	public static final LongAdder ACCEPTS_REFUSED = counter("chat_accepts_refused_total", "Connections refused by the connection limits or the accept rate limit");
+	public static final LongAdder MESSAGES_IN = counter("chat_messages_in_total", "Messages and commands received from clients");
+	public static final LongAdder BYTES_IN = counter("chat_bytes_in_total", "Bytes read from clients");
+	public static final LongAdder BYTES_OUT = counter("chat_bytes_out_total", "Bytes written to clients and other nodes");
+	public static final LatencyHistogram HANDLE = histogram("chat_ingress_to_broadcast_seconds",
+		"Time from a message being read to it being queued for every recipient, rate limit delays included");
+	public static final LatencyHistogram WRITE = histogram("chat_write_seconds", "Time taken by each write to a recipient's socket");
+	public static final LongAdder TLS_HANDSHAKES = counter("chat_tls_handshakes_total", "TLS handshakes completed, resumed ones included");
+	public static final LongAdder TLS_RESUMED = counter("chat_tls_resumed_total", "TLS handshakes which resumed an earlier session rather than agreeing a new one");
+	public static final LongAdder TLS_FAILURES = counter("chat_tls_failures_total", "TLS handshakes and records which failed");
+	public static final LatencyHistogram TLS_HANDSHAKE = histogram("chat_tls_handshake_seconds",
+		"Time from a TLS connection being set up to its handshake finishing, network round trips included");
+	public static final LongAdder RESUMES = counter("chat_resumes_total", "Clients under reliable delivery sent the room messages after their position, on reconnecting or finding a gap");
+	public static final LongAdder RESENT = counter("chat_resent_messages_total", "Room messages sent again to resuming clients");
+	public static final LongAdder RESUME_LOST = counter("chat_resume_lost_total", "Room messages resuming clients had missed which were no longer in the history");
+
+	static
+	{
+		counter("chat_messages_out_total", "Messages written to recipients, one per recipient", new Gauge()
+		{
+			public long value()
+			{
+				return WriteBatch.getBuffersWritten();
+			}
+		});
+		counter("chat_writes_total", "Write calls, each carrying one or more messages", new Gauge()
+		{
+			public long value()
+			{
+				return WriteBatch.getWrites();
+			}
+		});
+		gauge("chat_connections", "Clients connected", new Gauge()
+		{
+			public long value()
+			{
+				return ConnectionRegistry.getInstance().size();
+			}
+		});
+		gauge("chat_connections_open", "Connections admitted and not yet closed, including those yet to send a user ID", new Gauge()
+		{
+			public long value()
+			{
+				return Admission.getOpen();
+			}
+		});
+		gauge("chat_heartbeats", "Connections watched for timeouts on the timing wheel", new Gauge()
+		{
+			public long value()
+			{
+				return Heartbeat.getWatched();
+			}
+		});
+		counter("chat_reaped_total", "Clients disconnected for not sending a user ID, not answering a ping or being idle", new Gauge()
+		{
+			public long value()
+			{
+				return Heartbeat.getReaped();
+			}
+		});
+		gauge("chat_buffer_pool_borrowed_bytes", "Bytes of pooled direct buffers in use", new Gauge()
+		{
+			public long value()
+			{
+				return BufferPool.getBorrowedBytes();
+			}
+		});
+		gauge("chat_buffer_pool_free_bytes", "Bytes of pooled direct buffers free for reuse", new Gauge()
+		{
+			public long value()
+			{
+				return BufferPool.getFreeBytes();
+			}
+		});
+		gauge("chat_rooms", "Rooms open", new Gauge()
+		{
+			public long value()
+			{
+				return ChatRouter.getInstance().getRoomCount();
+			}
+		});
+		gauge("chat_queue_depth", "Messages waiting in every client's outbound queue", new Gauge()
+		{
+			public long value()
+			{
+				long depth = 0;
+				for (Session session : ConnectionRegistry.getInstance())
+					depth += session.getQueue().getDepth();
+				return depth;
+			}
+		});
+		gauge("chat_queue_depth_max", "Messages waiting in the longest outbound queue", new Gauge()
+		{
+			public long value()
+			{
+				long max = 0;
+				for (Session session : ConnectionRegistry.getInstance())
+					max = Math.max(max, session.getQueue().getDepth());
+				return max;
+			}
+		});
+		gauge("chat_queue_bytes", "Bytes waiting in every client's outbound queue", new Gauge()
+		{
+			public long value()
+			{
+				long bytes = 0;
+				for (Session session : ConnectionRegistry.getInstance())
+					bytes += session.getQueue().getBytes();
+				return bytes;
+			}
+		});
+		gauge("chat_unacked_messages", "Room messages sent to clients under reliable delivery and not yet acknowledged", new Gauge()
+		{
+			public long value()
+			{
+				long unacked = 0;
+				for (Session session : ConnectionRegistry.getInstance())
+				{
+					Room room = session.getRoom();
+					if (room != null && (session.getFormat() & ChatMessage.SEQUENCED) != 0)
+						unacked += Math.max(room.getSequence() - session.getQueue().getAcknowledged(), 0);
+				}
+				return unacked;
+			}
+		});
+		gauge("chat_slow_clients", "Clients past their queue's high watermark", new Gauge()
+		{
+			public long value()
+			{
+				long slow = 0;
+				for (Session session : ConnectionRegistry.getInstance())
+					slow += session.getQueue().isSlow() ? 1 : 0;
+				return slow;
+			}
+		});
+		counter("chat_log_dropped_total", "Lines of server output dropped because the log could not keep up", new Gauge()
+		{
+			public long value()
+			{
+				return ServerLog.getDropped();
+			}
+		});
+		gauge("chat_log_queue", "Lines of server output waiting to be written", new Gauge()
+		{
+			public long value()
+			{
+				return ServerLog.getQueued();
+			}
+		});
+		counter("chat_compression_bytes_in_total", "Bytes given to the compressor", new Gauge()
+		{
+			public long value()
+			{
+				return Compression.getBytesIn();
+			}
+		});
+		counter("chat_compression_bytes_out_total", "Bytes the compressor produced", new Gauge()
+		{
+			public long value()
+			{
+				return Compression.getBytesOut();
+			}
+		});
+	}
+
+	/**
+	 * One registered metric
+	 */
+	private static class Metric
+	{
+		private String name;
+		private String help; // Description
+		private String type; // "counter", "gauge" or "summary"
+		private Object source; // LongAdder, Gauge or LatencyHistogram
+
+		private Metric(String name, String help, String type, Object source)
+		{
+			this.name = name;
+			this.help = help;
+			this.type = type;
+			this.source = source;
+		}
+
+		/**
+		 * @return
+		 * 			Value of a counter or gauge
+		 */
+		private long value()
+		{
+			return source instanceof LongAdder ? ((LongAdder) source).sum() : ((Gauge) source).value();
+		}
+	}
+
+	/**
+	 * Constructor for Metrics, the MBean exposing the registry
+	 */
+	private Metrics()
+	{
+	}
+
+	/**
+	 * Reads metrics options from the command line, ignoring options it does not know
+	 * @param args
+	 * 			Command line arguments, given as option and value pairs
+	 */
+	public static void configure(String[] args)
+	{
+		for (int i = 0; i + 1 < args.length; i += 2)
+		{
+			if (args[i].equalsIgnoreCase("-metricsport") && ChatClient.isInt(args[i + 1]))
+				port = Integer.parseInt(args[i + 1]);
+			else if (args[i].equalsIgnoreCase("-metricshost"))
+				host = args[i + 1];
+			else if (args[i].equalsIgnoreCase("-jmx")) // on or off
+				jmx = args[i + 1].equalsIgnoreCase("on");
+		}
+	}
+
+	/**
+	 * Registers the MBean and starts the scrape endpoint, as configured
+	 * @throws IOException
+	 * 			If the scrape endpoint's port cannot be bound
+	 */
+	public static void start() throws IOException
+	{
+		if (jmx)
+		{
+			try
+			{
+				ManagementFactory.getPlatformMBeanServer().registerMBean(new Metrics(), new ObjectName("ChatServer:type=Metrics"));
+			} catch (JMException e)
+			{
+				ServerLog.write("Metrics could not be registered with JMX: " + e.getMessage());
+			}
+		}
+		if (port != 0 && server == null)
+		{
+			server = HttpServer.create(new InetSocketAddress(host, port), 0);
+			server.createContext("/metrics", new HttpHandler()
+			{
+				public void handle(HttpExchange exchange) throws IOException
+				{
+					byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+					exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+					exchange.sendResponseHeaders(200, body.length);
+					OutputStream out = exchange.getResponseBody();
+					out.write(body);
+					out.close();
+				}
+			});
+			server.start(); // Served on the HttpServer's own thread, away from the connections
+		}
+	}
+
+	/**
+	 * Registers a counter the caller increments
+	 * @param name
+	 * 			Metric name, ending in _total
+	 * @param help
+	 * 			Description
+	 * @return
+	 * 			Counter to increment
+	 */
+	public static LongAdder counter(String name, String help)
+	{
+		LongAdder counter = new LongAdder();
+		metrics.add(new Metric(name, help, "counter", counter));
+		return counter;
+	}
+
+	/**
+	 * Registers a counter kept elsewhere, read when the metrics are
+	 * @param name
+	 * 			Metric name, ending in _total
+	 * @param help
+	 * 			Description
+	 * @param source
+	 * 			Reads the count
+	 */
+	public static void counter(String name, String help, Gauge source)
+	{
+		metrics.add(new Metric(name, help, "counter", source));
+	}
+
+	/**
+	 * Registers a gauge, read when the metrics are
+	 * @param name
+	 * 			Metric name
+	 * @param help
+	 * 			Description
+	 * @param source
+	 * 			Reads the value
+	 */
+	public static void gauge(String name, String help, Gauge source)
+	{
+		metrics.add(new Metric(name, help, "gauge", source));
+	}
+
+	/**
+	 * Registers a histogram of durations the caller records in nanoseconds
+	 * @param name
+	 * 			Metric name, ending in _seconds
+	 * @param help
+	 * 			Description
+	 * @return
+	 * 			Histogram to record in
+	 */
+	public static LatencyHistogram histogram(String name, String help)
+	{
+		LatencyHistogram histogram = new LatencyHistogram();
+		metrics.add(new Metric(name, help, "summary", histogram));
+		return histogram;
+	}
+
+	/**
+	 * Describes every metric in the Prometheus text exposition format, histograms as summaries in seconds
+	 * @return
+	 * 			Text for the scrape endpoint
+	 */
+	public static String scrape()
+	{
+		StringBuilder text = new StringBuilder();
+		for (Metric metric : metrics)
+		{
+			text.append("# HELP ").append(metric.name).append(' ').append(metric.help).append('\n');
+			text.append("# TYPE ").append(metric.name).append(' ').append(metric.type).append('\n');
+			if (metric.source instanceof LatencyHistogram)
+			{
+				LatencyHistogram histogram = (LatencyHistogram) metric.source;
+				for (String quantile : QUANTILES)
+					text.append(metric.name).append("{quantile=\"").append(quantile).append("\"} ")
+						.append(histogram.getPercentile(Double.parseDouble(quantile) * 100) / 1e9).append('\n');
+				text.append(metric.name).append("_sum ").append(histogram.getMean() * histogram.getCount() / 1e9).append('\n');
+				text.append(metric.name).append("_count ").append(histogram.getCount()).append('\n');
+			}
+			else
+				text.append(metric.name).append(' ').append(metric.value()).append('\n');
+		}
+		return text.toString();
+	}
+
+	/**
+	 * @return
+	 * 			JMX attribute names of a metric, several for a histogram
+	 */
+	private static String[] attributes(Metric metric)
+	{
+		if (!(metric.source instanceof LatencyHistogram))
+			return new String[] {metric.name};
+		String base = base(metric);
+		return new String[] {base + "_count", base + "_mean_us", base + "_p50_us", base + "_p99_us", base + "_p999_us", base + "_max_us"};
+	}
+
+	/**
+	 * @return
+	 * 			Name a histogram's JMX attributes start with, its name without _seconds as they are in microseconds
+	 */
+	private static String base(Metric metric)
+	{
+		return metric.name.endsWith("_seconds") ? metric.name.substring(0, metric.name.length() - "_seconds".length()) : metric.name;
+	}
+
+	/**
+	 * Reads one JMX attribute
+	 */
+	public Object getAttribute(String attribute) throws AttributeNotFoundException
+	{
+		for (Metric metric : metrics)
+		{
+			if (attribute.equals(metric.name))
+				return metric.value();
+			if (metric.source instanceof LatencyHistogram && attribute.startsWith(base(metric) + "_"))
+			{
+				LatencyHistogram histogram = (LatencyHistogram) metric.source;
+				String statistic = attribute.substring(base(metric).length() + 1);
+				if (statistic.equals("count"))
+					return histogram.getCount();
+				if (statistic.equals("mean_us"))
+					return histogram.getMean() / 1000;
+				if (statistic.equals("p50_us"))
+					return histogram.getPercentile(50) / 1000.0;
+				if (statistic.equals("p99_us"))
+					return histogram.getPercentile(99) / 1000.0;
+				if (statistic.equals("p999_us"))
+					return histogram.getPercentile(99.9) / 1000.0;
+				if (statistic.equals("max_us"))
+					return histogram.getMax() / 1000.0;
+			}
+		}
+		throw new AttributeNotFoundException(attribute);
+	}
+
+	/**
+	 * Reads several JMX attributes, skipping unknown ones
+	 */
+	public AttributeList getAttributes(String[] attributes)
+	{
+		AttributeList list = new AttributeList();
+		for (String attribute : attributes)
+		{
+			try
+			{
+				list.add(new Attribute(attribute, getAttribute(attribute)));
+			} catch (AttributeNotFoundException e)
+			{
+				// Left out, as the interface asks
+			}
+		}
+		return list;
+	}
+
+	/**
+	 * Metrics are read only
+	 */
+	public void setAttribute(Attribute attribute) throws AttributeNotFoundException
+	{
+		throw new AttributeNotFoundException(attribute.getName() + " is read only");
+	}
+
+	/**
+	 * Metrics are read only
+	 */
+	public AttributeList setAttributes(AttributeList attributes)
+	{
+		return new AttributeList();
+	}
+
+	/**
+	 * There are no operations, so every one is reported as a missing method, as a JMX client expects
+	 */
+	public Object invoke(String action, Object[] params, String[] signature) throws ReflectionException
+	{
+		throw new ReflectionException(new NoSuchMethodException(action));
+	}
+
+	/**
+	 * Describes every metric as a read only attribute, counts as Long and histogram statistics as Long or Double
+	 */
+	public MBeanInfo getMBeanInfo()
+	{
+		ArrayList<MBeanAttributeInfo> infos = new ArrayList<MBeanAttributeInfo>();
+		for (Metric metric : metrics)
+		{
+			for (String attribute : attributes(metric))
+			{
+				String type = attribute.endsWith("_us") ? Double.class.getName() : Long.class.getName();
+				infos.add(new MBeanAttributeInfo(attribute, type, metric.help, true, false, false));
+			}
+		}
+		return new MBeanInfo(Metrics.class.getName(), "Chat server metrics", infos.toArray(new MBeanAttributeInfo[0]), null,
+			new MBeanOperationInfo[0], null);
+	}
+}
@@ -0,0 +1,612 @@
+/**
+ * Version 1.0
+ * Author: MK2022
+ * Date: 18/10/2026
+ *
+ * The NioConnection class handles a single client on a non-blocking SocketChannel owned by a Reactor.
+ * It speaks the same protocol as ServerConnection: an optional hello line agreeing on binary framing, then the user ID,
+ * then messages which the ChatRouter broadcasts to the client's room led by the ID, until "Disconnect me" or a DISCONNECT frame ends the connection.
+ * Messages are found in the read buffer by a FrameDecoder without being copied out of it, and a plain message which is valid UTF-8
+ * is relayed to the room straight from there, behind the user's cached prefix, without ever being decoded.
+ * Messages wait in an OutboundQueue until the reactor can write them with a gathering write.
+ * A broadcast is encoded once per wire format into a SharedBuffer which every client's queue shares.
+ * With TLS on the channel is read and written through a TlsChannel, whose handshake tasks run on a handshake thread
+ * and wake the connection through its reactor once they are done, so the reactor never waits on a handshake
+ */
+import java.io.IOException; // Necessary imports
+import java.net.InetAddress;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+
+public class NioConnection implements Session, Heartbeat.Target
+{
+
+	private static final Charset CHARSET = SharedBuffer.CHARSET; // Same charset InputStreamReader uses on the clients
+	private static final int READ_SIZE = 8192; // Size of the read buffer borrowed when the client has sent something
+	private static ConnectionRegistry connections = ConnectionRegistry.getInstance(); // Registry of all connections, shared so all instances can broadcast
+	private static ChatRouter router = ChatRouter.getInstance(); // Rooms, and what to do with each message
+
+	private SocketChannel sc; // Channel used in given connection
+	private TlsChannel tls; // Encrypts the channel, null without TLS
+	private InetAddress source; // Address the client connected from, its Admission place is released once it has gone
+	private SelectionKey key; // Key of the channel in its reactor's Selector
+	private Reactor reactor; // Reactor which owns the channel
+	private ByteBuffer readBuffer; // Bytes read from the channel, including any incomplete message, borrowed from the BufferPool while there are any
+	private FrameDecoder decoder; // Finds lines, or frames once agreed, in the read buffer
+	private OutboundQueue queue; // Messages waiting to be written
+	private WriteBatch writing; // Messages being written, kept while the socket buffer is full
+	private AtomicBoolean flushScheduled; // Whether a flush is already queued on the reactor
+	private long lastFlush; // Time of the last write, which decides whether to linger before the next
+	private Runnable flushTask; // Flushes, or lingers first if the client is busy
+	private long sessionID; // Key of this connection in the registry
+	private String id; // User ID, null until it has been received
+	private byte[] prefix; // UTF-8 bytes of the user ID and ": ", leading each of the user's messages
+	private Position resume; // Position the client asked to resume from in its hello line, null if none
+	private volatile Room room; // Room the user is in
+	private boolean closed;
+	private TokenBucket bucket; // Limits how quickly this user may send messages
+	private String pendingLine; // Message held back under the delay policy, sent when a token is available
+	private boolean paused; // Whether reading is paused until pendingLine can be sent
+	private long readAt; // System.nanoTime of the last read, when the messages it completed reached the server
+	private Heartbeat heartbeat; // Reaps the connection if the client goes quiet and does not answer pings
+
+	/**
+	 * Constructor for NioConnection, called on the reactor thread once the channel is registered
+	 * @param sc
+	 * 			Non-blocking SocketChannel of the client
+	 * @param key
+	 * 			SelectionKey of the channel
+	 * @param reactor
+	 * 			Reactor owning the channel
+	 * @throws IOException
+	 * 			If TLS is on and the handshake cannot be started
+	 */
+	public NioConnection(SocketChannel sc, SelectionKey key, Reactor reactor) throws IOException
+	{
+		this.sc = sc;
+		this.key = key;
+		this.reactor = reactor;
+		source = sc.socket().getInetAddress();
+		decoder = new FrameDecoder();
+		queue = new OutboundQueue();
+		writing = new WriteBatch();
+		flushScheduled = new AtomicBoolean();
+		flushTask = new Runnable()
+		{
+			public void run()
+			{
+				flushSoon();
+			}
+		};
+		bucket = RateLimiter.newConnectionBucket();
+		sessionID = connections.nextSessionID(); // Like ServerConnection, registered once the user ID has been received
+		if (Tls.isEnabled())
+		{
+			tls = Tls.server(sc);
+			tls.setWakeup(new Runnable() // Run on a handshake thread once the engine's tasks are done
+			{
+				public void run()
+				{
+					reactor.execute(new Runnable()
+					{
+						public void run()
+						{
+							if (closed)
+								return;
+							if (!paused)
+								key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+							flush(); // Sends the next flight of the handshake
+							read(); // Continues with anything already read
+						}
+					});
+				}
+			});
+		}
+		heartbeat = Heartbeat.watch(this); // The handshake counts against the time allowed to send a user ID
+	}
+
+	/**
+	 * Prints a message to server output, either console or GUI, through the ServerLog
+	 * @param msg
+	 * 			Message to write, nothing is written if null
+	 */
+	private void output(String msg)
+	{
+		ServerLog.write(msg);
+	}
+
+	/**
+	 * @return
+	 * 			Key of this connection in the registry
+	 */
+	public long getSessionID()
+	{
+		return sessionID;
+	}
+
+	/**
+	 * @return
+	 * 			User ID, null until it has been received
+	 */
+	public String getID()
+	{
+		return id;
+	}
+
+	/**
+	 * @return
+	 * 			UTF-8 bytes of the user ID followed by ": ", null until it has been received
+	 */
+	public byte[] getPrefix()
+	{
+		return prefix;
+	}
+
+	/**
+	 * @return
+	 * 			Room the user is in
+	 */
+	public Room getRoom()
+	{
+		return room;
+	}
+
+	/**
+	 * @param room
+	 * 			Room the user has joined
+	 */
+	public void setRoom(Room room)
+	{
+		this.room = room;
+	}
+
+	/**
+	 * @return
+	 * 			Queue of messages waiting to be written to this client
+	 */
+	public OutboundQueue getQueue()
+	{
+		return queue;
+	}
+
+	/**
+	 * @return
+	 * 			Wire format agreed in the handshake
+	 */
+	public int getFormat()
+	{
+		return queue.getFormat();
+	}
+
+	/**
+	 * Queues a message for this client only
+	 * @param message
+	 * 			Message to be sent
+	 */
+	public void send(String message)
+	{
+		SharedBuffer buffer = ChatMessage.encode(message, queue.getFormat());
+		send(buffer);
+		buffer.release();
+	}
+
+	/**
+	 * Queues an encoded message for this client and makes sure the reactor will write it, disconnecting the client if it has fallen too far behind
+	 * @param message
+	 * 			Encoded message, retained by the queue
+	 */
+	public void send(SharedBuffer message)
+	{
+		if (!queue.offer(message))
+		{
+			reactor.execute(new Runnable()
+			{
+				public void run()
+				{
+					disconnectClient(OutboundQueue.SLOW_REASON);
+				}
+			});
+			return;
+		}
+		if (flushScheduled.compareAndSet(false, true)) // Only one flush needs to be queued for any number of messages
+			reactor.execute(flushTask);
+		else if (queue.getBytes() >= WriteBatch.getFlushBytes()) // Enough is waiting that the budget need not be used up
+			reactor.execute(new Runnable()
+			{
+				public void run()
+				{
+					flush();
+				}
+			});
+	}
+
+	/**
+	 * Sends the client a PING frame, it answers with a PONG
+	 */
+	public void ping()
+	{
+		SharedBuffer ping = SharedBuffer.frame(Frame.PING, 0, "");
+		send(ping);
+		ping.release();
+	}
+
+	/**
+	 * Disconnects a client which has stopped answering, on the reactor thread
+	 * @param reason
+	 * 			Reason given to other users
+	 */
+	public void timeOut(final String reason)
+	{
+		reactor.execute(new Runnable()
+		{
+			public void run()
+			{
+				disconnectClient(reason);
+			}
+		});
+	}
+
+	/**
+	 * Flushes now if the client has been idle, otherwise lingers within the latency budget so more messages share the write
+	 */
+	private void flushSoon()
+	{
+		long linger = WriteBatch.lingerFor(lastFlush);
+		if (linger > 0 && queue.getBytes() < WriteBatch.getFlushBytes())
+			reactor.schedule(flushTask, linger);
+		else
+			flush();
+	}
+
+	/**
+	 * Writes queued messages until the queue is empty or the socket buffer is full, called on the reactor thread
+	 */
+	public void flush()
+	{
+		flushScheduled.set(false);
+		if (closed)
+			return;
+		try
+		{
+			if (tls != null && !tls.isHandshaken())
+			{
+				flushHandshake();
+				return;
+			}
+			while (!writing.isEmpty() || writing.fill(queue) > 0)
+			{
+				lastFlush = System.nanoTime();
+				if (!writing.write(tls != null ? tls : sc))
+				{
+					key.interestOps(key.interestOps() | SelectionKey.OP_WRITE); // Socket buffer is full, continue when writable
+					return;
+				}
+			}
+			if (tls != null && !tls.flush()) // Records sealed but not yet all written
+			{
+				key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+				return;
+			}
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+		} catch (IOException e)
+		{
+			disconnectClient();
+		}
+	}
+
+	/**
+	 * Writes what the handshake has to send, and waits for the socket to be writable if it will not take it all
+	 * @throws IOException
+	 * 			If writing fails or the handshake fails
+	 */
+	private void flushHandshake() throws IOException
+	{
+		if (tls.flush())
+			key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+		else
+			key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+		if (tls.isHandshaken() && tls.hasBufferedInput()) // The client's first message came with the end of the handshake
+			read();
+	}
+
+	/**
+	 * Reads available bytes from the channel and handles every complete message, called on the reactor thread.
+	 * A TlsChannel can hold bytes the selector no longer reports, so it is read until it has none left
+	 */
+	public void read()
+	{
+		try
+		{
+			int n;
+			do
+			{
+				if (readBuffer == null)
+					readBuffer = BufferPool.acquire(READ_SIZE);
+				n = tls != null ? tls.read(readBuffer) : sc.read(readBuffer);
+				if (n < 0) // End of stream, the client has gone
+				{
+					disconnectClient();
+					return;
+				}
+				Metrics.BYTES_IN.add(n);
+				readAt = System.nanoTime();
+				heartbeat.read(); // Any bytes show the client is still there
+				readBuffer.flip();
+				handleBuffer();
+				releaseIdleBuffer();
+				if (tls != null && !closed && tls.isBusy())
+					key.interestOps(key.interestOps() & ~SelectionKey.OP_READ); // Nothing is read until the handshake tasks are done
+				else if (tls != null && !closed && !tls.isHandshaken())
+					flushHandshake(); // The handshake may have a flight which did not all fit in the socket
+			} while (tls != null && n > 0 && !closed && !paused && tls.hasBufferedInput());
+		} catch (ProtocolException e)
+		{
+			disconnectClient("protocol error: " + e.getMessage());
+		} catch (IOException e)
+		{
+			disconnectClient();
+		}
+	}
+
+	/**
+	 * Handles every complete message in the read buffer, keeping any bytes left over while reading is paused
+	 * @throws IOException
+	 * 			If the client sends a message which is too long
+	 */
+	private void handleBuffer() throws IOException
+	{
+		while (!closed && !paused && decoder.next(readBuffer))
+		{
+			if (id != null && decoder.getType() == Frame.MESSAGE && decoder.isUtf8(readBuffer, CHARSET)
+				&& (decoder.isBinary() || !decoder.payloadEqualsIgnoreCase(readBuffer, "Disconnect me")))
+				handleMessage(null); // Relayed from the read buffer, never decoded
+			else
+				handleFrame(decoder.getType(), decoder.getText(readBuffer, CHARSET));
+		}
+		if (!closed)
+			readBuffer = FrameDecoder.compact(readBuffer); // Back to being filled by the next read, keeping an incomplete message
+	}
+
+	/**
+	 * Gives the read buffer back to the pool if every message in it has been handled, so an idle client holds no buffer
+	 */
+	private void releaseIdleBuffer()
+	{
+		if (!closed && !paused && readBuffer.position() == 0) // Buffer is in write mode, so its position is the bytes kept
+		{
+			BufferPool.release(readBuffer);
+			readBuffer = null;
+		}
+	}
+
+	/**
+	 * Stops reading from the client until the held back message can be sent
+	 * @param wait
+	 * 			Nanoseconds until a token is available
+	 */
+	private void pause(long wait)
+	{
+		paused = true;
+		key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+		reactor.schedule(new Runnable()
+		{
+			public void run()
+			{
+				resume();
+			}
+		}, wait);
+	}
+
+	/**
+	 * Sends the held back message if a token is now available, then continues with the bytes read after it
+	 */
+	private void resume()
+	{
+		if (closed)
+			return;
+		paused = false;
+		String userInput = pendingLine;
+		pendingLine = null;
+		handleFrame(Frame.MESSAGE, userInput);
+		if (!paused && !closed)
+		{
+			key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+			readBuffer.flip();
+			try
+			{
+				handleBuffer();
+				releaseIdleBuffer();
+			} catch (ProtocolException e)
+			{
+				disconnectClient("protocol error: " + e.getMessage());
+			} catch (IOException e)
+			{
+				disconnectClient();
+			}
+			if (tls != null && !paused && !closed && tls.hasBufferedInput()) // Read while paused, with no readiness left to report it
+				read();
+		}
+	}
+
+	/**
+	 * Handles the client's hello line and user ID. A client offering framing sends a hello line first and is answered before both switch,
+	 * any other client sends its user ID straight away and keeps the text protocol
+	 * @param type
+	 * 			Frame type, MESSAGE for a text line
+	 * @param userInput
+	 * 			Payload received
+	 */
+	private void handleHandshake(int type, String userInput)
+	{
+		if (!decoder.isBinary() && Handshake.isHello(userInput))
+		{
+			String answer = new Handshake(userInput).answer();
+			send(answer); // Answered as a text line, the client switches once it has read it
+			if (new Handshake(answer).isBinary())
+			{
+				decoder.setBinary(true);
+				queue.setFormat(new Handshake(answer).getFormat()); // Framed, and compressed and numbered if agreed
+				if (new Handshake(answer).isReliable())
+					resume = new Handshake(userInput).getResume(); // Used once the user ID is known
+			}
+		}
+		else if (decoder.isBinary() && type != Frame.ID)
+			disconnectClient("protocol error: expected ID frame, received " + Frame.typeName(type));
+		else
+		{
+			id = userInput; // Gets user ID
+			if (!connections.claimName(this, id)) // Usernames are valid and unique
+			{
+				id = null; // Never joined, so nobody is told it left
+				send(ConnectionRegistry.isValidName(id) ? ConnectionRegistry.NAME_TAKEN_NOTICE : ConnectionRegistry.NAME_INVALID_NOTICE);
+				flush(); // Best effort, the notice is written now if the socket has room
+				closeChannel();
+				return;
+			}
+			prefix = (id + ": ").getBytes(Frame.CHARSET); // Encoded once, rather than joined to every message
+			connections.register(this); // Receives broadcasts from now on, in the format agreed
+			heartbeat.joined(sc, decoder.isBinary());
+			output(router.enter(this, resume)); // Joins the lobby, or the room it is resuming in, and informs the users there
+		}
+	}
+
+	/**
+	 * Handles a complete message from the client, the first being the hello line or user ID
+	 * @param type
+	 * 			Frame type, MESSAGE for a text line
+	 * @param userInput
+	 * 			Payload received
+	 */
+	private void handleFrame(int type, String userInput)
+	{
+		if (id == null)
+			handleHandshake(type, userInput);
+		else if (type == Frame.DISCONNECT || (!decoder.isBinary() && userInput.equalsIgnoreCase("Disconnect me"))) // Checks for disconnect message. Cannot be copied by user since all user messages have ID added to front of String
+			disconnectClient();
+		else if (type == Frame.PING) // The client checking on the server
+		{
+			SharedBuffer pong = SharedBuffer.frame(Frame.PONG, 0, userInput);
+			send(pong);
+			pong.release();
+		}
+		else if (type == Frame.MESSAGE)
+			handleMessage(userInput);
+		else if (type == Frame.ACK)
+			router.acknowledge(this, userInput);
+		else if (type == Frame.RESUME) // The client found a gap in its room's messages
+			router.resume(this, userInput);
+		// Other frame types are not sent by this protocol version
+	}
+
+	/**
+	 * Handles a message or command from the client, under its rate limit
+	 * @param userInput
+	 * 			Message received, or null if it is still in the read buffer as the last payload found, as valid UTF-8
+	 */
+	private void handleMessage(String userInput)
+	{
+		long wait = RateLimiter.admitMessage(bucket);
+		if (wait == 0)
+		{
+			String line; // Prints message to the user's room, led by user ID, or runs a command
+			if (userInput != null)
+				line = router.handle(this, userInput);
+			else
+				line = router.handle(this, readBuffer, decoder.getPayloadStart(), decoder.getPayloadLength());
+			Metrics.HANDLE.record(System.nanoTime() - readAt); // Includes any time held back by the rate limit
+			output(line);
+		}
+		else if (RateLimiter.getPolicy() == RateLimiter.Policy.DELAY)
+		{
+			pendingLine = userInput != null ? userInput : decoder.getText(readBuffer, CHARSET); // The reactor cannot sleep, so reading stops until a token is available
+			pause(wait);
+		}
+		else if (RateLimiter.getPolicy() == RateLimiter.Policy.DROP)
+			send(RateLimiter.DROP_NOTICE); // Only the sender is told the message was dropped
+		else
+		{
+			send(RateLimiter.DISCONNECT_NOTICE);
+			flush(); // Best effort, the notice is written now if the socket has room
+			disconnectClient();
+		}
+	}
+
+	/**
+	 * Disconnects the client after an unexpected error while handling it, called on the reactor thread
+	 */
+	public void fail()
+	{
+		disconnectClient("server error");
+	}
+
+	/**
+	 * Closes the channel without informing other users, used when the server shuts down. Safe to call from any thread
+	 */
+	public void close()
+	{
+		reactor.execute(new Runnable()
+		{
+			public void run()
+			{
+				closeChannel();
+			}
+		});
+	}
+
+	/**
+	 * Closes the channel, called on the reactor thread
+	 */
+	private void closeChannel()
+	{
+		if (closed)
+			return;
+		closed = true;
+		heartbeat.stop();
+		if (readBuffer != null)
+		{
+			BufferPool.release(readBuffer);
+			readBuffer = null;
+		}
+		connections.unregister(this);
+		Admission.release(source); // Makes room for another connection
+		queue.discard(); // Nothing more will be written, so queued buffers can be recycled
+		writing.clear();
+		key.cancel();
+		try
+		{
+			if (tls != null)
+				tls.close(); // Also closes the channel
+			else
+				sc.close();
+		} catch (IOException e)
+		{
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Method to disconnect the client handled by this NioConnection
+	 */
+	private void disconnectClient()
+	{
+		disconnectClient(null);
+	}
+
+	/**
+	 * Method to disconnect the client handled by this NioConnection, giving other users a reason
+	 * @param reason
+	 * 			Why the server disconnected the client, null if the client left by itself
+	 */
+	private void disconnectClient(String reason)
+	{
+		if (closed)
+			return;
+		closeChannel();
+		output(router.leave(this, reason)); // Informs the rest of the room, unless the client left before sending a user ID
+	}
+}
@@ -0,0 +1,114 @@
+/**
+ * Version 1.0
+ * Author: MK2022
+ * Date: 18/10/2026
+ *
+ * The NioServer class is the non-blocking alternative to the thread per connection loop in ChatServer.
+ * It accepts connections on a ServerSocketChannel and hands them round robin to a group of Reactor threads,
+ * with an acceptor thread for each listener Admission bound
+ */
+import java.io.IOException; // Necessary imports
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+public class NioServer implements Runnable
+{
+
+	private ServerSocketChannel[] listeners; // Channel each acceptor accepts connection requests from
+	private Reactor[] reactors; // Reactors which the accepted channels are shared between
+	private AtomicInteger next = new AtomicInteger(); // Count of channels handed out, picks the reactor given the next
+	private volatile boolean thread; // Variable to run loop in thread
+
+	/**
+	 * Constructor for NioServer, binds the port and starts the reactor threads
+	 * @param port
+	 * 			Port to listen to
+	 * @param reactorCount
+	 * 			Number of reactor threads, the number of cores if less than 1
+	 * @throws IOException
+	 * 			If the port cannot be bound
+	 */
+	public NioServer(int port, int reactorCount) throws IOException
+	{
+		if (reactorCount < 1)
+			reactorCount = Runtime.getRuntime().availableProcessors();
+		listeners = Admission.bind(port);
+		reactors = new Reactor[reactorCount];
+		for (int i = 0; i < reactorCount; i++)
+		{
+			reactors[i] = new Reactor();
+			new Thread(reactors[i], "reactor-" + i).start();
+		}
+		thread = true;
+	}
+
+	/**
+	 * Thread method, starts an acceptor for each other listener then accepts connections from the first
+	 */
+	public void run()
+	{
+		for (int i = 1; i < listeners.length; i++)
+		{
+			final ServerSocketChannel listener = listeners[i];
+			new Thread(new Runnable()
+			{
+				public void run()
+				{
+					accept(listener);
+				}
+			}, "acceptor-" + i).start();
+		}
+		accept(listeners[0]);
+	}
+
+	/**
+	 * Waits for connection requests and hands each channel to the next reactor
+	 * @param listener
+	 * 			Channel to accept connections from
+	 */
+	private void accept(ServerSocketChannel listener)
+	{
+		try
+		{
+			while (thread)
+			{
+				SocketChannel sc = listener.accept(); // Waits to accept connection
+				if (!Admission.admit(sc)) // Over a limit, already refused
+					continue;
+
+				Metrics.ACCEPTS.increment();
+				ServerLog.write("Server accepted connection on " + sc.socket().getLocalPort() + " ; " + sc.socket().getPort()); // Informs of successful connections in command line
+				reactors[Math.floorMod(next.getAndIncrement(), reactors.length)].register(sc);
+			}
+		} catch (ClosedChannelException e)
+		{
+			// Happens when closing the server, as loop will be waiting for connect request when the channel is closed
+		} catch (IOException e)
+		{
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Stops accepting connections and stops the reactors, which close their channels
+	 */
+	public void close()
+	{
+		thread = false;
+		try
+		{
+			for (int i = 0; i < listeners.length; i++)
+				listeners[i].close();
+		} catch (IOException e)
+		{
+			e.printStackTrace();
+		}
+		for (int i = 0; i < reactors.length; i++)
+		{
+			reactors[i].stopThread();
+		}
+	}
+}
@@ -0,0 +1,344 @@
+/**
+ * Version 1.0
+ * Author: MK2022
+ * Date: 18/10/2026
+ *
+ * The OutboundQueue class holds the messages waiting to be written to one client, so a broadcast never waits on a slow socket.
+ * The queue is bounded by a high watermark. Once it is reached the client is treated as slow until the queue drains to the low watermark,
+ * and the slow consumer policy decides what happens: the oldest messages are dropped, new messages are coalesced into a single
+ * "messages skipped" notice, or the client is disconnected.
+ * Messages are SharedBuffers, so a broadcast queued for many clients is encoded once. The queue holds a reference to each
+ * buffer it contains, which passes to whoever takes the buffer
+ */
+import java.util.ArrayDeque; // Necessary imports
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+public class OutboundQueue
+{
+
+	/**
+	 * What happens to a client whose queue reaches the high watermark
+	 */
+	public enum Policy
+	{
+		DROP_OLDEST, COALESCE, DISCONNECT
+	}
+
+	public static final String SLOW_REASON = "too slow to receive messages"; // Reason given when a slow client is disconnected
+
+	private static int highWatermark = 1000; // Messages a client may have waiting
+	private static int lowWatermark = 500; // Messages the queue must drain to before the client stops being slow
+	private static Policy policy = Policy.DROP_OLDEST;
+
+	private ArrayDeque<SharedBuffer> queue; // Messages waiting to be written
+	private ReentrantLock lock; // Guards the queue and its counts
+	private Condition notEmpty; // Signalled when a message is added or the queue is closed
+	private volatile int depth; // Number of messages waiting, readable without the lock for monitoring
+	private volatile long bytes; // Bytes waiting, used to decide when a batch is worth flushing
+	private volatile boolean slow; // Whether the high watermark has been reached and the low one not yet
+	private int skipped; // Messages coalesced while slow, reported once the queue drains
+	private volatile long dropped; // Messages dropped over the life of the queue
+	private volatile int format = ChatMessage.TEXT; // Wire format of the client, used to encode notices
+	private volatile long acknowledged; // Sequence number of the last room message the client is known to have, under reliable delivery
+	private boolean closed;
+	private int high; // High watermark of this queue
+	private int low; // Low watermark of this queue
+	private Policy slowPolicy; // Slow consumer policy of this queue
+
+	/**
+	 * Constructor for OutboundQueue, using the watermarks and policy given on the command line
+	 */
+	public OutboundQueue()
+	{
+		this(highWatermark, lowWatermark, policy);
+	}
+
+	/**
+	 * Constructor for OutboundQueue with its own limits, for queues which are not a client's, such as a link to another server
+	 * @param high
+	 * 			Messages which may be waiting
+	 * @param low
+	 * 			Messages the queue must drain to before it stops being slow
+	 * @param slowPolicy
+	 * 			What happens once the high watermark is reached
+	 */
+	public OutboundQueue(int high, int low, Policy slowPolicy)
+	{
+		this.high = high;
+		this.low = Math.min(low, high - 1);
+		this.slowPolicy = slowPolicy;
+		queue = new ArrayDeque<SharedBuffer>();
+		lock = new ReentrantLock();
+		notEmpty = lock.newCondition();
+	}
+
+	/**
+	 * Reads queue options from the command line, ignoring options it does not know
+	 * @param args
+	 * 			Command line arguments, given as option and value pairs
+	 */
+	public static void configure(String[] args)
+	{
+		for (int i = 0; i + 1 < args.length; i += 2)
+		{
+			if (args[i].equalsIgnoreCase("-queuehigh"))
+				highWatermark = Integer.parseInt(args[i + 1]);
+			else if (args[i].equalsIgnoreCase("-queuelow"))
+				lowWatermark = Integer.parseInt(args[i + 1]);
+			else if (args[i].equalsIgnoreCase("-slowpolicy"))
+				policy = Policy.valueOf(args[i + 1].toUpperCase());
+		}
+		lowWatermark = Math.min(lowWatermark, highWatermark - 1); // Low watermark must be below the high one for the slow state to end
+	}
+
+	/**
+	 * Adds a message to the queue, applying the slow consumer policy if the client is behind
+	 * @param message
+	 * 			Message to be written, retained if it is added
+	 * @return
+	 * 			False if the client should be disconnected for being too slow, otherwise true
+	 */
+	public boolean offer(SharedBuffer message)
+	{
+		lock.lock();
+		try
+		{
+			if (closed)
+				return true; // Client is already going, nothing more to write
+			if (queue.size() >= high)
+				slow = true;
+			if (slow)
+			{
+				if (slowPolicy == Policy.DISCONNECT)
+					return false;
+				if (slowPolicy == Policy.COALESCE)
+				{
+					skipped++; // Replaced by one notice when the queue drains
+					dropped++;
+					return true;
+				}
+				if (queue.size() >= high)
+				{
+					SharedBuffer oldest = queue.poll(); // Drop oldest
+					bytes -= oldest.length();
+					oldest.release();
+					dropped++;
+				}
+			}
+			queue.add(message.retain());
+			bytes += message.length();
+			depth = queue.size();
+			notEmpty.signal();
+			return true;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Takes the next message, waiting for one if the queue is empty
+	 * @return
+	 * 			Next message, or null once the queue is closed and empty. The caller must release it once written
+	 * @throws InterruptedException
+	 * 			If interrupted while waiting
+	 */
+	public SharedBuffer take() throws InterruptedException
+	{
+		lock.lock();
+		try
+		{
+			while (queue.isEmpty() && !closed)
+				notEmpty.await();
+			return next();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Takes the next message, waiting up to the given time for one if the queue is empty
+	 * @param timeout
+	 * 			Nanoseconds to wait
+	 * @return
+	 * 			Next message, or null if none arrived in time or the queue is closed. The caller must release it once written
+	 * @throws InterruptedException
+	 * 			If interrupted while waiting
+	 */
+	public SharedBuffer poll(long timeout) throws InterruptedException
+	{
+		lock.lock();
+		try
+		{
+			while (queue.isEmpty() && !closed && timeout > 0)
+				timeout = notEmpty.awaitNanos(timeout);
+			return next();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Takes the next message without waiting
+	 * @return
+	 * 			Next message, or null if there is none. The caller must release it once written
+	 */
+	public SharedBuffer poll()
+	{
+		lock.lock();
+		try
+		{
+			return next();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Removes the head of the queue and ends the slow state once the low watermark is reached, called while holding the lock
+	 * @return
+	 * 			Head of the queue, or null if empty
+	 */
+	private SharedBuffer next()
+	{
+		SharedBuffer message = queue.poll();
+		if (message != null)
+			bytes -= message.length();
+		if (slow && queue.size() <= low)
+		{
+			slow = false;
+			if (skipped > 0)
+			{
+				SharedBuffer notice = ChatMessage.encode("[" + skipped + " messages were skipped because you fell behind]", format);
+				queue.add(notice);
+				bytes += notice.length();
+				skipped = 0;
+			}
+		}
+		depth = queue.size();
+		return message;
+	}
+
+	/**
+	 * Sets the wire format of the client, once its handshake is done
+	 * @param format
+	 * 			ChatMessage.TEXT, FRAMED or COMPRESSED, with SEQUENCED under reliable delivery
+	 */
+	public void setFormat(int format)
+	{
+		this.format = format;
+	}
+
+	/**
+	 * @return
+	 * 			Wire format of the client
+	 */
+	public int getFormat()
+	{
+		return format;
+	}
+
+	/**
+	 * Records the last message of its room the client is known to have, from its ACK frames or the position it was given on joining
+	 * @param sequence
+	 * 			Sequence number of the message in the client's room
+	 */
+	public void setAcknowledged(long sequence)
+	{
+		acknowledged = sequence;
+	}
+
+	/**
+	 * @return
+	 * 			Sequence number of the last message of its room the client is known to have
+	 */
+	public long getAcknowledged()
+	{
+		return acknowledged;
+	}
+
+	/**
+	 * Closes the queue, messages already queued can still be taken
+	 */
+	public void close()
+	{
+		lock.lock();
+		try
+		{
+			closed = true;
+			notEmpty.signalAll();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Closes the queue and releases every message still in it, used once nothing more will be written
+	 */
+	public void discard()
+	{
+		lock.lock();
+		try
+		{
+			closed = true;
+			SharedBuffer message;
+			while ((message = queue.poll()) != null)
+				message.release();
+			depth = 0;
+			bytes = 0;
+			notEmpty.signalAll();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return
+	 * 			Number of messages waiting
+	 */
+	public int getDepth()
+	{
+		return depth;
+	}
+
+	/**
+	 * @return
+	 * 			Number of bytes waiting
+	 */
+	public long getBytes()
+	{
+		return bytes;
+	}
+
+	/**
+	 * @return
+	 * 			Whether the client is currently behind
+	 */
+	public boolean isSlow()
+	{
+		return slow;
+	}
+
+	/**
+	 * @return
+	 * 			Number of messages dropped or coalesced for this client
+	 */
+	public long getDropped()
+	{
+		return dropped;
+	}
+}
@@ -0,0 +1,190 @@
+/**
+ * Version 1.0
+ * Author: MK2022
+ * Date: 18/10/2026
+ *
+ * The PeerLink class is one TCP connection between two ChatServer nodes of a Cluster.
+ * Relayed messages are binary frames, each encoded once by the Cluster and shared by every link's OutboundQueue, and written by a
+ * writer thread with the same gathering writes clients get. Frames read from the other node are found in the read buffer by a FrameDecoder.
+ * A link which falls too far behind is closed rather than dropping messages silently, and the Cluster connects it again
+ */
+import java.io.IOException; // Necessary imports
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+
+public class PeerLink
+{
+
+	private static final int QUEUE_HIGH = 100000; // Relayed messages which may wait before the link is closed for being too slow
+
+	private SocketChannel channel; // Blocking channel to the other node
+	private OutboundQueue queue; // Frames waiting to be written to the other node
+	private ByteBuffer in; // Bytes read from the other node, in read mode between reads
+	private FrameDecoder decoder; // Finds frames in the read buffer
+	private volatile String node; // Node ID of the other node, null until its hello has been read
+
+	/**
+	 * Constructor for PeerLink
+	 * @param channel
+	 * 			Connected channel, dialled or accepted
+	 */
+	public PeerLink(SocketChannel channel)
+	{
+		this.channel = channel;
+		queue = new OutboundQueue(QUEUE_HIGH, QUEUE_HIGH / 2, OutboundQueue.Policy.DISCONNECT);
+		queue.setFormat(ChatMessage.FRAMED);
+		in = ByteBuffer.allocate(8192);
+		in.flip(); // Nothing read yet
+		decoder = new FrameDecoder();
+		decoder.setBinary(true); // Nodes only ever speak in frames
+	}
+
+	/**
+	 * @return
+	 * 			Node ID of the other node, null until its hello has been read
+	 */
+	public String getNode()
+	{
+		return node;
+	}
+
+	/**
+	 * @param node
+	 * 			Node ID given in the other node's hello
+	 */
+	public void setNode(String node)
+	{
+		this.node = node;
+	}
+
+	/**
+	 * Starts the thread writing queued frames to the other node
+	 * @param name
+	 * 			Name of the thread
+	 */
+	public void startWriter(String name)
+	{
+		Thread writer = new Thread(new Writer(), name);
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Reads from the channel until a complete frame is in the read buffer
+	 * @return
+	 * 			False if the other node closed the link
+	 * @throws IOException
+	 * 			If reading fails or the other node sends a frame which is too long
+	 */
+	public boolean readFrame() throws IOException
+	{
+		while (!decoder.next(in))
+		{
+			in = FrameDecoder.compact(in);
+			int n = channel.read(in);
+			in.flip();
+			if (n < 0)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return
+	 * 			Type of the frame just read
+	 */
+	public int getType()
+	{
+		return decoder.getType();
+	}
+
+	/**
+	 * @return
+	 * 			Payload of the frame just read
+	 */
+	public String getText()
+	{
+		return decoder.getText(in, Frame.CHARSET);
+	}
+
+	/**
+	 * Queues a frame for the other node, closing the link if it has fallen too far behind
+	 * @param frame
+	 * 			Encoded frame, retained by the queue
+	 */
+	public void send(SharedBuffer frame)
+	{
+		if (!queue.offer(frame))
+		{
+			ServerLog.write("Link to node " + node + " closed, " + OutboundQueue.SLOW_REASON);
+			close();
+		}
+	}
+
+	/**
+	 * Closes the link once the frames already queued have been written
+	 */
+	public void finish()
+	{
+		queue.close(); // Writer thread writes what is left, then closes the channel
+	}
+
+	/**
+	 * Closes the link, which ends the threads reading and writing it
+	 */
+	public void close()
+	{
+		queue.close();
+		try
+		{
+			channel.close();
+		} catch (IOException e)
+		{
+			// Already closed
+		}
+	}
+
+	/**
+	 * Writes the frames queued for the other node, gathering whatever is waiting into one write
+	 */
+	private class Writer implements Runnable
+	{
+		public void run()
+		{
+			WriteBatch batch = new WriteBatch();
+			try
+			{
+				SharedBuffer frame;
+				long lastFlush = 0; // Time of the last write, which decides whether to linger
+				while ((frame = queue.take()) != null)
+				{
+					batch.add(frame);
+					batch.fill(queue);
+					long linger = WriteBatch.lingerFor(lastFlush);
+					long deadline = System.nanoTime() + linger;
+					while (linger > 0 && !batch.isFull() && (frame = queue.poll(linger)) != null) // Busy, so more is likely on its way
+					{
+						batch.add(frame);
+						batch.fill(queue);
+						linger = deadline - System.nanoTime();
+					}
+					batch.write(channel);
+					lastFlush = System.nanoTime();
+				}
+			} catch (IOException e)
+			{
+				// Link closed or other node gone
+			} catch (InterruptedException e)
+			{
+				e.printStackTrace();
+			}
+			finally
+			{
+				batch.clear(); // Releases frames which will now never be written
+				queue.discard();
+				close(); // Also ends the reading thread if it is still waiting
+			}
+		}
+	}
+}
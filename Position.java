@@ -0,0 +1,98 @@
+/**
+ * Version 1.0
+ * Author: MK2022
+ * Date: 18/10/2026
+ *
+ * The Position class is a place in one room's messages, as a client with reliable delivery tracks it: the room, the room's epoch
+ * and the sequence number of the last message the client has. Each room numbers its messages from 1 in the order it broadcasts them,
+ * and its epoch is unique to it, so a position in a room which has since closed, or in a server which has since restarted,
+ * is never taken for one in the room which replaced it.
+ * On the wire a position is the text epoch:sequence:room, in the resume option of a hello line and in ROOM and RESUME frames
+ */
+
+
+public class Position
+{
+
+	private String room; // Name of the room, without the #
+	private long epoch; // Epoch of the room
+	private long sequence; // Sequence number of the last message had, 0 before the room's first
+
+	/**
+	 * Constructor for Position
+	 * @param room
+	 * 			Name of the room
+	 * @param epoch
+	 * 			Epoch of the room
+	 * @param sequence
+	 * 			Sequence number of the last message had
+	 */
+	public Position(String room, long epoch, long sequence)
+	{
+		this.room = room;
+		this.epoch = epoch;
+		this.sequence = sequence;
+	}
+
+	/**
+	 * Reads a position as it is written on the wire
+	 * @param text
+	 * 			Position as epoch:sequence:room
+	 * @return
+	 * 			Position, or null if the text is not one
+	 */
+	public static Position parse(String text)
+	{
+		String[] parts = text == null ? new String[0] : text.split(":", 3);
+		if (parts.length != 3 || parts[2].equals("") || !isNumber(parts[0]) || !isNumber(parts[1]))
+			return null;
+		return new Position(parts[2], Long.parseLong(parts[0]), Long.parseLong(parts[1]));
+	}
+
+	/**
+	 * @param text
+	 * 			Text received
+	 * @return
+	 * 			Whether it is a sequence number or epoch, digits which fit in a long
+	 */
+	public static boolean isNumber(String text)
+	{
+		return !text.equals("") && text.length() < 19 && ChatClient.isInt(text);
+	}
+
+	/**
+	 * @return
+	 * 			Name of the room
+	 */
+	public String getRoom()
+	{
+		return room;
+	}
+
+	/**
+	 * @return
+	 * 			Epoch of the room
+	 */
+	public long getEpoch()
+	{
+		return epoch;
+	}
+
+	/**
+	 * @return
+	 * 			Sequence number of the last message had
+	 */
+	public long getSequence()
+	{
+		return sequence;
+	}
+
+	/**
+	 * @return
+	 * 			Position as it is written on the wire, epoch:sequence:room
+	 */
+	public String toString()
+	{
+		return epoch + ":" + sequence + ":" + room;
+	}
+}
@@ -0,0 +1,139 @@
+/**
+ * Version 1.0
+ * Author: MK2022
+ * Date: 18/10/2026
+ *
+ * The RateLimiter class holds the server's rate limits: a token bucket per connection and a global one for inbound messages,
+ * and a global one for accepted connections. The policy decides what happens to a client over its message limit:
+ * its message is delayed until a token is available, dropped with a notice, or it is disconnected.
+ * The policy does not apply to accepts: a connection over the accept rate is always refused with a notice, never made to wait,
+ * so an acceptor thread never sleeps and a reconnect storm is turned away rather than left in the kernel's backlog.
+ * Settings are given on the ChatServer command line before the server is started
+ */
+import java.util.concurrent.TimeUnit; // Necessary imports
+
+
+public class RateLimiter
+{
+
+	/**
+	 * What happens when a client goes over its limit
+	 */
+	public enum Policy
+	{
+		DELAY, DROP, DISCONNECT
+	}
+
+	public static final String DROP_NOTICE = "Message not sent: you are sending messages too quickly"; // Sent to a client whose message was dropped
+	public static final String DISCONNECT_NOTICE = "You have been disconnected for sending messages too quickly"; // Sent before a client is disconnected
+	public static final String BUSY_NOTICE = "Server is busy, please try again later"; // Sent to a connection refused by the accept limit
+
+	private static double messageRate = 20; // Messages per second allowed for each connection
+	private static int messageBurst = 40; // Messages a connection may send at once after being idle
+	private static double globalRate = 0; // Messages per second allowed for the whole server, unlimited if 0
+	private static int globalBurst = 0;
+	private static double acceptRate = 1000; // Connections accepted per second
+	private static int acceptBurst = 2000;
+	private static Policy policy = Policy.DELAY;
+
+	private static TokenBucket globalMessages = new TokenBucket(globalRate, globalBurst);
+	private static TokenBucket accepts = new TokenBucket(acceptRate, acceptBurst);
+
+	/**
+	 * Reads rate limit options from the command line, ignoring options it does not know
+	 * @param args
+	 * 			Command line arguments, given as option and value pairs
+	 */
+	public static void configure(String[] args)
+	{
+		for (int i = 0; i + 1 < args.length; i += 2)
+		{
+			String option = args[i];
+			String value = args[i + 1];
+			if (option.equalsIgnoreCase("-msgrate"))
+				messageRate = Double.parseDouble(value);
+			else if (option.equalsIgnoreCase("-msgburst"))
+				messageBurst = Integer.parseInt(value);
+			else if (option.equalsIgnoreCase("-globalrate"))
+				globalRate = Double.parseDouble(value);
+			else if (option.equalsIgnoreCase("-globalburst"))
+				globalBurst = Integer.parseInt(value);
+			else if (option.equalsIgnoreCase("-acceptrate"))
+				acceptRate = Double.parseDouble(value);
+			else if (option.equalsIgnoreCase("-acceptburst"))
+				acceptBurst = Integer.parseInt(value);
+			else if (option.equalsIgnoreCase("-ratepolicy"))
+				policy = Policy.valueOf(value.toUpperCase());
+		}
+		globalMessages = new TokenBucket(globalRate, Math.max(globalBurst, 1));
+		accepts = new TokenBucket(acceptRate, Math.max(acceptBurst, 1));
+	}
+
+	/**
+	 * @return
+	 * 			Policy applied to clients over their limit
+	 */
+	public static Policy getPolicy()
+	{
+		return policy;
+	}
+
+	/**
+	 * Creates the bucket limiting a single connection's messages
+	 * @return
+	 * 			New TokenBucket
+	 */
+	public static TokenBucket newConnectionBucket()
+	{
+		return new TokenBucket(messageRate, messageBurst);
+	}
+
+	/**
+	 * Attempts to admit a message, which needs a token from both the connection's bucket and the global bucket
+	 * @param connection
+	 * 			Bucket of the connection sending the message
+	 * @return
+	 * 			0 if the message is admitted, otherwise the nanoseconds to wait before trying again
+	 */
+	public static long admitMessage(TokenBucket connection)
+	{
+		long wait = connection.tryAcquire();
+		if (wait > 0)
+			return wait;
+		wait = globalMessages.tryAcquire();
+		if (wait > 0)
+			connection.refund(); // Message was not admitted, so the connection keeps its token
+		return wait;
+	}
+
+	/**
+	 * Admits a message for a thread that may block, waiting for a token under the delay policy
+	 * @param connection
+	 * 			Bucket of the connection sending the message
+	 * @return
+	 * 			True if the message may be sent, false if the policy says it is dropped or the client disconnected
+	 * @throws InterruptedException
+	 * 			If interrupted while waiting
+	 */
+	public static boolean awaitMessage(TokenBucket connection) throws InterruptedException
+	{
+		long wait;
+		while ((wait = admitMessage(connection)) > 0)
+		{
+			if (policy != Policy.DELAY)
+				return false;
+			TimeUnit.NANOSECONDS.sleep(wait);
+		}
+		return true;
+	}
+
+	/**
+	 * Admits a new connection if the accept rate allows it, never waiting
+	 * @return
+	 * 			True if the connection may be accepted, false if it should be refused
+	 */
+	public static boolean admitAccept()
+	{
+		return accepts.tryAcquire() == 0;
+	}
+}
@@ -0,0 +1,280 @@
+/**
+ * Version 1.0
+ * Author: MK2022
+ * Date: 18/10/2026
+ *
+ * The Reactor class runs one Selector loop, which multiplexes the reads and writes of many NioConnection objects on a single thread
+ * Work from other threads (new channels, pending writes) is handed to the loop through a task queue
+ * An unexpected error while handling one connection closes only that connection, and one thrown by a task is logged, so the loop carries on
+ */
+import java.io.IOException; // Necessary imports
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+
+public class Reactor implements Runnable
+{
+
+	private Selector selector; // Selector used to wait for ready channels
+	private ConcurrentLinkedQueue<Runnable> tasks; // Tasks submitted from other threads, run by the loop
+	private PriorityQueue<TimedTask> timers; // Tasks waiting for a time, earliest first, only used by the loop
+	private volatile boolean thread; // Variable to run loop in thread
+	private Thread loopThread; // Thread running the loop, used to run tasks directly when already on it
+
+	/**
+	 * Constructor for Reactor
+	 * @throws IOException
+	 * 			If the Selector cannot be opened
+	 */
+	public Reactor() throws IOException
+	{
+		selector = Selector.open();
+		tasks = new ConcurrentLinkedQueue<Runnable>();
+		timers = new PriorityQueue<TimedTask>();
+		thread = true;
+	}
+
+	/**
+	 * Hands a newly accepted channel to this reactor, which registers it for reads and creates its NioConnection
+	 * @param sc
+	 * 			Accepted SocketChannel
+	 */
+	public void register(final SocketChannel sc)
+	{
+		execute(new Runnable()
+		{
+			public void run()
+			{
+				try
+				{
+					sc.configureBlocking(false);
+					SelectionKey key = sc.register(selector, SelectionKey.OP_READ);
+					key.attach(new NioConnection(sc, key, Reactor.this)); // Connection is found again through the key when it is ready
+				} catch (IOException e)
+				{
+					e.printStackTrace();
+					Admission.release(sc.socket().getInetAddress()); // Never served, so its place is given back here
+					try
+					{
+						sc.close();
+					} catch (IOException closing)
+					{
+						// Already broken
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Runs a task on the reactor thread, directly if already on it, otherwise by queueing it and waking the Selector
+	 * @param task
+	 * 			Task to be run
+	 */
+	public void execute(Runnable task)
+	{
+		if (Thread.currentThread() == loopThread)
+			task.run();
+		else
+		{
+			tasks.add(task);
+			selector.wakeup(); // Selector would otherwise only see the task after the next ready channel
+		}
+	}
+
+	/**
+	 * Runs a task on the reactor thread once a delay has passed
+	 * @param task
+	 * 			Task to be run
+	 * @param delay
+	 * 			Delay in nanoseconds
+	 */
+	public void schedule(Runnable task, long delay)
+	{
+		final TimedTask timed = new TimedTask(task, System.nanoTime() + delay);
+		execute(new Runnable()
+		{
+			public void run()
+			{
+				timers.add(timed);
+			}
+		});
+	}
+
+	/**
+	 * Runs the timed tasks that are due
+	 * @return
+	 * 			Milliseconds until the next timed task, 0 if there is none
+	 */
+	private long runTimers()
+	{
+		TimedTask next;
+		while ((next = timers.peek()) != null)
+		{
+			long wait = next.deadline - System.nanoTime();
+			if (wait > 0)
+				return Math.max(wait / 1000000, 1); // select(0) would wait forever, so at least 1 ms
+			run(timers.poll().task);
+		}
+		return 0;
+	}
+
+	/**
+	 * Runs a task or timed task, logging anything it throws rather than ending the loop
+	 * @param task
+	 * 			Task to run
+	 */
+	private void run(Runnable task)
+	{
+		try
+		{
+			task.run();
+		} catch (RuntimeException e)
+		{
+			ServerLog.write("Reactor task failed: " + describe(e));
+		}
+	}
+
+	/**
+	 * Closes a connection after an unexpected error while handling it, leaving the reactor's other connections open
+	 * @param connection
+	 * 			Connection being handled
+	 * @param key
+	 * 			Its selection key, cancelled if the connection cannot even be closed cleanly
+	 * @param e
+	 * 			Error thrown
+	 */
+	private static void fail(NioConnection connection, SelectionKey key, RuntimeException e)
+	{
+		ServerLog.write("Connection closed after an unexpected error: " + describe(e));
+		try
+		{
+			connection.fail();
+		} catch (RuntimeException again)
+		{
+			key.cancel(); // Never selected again, whatever state it was left in
+			ServerLog.write("Connection could not be closed cleanly: " + describe(again));
+		}
+	}
+
+	/**
+	 * @param e
+	 * 			Error thrown
+	 * @return
+	 * 			Error and where it was thrown, for the server log
+	 */
+	private static String describe(RuntimeException e)
+	{
+		StackTraceElement[] trace = e.getStackTrace();
+		return e + (trace.length > 0 ? " at " + trace[0] : "");
+	}
+
+	/**
+	 * Method to stop the loop, which then closes all channels owned by this reactor
+	 */
+	public void stopThread()
+	{
+		thread = false;
+		selector.wakeup();
+	}
+
+	/**
+	 * Runs tasks queued by other threads
+	 */
+	private void runTasks()
+	{
+		Runnable task;
+		while ((task = tasks.poll()) != null)
+		{
+			run(task);
+		}
+	}
+
+	/**
+	 * Thread method, waits for ready channels and dispatches reads and writes to their NioConnection objects
+	 */
+	public void run()
+	{
+		loopThread = Thread.currentThread();
+		try
+		{
+			while (thread)
+			{
+				selector.select(runTimers());
+				runTasks();
+
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+				while (keys.hasNext())
+				{
+					SelectionKey key = keys.next();
+					keys.remove();
+					NioConnection connection = (NioConnection) key.attachment();
+					try
+					{
+						if (key.isValid() && key.isReadable())
+							connection.read();
+						if (key.isValid() && key.isWritable())
+							connection.flush();
+					} catch (RuntimeException e)
+					{
+						fail(connection, key, e);
+					}
+				}
+			}
+		} catch (ClosedSelectorException e)
+		{
+			// Happens if the selector is closed while waiting, finally block will handle it
+		} catch (IOException e)
+		{
+			e.printStackTrace();
+		}
+		finally
+		{
+			closeConnections();
+		}
+	}
+
+	/**
+	 * A task with the time it is due, ordered by that time
+	 */
+	private static class TimedTask implements Comparable<TimedTask>
+	{
+		private Runnable task;
+		private long deadline; // System.nanoTime value the task is due at
+
+		public TimedTask(Runnable task, long deadline)
+		{
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		public int compareTo(TimedTask other)
+		{
+			return Long.compare(deadline, other.deadline);
+		}
+	}
+
+	/**
+	 * Closes all channels registered with this reactor, and the Selector itself
+	 */
+	private void closeConnections()
+	{
+		try
+		{
+			for (SelectionKey key : selector.keys())
+			{
+				if (key.attachment() != null)
+					((NioConnection) key.attachment()).close(); // Runs directly, as this is the reactor thread
+			}
+			selector.close();
+		} catch (IOException e)
+		{
+			e.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,431 @@
+/**
+ * Version 1.0
+ * Author: MK2022
+ * Date: 18/10/2026
+ * 
+ * The Room class is a named group of sessions which receive each other's messages.
+ * Members are held in a ConcurrentHashMap, so looking at a room never blocks, and each room has its own lock which orders its broadcasts,
+ * so every member sees a room's messages in the same order while busy rooms never wait on each other.
+ * A room other than the lobby is closed once its last member leaves, and a closed room cannot be joined.
+ * Users' messages are kept in the room's RoomHistory, and replayed to each user who joins, and appended to the MessageLog if it is on.
+ * In a Cluster, messages said here are also relayed to the other nodes, and messages relayed from them are kept and broadcast as if said here.
+ * A message still in its sender's read buffer is copied from there as UTF-8, behind the sender's cached prefix, and only decoded
+ * if the MessageLog or Cluster needs its text.
+ * Users' messages are numbered from 1 in the order they are broadcast, under an epoch no other room shares. A member which agreed reliable delivery
+ * is given its Position on joining, and one reconnecting or finding a gap is sent the messages after its position from the history
+ */
+import java.nio.ByteBuffer; // Necessary imports
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+public class Room
+{
+	
+	private static AtomicLong epochs = new AtomicLong(System.currentTimeMillis() * 1000); // From the clock, so a restarted server does not hand out the same epochs
+	
+	private String name; // Name of the room, without the #
+	private byte[] tag; // UTF-8 bytes of the name with its # and a space, leading the room's lines in the server output
+	private boolean permanent; // Whether the room stays open when empty, as the lobby does
+	private ConcurrentHashMap<Long, Integer> members; // Index of each member in recipients, by session ID
+	private Session[] recipients = new Session[16]; // Members packed at the start, so a broadcast allocates nothing and joining or leaving is O(1), guarded by lock
+	private int count; // Members in recipients, guarded by lock
+	private ReentrantLock lock; // Orders broadcasts and membership changes in this room only
+	private boolean closed; // Whether the room has been emptied and removed, guarded by lock
+	private RoomHistory history; // Last messages said in the room, guarded by lock
+	private long epoch; // Sets this room's numbering apart from any other room's, including earlier rooms of the same name
+	private volatile long sequence; // Number of the last message said in the room, written under lock and read by the metrics without it
+	
+	/**
+	 * Constructor for Room
+	 * @param name
+	 * 			Name of the room
+	 * @param permanent
+	 * 			Whether the room stays open when empty
+	 */
+	public Room(String name, boolean permanent)
+	{
+		this.name = name;
+		tag = ("#" + name + " ").getBytes(Frame.CHARSET);
+		this.permanent = permanent;
+		members = new ConcurrentHashMap<Long, Integer>();
+		lock = new ReentrantLock();
+		history = new RoomHistory();
+		epoch = epochs.incrementAndGet();
+	}
+	
+	/**
+	 * @return
+	 * 			Name of the room
+	 */
+	public String getName()
+	{
+		return name;
+	}
+	
+	/**
+	 * @return
+	 * 			UTF-8 bytes of "#name ", which lead the room's lines in the server output
+	 */
+	public byte[] getTag()
+	{
+		return tag;
+	}
+	
+	/**
+	 * @return
+	 * 			Epoch of the room's numbering
+	 */
+	public long getEpoch()
+	{
+		return epoch;
+	}
+	
+	/**
+	 * @return
+	 * 			Sequence number of the last message said in the room, 0 before the first
+	 */
+	public long getSequence()
+	{
+		return sequence;
+	}
+	
+	/**
+	 * @return
+	 * 			Number of members
+	 */
+	public int size()
+	{
+		return members.size();
+	}
+	
+	/**
+	 * Adds a member and replays the room's last messages to it, so it sees every message exactly once
+	 * @param session
+	 * 			Session joining the room
+	 * @return
+	 * 			False if the room has been closed and must be created again
+	 */
+	public boolean add(Session session)
+	{
+		return add(session, -1);
+	}
+	
+	/**
+	 * Adds a member which may be resuming. A member under reliable delivery is given its position first, then a member resuming
+	 * is sent only the messages after the one it had, and any other member the room's last messages as history
+	 * @param session
+	 * 			Session joining the room
+	 * @param after
+	 * 			Sequence number of the last message a resuming member had, no later than getSequence, or -1 if it is not resuming
+	 * @return
+	 * 			False if the room has been closed and must be created again
+	 */
+	public boolean add(Session session, long after)
+	{
+		lock.lock();
+		try
+		{
+			if (closed)
+				return false;
+			if (members.putIfAbsent(session.getSessionID(), count) == null)
+			{
+				if (count == recipients.length)
+					recipients = Arrays.copyOf(recipients, count * 2);
+				recipients[count++] = session;
+			}
+			boolean reliable = (session.getFormat() & ChatMessage.SEQUENCED) != 0;
+			if (reliable && after >= 0)
+				resume(session, after);
+			else
+			{
+				if (reliable)
+					position(session, sequence); // The replay is history, so the member starts with the next message
+				replay(session, RoomHistory.getReplayCount());
+			}
+			return true;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Sends a member under reliable delivery the messages after the last one it had, from the oldest the history still keeps.
+	 * Its position is set to just before them, so messages it already has are dropped as duplicates, and the member is told how many were lost
+	 * @param session
+	 * 			Member, already in the room
+	 * @param after
+	 * 			Sequence number of the last message it had, no later than getSequence
+	 */
+	public void resume(Session session, long after)
+	{
+		lock.lock();
+		try
+		{
+			Metrics.RESUMES.increment();
+			long first = history.firstAfter(after);
+			long from = first < 0 ? sequence : first - 1; // Messages up to here have been dropped from the history, or none are missing
+			if (from > after)
+			{
+				session.send("[" + (from - after) + (from - after == 1 ? " message" : " messages") + " in #" + name + " could not be recovered]");
+				Metrics.RESUME_LOST.add(from - after);
+			}
+			position(session, from);
+			SharedBuffer batch = history.replayAfter(from, epoch, session.getFormat());
+			if (batch != null)
+			{
+				session.send(batch);
+				batch.release();
+				Metrics.RESENT.add(sequence - from);
+			}
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Gives a member under reliable delivery its position in the room's numbering, under lock so no message comes between
+	 * @param session
+	 * 			Member
+	 * @param at
+	 * 			Sequence number of the last message it has
+	 */
+	private void position(Session session, long at)
+	{
+		SharedBuffer frame = SharedBuffer.frame(Frame.ROOM, 0, new Position(name, epoch, at).toString());
+		session.send(frame);
+		frame.release();
+		session.getQueue().setAcknowledged(at); // Nothing before it is owed to the member
+	}
+	
+	/**
+	 * Removes a member, closing the room if it is now empty and not permanent
+	 * @param session
+	 * 			Session leaving the room
+	 * @return
+	 * 			True if the room was closed and should be forgotten
+	 */
+	public boolean remove(Session session)
+	{
+		lock.lock();
+		try
+		{
+			Integer index = members.remove(session.getSessionID());
+			if (index != null)
+			{
+				Session last = recipients[--count]; // Takes the leaving member's place
+				recipients[count] = null;
+				if (index != count)
+				{
+					recipients[index] = last;
+					members.put(last.getSessionID(), index);
+				}
+				if (recipients.length > 16 && count < recipients.length / 4)
+					recipients = Arrays.copyOf(recipients, recipients.length / 2); // Gives back the space after a crowd has left
+			}
+			if (members.isEmpty() && !permanent)
+			{
+				closed = true;
+				history.release(); // Nobody is left to replay it to
+			}
+			return closed;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * @return
+	 * 			Number of messages the room's history keeps
+	 */
+	public int getKept()
+	{
+		lock.lock();
+		try
+		{
+			return history.size();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Queues a batch of the room's last messages for one member
+	 * @param session
+	 * 			Member to replay to
+	 * @param wanted
+	 * 			Number of messages wanted
+	 * @return
+	 * 			Number of messages replayed
+	 */
+	public int replay(Session session, int wanted)
+	{
+		lock.lock();
+		try
+		{
+			SharedBuffer batch = history.replay(wanted, session.getFormat());
+			if (batch == null)
+				return 0;
+			session.send(batch);
+			batch.release();
+			return Math.min(wanted, history.size());
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Queues a user's message for every member and keeps it in the history
+	 * @param sender
+	 * 			Username of the sender
+	 * @param text
+	 * 			Message text
+	 * @return
+	 * 			Message as broadcast, led by the sender
+	 */
+	public String post(String sender, String text)
+	{
+		return post(sender, text, true);
+	}
+	
+	/**
+	 * Queues a user's message for every member and keeps it in the history, copying it from the read buffer it arrived in
+	 * @param sender
+	 * 			Session of the sender, whose prefix leads the message
+	 * @param buffer
+	 * 			Buffer holding the message text as well formed UTF-8
+	 * @param start
+	 * 			Index of the text in the buffer
+	 * @param length
+	 * 			Bytes of the text
+	 * @return
+	 * 			UTF-8 bytes of the message as broadcast, led by the sender, with a reference the caller must release
+	 */
+	public SharedBuffer post(Session sender, ByteBuffer buffer, int start, int length)
+	{
+		ChatMessage message = new ChatMessage(sender.getPrefix(), buffer, start, length); // Encoded once per format for the whole room
+		lock.lock();
+		try
+		{
+			if (!closed)
+			{
+				message.setSequence(epoch, ++sequence);
+				history.add(sender.getPrefix(), buffer, start, length, sequence);
+				if (MessageLog.getInstance() != null || Cluster.getInstance() != null)
+				{
+					String text = message.getText().substring(sender.getID().length() + 2); // Only they need the text, without the prefix
+					if (MessageLog.getInstance() != null)
+						MessageLog.getInstance().append(name, sender.getID(), text);
+					if (Cluster.getInstance() != null)
+						Cluster.getInstance().post(name, sender.getID(), text);
+				}
+				broadcast(message);
+			}
+		}
+		finally
+		{
+			lock.unlock();
+		}
+		SharedBuffer line = message.getUtf8().retain();
+		message.release();
+		return line;
+	}
+	
+	/**
+	 * Queues a message relayed from another node of the Cluster for every member and keeps it in the history, without relaying it again
+	 * @param sender
+	 * 			Username of the sender
+	 * @param text
+	 * 			Message text
+	 * @return
+	 * 			Message as broadcast, led by the sender
+	 */
+	public String relayed(String sender, String text)
+	{
+		return post(sender, text, false);
+	}
+	
+	/**
+	 * Queues a message for every member and keeps it in the history
+	 * @param relay
+	 * 			Whether the message was said on this node and goes to the other nodes of the Cluster too
+	 */
+	private String post(String sender, String text, boolean relay)
+	{
+		ChatMessage message = new ChatMessage(sender + ": " + text); // Encoded once per format for the whole room
+		lock.lock();
+		try
+		{
+			if (!closed) // A relayed message may arrive as the room empties, when nobody is left to see it
+			{
+				message.setSequence(epoch, ++sequence);
+				history.add(sender, text, sequence); // In the same order as the broadcasts
+				if (MessageLog.getInstance() != null)
+					MessageLog.getInstance().append(name, sender, text); // Staged in the same order, as it is under the room's lock, without waiting on the log
+				if (relay && Cluster.getInstance() != null)
+					Cluster.getInstance().post(name, sender, text); // Other nodes see the room's messages in the same order too
+				broadcast(message);
+			}
+		}
+		finally
+		{
+			lock.unlock();
+		}
+		message.release();
+		return message.getText();
+	}
+	
+	/**
+	 * Adds a message recovered from the MessageLog to the history, without sending it to anyone
+	 * @param sender
+	 * 			Username of the sender
+	 * @param text
+	 * 			Message text
+	 */
+	public void restore(String sender, String text)
+	{
+		lock.lock();
+		try
+		{
+			history.add(sender, text, ++sequence);
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+	
+	/**
+	 * Queues a message for every member, in the same order for all of them
+	 * @param message
+	 * 			Message, encoded at most once per format
+	 */
+	public void broadcast(ChatMessage message)
+	{
+		lock.lock();
+		try
+		{
+			for (int i = 0; i < count; i++)
+			{
+				Session session = recipients[i];
+				session.send(message.encoded(session.getFormat()));
+			}
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+}
@@ -0,0 +1,372 @@
+/**
+ * Version 1.0
+ * Author: MK2022
+ * Date: 18/10/2026
+ * 
+ * The RoomHistory class keeps the last messages said in a room so they can be replayed to users who join later.
+ * Each message is stored as the line it was broadcast as, sender included, as UTF-8 in an off-heap ring of bytes taken from the
+ * SharedBuffer pool. The sender is copied from its connection's cached prefix, so keeping a full history creates no garbage,
+ * and nothing about a message outlives it once it has been dropped. The oldest messages are dropped when either
+ * the entry limit or the ring's bytes run out. Replay builds every message requested into one buffer, in the wire format of the
+ * client, so it is queued and written as a single batch.
+ * Each entry keeps its sequence number in the room, so a client under reliable delivery can be sent just the messages after the last one
+ * it had, each led by its SEQUENCE frame, as long as they have not been dropped.
+ * Not thread safe, a history is only used while holding its room's lock
+ */
+import java.nio.ByteBuffer; // Necessary imports
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+
+
+public class RoomHistory
+{
+	
+	private static final byte[] SEPARATOR = ": ".getBytes(Frame.CHARSET); // Between the sender and the message, as in a broadcast
+	private static final byte[] NONE = new byte[0]; // Prefix of a line already encoded whole
+	private static final byte[] NEWLINE = System.lineSeparator().getBytes(SharedBuffer.CHARSET); // Ends each message in the text format
+	private static final boolean UTF8_TEXT = SharedBuffer.UTF8_TEXT; // Whether stored bytes can be copied straight into text lines
+	private static final int TEXT_BYTES_PER_CHAR = (int) Math.ceil(SharedBuffer.CHARSET.newEncoder().maxBytesPerChar()); // For sizing text lines otherwise
+	
+	private static int maxEntries = 100; // Messages kept per room
+	private static int ringBytes = 65536; // Bytes of message text kept per room
+	private static int replayCount = 20; // Messages replayed when a user joins
+	
+	private static ThreadLocal<CharsetEncoder> encoders = new ThreadLocal<CharsetEncoder>()
+	{
+		protected CharsetEncoder initialValue()
+		{
+			return Frame.CHARSET.newEncoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+		}
+	};
+	private static ThreadLocal<ByteBuffer> scratch = new ThreadLocal<ByteBuffer>() // Message being encoded before it is copied into a ring
+	{
+		protected ByteBuffer initialValue()
+		{
+			return ByteBuffer.allocate(4096);
+		}
+	};
+	
+	private SharedBuffer storage; // Ring of message bytes, null until the first message
+	private ByteBuffer ring; // Contents of storage
+	private int[] starts; // Index in the ring of each entry's line, entries are themselves a ring of maxEntries
+	private int[] lengths; // Bytes of each entry's line, sender and text
+	private long[] sequences; // Sequence number of each entry in its room, rising from head
+	private int head; // Oldest entry
+	private int count; // Entries kept
+	private int used; // Ring bytes used by the entries kept
+	
+	/**
+	 * Reads history options from the command line, ignoring options it does not know
+	 * @param args
+	 * 			Command line arguments, given as option and value pairs
+	 */
+	public static void configure(String[] args)
+	{
+		for (int i = 0; i + 1 < args.length; i += 2)
+		{
+			if (args[i].equalsIgnoreCase("-history")) // 0 turns history off
+				maxEntries = Integer.parseInt(args[i + 1]);
+			else if (args[i].equalsIgnoreCase("-historybytes"))
+				ringBytes = Integer.parseInt(args[i + 1]);
+			else if (args[i].equalsIgnoreCase("-replay"))
+				replayCount = Integer.parseInt(args[i + 1]);
+		}
+	}
+	
+	/**
+	 * @return
+	 * 			Messages replayed when a user joins
+	 */
+	public static int getReplayCount()
+	{
+		return replayCount;
+	}
+	
+	/**
+	 * @return
+	 * 			Messages kept per room, the most a user can ask to see again
+	 */
+	public static int getMaxEntries()
+	{
+		return maxEntries;
+	}
+	
+	/**
+	 * Stores a message, dropping the oldest ones if there is no room
+	 * @param sender
+	 * 			Username of the sender
+	 * @param text
+	 * 			Message text, without the sender
+	 * @param sequence
+	 * 			Sequence number of the message in the room
+	 */
+	public void add(String sender, String text, long sequence)
+	{
+		if (maxEntries <= 0)
+			return;
+		ByteBuffer bytes = encode(sender, text);
+		add(NONE, bytes, 0, bytes.remaining(), sequence);
+	}
+	
+	/**
+	 * Stores a message already encoded as UTF-8, dropping the oldest ones if there is no room
+	 * @param prefix
+	 * 			UTF-8 bytes of the sender's username and the separator, as they lead the broadcast
+	 * @param bytes
+	 * 			Buffer holding the message text, without the sender
+	 * @param offset
+	 * 			Index of the text in the buffer
+	 * @param length
+	 * 			Bytes of the text
+	 * @param sequence
+	 * 			Sequence number of the message in the room
+	 */
+	public void add(byte[] prefix, ByteBuffer bytes, int offset, int length, long sequence)
+	{
+		if (maxEntries <= 0)
+			return;
+		if (storage == null)
+		{
+			storage = SharedBuffer.allocateShared(ringBytes);
+			ring = storage.contents();
+			starts = new int[maxEntries];
+			lengths = new int[maxEntries];
+			sequences = new long[maxEntries];
+		}
+		int size = prefix.length + length;
+		if (size > ring.capacity())
+			return; // Larger than the whole history, not kept
+		while (count == maxEntries || ring.capacity() - used < size) // Drops the oldest until the message fits
+		{
+			used -= lengths[head];
+			head = (head + 1) % maxEntries;
+			count--;
+		}
+		int start = count == 0 ? 0 : (starts[last()] + lengths[last()]) % ring.capacity();
+		int before = Math.min(prefix.length, ring.capacity() - start); // Bytes before the end of the ring, the rest wrap to its start
+		ring.put(start, prefix, 0, before);
+		ring.put(0, prefix, before, prefix.length - before);
+		int at = (start + prefix.length) % ring.capacity();
+		before = Math.min(length, ring.capacity() - at);
+		ring.put(at, bytes, offset, before);
+		ring.put(0, bytes, offset + before, length - before);
+		int entry = (head + count) % maxEntries;
+		starts[entry] = start;
+		lengths[entry] = size;
+		sequences[entry] = sequence;
+		count++;
+		used += size;
+	}
+	
+	/**
+	 * @return
+	 * 			Number of messages kept
+	 */
+	public int size()
+	{
+		return count;
+	}
+	
+	/**
+	 * @return
+	 * 			Newest entry
+	 */
+	private int last()
+	{
+		return (head + count - 1) % maxEntries;
+	}
+	
+	/**
+	 * Encodes a message as UTF-8, led by its sender as in a broadcast, into this thread's scratch buffer, growing it if needed
+	 * @return
+	 * 			Scratch buffer holding the encoded line, in read mode
+	 */
+	private static ByteBuffer encode(String sender, String text)
+	{
+		ByteBuffer bytes = scratch.get();
+		int most = (sender.length() + text.length()) * 3 + SEPARATOR.length;
+		if (bytes.capacity() < most)
+		{
+			bytes = ByteBuffer.allocate(most);
+			scratch.set(bytes);
+		}
+		bytes.clear();
+		CharsetEncoder encoder = encoders.get();
+		encoder.reset();
+		encoder.encode(CharBuffer.wrap(sender), bytes, true);
+		encoder.flush(bytes);
+		bytes.put(SEPARATOR);
+		encoder.reset();
+		encoder.encode(CharBuffer.wrap(text), bytes, true);
+		encoder.flush(bytes);
+		bytes.flip();
+		return bytes;
+	}
+	
+	/**
+	 * Builds the newest messages into one buffer for a client
+	 * @param wanted
+	 * 			Number of messages wanted
+	 * @param format
+	 * 			Wire format of the client
+	 * @return
+	 * 			SharedBuffer with one reference, which the caller must release, or null if there is nothing to replay
+	 */
+	public SharedBuffer replay(int wanted, int format)
+	{
+		int n = Math.min(wanted, count);
+		if (n <= 0)
+			return null;
+		return replay(n, format & ~ChatMessage.SEQUENCED, 0); // Not numbered, so history asked for is never taken for messages already had
+	}
+	
+	/**
+	 * @param after
+	 * 			Sequence number of the last message a client has
+	 * @return
+	 * 			Sequence number of the oldest message kept after it, or -1 if none are kept
+	 */
+	public long firstAfter(long after)
+	{
+		int n = countAfter(after);
+		return n == 0 ? -1 : sequences[(head + count - n) % maxEntries];
+	}
+	
+	/**
+	 * Builds every message kept after the last one a client has into one buffer, each led by its SEQUENCE frame
+	 * @param after
+	 * 			Sequence number of the last message the client has
+	 * @param epoch
+	 * 			Epoch of the room, which the SEQUENCE frames carry
+	 * @param format
+	 * 			Wire format of the client, FRAMED or COMPRESSED with SEQUENCED
+	 * @return
+	 * 			SharedBuffer with one reference, which the caller must release, or null if no later message is kept
+	 */
+	public SharedBuffer replayAfter(long after, long epoch, int format)
+	{
+		int n = countAfter(after);
+		if (n == 0)
+			return null;
+		return replay(n, format, epoch);
+	}
+	
+	/**
+	 * @return
+	 * 			Number of newest entries with a sequence number after the one given
+	 */
+	private int countAfter(long after)
+	{
+		int n = 0;
+		while (n < count && sequences[(head + count - 1 - n) % maxEntries] > after)
+			n++;
+		return n;
+	}
+	
+	/**
+	 * Builds the newest entries into one buffer
+	 * @param n
+	 * 			Number of entries, at least 1
+	 * @param format
+	 * 			Wire format of the client, entries being led by SEQUENCE frames if it includes SEQUENCED
+	 * @param epoch
+	 * 			Epoch of the room, for SEQUENCE frames
+	 * @return
+	 * 			SharedBuffer with one reference, which the caller must release
+	 */
+	private SharedBuffer replay(int n, int format, long epoch)
+	{
+		boolean sequenced = (format & ChatMessage.SEQUENCED) != 0;
+		format &= ~ChatMessage.SEQUENCED;
+		int first = (head + count - n) % maxEntries;
+		int size = 0;
+		for (int i = 0; i < n; i++)
+		{
+			int entry = (first + i) % maxEntries;
+			int text = lengths[entry];
+			size += format == ChatMessage.TEXT ? (UTF8_TEXT ? text : text * TEXT_BYTES_PER_CHAR) + NEWLINE.length : Frame.HEADER + text;
+			if (sequenced)
+				size += Frame.HEADER + 40; // Room for two longs as text
+		}
+		SharedBuffer batch = SharedBuffer.allocateShared(size);
+		ByteBuffer out = batch.contents();
+		for (int i = 0; i < n; i++)
+		{
+			int entry = (first + i) % maxEntries;
+			if (sequenced)
+			{
+				byte[] number = (epoch + ":" + sequences[entry]).getBytes(Frame.CHARSET);
+				out.put((byte) Frame.SEQUENCE).put((byte) 0).putInt(number.length).put(number);
+			}
+			if (format == ChatMessage.TEXT && UTF8_TEXT)
+			{
+				copy(entry, out);
+				out.put(NEWLINE);
+			}
+			else if (format == ChatMessage.TEXT)
+				out.put((toString(entry) + System.lineSeparator()).getBytes(SharedBuffer.CHARSET)); // Rare, for servers whose default charset is not UTF-8
+			else
+				frame(entry, format, out);
+		}
+		return batch.seal();
+	}
+	
+	/**
+	 * Writes one entry as a MESSAGE frame, compressed if the client agreed to compression and it is large enough
+	 */
+	private void frame(int entry, int format, ByteBuffer out)
+	{
+		int text = lengths[entry];
+		if (format == ChatMessage.COMPRESSED && text >= Compression.getThreshold())
+		{
+			SharedBuffer compressed = Compression.compress(toString(entry));
+			if (compressed != null)
+			{
+				out.put(compressed.view()); // Smaller than the plain frame, so it fits
+				compressed.release();
+				return;
+			}
+		}
+		out.put((byte) Frame.MESSAGE).put((byte) 0).putInt(text);
+		copy(entry, out);
+	}
+	
+	/**
+	 * Copies an entry's sender and text, as UTF-8, to a buffer
+	 */
+	private void copy(int entry, ByteBuffer out)
+	{
+		int start = starts[entry];
+		int before = Math.min(lengths[entry], ring.capacity() - start); // Bytes before the end of the ring, the rest wrapped to its start
+		out.put(out.position(), ring, start, before);
+		out.put(out.position() + before, ring, 0, lengths[entry] - before);
+		out.position(out.position() + lengths[entry]);
+	}
+	
+	/**
+	 * @return
+	 * 			Entry as it was broadcast, sender then text
+	 */
+	private String toString(int entry)
+	{
+		byte[] text = new byte[lengths[entry]];
+		int before = Math.min(text.length, ring.capacity() - starts[entry]);
+		ring.get(starts[entry], text, 0, before);
+		ring.get(0, text, before, text.length - before);
+		return new String(text, Frame.CHARSET);
+	}
+	
+	/**
+	 * Returns the ring to the SharedBuffer pool, called when the room closes
+	 */
+	public void release()
+	{
+		if (storage != null)
+			storage.release();
+		storage = null;
+		ring = null;
+		count = 0;
+		used = 0;
+	}
+}
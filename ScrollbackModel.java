@@ -0,0 +1,77 @@
+/**
+ * Version 1.0
+ * Author: MK2022
+ * Date: 18/10/2026
+ *
+ * The ScrollbackModel class holds the lines shown in a chat window's JList, in a ring of fixed capacity.
+ * Once the ring is full each new line evicts the oldest, so the memory a session uses does not grow however long it runs,
+ * and lines are added in batches so the list is told of a whole batch in one event rather than one per line.
+ * It is a Swing model, so it must only be used on the event dispatch thread
+ */
+import java.util.List; // Necessary imports
+import javax.swing.AbstractListModel;
+
+
+public class ScrollbackModel extends AbstractListModel<String>
+{
+
+	private static final long serialVersionUID = 1L; // Version of the serialized form
+	private String[] lines; // Ring of lines, oldest at start
+	private int start; // Index of the oldest line
+	private int size; // Lines held
+
+	/**
+	 * Constructor for ScrollbackModel
+	 * @param capacity
+	 * 			Most lines kept, older lines are evicted past this
+	 */
+	public ScrollbackModel(int capacity)
+	{
+		lines = new String[Math.max(capacity, 1)];
+	}
+
+	/**
+	 * Adds lines after the newest, evicting the oldest lines past the capacity
+	 * @param batch
+	 * 			Lines to add, in order
+	 */
+	public void addAll(List<String> batch)
+	{
+		int from = Math.max(batch.size() - lines.length, 0); // Lines which would be evicted straight away are never added
+		int adding = batch.size() - from;
+		if (adding == 0)
+			return;
+		int evicted = Math.max(size + adding - lines.length, 0);
+		if (evicted > 0)
+		{
+			for (int i = 0; i < evicted; i++)
+				lines[(start + i) % lines.length] = null;
+			start = (start + evicted) % lines.length;
+			size -= evicted;
+			fireIntervalRemoved(this, 0, evicted - 1);
+		}
+		for (int i = from; i < batch.size(); i++)
+			lines[(start + size++) % lines.length] = batch.get(i);
+		fireIntervalAdded(this, size - adding, size - 1);
+	}
+
+	/**
+	 * @return
+	 * 			Lines held
+	 */
+	public int getSize()
+	{
+		return size;
+	}
+
+	/**
+	 * @param index
+	 * 			Position of a line, 0 being the oldest held
+	 * @return
+	 * 			The line
+	 */
+	public String getElementAt(int index)
+	{
+		return lines[(start + index) % lines.length];
+	}
+}
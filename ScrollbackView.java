@@ -0,0 +1,105 @@
+/**
+ * Version 1.0
+ * Author: MK2022
+ * Date: 18/10/2026
+ *
+ * The ScrollbackView class is the scrolling list of lines in the client and server windows.
+ * Lines may be written from any thread, they are queued and added to the list in one batch per frame on the event dispatch thread,
+ * and only the last lines of scrollback are kept, so a busy room neither freezes the window nor fills the heap.
+ * The list only paints the lines in view, and every line is as tall as the others, so it never measures lines out of view
+ */
+import java.awt.FontMetrics; // Necessary imports
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.swing.JList;
+import javax.swing.JScrollBar;
+import javax.swing.JScrollPane;
+import javax.swing.Timer;
+
+
+public class ScrollbackView extends JScrollPane
+{
+
+	private static final long serialVersionUID = 1L; // Version of the serialized form
+	private JList<String> list; // Displays the lines
+	private ScrollbackModel lines; // Lines in the list
+	private int capacity; // Most lines kept
+	private ConcurrentLinkedQueue<String> pending = new ConcurrentLinkedQueue<String>(); // Lines written but not yet in the list
+	private AtomicInteger pendingCount = new AtomicInteger(); // Lines in pending
+	private ArrayList<String> batch = new ArrayList<String>(); // Lines being moved to the list, only used on the event dispatch thread
+	private int widest; // Width of the widest line so far, in pixels
+
+	/**
+	 * Constructor for ScrollbackView, starts the timer which updates the list
+	 * @param capacity
+	 * 			Most lines kept, older lines are evicted past this
+	 * @param frameRate
+	 * 			Most times a second the list is updated
+	 */
+	public ScrollbackView(int capacity, int frameRate)
+	{
+		this.capacity = Math.max(capacity, 1);
+		lines = new ScrollbackModel(this.capacity);
+		list = new JList<String>(lines);
+		list.setPrototypeCellValue("Wg"); // Every line is as tall as this
+		widest = list.getFixedCellWidth();
+		setViewportView(list);
+
+		Timer frames = new Timer(1000 / Math.max(frameRate, 1), new ActionListener() // Swing timers fire on the event dispatch thread
+		{
+			public void actionPerformed(ActionEvent action)
+			{
+				flush();
+			}
+		});
+		frames.start();
+	}
+
+	/**
+	 * Writes a line, from any thread
+	 * @param line
+	 * 			Line to be shown by the next frame
+	 */
+	public void write(String line)
+	{
+		if (line == null)
+			return; // Nothing to show, and the queue cannot hold it
+		pending.offer(line);
+		if (pendingCount.incrementAndGet() > capacity && pending.poll() != null) // Would be evicted as soon as it was shown
+			pendingCount.decrementAndGet();
+	}
+
+	/**
+	 * Moves the lines written since the last frame to the list, on the event dispatch thread
+	 */
+	private void flush()
+	{
+		String line;
+		while ((line = pending.poll()) != null)
+		{
+			pendingCount.decrementAndGet();
+			batch.add(line);
+		}
+		if (batch.isEmpty())
+			return;
+
+		JScrollBar bar = getVerticalScrollBar();
+		boolean following = bar.getValue() + bar.getVisibleAmount() >= bar.getMaximum() - list.getFixedCellHeight(); // Scrolled to the newest line
+		FontMetrics metrics = list.getFontMetrics(list.getFont());
+		int width = widest;
+		for (int i = Math.max(batch.size() - capacity, 0); i < batch.size(); i++)
+			width = Math.max(width, metrics.stringWidth(batch.get(i)) + 8); // Leaves room for the cell's border
+		if (width > widest)
+		{
+			widest = width;
+			list.setFixedCellWidth(widest); // Measured as lines arrive rather than by the list going over every line
+		}
+		lines.addAll(batch);
+		batch.clear();
+		if (following)
+			list.ensureIndexIsVisible(lines.getSize() - 1); // Keeps showing the newest line unless the user has scrolled back
+	}
+}
@@ -3,27 +3,46 @@
  * Author: MK2022
  * Date: 06/03/2018
  * 
- * The MutliClientServer class handles connections to clients, using a thread to listen for messages  which are broadcast to all connected clients
+ * The MutliClientServer class handles connections to clients, using a thread to listen for messages  which the ChatRouter broadcasts to the client's room
+ * Messages to a client wait in its OutboundQueue and are written by a separate writer thread, so a slow client cannot hold up a broadcast.
+ * A broadcast is encoded once per wire format into a SharedBuffer which every client's queue shares.
+ * Messages are read from the socket's channel into a buffer, where a FrameDecoder finds text lines or, once the handshake agrees on them, binary frames.
+ * A plain message which is valid UTF-8 is relayed to the room straight from the buffer, behind the user's cached prefix, without being decoded.
+ * With TLS on both threads go through a TlsChannel, the handshake being done on this connection's own thread as it first reads
  */
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ProtocolException;
 import java.net.Socket;
 import java.net.SocketException;
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SocketChannel;
+import javax.net.ssl.SSLException;
 
 
-public class ServerConnection implements Runnable
+public class ServerConnection implements Runnable, Session, Heartbeat.Target
 {
 
 	private Socket s; // Socket used in given connection
-	private static ArrayList<PrintWriter> connections = new ArrayList<PrintWriter>(); // ArrayList of PrintWriters. Is static so all instances have access to all PrintWriters
-	private boolean thread; // Boolean value used in while loop in thread
-	private PrintWriter out; // PrintWriter for given connection
+	private volatile TlsChannel tls; // Encrypts the socket, null without TLS, set before anything is queued for the writer
+	private InetAddress source; // Address the client connected from, its Admission place is released once it has gone
+	private static ConnectionRegistry connections = ConnectionRegistry.getInstance(); // Registry of all connections. Is shared so all instances have access to all connections
+	private static ChatRouter router = ChatRouter.getInstance(); // Rooms, and what to do with each message
+	private volatile boolean thread; // Boolean value used in while loop in thread
+	private OutboundQueue queue = new OutboundQueue(); // Messages waiting to be written to this client
+	private volatile String reason; // Why the server disconnected this client, null if the client left by itself
+	private long sessionID = connections.nextSessionID(); // Key of this connection in the registry
 	private String id; // User ID
+	private byte[] prefix; // UTF-8 bytes of the user ID and ": ", leading each of the user's messages
+	private Position resume; // Position the client asked to resume from in its hello line, null if none
+	private volatile Room room; // Room the user is in
 	private ServerGUI sg;
 	private boolean gui;
+	private TokenBucket bucket = RateLimiter.newConnectionBucket(); // Limits how quickly this user may send messages
+	private ByteBuffer in; // Bytes read from the client, in read mode between reads
+	private FrameDecoder decoder = new FrameDecoder(); // Finds messages in the read buffer
+	private Heartbeat heartbeat = Heartbeat.watch(this); // Reaps the connection if the client goes quiet and does not answer pings
 	//private ChatServer cs;
 	
 	/**
@@ -35,6 +54,7 @@ public class ServerConnection implements Runnable
 	{
 		this.sg = sg;
 		this.s = s;
+		this.source = s.getInetAddress();
 		this.gui = true;
 		thread = true;
 	}
@@ -47,6 +67,7 @@ public class ServerConnection implements Runnable
 	public ServerConnection(Socket s)
 	{
 		this.s = s;
+		this.source = s.getInetAddress();
 		this.gui = false;
 		thread = true;
 	}
@@ -54,80 +75,252 @@ public class ServerConnection implements Runnable
 	/**
 	 * Method to stop thread by setting variable to false
 	 */
-	public synchronized void stopThread()
+	public void stopThread()
 	{
 		thread = false;
 	}
 	
 	/**
-	 * Adds an element to ArrayList of PrinWriters
+	 * Adds this connection to the registry
 	 */
-	private synchronized void addConnection()
+	private void addConnection()
 	{
-		connections.add(out);
+		connections.register(this);
 	}
 	
 	/**
-	 * Method to return a PrintWriter at a given index in ArrayList
-	 * @param connection
-	 * 			Index of PrintWriter desired
 	 * @return
-	 * 			PrintWriter object
+	 * 			Key of this connection in the registry
 	 */
-	private static synchronized PrintWriter getConnection(int connection)
+	public long getSessionID()
 	{
-		return connections.get(connection);
+		return sessionID;
+	}
+	
+	/**
+	 * @return
+	 * 			User ID, null until the client has sent it
+	 */
+	public String getID()
+	{
+		return id;
+	}
+	
+	/**
+	 * @return
+	 * 			UTF-8 bytes of the user ID followed by ": ", null until it has been received
+	 */
+	public byte[] getPrefix()
+	{
+		return prefix;
+	}
+	
+	/**
+	 * @return
+	 * 			Queue of messages waiting to be written to this client
+	 */
+	public OutboundQueue getQueue()
+	{
+		return queue;
+	}
+	
+	/**
+	 * @return
+	 * 			Room the user is in
+	 */
+	public Room getRoom()
+	{
+		return room;
+	}
+	
+	/**
+	 * @param room
+	 * 			Room the user has joined
+	 */
+	public void setRoom(Room room)
+	{
+		this.room = room;
+	}
+	
+	/**
+	 * Closes the connection without informing other users, used when the server shuts down
+	 */
+	public void close()
+	{
+		stopThread();
+		try {
+			s.close();
+		} catch (IOException e) 
+		{	
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * @return
+	 * 			Runnable which writes this client's queued messages to its socket, started alongside the connection thread
+	 */
+	public Runnable getWriter()
+	{
+		return new Writer();
+	}
+	
+	/**
+	 * @return
+	 * 			Wire format agreed in the handshake
+	 */
+	public int getFormat()
+	{
+		return queue.getFormat();
+	}
+	
+	/**
+	 * Queues a message for this client only
+	 * @param message
+	 * 			Message to be sent
+	 */
+	public void send(String message)
+	{
+		SharedBuffer buffer = ChatMessage.encode(message, queue.getFormat());
+		send(buffer);
+		buffer.release();
+	}
+	
+	/**
+	 * Queues an encoded message for this client, disconnecting it if it has fallen too far behind
+	 * @param message
+	 * 			Encoded message, retained by the queue
+	 */
+	public void send(SharedBuffer message)
+	{
+		if (!queue.offer(message))
+			kick(OutboundQueue.SLOW_REASON);
+	}
+	
+	/**
+	 * Sends the client a PING frame, it answers with a PONG
+	 */
+	public void ping()
+	{
+		SharedBuffer ping = SharedBuffer.frame(Frame.PING, 0, "");
+		send(ping);
+		ping.release();
+	}
+	
+	/**
+	 * Disconnects a client which has stopped answering
+	 * @param reason
+	 * 			Reason given to other users
+	 */
+	public void timeOut(String reason)
+	{
+		kick(reason);
+	}
+	
+	/**
+	 * Disconnects the client from another thread by closing its socket, which ends the reading and writing threads
+	 * @param reason
+	 * 			Reason given to other users
+	 */
+	private void kick(String reason)
+	{
+		this.reason = reason;
+		thread = false;
+		try {
+			s.close();
+		} catch (IOException e) 
+		{	
+			e.printStackTrace();
+		}
 	}
 	
 	/**
 	 * Prints a message to server output, either console or GUI
 	 * @param msg
-	 * 			Message to write to GUI
+	 * 			Message to write to GUI, nothing is written if null
 	 */
-	private synchronized void output(String msg)
+	private void output(String msg)
 	{
-		if (gui)
-			sg.write(msg);
-		else
-			System.out.println(msg);
+		ServerLog.write(msg); // Queued, so this thread never waits for the console or GUI
 	}
 	
 	/**
-	 * Method to print a given string to all clients
-	 * @param message
-	 * 			Message to be broadcast
+	 * Method to disconnect the client handled by this instance of a MultiClientServer
 	 */
-	private void printToAll(String message)
+	private void disconnectClient() 
 	{
-		for (int i = 0; i < connections.size(); i++)
+		heartbeat.stop();
+		if (in != null)
 		{
-			
-			getConnection(i).println(message); // Gets a PrintWriter object and prints to it
+			BufferPool.release(in); // Read buffer goes back to the pool
+			in = null;
 		}
-		output(message);
+		connections.unregister(this); // Removes connection from registry
+		queue.close(); // Writer thread writes what is left, then closes the Socket
+		Admission.release(source); // Makes room for another connection
+		output(router.leave(this, reason)); // Informs the rest of the room, unless the client left before sending a user ID
 	}
 	
 	/**
-	 * Method to disconnect the client handled by this instance of a MultiClientServer
+	 * Reads from the socket until a complete message is in the read buffer
+	 * @return
+	 * 			False if the client closed the connection first
+	 * @throws IOException
+	 * 			If reading fails or the client sends a message which is too long
 	 */
-	private synchronized void disconnectClient() 
+	private boolean readFrame() throws IOException
 	{
-		for (int i = 0; i < connections.size(); i++)
+		while (!decoder.next(in))
 		{
-			if(getConnection(i) == out) // Finds correct index
-			{
-				try {
-					out.close(); // Closes PrintWriter and Socket
-					s.close();
-				} catch (IOException e) 
-				{	
-					e.printStackTrace();
-				}
-				connections.remove(i); // Removes PrintWriter from ArrayList
-				break;
-			}
+			in = FrameDecoder.compact(in);
+			int n = tls != null ? tls.read(in) : s.getChannel().read(in);
+			in.flip();
+			if (n < 0)
+				return false;
+			Metrics.BYTES_IN.add(n);
+			heartbeat.read(); // Any bytes show the client is still there
 		}
-		printToAll("User " + id + " has disconnected"); // Informs other users that a user has disconnected
+		return true;
+	}
+	
+	/**
+	 * @return
+	 * 			Payload of the message just read, as text
+	 */
+	private String readText()
+	{
+		return decoder.getText(in, SharedBuffer.CHARSET);
+	}
+	
+	/**
+	 * Reads the handshake and the user ID. A client offering framing sends a hello line first and is answered before both switch,
+	 * any other client sends its user ID straight away and keeps the text protocol
+	 * @return
+	 * 			User ID, or null if the client left first
+	 * @throws IOException
+	 * 			If reading fails or the client breaks the protocol
+	 */
+	private String readID() throws IOException
+	{
+		if (!readFrame())
+			return null;
+		String first = readText();
+		if (!Handshake.isHello(first))
+			return first;
+		String answer = new Handshake(first).answer();
+		send(answer); // Answered as a text line, the client switches once it has read it
+		if (new Handshake(answer).isBinary())
+		{
+			decoder.setBinary(true);
+			queue.setFormat(new Handshake(answer).getFormat()); // Framed, and compressed and numbered if agreed
+			if (new Handshake(answer).isReliable())
+				resume = new Handshake(first).getResume(); // Used once the user ID is known
+		}
+		if (!readFrame())
+			return null;
+		if (decoder.isBinary() && decoder.getType() != Frame.ID)
+			throw new ProtocolException("Expected ID frame, received " + Frame.typeName(decoder.getType()));
+		return readText();
 	}
 	
 	/**
@@ -137,36 +330,93 @@ public class ServerConnection implements Runnable
 	{
 		try 
 		{
-			InputStreamReader r = new InputStreamReader(s.getInputStream()); // Creates necessary input and output streams
-			BufferedReader clientIn = new BufferedReader(r);
-			out = new PrintWriter(s.getOutputStream(), true);
+			in = BufferPool.acquire(8192); // Input is read from the channel, output is done by the writer thread
+			in.flip(); // Nothing read yet
+			if (Tls.isEnabled())
+				tls = Tls.server(s.getChannel()); // Handshakes as the user ID is first read
 			
-			addConnection(); // Adds PrintWriter to ArrayList
+			id = readID(); // Gets user ID
+			if (id == null)
+				return;
 			
-			id = clientIn.readLine(); // Gets user ID
+			if (!connections.claimName(this, id)) // Usernames are valid and unique
+			{
+				send(ConnectionRegistry.isValidName(id) ? ConnectionRegistry.NAME_TAKEN_NOTICE : ConnectionRegistry.NAME_INVALID_NOTICE);
+				id = null; // Never joined, so nobody is told it left
+				return;
+			}
+			prefix = (id + ": ").getBytes(Frame.CHARSET); // Encoded once, rather than joined to every message
+			addConnection(); // Adds connection to list, once the format its messages are sent in is known
+			heartbeat.joined(s.getChannel(), decoder.isBinary());
 
 			
-			printToAll("User: " + id + " has connected"); // Informs other users that a new user has connected
+			output(router.enter(this, resume)); // Joins the lobby, or the room it is resuming in, and informs the users there
 			
 			while (thread)
 			{
-				String userInput = clientIn.readLine(); // Reads user input
+				boolean read = readFrame();
+				long ingress = System.nanoTime(); // Start of the message's time on the server
+				boolean relay = read && decoder.getType() == Frame.MESSAGE && decoder.isUtf8(in, SharedBuffer.CHARSET)
+					&& (decoder.isBinary() || !decoder.payloadEqualsIgnoreCase(in, "Disconnect me")); // A plain message, relayed from the buffer without being decoded
+				String userInput = read && !relay ? readText() : null; // Reads user input
 				
-				if (userInput != null &&!userInput.equalsIgnoreCase("Disconnect me")) // Checks for disconnect message. Cannot be copied by user since all user messages have ID added to front of String
+				if (decoder.isBinary() && userInput != null && decoder.getType() != Frame.MESSAGE)
 				{
-					printToAll(id + ": " + userInput); // Prints message to all clients, led by user ID
+					if (decoder.getType() == Frame.DISCONNECT)
+						thread = false;
+					else if (decoder.getType() == Frame.PING) // The client checking on the server
+					{
+						SharedBuffer pong = SharedBuffer.frame(Frame.PONG, 0, userInput);
+						send(pong);
+						pong.release();
+					}
+					else if (decoder.getType() == Frame.ACK)
+						router.acknowledge(this, userInput);
+					else if (decoder.getType() == Frame.RESUME) // The client found a gap in its room's messages
+						router.resume(this, userInput);
+				}
+				else if (relay || (userInput != null && (decoder.isBinary() || !userInput.equalsIgnoreCase("Disconnect me")))) // Checks for disconnect message. Cannot be copied by user since all user messages have ID added to front of String
+				{
+					if (RateLimiter.awaitMessage(bucket)) // Waits for a token under the delay policy
+					{
+						String line; // Prints message to the user's room, led by user ID, or runs a command
+						if (relay)
+							line = router.handle(this, in, decoder.getPayloadStart(), decoder.getPayloadLength());
+						else
+							line = router.handle(this, userInput);
+						Metrics.HANDLE.record(System.nanoTime() - ingress);
+						output(line);
+					}
+					else if (RateLimiter.getPolicy() == RateLimiter.Policy.DROP)
+						send(RateLimiter.DROP_NOTICE); // Only the sender is told the message was dropped
+					else
+					{
+						send(RateLimiter.DISCONNECT_NOTICE);
+						thread = false;
+					}
 				}
 				else
 				{
 					thread = false; // Ends loop upon next evaluation of condition
 				}
-				Thread.sleep(250);
 			}
 			
 		} catch (SocketException e) 
 		{
 			// Not much to do here, finally block will handle it
 		}
+		catch (ClosedChannelException e)
+		{
+			// Closed by kick, a heartbeat or shutdown while reading, the reason is already set and the finally block handles it
+		}
+		catch (ProtocolException e)
+		{
+			reason = "protocol error: " + e.getMessage();
+		}
+		catch (SSLException e)
+		{
+			reason = "TLS error: " + e.getMessage(); // Counted in the metrics, the handshake usually failing before a user ID is sent
+		}
 		catch (IOException e) 
 		{
 			e.printStackTrace();
@@ -179,4 +429,58 @@ public class ServerConnection implements Runnable
 			disconnectClient(); // Disconnects client
 		}
 	}
+	
+	/**
+	 * Writes the messages queued for this client, blocking on the socket so the sender's thread never has to.
+	 * Messages already waiting when the writer wakes are written together with one gathering write, and while the client is busy
+	 * the writer lingers within the latency budget to gather more
+	 */
+	private class Writer implements Runnable
+	{
+		public void run()
+		{
+			SocketChannel channel = s.getChannel(); // ChatServer accepts through a ServerSocketChannel so the socket has a channel
+			WriteBatch batch = new WriteBatch();
+			try
+			{
+				SharedBuffer message;
+				long lastFlush = 0; // Time of the last write, which decides whether to linger
+				while ((message = queue.take()) != null)
+				{
+					batch.add(message);
+					batch.fill(queue); // Anything else already waiting goes in the same write
+					long linger = WriteBatch.lingerFor(lastFlush);
+					long deadline = System.nanoTime() + linger;
+					while (linger > 0 && !batch.isFull() && (message = queue.poll(linger)) != null) // Busy, so more is likely on its way
+					{
+						batch.add(message);
+						batch.fill(queue);
+						linger = deadline - System.nanoTime();
+					}
+					batch.write(tls != null ? tls : channel);
+					lastFlush = System.nanoTime();
+				}
+			} catch (IOException e)
+			{
+				// Socket closed or client gone, nothing more to write to
+			} catch (InterruptedException e)
+			{
+				e.printStackTrace();
+			}
+			finally
+			{
+				batch.clear(); // Releases buffers which will now never be written
+				queue.discard();
+				try {
+					if (tls != null)
+						tls.close(); // Closes the socket, then gives back the TLS buffers
+					else
+						s.close(); // Also ends the reading thread if it is still waiting
+				} catch (IOException e) 
+				{	
+					e.printStackTrace();
+				}
+			}
+		}
+	}
 }
@@ -1,11 +1,12 @@
 /**
- * Version 1.1
+ * Version 1.2
  * Author: MK2022
  * Date: 06/03/2018
  * 
  * GUI to handle displaying messages received by a Client object, and for receiving messages for a Client object to transmit to server.
  * Also displays to the user if clients connect or disconnect, or if the connection to the server has dropped, 
  * and provides a button for the user to disconnect from the server.
+ * Server output is written to a ScrollbackView by the ServerLog thread, and shown in batches on the event dispatch thread
  */
 import java.awt.BorderLayout; // Necessary imports
 import java.awt.Color;
@@ -17,15 +18,15 @@ import javax.swing.JButton;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
 import javax.swing.JPanel;
-import javax.swing.JScrollPane;
-import javax.swing.JTextArea;
 import javax.swing.JTextField;
 
 
 public class ServerGUI extends JFrame 
 {
 	
-	private JTextArea chat; // Displays chat messages
+	private static int scrollback = 100000; // Most lines of output kept
+	
+	private ScrollbackView chat; // Displays chat messages
      private JTextField portField; // TextField for user to enter desired message
     private JButton disconnect; // Button to disconnect
     private JButton connect; // Button to connect
@@ -47,10 +48,10 @@ public class ServerGUI extends JFrame
 		this.cs = cs;
 		this.port = port;
 		
-		chat = new JTextArea("Welcome to the Chat room\n", 80, 80); // Sets up elements in GUI
+		chat = new ScrollbackView(scrollback, 30); // Sets up elements in GUI, messages will continue to be able to fit in the window
+		chat.write("Welcome to the Chat room");
 		JPanel chatPanel = new JPanel(new GridLayout(1,1));
-		chatPanel.add(new JScrollPane(chat)); // Using a JScrollPane, messages will continue to be able to fit in the window
-		chat.setEditable(false);
+		chatPanel.add(chat);
 		add(chatPanel, BorderLayout.CENTER); 
 		
 		JPanel messagePanel = new JPanel();
@@ -78,14 +79,23 @@ public class ServerGUI extends JFrame
 	}
 		
 	/**
-	 * Writes a String to the chat field
+	 * Sets the most lines of output kept, must be called before a ServerGUI is created
+	 * @param lines
+	 * 			Lines of scrollback
+	 */
+	public static void setScrollback(int lines)
+	{
+		scrollback = Math.max(lines, 1);
+	}
+	
+	/**
+	 * Writes a String to the chat field, from any thread
 	 * @param str
 	 * 		Message to be written
 	 */
 	public void write(String str) 
 	{
-		chat.append(str + "\n"); // Writes incoming chat message
-		chat.setCaretPosition(chat.getText().length() - 1); // Sets cursor position in chat field
+		chat.write(str); // Shown by the next frame
 	}
 	
 	/**
@@ -0,0 +1,348 @@
+/**
+ * Version 1.0
+ * Author: MK2022
+ * Date: 18/10/2026
+ *
+ * The ServerLog class takes the server's output off the threads handling messages.
+ * Lines are put on a lock-free queue by any number of threads and written in batches by a single background thread,
+ * to the ServerGUI if one is in use, to a rolling file given by -logfile, or otherwise to the console.
+ * The queue holds at most -logqueue lines, and lines written while it is full are dropped and counted rather than waited for,
+ * so a slow console or disk can never hold up chat traffic. The number dropped is written to the log once there is room again.
+ * A line can also be queued as the UTF-8 bytes of a message which was never decoded, which the writer copies out as they are,
+ * so relaying a message creates no String just to log it
+ */
+import java.io.FileOutputStream; // Necessary imports
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+
+public class ServerLog
+{
+
+	private static final int BATCH = 4096; // Most lines written at once
+	private static final byte[] NEWLINE = System.lineSeparator().getBytes(StandardCharsets.US_ASCII);
+
+	private static int capacity = 65536; // Most lines waiting to be written
+	private static volatile String path; // File written to, null for the console
+	private static long fileBytes = 10 * 1024 * 1024; // Size at which the file is rolled
+	private static int files = 5; // Rolled files kept, path.1 being the newest
+	private static volatile ServerGUI gui; // GUI written to, null if it is not used
+
+	private static ConcurrentLinkedQueue<Object> queue = new ConcurrentLinkedQueue<Object>(); // Lines waiting to be written, Strings or retained SharedBuffers
+	private static AtomicInteger queued = new AtomicInteger(); // Lines in queue
+	private static LongAdder dropped = new LongAdder(); // Lines dropped because the queue was full
+	private static AtomicBoolean sleeping = new AtomicBoolean(); // Whether the writer is parked, waiting for lines
+	private static volatile boolean closing; // Whether the JVM is exiting, the writer stops once the queue is empty
+	private static Thread writer; // Writes the lines
+
+	private static ArrayList<Object> batch = new ArrayList<Object>(); // Lines being written, only used by the writer
+	private static byte[] text = new byte[65536]; // Batch joined into one write, only used by the writer
+	private static int textLength; // Bytes of text used
+	private static OutputStream file; // Open log file, written as UTF-8, only used by the writer
+	private static String openPath; // Path file was opened with
+	private static long reported; // Dropped lines already reported in the log
+
+	static
+	{
+		writer = new Thread(new Runnable()
+		{
+			public void run()
+			{
+				drain();
+			}
+		}, "server-log");
+		writer.setDaemon(true);
+		writer.start();
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() // Writes what is left before the JVM exits
+		{
+			public void run()
+			{
+				closing = true;
+				LockSupport.unpark(writer);
+				try
+				{
+					writer.join(TimeUnit.SECONDS.toMillis(2));
+				} catch (InterruptedException e)
+				{
+					// Exiting anyway
+				}
+			}
+		}));
+	}
+
+	/**
+	 * Constructor for ServerLog, not used as the log is shared by the whole server
+	 */
+	private ServerLog()
+	{
+	}
+
+	/**
+	 * Reads logging options from the command line, ignoring options it does not know
+	 * @param args
+	 * 			Command line arguments, given as option and value pairs
+	 */
+	public static void configure(String[] args)
+	{
+		for (int i = 0; i + 1 < args.length; i += 2)
+		{
+			if (args[i].equalsIgnoreCase("-logfile"))
+				path = args[i + 1];
+			else if (args[i].equalsIgnoreCase("-logfilesize") && ChatClient.isInt(args[i + 1]))
+				fileBytes = Math.max(Long.parseLong(args[i + 1]), 1);
+			else if (args[i].equalsIgnoreCase("-logfiles") && ChatClient.isInt(args[i + 1]))
+				files = Integer.parseInt(args[i + 1]);
+			else if (args[i].equalsIgnoreCase("-logqueue") && ChatClient.isInt(args[i + 1]))
+				capacity = Math.max(Integer.parseInt(args[i + 1]), 1);
+			else if (args[i].equalsIgnoreCase("-scrollback") && ChatClient.isInt(args[i + 1]))
+				ServerGUI.setScrollback(Integer.parseInt(args[i + 1]));
+		}
+	}
+
+	/**
+	 * Sends output to a GUI rather than the console
+	 * @param sg
+	 * 			GUI to write to
+	 */
+	public static void useGUI(ServerGUI sg)
+	{
+		gui = sg;
+	}
+
+	/**
+	 * Queues a line to be written, never waiting
+	 * @param line
+	 * 			Line to write, nothing is written if null
+	 */
+	public static void write(String line)
+	{
+		if (line != null)
+			enqueue(line);
+	}
+
+	/**
+	 * Queues a line held as UTF-8 bytes to be written, never waiting
+	 * @param line
+	 * 			Line to write, without a line ending, retained until it has been written
+	 */
+	public static void write(SharedBuffer line)
+	{
+		enqueue(line);
+	}
+
+	/**
+	 * Puts a line on the queue unless it is full
+	 * @param line
+	 * 			String or SharedBuffer
+	 */
+	private static void enqueue(Object line)
+	{
+		if (queued.incrementAndGet() > capacity) // Full, the writer is behind
+		{
+			queued.decrementAndGet();
+			dropped.increment();
+			return;
+		}
+		if (line instanceof SharedBuffer)
+			((SharedBuffer) line).retain(); // Until the writer has written it
+		queue.offer(line);
+		if (sleeping.get() && sleeping.compareAndSet(true, false)) // Only the first line after the writer parks wakes it
+			LockSupport.unpark(writer);
+	}
+
+	/**
+	 * @return
+	 * 			Lines dropped because the queue was full
+	 */
+	public static long getDropped()
+	{
+		return dropped.sum();
+	}
+
+	/**
+	 * @return
+	 * 			Lines waiting to be written
+	 */
+	public static int getQueued()
+	{
+		return queued.get();
+	}
+
+	/**
+	 * Writer loop, writes batches of lines until the JVM exits
+	 */
+	private static void drain()
+	{
+		while (true)
+		{
+			Object line;
+			while (batch.size() < BATCH && (line = queue.poll()) != null)
+				batch.add(line);
+			if (batch.isEmpty())
+			{
+				if (closing)
+					return;
+				sleeping.set(true);
+				if (queue.isEmpty() && !closing) // A line queued after the check above unparks this thread
+					LockSupport.park();
+				sleeping.set(false);
+				continue;
+			}
+			queued.addAndGet(-batch.size());
+			long lost = dropped.sum() - reported;
+			if (lost > 0)
+			{
+				batch.add(lost + " lines of server output were dropped as the log could not keep up");
+				reported += lost;
+			}
+			output();
+			for (int i = 0; i < batch.size(); i++)
+			{
+				if (batch.get(i) instanceof SharedBuffer)
+					((SharedBuffer) batch.get(i)).release();
+			}
+			batch.clear();
+		}
+	}
+
+	/**
+	 * Writes the batch to the GUI, file or console
+	 */
+	private static void output()
+	{
+		ServerGUI sg = gui;
+		if (sg != null)
+		{
+			for (int i = 0; i < batch.size(); i++)
+			{
+				Object line = batch.get(i);
+				sg.write(line instanceof String ? (String) line : Frame.CHARSET.decode(((SharedBuffer) line).view()).toString()); // Shown together by the GUI's next frame
+			}
+		}
+		String logPath = path;
+		if (sg != null && logPath == null)
+			return;
+
+		join(logPath == null ? SharedBuffer.CHARSET : StandardCharsets.UTF_8); // The console's charset, or UTF-8 for the file
+		if (logPath == null)
+		{
+			System.out.write(text, 0, textLength); // One write and flush for the whole batch
+			System.out.flush();
+			return;
+		}
+		try
+		{
+			if (file == null || !logPath.equals(openPath))
+				open(logPath);
+			file.write(text, 0, textLength);
+			file.flush();
+			if (Files.size(Paths.get(logPath)) >= fileBytes)
+				roll(logPath);
+		} catch (IOException e)
+		{
+			System.out.println("Log file " + logPath + " could not be written, logging to the console: " + e.getMessage());
+			path = null;
+			join(SharedBuffer.CHARSET);
+			System.out.write(text, 0, textLength);
+			System.out.flush();
+		}
+	}
+
+	/**
+	 * Joins the batch into text, one line each, copying lines held as UTF-8 bytes as they are when the charset is UTF-8
+	 * @param charset
+	 * 			Charset to write in
+	 */
+	private static void join(Charset charset)
+	{
+		textLength = 0;
+		for (int i = 0; i < batch.size(); i++)
+		{
+			Object line = batch.get(i);
+			if (line instanceof SharedBuffer && charset.equals(Frame.CHARSET))
+			{
+				SharedBuffer bytes = (SharedBuffer) line;
+				ensure(bytes.length());
+				bytes.copy(text, textLength);
+				textLength += bytes.length();
+			}
+			else
+				append((line instanceof String ? (String) line : Frame.CHARSET.decode(((SharedBuffer) line).view()).toString()).getBytes(charset));
+			append(NEWLINE);
+		}
+	}
+
+	/**
+	 * Adds bytes to text
+	 */
+	private static void append(byte[] bytes)
+	{
+		ensure(bytes.length);
+		System.arraycopy(bytes, 0, text, textLength, bytes.length);
+		textLength += bytes.length;
+	}
+
+	/**
+	 * Grows text if it cannot take more bytes
+	 */
+	private static void ensure(int more)
+	{
+		if (textLength + more > text.length)
+			text = Arrays.copyOf(text, Math.max(text.length * 2, textLength + more));
+	}
+
+	/**
+	 * Opens the log file, appending to it if it exists
+	 * @param logPath
+	 * 			Path of the file
+	 * @throws IOException
+	 * 			If the file cannot be opened
+	 */
+	private static void open(String logPath) throws IOException
+	{
+		if (file != null)
+			file.close();
+		file = null;
+		file = new FileOutputStream(logPath, true);
+		openPath = logPath;
+	}
+
+	/**
+	 * Moves the full log file to path.1, shifting older files up and deleting the oldest, then starts a new file
+	 * @param logPath
+	 * 			Path of the file
+	 * @throws IOException
+	 * 			If the files cannot be moved or the new file opened
+	 */
+	private static void roll(String logPath) throws IOException
+	{
+		file.close();
+		file = null;
+		if (files < 1)
+			Files.delete(Paths.get(logPath)); // No old files are kept
+		else
+		{
+			Files.deleteIfExists(Paths.get(logPath + "." + files));
+			for (int i = files - 1; i >= 1; i--)
+			{
+				if (Files.exists(Paths.get(logPath + "." + i)))
+					Files.move(Paths.get(logPath + "." + i), Paths.get(logPath + "." + (i + 1)), StandardCopyOption.REPLACE_EXISTING);
+			}
+			Files.move(Paths.get(logPath), Paths.get(logPath + ".1"), StandardCopyOption.REPLACE_EXISTING);
+		}
+		open(logPath);
+	}
+}
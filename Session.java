@@ -0,0 +1,75 @@
+/**
+ * Version 1.0
+ * Author: MK2022
+ * Date: 18/10/2026
+ * 
+ * The Session interface is what the ConnectionRegistry knows about a connected client, whichever server engine handles it:
+ * a ServerConnection in blocking or virtual mode, or a NioConnection in nio mode
+ */
+
+
+public interface Session
+{
+	
+	/**
+	 * @return
+	 * 			Identifier given by the ConnectionRegistry, unique for the life of the server
+	 */
+	long getSessionID();
+	
+	/**
+	 * @return
+	 * 			User ID, null until the client has sent it
+	 */
+	String getID();
+	
+	/**
+	 * @return
+	 * 			UTF-8 bytes of the user ID followed by ": ", which lead each of the client's messages, encoded once when the ID is received
+	 */
+	byte[] getPrefix();
+	
+	/**
+	 * @return
+	 * 			Wire format the client agreed in its handshake, ChatMessage.TEXT, FRAMED or COMPRESSED, with SEQUENCED under reliable delivery
+	 */
+	int getFormat();
+	
+	/**
+	 * Queues an encoded message for the client
+	 * @param message
+	 * 			Message encoded in the client's format, retained if it is queued
+	 */
+	void send(SharedBuffer message);
+	
+	/**
+	 * Queues a message for the client
+	 * @param message
+	 * 			Message to be sent
+	 */
+	void send(String message);
+	
+	/**
+	 * @return
+	 * 			Queue of messages waiting to be written to the client
+	 */
+	OutboundQueue getQueue();
+	
+	/**
+	 * @return
+	 * 			Room the client is in, null until the ChatRouter has put it in the lobby
+	 */
+	Room getRoom();
+	
+	/**
+	 * Records the room the client is in, called by the ChatRouter
+	 * @param room
+	 * 			Room the client has joined
+	 */
+	void setRoom(Room room);
+	
+	/**
+	 * Closes the connection without informing other users, used when the server shuts down
+	 */
+	void close();
+}
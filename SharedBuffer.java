@@ -0,0 +1,266 @@
+/**
+ * Version 1.0
+ * Author: MK2022
+ * Date: 18/10/2026
+ *
+ * The SharedBuffer class holds one encoded message in a direct ByteBuffer which every recipient's outbound queue shares.
+ * A broadcast is encoded once, and each recipient writes from its own read-only view of the same bytes.
+ * The buffer is reference counted: each queue holding it retains it, and it goes back to the BufferPool once the last holder releases it
+ */
+import java.nio.ByteBuffer; // Necessary imports
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+
+public class SharedBuffer
+{
+
+	public static final Charset CHARSET = Charset.defaultCharset(); // Same charset PrintWriter and InputStreamReader use on the clients
+	public static final boolean UTF8_TEXT = CHARSET.equals(Frame.CHARSET); // Whether UTF-8 bytes can be copied straight into text lines
+	private static final String NEWLINE = System.lineSeparator(); // Same line ending PrintWriter.println writes
+	private static final byte[] NEWLINE_BYTES = NEWLINE.getBytes(CHARSET);
+
+	private static ThreadLocal<CharsetEncoder> encoders = new ThreadLocal<CharsetEncoder>() // Encoders keep state, so one per thread
+	{
+		protected CharsetEncoder initialValue()
+		{
+			return CHARSET.newEncoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+		}
+	};
+
+	private static ThreadLocal<CharsetEncoder> frameEncoders = new ThreadLocal<CharsetEncoder>() // Frames are always UTF-8
+	{
+		protected CharsetEncoder initialValue()
+		{
+			return Frame.CHARSET.newEncoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+		}
+	};
+
+	private static final AtomicIntegerFieldUpdater<SharedBuffer> REFS = AtomicIntegerFieldUpdater.newUpdater(SharedBuffer.class, "refs");
+
+	private ByteBuffer buffer; // Encoded bytes, from position 0 to the limit
+	private volatile int refs; // Number of holders, updated through REFS so each buffer needs no AtomicInteger of its own
+
+	/**
+	 * Constructor for SharedBuffer, with a single reference held by the creator
+	 * @param buffer
+	 * 			Direct buffer holding the encoded bytes
+	 */
+	private SharedBuffer(ByteBuffer buffer)
+	{
+		this.buffer = buffer;
+		refs = 1;
+	}
+
+	/**
+	 * Encodes a message, followed by a line ending, into a new SharedBuffer
+	 * @param message
+	 * 			Message to be encoded
+	 * @return
+	 * 			SharedBuffer with one reference, which the caller must release
+	 */
+	public static SharedBuffer encode(String message)
+	{
+		CharsetEncoder encoder = encoders.get();
+		int length = message.length() + NEWLINE.length();
+		ByteBuffer buffer = BufferPool.acquire((int) Math.ceil(length * (double) encoder.maxBytesPerChar()));
+		encoder.reset();
+		encoder.encode(CharBuffer.wrap(message), buffer, false);
+		encoder.encode(CharBuffer.wrap(NEWLINE), buffer, true);
+		encoder.flush(buffer);
+		buffer.flip();
+		return new SharedBuffer(buffer);
+	}
+
+	/**
+	 * Encodes a message as a frame, header then UTF-8 payload, into a new SharedBuffer
+	 * @param type
+	 * 			Frame type
+	 * @param flags
+	 * 			Frame flags
+	 * @param payload
+	 * 			Text to be carried
+	 * @return
+	 * 			SharedBuffer with one reference, which the caller must release
+	 */
+	public static SharedBuffer frame(int type, int flags, String payload)
+	{
+		ByteBuffer buffer = BufferPool.acquire(Frame.HEADER + payload.length() * 3); // UTF-8 needs at most 3 bytes per char
+		buffer.position(Frame.HEADER);
+		CharsetEncoder encoder = frameEncoders.get();
+		encoder.reset();
+		encoder.encode(CharBuffer.wrap(payload), buffer, true);
+		encoder.flush(buffer);
+		buffer.put(0, (byte) type).put(1, (byte) flags).putInt(2, buffer.position() - Frame.HEADER);
+		buffer.flip();
+		return new SharedBuffer(buffer);
+	}
+	
+	/**
+	 * Copies an already encoded payload into a frame in a new SharedBuffer
+	 * @param type
+	 * 			Frame type
+	 * @param flags
+	 * 			Frame flags
+	 * @param payload
+	 * 			Payload bytes
+	 * @param length
+	 * 			Number of payload bytes used
+	 * @return
+	 * 			SharedBuffer with one reference, which the caller must release
+	 */
+	public static SharedBuffer frame(int type, int flags, byte[] payload, int length)
+	{
+		ByteBuffer buffer = BufferPool.acquire(Frame.HEADER + length);
+		buffer.put((byte) type).put((byte) flags).putInt(length).put(payload, 0, length);
+		buffer.flip();
+		return new SharedBuffer(buffer);
+	}
+	
+	/**
+	 * Copies UTF-8 text into a frame in a new SharedBuffer, without decoding it
+	 * @param type
+	 * 			Frame type
+	 * @param flags
+	 * 			Frame flags
+	 * @param payload
+	 * 			UTF-8 bytes of the payload
+	 * @return
+	 * 			SharedBuffer with one reference, which the caller must release
+	 */
+	public static SharedBuffer frame(int type, int flags, SharedBuffer payload)
+	{
+		ByteBuffer buffer = BufferPool.acquire(Frame.HEADER + payload.length());
+		buffer.put((byte) type).put((byte) flags).putInt(payload.length()).put(Frame.HEADER, payload.buffer, 0, payload.length());
+		buffer.position(Frame.HEADER + payload.length());
+		buffer.flip();
+		return new SharedBuffer(buffer);
+	}
+	
+	/**
+	 * Copies UTF-8 text, followed by a line ending, into a new SharedBuffer, without decoding it. Only used when the text charset is UTF-8
+	 * @param text
+	 * 			UTF-8 bytes of the message
+	 * @return
+	 * 			SharedBuffer with one reference, which the caller must release
+	 */
+	public static SharedBuffer line(SharedBuffer text)
+	{
+		ByteBuffer buffer = BufferPool.acquire(text.length() + NEWLINE_BYTES.length);
+		buffer.put(0, text.buffer, 0, text.length()).position(text.length());
+		buffer.put(NEWLINE_BYTES);
+		buffer.flip();
+		return new SharedBuffer(buffer);
+	}
+	
+	/**
+	 * Copies bytes from a buffer, after a prefix, into a new SharedBuffer
+	 * @param prefix
+	 * 			Bytes put first
+	 * @param source
+	 * 			Buffer to copy from, its position and limit are not used or moved
+	 * @param start
+	 * 			Index of the first byte to copy
+	 * @param length
+	 * 			Number of bytes to copy
+	 * @return
+	 * 			SharedBuffer with one reference, which the caller must release
+	 */
+	public static SharedBuffer join(byte[] prefix, ByteBuffer source, int start, int length)
+	{
+		ByteBuffer buffer = BufferPool.acquire(prefix.length + length);
+		buffer.put(prefix).put(prefix.length, source, start, length).position(prefix.length + length);
+		buffer.flip();
+		return new SharedBuffer(buffer);
+	}
+	
+	/**
+	 * Creates a SharedBuffer to be filled by the caller through contents, then sealed before it is shared
+	 * @param size
+	 * 			Bytes needed
+	 * @return
+	 * 			SharedBuffer with one reference, which the caller must release
+	 */
+	public static SharedBuffer allocateShared(int size)
+	{
+		return new SharedBuffer(BufferPool.acquire(size));
+	}
+	
+	/**
+	 * @return
+	 * 			Underlying buffer, for filling a SharedBuffer from allocateShared, for storage which is never shared,
+	 * 			or for copying from with absolute gets which leave it as it is
+	 */
+	public ByteBuffer contents()
+	{
+		return buffer;
+	}
+	
+	/**
+	 * Ends filling, so the bytes put in contents are what views and length see
+	 * @return
+	 * 			This SharedBuffer
+	 */
+	public SharedBuffer seal()
+	{
+		buffer.flip();
+		return this;
+	}
+	
+	/**
+	 * Adds a holder, called by each queue the buffer is added to
+	 * @return
+	 * 			This SharedBuffer
+	 */
+	public SharedBuffer retain()
+	{
+		REFS.incrementAndGet(this);
+		return this;
+	}
+
+	/**
+	 * Removes a holder, recycling the buffer when there are none left
+	 */
+	public void release()
+	{
+		if (REFS.decrementAndGet(this) == 0)
+		{
+			BufferPool.release(buffer);
+			buffer = null;
+		}
+	}
+
+	/**
+	 * Creates a read-only view of the bytes with its own position, so each recipient can write at its own pace
+	 * @return
+	 * 			Read-only ByteBuffer over the encoded bytes
+	 */
+	public ByteBuffer view()
+	{
+		return buffer.asReadOnlyBuffer();
+	}
+
+	/**
+	 * Copies the encoded bytes into an array, without moving any view
+	 * @param destination
+	 * 			Array to copy to
+	 * @param offset
+	 * 			Index in the array of the first byte
+	 */
+	public void copy(byte[] destination, int offset)
+	{
+		buffer.get(0, destination, offset, buffer.limit());
+	}
+
+	/**
+	 * @return
+	 * 			Number of encoded bytes
+	 */
+	public int length()
+	{
+		return buffer.limit();
+	}
+}
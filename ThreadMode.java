@@ -0,0 +1,77 @@
+/**
+ * Version 1.0
+ * Author: MK2022
+ * Date: 18/10/2026
+ *
+ * The ThreadMode class creates the executors that ServerConnection and ClientConnection threads run on.
+ * Virtual threads let many mostly idle connections keep their simple blocking code without the memory cost of a platform thread each.
+ * They are looked up reflectively so the program still compiles and runs on Java versions without them, falling back to platform threads.
+ * Code which a connection thread may block in guards shared state with a ReentrantLock rather than synchronized, since a virtual thread
+ * waiting inside a synchronized block pins the platform thread carrying it
+ */
+import java.lang.reflect.Method; // Necessary imports
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+public class ThreadMode
+{
+
+	/**
+	 * Creates an executor starting a new thread for every task
+	 * @param virtual
+	 * 			Whether virtual threads should be used, if the Java version supports them
+	 * @param name
+	 * 			Name given to the threads, followed by a number
+	 * @return
+	 * 			ExecutorService to run connection threads on
+	 */
+	public static ExecutorService newExecutor(boolean virtual, String name)
+	{
+		if (virtual)
+		{
+			try
+			{
+				Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor"); // Only exists from Java 21
+				return (ExecutorService) m.invoke(null);
+			} catch (ReflectiveOperationException e)
+			{
+				System.out.println("Virtual threads are not supported by this Java version, using platform threads");
+			}
+		}
+		return Executors.newCachedThreadPool(new NamedThreadFactory(name));
+	}
+
+	/**
+	 * Checks whether the virtual thread mode has been requested by name
+	 * @param mode
+	 * 			Mode given at startup
+	 * @return
+	 * 			True if virtual threads should be used
+	 */
+	public static boolean isVirtual(String mode)
+	{
+		return mode != null && mode.equalsIgnoreCase("virtual");
+	}
+
+	/**
+	 * Names platform threads so they can be told apart in a thread dump
+	 */
+	private static class NamedThreadFactory implements ThreadFactory
+	{
+		private String name;
+		private AtomicInteger count = new AtomicInteger();
+
+		public NamedThreadFactory(String name)
+		{
+			this.name = name;
+		}
+
+		public Thread newThread(Runnable r)
+		{
+			return new Thread(r, name + "-" + count.incrementAndGet());
+		}
+	}
+}
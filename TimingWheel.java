@@ -0,0 +1,193 @@
+/**
+ * Version 1.0
+ * Author: MK2022
+ * Date: 18/10/2026
+ *
+ * The TimingWheel class runs timeouts on a hashed timing wheel: a ring of slots, each a linked list of the timeouts due in it,
+ * turned one slot per tick by a single thread. Scheduling and cancelling a timeout are O(1), and each tick only looks at one slot,
+ * so any number of connections can each have a timer for the cost of one thread. Timeouts further away than one turn of the wheel
+ * wait in their slot for the number of turns left. Timeouts fire up to one tick late, which is fine for timeouts measured in seconds
+ */
+import java.util.ArrayList; // Necessary imports
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+public class TimingWheel
+{
+
+	/**
+	 * Something to be done once its time has come, scheduled on one wheel at a time
+	 */
+	public abstract static class Timeout
+	{
+		private Timeout previous; // Neighbours in the slot's list
+		private Timeout next;
+		private int slot = -1; // Slot the timeout is in, -1 if it is not scheduled
+		private long rounds; // Turns of the wheel left before it is due
+
+		/**
+		 * Called on the wheel's thread once the timeout is due, it should be quick as the next tick waits for it
+		 */
+		protected abstract void expire();
+	}
+
+	private Timeout[] slots; // First timeout in each slot
+	private int mask; // Slots minus one, the number of slots being a power of two
+	private long tickNanos; // Length of a tick
+	private long tick; // Ticks done since the wheel started
+	private int size; // Timeouts scheduled
+	private ReentrantLock lock = new ReentrantLock(); // Guards the slots
+	private ArrayList<Timeout> expired = new ArrayList<Timeout>(); // Timeouts due this tick, only used by the wheel's thread
+
+	/**
+	 * Constructor for TimingWheel, starts its thread
+	 * @param slotCount
+	 * 			Number of slots, rounded up to a power of two
+	 * @param tickNanos
+	 * 			Length of a tick in nanoseconds
+	 * @param name
+	 * 			Name of the wheel's thread
+	 */
+	public TimingWheel(int slotCount, long tickNanos, String name)
+	{
+		int count = Integer.highestOneBit(Math.max(slotCount, 2) - 1) << 1;
+		slots = new Timeout[count];
+		mask = count - 1;
+		this.tickNanos = Math.max(tickNanos, 1);
+		Thread thread = new Thread(new Runnable()
+		{
+			public void run()
+			{
+				turn();
+			}
+		}, name);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Schedules a timeout, moving it if it was already scheduled
+	 * @param timeout
+	 * 			Timeout to schedule
+	 * @param delayNanos
+	 * 			Nanoseconds until it is due
+	 */
+	public void schedule(Timeout timeout, long delayNanos)
+	{
+		long ticks = Math.max((delayNanos + tickNanos - 1) / tickNanos, 1); // Rounded up, so it never fires early
+		lock.lock();
+		try
+		{
+			unlink(timeout);
+			timeout.rounds = (ticks - 1) / slots.length;
+			timeout.slot = (int) ((tick + ticks) & mask);
+			timeout.next = slots[timeout.slot];
+			if (timeout.next != null)
+				timeout.next.previous = timeout;
+			slots[timeout.slot] = timeout;
+			size++;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Cancels a timeout, if it is scheduled
+	 * @param timeout
+	 * 			Timeout to cancel
+	 */
+	public void cancel(Timeout timeout)
+	{
+		lock.lock();
+		try
+		{
+			unlink(timeout);
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return
+	 * 			Timeouts scheduled
+	 */
+	public int size()
+	{
+		return size;
+	}
+
+	/**
+	 * Removes a timeout from its slot's list, called with the lock held
+	 * @param timeout
+	 * 			Timeout to remove, nothing is done if it is not scheduled
+	 */
+	private void unlink(Timeout timeout)
+	{
+		if (timeout.slot < 0)
+			return;
+		if (timeout.previous != null)
+			timeout.previous.next = timeout.next;
+		else
+			slots[timeout.slot] = timeout.next;
+		if (timeout.next != null)
+			timeout.next.previous = timeout.previous;
+		timeout.previous = null;
+		timeout.next = null;
+		timeout.slot = -1;
+		size--;
+	}
+
+	/**
+	 * Wheel loop, runs the timeouts in each slot as its tick comes round
+	 */
+	private void turn()
+	{
+		long start = System.nanoTime();
+		while (true)
+		{
+			long wait;
+			while ((wait = start + (tick + 1) * tickNanos - System.nanoTime()) > 0)
+				LockSupport.parkNanos(wait);
+
+			lock.lock();
+			try
+			{
+				tick++;
+				Timeout timeout = slots[(int) (tick & mask)];
+				while (timeout != null)
+				{
+					Timeout next = timeout.next;
+					if (timeout.rounds > 0)
+						timeout.rounds--; // Due on a later turn
+					else
+					{
+						unlink(timeout);
+						expired.add(timeout);
+					}
+					timeout = next;
+				}
+			}
+			finally
+			{
+				lock.unlock();
+			}
+
+			for (int i = 0; i < expired.size(); i++) // Outside the lock, as timeouts often schedule themselves again
+			{
+				try
+				{
+					expired.get(i).expire();
+				} catch (RuntimeException e)
+				{
+					e.printStackTrace(); // One bad timeout must not stop the others
+				}
+			}
+			expired.clear();
+		}
+	}
+}
@@ -0,0 +1,272 @@
+/**
+ * Version 1.0
+ * Author: MK2022
+ * Date: 18/10/2026
+ *
+ * The Tls class holds the TLS settings shared by the server and the client, and creates the TlsChannel each connection is encrypted with.
+ * Each side has one SSLContext for the life of the process, so its session cache outlives the connections: the server keeps the sessions
+ * it has agreed for -tlstimeout seconds, up to -tlscache of them, and with session tickets on it hands the client its session encrypted
+ * under a key only the server knows, so any number of clients can resume without the server storing anything.
+ * A client reconnecting to the same host and port offers its last session and skips the certificate exchange and key agreement,
+ * which is what makes a reconnect storm cheap. The costly steps of a full handshake run as the SSLEngine's delegated tasks on a pool
+ * of -tlsthreads handshake threads, never on a reactor, so a burst of new connections does not hold up messages on established ones.
+ * A test keystore can be made with:
+ * keytool -genkeypair -alias chat -keyalg EC -groupname secp256r1 -validity 365 -dname CN=localhost
+ * 		-ext SAN=dns:localhost,ip:127.0.0.1 -keystore chat.p12 -storepass changeit
+ * and the server started with -tls on -keystore chat.p12 -keypass changeit, the client with -tls on -truststore chat.p12 -trustpass changeit
+ */
+import java.io.FileInputStream; // Necessary imports
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.SocketChannel;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.TrustManagerFactory;
+
+
+public class Tls
+{
+
+	private static boolean enabled = false; // Whether connections are encrypted
+	private static String keyStore; // PKCS12 file holding the server's key and certificate
+	private static char[] keyPass = new char[0];
+	private static String trustStore; // PKCS12 file of certificates the client trusts, the JDK's own if null
+	private static char[] trustPass = new char[0];
+	private static int cacheSize = 20480; // Sessions the server keeps for resumption, unlimited if 0
+	private static int sessionTimeout = (int) TimeUnit.HOURS.toSeconds(24); // Seconds a session can be resumed for
+	private static boolean tickets = true; // Whether the server hands out session tickets rather than keeping sessions itself
+	private static int threads = Runtime.getRuntime().availableProcessors(); // Threads running handshake tasks
+
+	private static SSLContext serverContext; // Created by open
+	private static SSLContext clientContext; // Created on first use, so one client process resumes its sessions
+	private static ExecutorService handshakes; // Runs delegated tasks for non-blocking channels, created on first use
+
+	/**
+	 * Constructor for Tls, not used as the settings are shared by the whole process
+	 */
+	private Tls()
+	{
+	}
+
+	/**
+	 * Reads TLS options from the command line, ignoring options it does not know.
+	 * Every position is looked at, as the client's flags do not come in pairs
+	 * @param args
+	 * 			Command line arguments, TLS options given as option and value pairs
+	 */
+	public static void configure(String[] args)
+	{
+		for (int i = 0; i + 1 < args.length; i++)
+		{
+			String value = args[i + 1];
+			if (args[i].equalsIgnoreCase("-tls"))
+				enabled = value.equalsIgnoreCase("on");
+			else if (args[i].equalsIgnoreCase("-keystore"))
+				keyStore = value;
+			else if (args[i].equalsIgnoreCase("-keypass"))
+				keyPass = value.toCharArray();
+			else if (args[i].equalsIgnoreCase("-truststore"))
+				trustStore = value;
+			else if (args[i].equalsIgnoreCase("-trustpass"))
+				trustPass = value.toCharArray();
+			else if (args[i].equalsIgnoreCase("-tlstickets"))
+				tickets = value.equalsIgnoreCase("on");
+			else if (!ChatClient.isInt(value))
+				continue;
+			else if (args[i].equalsIgnoreCase("-tlscache"))
+				cacheSize = Math.max(Integer.parseInt(value), 0);
+			else if (args[i].equalsIgnoreCase("-tlstimeout"))
+				sessionTimeout = Math.max(Integer.parseInt(value), 0);
+			else if (args[i].equalsIgnoreCase("-tlsthreads"))
+				threads = Math.max(Integer.parseInt(value), 1);
+		}
+		// Read once, when the JDK's TLS configuration is first loaded, so it must be set before any SSLContext exists
+		System.setProperty("jdk.tls.server.enableSessionTicketExtension", "" + tickets);
+	}
+
+	/**
+	 * @return
+	 * 			Whether connections are encrypted
+	 */
+	public static boolean isEnabled()
+	{
+		return enabled;
+	}
+
+	/**
+	 * Loads the server's key and sets up its session cache, called once at startup if TLS is on
+	 * @throws IOException
+	 * 			If the keystore cannot be read
+	 * @throws GeneralSecurityException
+	 * 			If the keystore holds no usable key
+	 */
+	public static void open() throws IOException, GeneralSecurityException
+	{
+		if (keyStore == null)
+			throw new IOException("no -keystore given");
+		KeyManagerFactory keys = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+		keys.init(load(keyStore, keyPass), keyPass);
+		SSLContext context = SSLContext.getInstance("TLS");
+		context.init(keys.getKeyManagers(), null, null);
+		SSLSessionContext sessions = context.getServerSessionContext();
+		sessions.setSessionCacheSize(cacheSize);
+		sessions.setSessionTimeout(sessionTimeout);
+		serverContext = context;
+	}
+
+	/**
+	 * @return
+	 * 			Context the client's connections share, so a reconnect can resume the last session
+	 * @throws IOException
+	 * 			If the truststore cannot be read
+	 * @throws GeneralSecurityException
+	 * 			If the truststore cannot be used
+	 */
+	private static synchronized SSLContext clientContext() throws IOException, GeneralSecurityException
+	{
+		if (clientContext == null)
+		{
+			TrustManagerFactory trust = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+			trust.init(trustStore == null ? null : load(trustStore, trustPass)); // The JDK's own certificates if none are given
+			SSLContext context = SSLContext.getInstance("TLS");
+			context.init(null, trust.getTrustManagers(), null);
+			context.getClientSessionContext().setSessionTimeout(sessionTimeout);
+			clientContext = context;
+		}
+		return clientContext;
+	}
+
+	/**
+	 * @param file
+	 * 			PKCS12 keystore
+	 * @param password
+	 * 			Its password
+	 * @return
+	 * 			Loaded keystore
+	 * @throws IOException
+	 * 			If it cannot be read
+	 * @throws GeneralSecurityException
+	 * 			If it is not a keystore
+	 */
+	private static KeyStore load(String file, char[] password) throws IOException, GeneralSecurityException
+	{
+		KeyStore store = KeyStore.getInstance("PKCS12");
+		InputStream in = new FileInputStream(file);
+		try
+		{
+			store.load(in, password);
+		}
+		finally
+		{
+			in.close();
+		}
+		return store;
+	}
+
+	/**
+	 * Starts encrypting a newly accepted connection, the handshake happening as the channel is first read
+	 * @param sc
+	 * 			Accepted channel, in the blocking mode it will be used in
+	 * @return
+	 * 			Channel to read and write the connection through
+	 * @throws IOException
+	 * 			If the handshake cannot be started
+	 */
+	public static TlsChannel server(SocketChannel sc) throws IOException
+	{
+		SSLEngine engine = serverContext.createSSLEngine();
+		engine.setUseClientMode(false);
+		return new TlsChannel(sc, engine);
+	}
+
+	/**
+	 * Starts encrypting a connection to a server, checking its certificate is for the host name.
+	 * The host and port let the engine offer the session last agreed with the same server
+	 * @param sc
+	 * 			Connected channel, in blocking mode
+	 * @param host
+	 * 			Host name the server was reached by
+	 * @param port
+	 * 			Server port
+	 * @return
+	 * 			Channel to read and write the connection through
+	 * @throws IOException
+	 * 			If the truststore cannot be read or the handshake cannot be started
+	 */
+	public static TlsChannel client(SocketChannel sc, String host, int port) throws IOException
+	{
+		SSLEngine engine;
+		try
+		{
+			engine = clientContext().createSSLEngine(host, port);
+		} catch (GeneralSecurityException e)
+		{
+			throw new IOException("TLS could not be set up: " + e.getMessage(), e);
+		}
+		engine.setUseClientMode(true);
+		SSLParameters parameters = engine.getSSLParameters();
+		parameters.setEndpointIdentificationAlgorithm("HTTPS"); // The certificate must name the host, not just be trusted
+		engine.setSSLParameters(parameters);
+		return new TlsChannel(sc, engine);
+	}
+
+	/**
+	 * Runs a non-blocking channel's handshake tasks on a handshake thread
+	 * @param tasks
+	 * 			Task running the engine's delegated tasks, then waking the channel's owner
+	 */
+	public static void offload(Runnable tasks)
+	{
+		handshakes().execute(tasks);
+	}
+
+	/**
+	 * @return
+	 * 			Pool running handshake tasks, started on first use
+	 */
+	private static synchronized ExecutorService handshakes()
+	{
+		if (handshakes == null)
+		{
+			final AtomicInteger count = new AtomicInteger();
+			handshakes = Executors.newFixedThreadPool(threads, new ThreadFactory() // Handshakes are work for the CPU, so no more threads than it has
+			{
+				public Thread newThread(Runnable r)
+				{
+					Thread thread = new Thread(r, "tls-handshake-" + count.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return handshakes;
+	}
+
+	/**
+	 * Records a finished handshake
+	 * @param session
+	 * 			Session agreed
+	 * @param startedAt
+	 * 			System.currentTimeMillis when the connection was set up, a resumed session having been created before it
+	 * @param nanos
+	 * 			Time the handshake took
+	 */
+	public static void handshook(SSLSession session, long startedAt, long nanos)
+	{
+		Metrics.TLS_HANDSHAKES.increment();
+		Metrics.TLS_HANDSHAKE.record(nanos);
+		if (session.getCreationTime() < startedAt)
+			Metrics.TLS_RESUMED.increment();
+	}
+}
@@ -0,0 +1,694 @@
+/**
+ * Version 1.0
+ * Author: MK2022
+ * Date: 18/10/2026
+ *
+ * The TlsChannel class encrypts a SocketChannel with an SSLEngine, and is read and written like the channel itself,
+ * so the connections, the WriteBatch and the FrameDecoder work the same with or without TLS.
+ * On a blocking channel the handshake is done as it is first read or written, and reading and writing can happen on different threads.
+ * On a non-blocking channel every call returns as soon as it would have to wait: a read returns 0 until the handshake is done and
+ * a whole record has arrived, and the engine's delegated tasks, the costly part of a full handshake, run on a handshake thread
+ * which wakes the channel's owner once they are done. Ciphertext is held in buffers borrowed from the BufferPool only while there is any,
+ * so an idle connection holds none. A gathering write seals as many records as fit in one buffer and sends them with one write
+ */
+import java.io.EOFException; // Necessary imports
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+
+
+public class TlsChannel implements ByteChannel, GatheringByteChannel
+{
+
+	private static final ByteBuffer EMPTY = ByteBuffer.allocate(0); // Wrapped when the handshake has something to send
+
+	private SocketChannel sc; // Channel the ciphertext goes through
+	private SSLEngine engine;
+	private boolean blocking; // Whether calls wait, fixed when the channel is created
+	private int packetSize; // Largest record the engine reads or writes
+	private int appSize; // Largest payload of a record
+	private ByteBuffer netIn; // Ciphertext read and not yet unwrapped, in read mode, null while there is none
+	private ByteBuffer appIn; // Plaintext unwrapped and not yet read, in read mode, null while there is none
+	private ByteBuffer netOut; // Ciphertext wrapped and not yet written, in read mode, null while there is none
+	private ReentrantLock readLock = new ReentrantLock(); // Guards netIn, appIn and unwrapping, taken before writeLock when both are needed
+	private ReentrantLock writeLock = new ReentrantLock(); // Guards netOut and wrapping
+	private volatile boolean tasks; // Whether delegated tasks are running on a handshake thread
+	private volatile boolean handshaken; // Whether the first handshake is done
+	private boolean eof; // Whether the peer has closed the connection
+	private volatile boolean closed;
+	private Runnable wakeup; // Run once delegated tasks are done, so a non-blocking owner reads and flushes again
+	private long startedAt = System.currentTimeMillis(); // When the channel was set up, a resumed session being older
+	private long startNanos = System.nanoTime(); // Start of the handshake
+
+	/**
+	 * Constructor for TlsChannel, starts the handshake
+	 * @param sc
+	 * 			Connected channel, in the blocking mode it will be used in
+	 * @param engine
+	 * 			Engine in client or server mode
+	 * @throws SSLException
+	 * 			If the handshake cannot be started
+	 */
+	public TlsChannel(SocketChannel sc, SSLEngine engine) throws SSLException
+	{
+		this.sc = sc;
+		this.engine = engine;
+		blocking = sc.isBlocking();
+		packetSize = engine.getSession().getPacketBufferSize();
+		appSize = engine.getSession().getApplicationBufferSize();
+		engine.beginHandshake();
+	}
+
+	/**
+	 * Sets what is run once delegated tasks are done, needed on a non-blocking channel
+	 * @param wakeup
+	 * 			Task which reads and flushes the channel again, run on a handshake thread
+	 */
+	public void setWakeup(Runnable wakeup)
+	{
+		this.wakeup = wakeup;
+	}
+
+	/**
+	 * @return
+	 * 			Whether the first handshake is done
+	 */
+	public boolean isHandshaken()
+	{
+		return handshaken;
+	}
+
+	/**
+	 * @return
+	 * 			Whether delegated tasks are running, during which the channel reads and writes nothing
+	 */
+	public boolean isBusy()
+	{
+		return tasks;
+	}
+
+	/**
+	 * @return
+	 * 			Whether bytes read from the socket are waiting to be read, which a selector would not report
+	 */
+	public boolean hasBufferedInput()
+	{
+		readLock.lock();
+		try
+		{
+			return (appIn != null && appIn.hasRemaining()) || (netIn != null && netIn.hasRemaining());
+		}
+		finally
+		{
+			readLock.unlock();
+		}
+	}
+
+	/**
+	 * Reads plaintext, moving the handshake on first if it is not done
+	 * @param dst
+	 * 			Buffer read into
+	 * @return
+	 * 			Bytes read, 0 if a non-blocking channel has nothing yet, -1 once the peer has closed the connection
+	 * @throws IOException
+	 * 			If reading fails or the peer breaks the protocol
+	 */
+	public int read(ByteBuffer dst) throws IOException
+	{
+		readLock.lock();
+		try
+		{
+			if (closed)
+				throw new ClosedChannelException();
+			while (true)
+			{
+				if (tasks)
+					return 0; // The engine is busy until its delegated tasks are done
+				if (!handshaken && !handshake())
+					return eof ? -1 : 0;
+				if (appIn != null && appIn.hasRemaining())
+					return drain(dst);
+				if (eof)
+					return -1;
+				if (!dst.hasRemaining())
+					return 0;
+				SSLEngineResult result = unwrap();
+				if (result.getStatus() == SSLEngineResult.Status.CLOSED)
+				{
+					eof = true; // The peer sent close_notify
+					continue;
+				}
+				if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW && fill() == 0)
+					return eof ? -1 : 0; // Only part of a record has arrived
+				if (result.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING
+					&& result.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.FINISHED && !handshake())
+					return eof ? -1 : 0; // A message after the handshake, such as a key update, needs answering
+			}
+		} catch (SSLException e)
+		{
+			Metrics.TLS_FAILURES.increment();
+			sendAlert();
+			throw e;
+		}
+		finally
+		{
+			releaseIdle();
+			readLock.unlock();
+		}
+	}
+
+	/**
+	 * Writes plaintext
+	 * @param src
+	 * 			Buffer written from
+	 * @return
+	 * 			Bytes taken from the buffer
+	 * @throws IOException
+	 * 			If writing fails
+	 */
+	public int write(ByteBuffer src) throws IOException
+	{
+		return (int) write(new ByteBuffer[] {src}, 0, 1);
+	}
+
+	/**
+	 * Writes plaintext from several buffers, sealing as many records as fit in the ciphertext buffer before each write to the socket.
+	 * A blocking channel writes it all, a non-blocking one keeps at most one buffer of ciphertext back, which flush writes later
+	 * @param srcs
+	 * 			Buffers written from
+	 * @return
+	 * 			Bytes taken from the buffers, 0 if a non-blocking channel is full
+	 * @throws IOException
+	 * 			If writing fails
+	 */
+	public long write(ByteBuffer[] srcs) throws IOException
+	{
+		return write(srcs, 0, srcs.length);
+	}
+
+	/**
+	 * Writes plaintext from some of several buffers, see write(ByteBuffer[])
+	 * @param srcs
+	 * 			Buffers written from
+	 * @param offset
+	 * 			First buffer
+	 * @param length
+	 * 			Number of buffers
+	 * @return
+	 * 			Bytes taken from the buffers, 0 if a non-blocking channel is full
+	 * @throws IOException
+	 * 			If writing fails
+	 */
+	public long write(ByteBuffer[] srcs, int offset, int length) throws IOException
+	{
+		if (!handshaken || tasks)
+		{
+			if (!blocking)
+				return 0; // Nothing is sent before the handshake, the owner writes once it has read the first message
+			readLock.lock(); // A blocking writer finishes the handshake itself, or waits for the reader doing it
+			try
+			{
+				if (closed)
+					throw new ClosedChannelException();
+				if (!handshaken && !handshake())
+					throw new EOFException("Connection closed during the TLS handshake");
+			}
+			finally
+			{
+				readLock.unlock();
+			}
+		}
+		writeLock.lock();
+		try
+		{
+			if (closed)
+				throw new ClosedChannelException();
+			long consumed = 0;
+			while (flushOut() && remaining(srcs, offset, length))
+			{
+				ByteBuffer out = netOut();
+				out.compact();
+				try
+				{
+					while (out.remaining() >= packetSize && remaining(srcs, offset, length)) // Room for another whole record
+					{
+						SSLEngineResult result = engine.wrap(srcs, offset, length, out);
+						if (result.getStatus() == SSLEngineResult.Status.CLOSED)
+							throw new ClosedChannelException();
+						if (result.bytesConsumed() == 0 && result.bytesProduced() == 0)
+							return consumed; // The engine is waiting on the peer, the next read moves it on
+						consumed += result.bytesConsumed();
+					}
+				}
+				finally
+				{
+					out.flip();
+				}
+			}
+			return consumed;
+		}
+		finally
+		{
+			if (netOut != null && !netOut.hasRemaining())
+			{
+				BufferPool.release(netOut);
+				netOut = null;
+			}
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Writes ciphertext kept back by an earlier write or by the handshake, and moves the handshake on if it was waiting to send
+	 * @return
+	 * 			True if nothing is left to write
+	 * @throws IOException
+	 * 			If writing fails
+	 */
+	public boolean flush() throws IOException
+	{
+		readLock.lock();
+		try
+		{
+			if (closed)
+				return true;
+			if (!handshaken && !tasks)
+				handshake();
+			writeLock.lock();
+			try
+			{
+				return flushOut();
+			}
+			finally
+			{
+				writeLock.unlock();
+			}
+		} catch (SSLException e)
+		{
+			Metrics.TLS_FAILURES.increment();
+			throw e;
+		}
+		finally
+		{
+			readLock.unlock();
+		}
+	}
+
+	/**
+	 * @return
+	 * 			Whether ciphertext is waiting to be written, so a non-blocking owner should wait for the socket to be writable
+	 */
+	public boolean hasPendingOutput()
+	{
+		writeLock.lock();
+		try
+		{
+			return netOut != null && netOut.hasRemaining();
+		}
+		finally
+		{
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Moves the handshake on until it is done, or on a non-blocking channel until it has to wait, called with the read lock held
+	 * @return
+	 * 			True if the handshake is done
+	 * @throws IOException
+	 * 			If reading or writing fails or the handshake fails
+	 */
+	private boolean handshake() throws IOException
+	{
+		while (true)
+		{
+			if (tasks)
+				return false;
+			switch (engine.getHandshakeStatus())
+			{
+				case NEED_TASK:
+					runTasks();
+					break;
+				case NEED_WRAP:
+					writeLock.lock();
+					try
+					{
+						if (!flushOut())
+							return false; // Earlier records have to go first
+						ByteBuffer out = netOut();
+						out.compact();
+						SSLEngineResult result;
+						try
+						{
+							result = engine.wrap(EMPTY, out);
+						}
+						finally
+						{
+							out.flip();
+						}
+						boolean sent = flushOut();
+						if (result.getStatus() == SSLEngineResult.Status.CLOSED)
+						{
+							eof = true; // Engine has closed, after sending an alert
+							return false;
+						}
+						if (!sent)
+							return false;
+					}
+					finally
+					{
+						writeLock.unlock();
+					}
+					break;
+				case NEED_UNWRAP:
+				case NEED_UNWRAP_AGAIN:
+					if (eof)
+						return false;
+					SSLEngineResult result = unwrap();
+					if (result.getStatus() == SSLEngineResult.Status.CLOSED)
+					{
+						eof = true;
+						return false;
+					}
+					if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW && fill() == 0)
+						return false; // Waiting for more of the peer's flight
+					if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW)
+						return false; // Plaintext which arrived with the handshake has to be read first
+					break;
+				default: // Done, or failed
+					if (!handshaken && engine.isOutboundDone())
+					{
+						eof = true; // The handshake failed and the engine has closed
+						return false;
+					}
+					if (!handshaken)
+					{
+						handshaken = true;
+						Tls.handshook(engine.getSession(), startedAt, System.nanoTime() - startNanos);
+					}
+					return true;
+			}
+		}
+	}
+
+	/**
+	 * Runs the engine's delegated tasks, on this thread for a blocking channel, otherwise on a handshake thread
+	 */
+	private void runTasks()
+	{
+		if (blocking)
+		{
+			Runnable task;
+			while ((task = engine.getDelegatedTask()) != null)
+				task.run(); // The connection has a thread of its own, so nothing else waits for this one
+			return;
+		}
+		tasks = true;
+		Tls.offload(new Runnable()
+		{
+			public void run()
+			{
+				Runnable task;
+				while ((task = engine.getDelegatedTask()) != null)
+					task.run();
+				tasks = false;
+				if (wakeup != null && !closed)
+					wakeup.run();
+			}
+		});
+	}
+
+	/**
+	 * Unwraps the next record into appIn, called with the read lock held
+	 * @return
+	 * 			Engine's result, BUFFER_UNDERFLOW if netIn does not hold a whole record
+	 * @throws SSLException
+	 * 			If the record is not valid
+	 */
+	private SSLEngineResult unwrap() throws SSLException
+	{
+		if (netIn == null)
+		{
+			netIn = BufferPool.acquire(packetSize);
+			netIn.flip(); // Nothing read yet
+		}
+		if (appIn == null)
+		{
+			appIn = BufferPool.acquire(appSize);
+			appIn.flip();
+		}
+		appIn.compact();
+		try
+		{
+			return engine.unwrap(netIn, appIn);
+		}
+		finally
+		{
+			appIn.flip();
+		}
+	}
+
+	/**
+	 * Reads ciphertext from the socket into netIn, called with the read lock held
+	 * @return
+	 * 			Bytes read, 0 if a non-blocking socket has none
+	 * @throws IOException
+	 * 			If reading fails
+	 */
+	private int fill() throws IOException
+	{
+		if (netIn.position() == 0 && netIn.limit() == netIn.capacity()) // A record larger than was expected, which the engine allows for
+		{
+			ByteBuffer larger = BufferPool.acquire(netIn.capacity() * 2);
+			larger.put(netIn).flip();
+			BufferPool.release(netIn);
+			netIn = larger;
+		}
+		netIn.compact();
+		int n;
+		try
+		{
+			n = sc.read(netIn);
+		}
+		finally
+		{
+			netIn.flip();
+		}
+		if (n < 0)
+		{
+			eof = true;
+			return 0;
+		}
+		return n;
+	}
+
+	/**
+	 * Copies plaintext from appIn, called with the read lock held
+	 * @param dst
+	 * 			Buffer copied into
+	 * @return
+	 * 			Bytes copied
+	 */
+	private int drain(ByteBuffer dst)
+	{
+		int n = Math.min(dst.remaining(), appIn.remaining());
+		int limit = appIn.limit();
+		appIn.limit(appIn.position() + n);
+		dst.put(appIn);
+		appIn.limit(limit);
+		return n;
+	}
+
+	/**
+	 * @return
+	 * 			Buffer ciphertext is wrapped into, borrowed if there is none, called with the write lock held
+	 */
+	private ByteBuffer netOut()
+	{
+		if (netOut == null)
+		{
+			netOut = BufferPool.acquire(packetSize * 3); // Several records go out with each write
+			netOut.flip();
+		}
+		return netOut;
+	}
+
+	/**
+	 * Writes ciphertext waiting in netOut, called with the write lock held
+	 * @return
+	 * 			True if it has all been written, false if a non-blocking socket is full
+	 * @throws IOException
+	 * 			If writing fails
+	 */
+	private boolean flushOut() throws IOException
+	{
+		if (netOut == null)
+			return true;
+		while (netOut.hasRemaining())
+		{
+			if (sc.write(netOut) == 0 && !blocking)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @param srcs
+	 * 			Buffers
+	 * @param offset
+	 * 			First buffer
+	 * @param length
+	 * 			Number of buffers
+	 * @return
+	 * 			Whether any of them has bytes left
+	 */
+	private static boolean remaining(ByteBuffer[] srcs, int offset, int length)
+	{
+		for (int i = offset; i < offset + length; i++)
+		{
+			if (srcs[i].hasRemaining())
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Gives empty buffers back to the pool, called with the read lock held
+	 */
+	private void releaseIdle()
+	{
+		if (netIn != null && !netIn.hasRemaining())
+		{
+			BufferPool.release(netIn);
+			netIn = null;
+		}
+		if (appIn != null && !appIn.hasRemaining())
+		{
+			BufferPool.release(appIn);
+			appIn = null;
+		}
+	}
+
+	/**
+	 * Sends the alert the engine has made after failing, if the socket takes it without waiting, called with the read lock held
+	 */
+	private void sendAlert()
+	{
+		if (!writeLock.tryLock())
+			return; // A writer is busy, the socket is closed anyway
+		try
+		{
+			if (engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_WRAP && flushOut())
+			{
+				ByteBuffer out = netOut();
+				out.compact();
+				try
+				{
+					engine.wrap(EMPTY, out);
+				}
+				finally
+				{
+					out.flip();
+				}
+				sc.write(out);
+			}
+		} catch (IOException e)
+		{
+			// The peer is told nothing more
+		}
+		finally
+		{
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * @return
+	 * 			Whether the channel is open
+	 */
+	public boolean isOpen()
+	{
+		return !closed && sc.isOpen();
+	}
+
+	/**
+	 * Sends close_notify on a non-blocking channel, if the socket takes it, closes the socket and gives the buffers back.
+	 * A blocking channel closes without it, as a slow peer could hold the closing thread, and the protocol has its own goodbye.
+	 * The socket is closed before the buffers are taken, which ends any read or write waiting on it
+	 * @throws IOException
+	 * 			If closing the socket fails
+	 */
+	public void close() throws IOException
+	{
+		if (closed)
+			return;
+		if (!blocking && writeLock.tryLock())
+		{
+			try
+			{
+				if (handshaken && (netOut == null || !netOut.hasRemaining()))
+				{
+					engine.closeOutbound();
+					ByteBuffer out = netOut();
+					out.compact();
+					try
+					{
+						engine.wrap(EMPTY, out);
+					}
+					finally
+					{
+						out.flip();
+					}
+					sc.write(out);
+				}
+			} catch (IOException e)
+			{
+				// The peer has gone, so it does not need telling
+			}
+			finally
+			{
+				writeLock.unlock();
+			}
+		}
+		closed = true;
+		try
+		{
+			sc.close();
+		}
+		finally
+		{
+			readLock.lock();
+			try
+			{
+				if (netIn != null)
+					BufferPool.release(netIn);
+				if (appIn != null)
+					BufferPool.release(appIn);
+				netIn = null;
+				appIn = null;
+			}
+			finally
+			{
+				readLock.unlock();
+			}
+			writeLock.lock();
+			try
+			{
+				if (netOut != null)
+					BufferPool.release(netOut);
+				netOut = null;
+			}
+			finally
+			{
+				writeLock.unlock();
+			}
+		}
+	}
+}
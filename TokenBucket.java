@@ -0,0 +1,64 @@
+/**
+ * Version 1.0
+ * Author: MK2022
+ * Date: 18/10/2026
+ *
+ * The TokenBucket class limits how often something may happen, allowing short bursts up to a given size.
+ * The bucket is stored as the time at which it will next be full (a theoretical arrival time), so taking a token
+ * is a single compare-and-set and the bucket can be shared between threads without locking
+ */
+import java.util.concurrent.atomic.AtomicLong; // Necessary imports
+
+
+public class TokenBucket
+{
+
+	private long interval; // Nanoseconds between tokens, 0 if unlimited
+	private long tolerance; // How far ahead of now the arrival time may run, giving the burst size
+	private AtomicLong arrival; // Theoretical arrival time of the next token
+
+	/**
+	 * Constructor for TokenBucket
+	 * @param rate
+	 * 			Tokens added per second, unlimited if 0 or less
+	 * @param burst
+	 * 			Number of tokens the bucket can hold
+	 */
+	public TokenBucket(double rate, int burst)
+	{
+		interval = rate > 0 ? (long) (1000000000L / rate) : 0;
+		tolerance = interval * Math.max(burst - 1, 0);
+		arrival = new AtomicLong(System.nanoTime());
+	}
+
+	/**
+	 * Attempts to take a token
+	 * @return
+	 * 			0 if a token was taken, otherwise the nanoseconds to wait before one is available
+	 */
+	public long tryAcquire()
+	{
+		if (interval == 0)
+			return 0;
+		while (true)
+		{
+			long now = System.nanoTime();
+			long current = arrival.get();
+			long start = Math.max(current, now); // An idle bucket does not save up more than its burst
+			long wait = start - tolerance - now;
+			if (wait > 0)
+				return wait;
+			if (arrival.compareAndSet(current, start + interval))
+				return 0;
+		}
+	}
+
+	/**
+	 * Gives back a token taken by tryAcquire, used when a second bucket refused the same event
+	 */
+	public void refund()
+	{
+		if (interval != 0)
+			arrival.addAndGet(-interval);
+	}
+}
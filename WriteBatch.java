@@ -0,0 +1,204 @@
+/**
+ * Version 1.0
+ * Author: MK2022
+ * Date: 18/10/2026
+ *
+ * The WriteBatch class gathers the SharedBuffers waiting in an OutboundQueue and writes them with a single gathering write.
+ * Each buffer is released once all of its bytes have been written.
+ * Writing adapts to the traffic: a connection that has not written for a while flushes a message straight away, while a busy one
+ * lingers for up to the latency budget after its last flush, or until the size threshold is reached, so that one write carries many messages
+ */
+import java.io.IOException; // Necessary imports
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+
+public class WriteBatch
+{
+
+	private static final int MAX_BUFFERS = 64; // Buffers gathered into one write
+	private static final int FIRST_BUFFERS = 4; // Room made at first, idle connections rarely need more
+
+	private static long budget = 200000; // Nanoseconds a busy connection may hold messages back after its last flush, 0 to always flush at once
+	private static int flushBytes = 16384; // Bytes which are flushed without waiting for the budget
+	private static LongAdder writes = new LongAdder(); // Write calls made, for reporting how well messages are batched
+	private static LongAdder buffersWritten = new LongAdder(); // Buffers fully written
+
+	private SharedBuffer[] owners = new SharedBuffer[FIRST_BUFFERS]; // Buffers being written, grown up to MAX_BUFFERS as batches need
+	private ByteBuffer[] views = new ByteBuffer[FIRST_BUFFERS]; // Views of the buffers, tracking how much has been written
+	private int offset; // First buffer not yet fully written
+	private int count; // Number of buffers in the batch
+	private long bytes; // Bytes in the batch still to be written
+
+	/**
+	 * Reads batching options from the command line, ignoring options it does not know
+	 * @param args
+	 * 			Command line arguments, given as option and value pairs
+	 */
+	public static void configure(String[] args)
+	{
+		for (int i = 0; i + 1 < args.length; i += 2)
+		{
+			if (args[i].equalsIgnoreCase("-flushbudget")) // In microseconds
+				budget = Long.parseLong(args[i + 1]) * 1000;
+			else if (args[i].equalsIgnoreCase("-flushbytes"))
+				flushBytes = Integer.parseInt(args[i + 1]);
+		}
+	}
+
+	/**
+	 * Works out how long a connection should keep gathering messages before writing
+	 * @param lastFlush
+	 * 			System.nanoTime of the connection's last write, 0 if it has not written yet
+	 * @return
+	 * 			Nanoseconds left to linger, 0 if the connection has been idle and should write at once
+	 */
+	public static long lingerFor(long lastFlush)
+	{
+		if (lastFlush == 0)
+			return 0;
+		long since = System.nanoTime() - lastFlush;
+		return since < budget ? budget - since : 0;
+	}
+
+	/**
+	 * @return
+	 * 			Bytes which are flushed without waiting for the budget
+	 */
+	public static int getFlushBytes()
+	{
+		return flushBytes;
+	}
+
+	/**
+	 * @return
+	 * 			Write calls made so far
+	 */
+	public static long getWrites()
+	{
+		return writes.sum();
+	}
+
+	/**
+	 * @return
+	 * 			Messages fully written so far, which divided by the writes gives the messages carried per write
+	 */
+	public static long getBuffersWritten()
+	{
+		return buffersWritten.sum();
+	}
+
+	/**
+	 * @return
+	 * 			Whether the batch has reached the size threshold or the number of buffers it can hold
+	 */
+	public boolean isFull()
+	{
+		return count == MAX_BUFFERS || bytes >= flushBytes;
+	}
+
+	/**
+	 * @return
+	 * 			Whether every buffer in the batch has been written
+	 */
+	public boolean isEmpty()
+	{
+		return offset == count;
+	}
+
+	/**
+	 * Adds a buffer to the batch, taking over the queue's reference to it
+	 * @param buffer
+	 * 			Buffer taken from an OutboundQueue
+	 * @return
+	 * 			False if the batch is full and the buffer was not added
+	 */
+	public boolean add(SharedBuffer buffer)
+	{
+		if (count == MAX_BUFFERS)
+			return false;
+		if (count == owners.length)
+		{
+			owners = Arrays.copyOf(owners, Math.min(count * 2, MAX_BUFFERS));
+			views = Arrays.copyOf(views, owners.length);
+		}
+		owners[count] = buffer;
+		views[count] = buffer.view();
+		bytes += buffer.length();
+		count++;
+		return true;
+	}
+
+	/**
+	 * Adds every buffer waiting in the queue, up to the batch size, without waiting
+	 * @param queue
+	 * 			Queue to take from
+	 * @return
+	 * 			Number of buffers added
+	 */
+	public int fill(OutboundQueue queue)
+	{
+		int added = 0;
+		SharedBuffer buffer;
+		while (!isFull() && (buffer = queue.poll()) != null)
+		{
+			add(buffer);
+			added++;
+		}
+		return added;
+	}
+
+	/**
+	 * Writes as much of the batch as the channel accepts, releasing fully written buffers
+	 * @param channel
+	 * 			Channel to write to
+	 * @return
+	 * 			True if the whole batch was written, false if the channel is full
+	 * @throws IOException
+	 * 			If the write fails
+	 */
+	public boolean write(GatheringByteChannel channel) throws IOException
+	{
+		while (offset < count)
+		{
+			long start = System.nanoTime();
+			long written = channel.write(views, offset, count - offset);
+			Metrics.WRITE.record(System.nanoTime() - start);
+			Metrics.BYTES_OUT.add(written);
+			writes.increment();
+			bytes -= written;
+			if (written == 0 && views[offset].hasRemaining())
+				return false; // Non-blocking channel is full
+			while (offset < count && !views[offset].hasRemaining())
+			{
+				buffersWritten.increment();
+				owners[offset].release();
+				owners[offset] = null;
+				views[offset] = null;
+				offset++;
+			}
+		}
+		offset = 0;
+		count = 0;
+		bytes = 0;
+		return true;
+	}
+
+	/**
+	 * Releases every buffer left in the batch, used when the connection closes
+	 */
+	public void clear()
+	{
+		for (int i = offset; i < count; i++)
+		{
+			owners[i].release();
+			owners[i] = null;
+			views[i] = null;
+		}
+		offset = 0;
+		count = 0;
+		bytes = 0;
+	}
+}
@@ -0,0 +1,192 @@
+/**
+ * Version 1.0
+ * Author: MK2022
+ * Date: 18/10/2026
+ *
+ * The ChatBenchmarks class runs BenchmarkSuite's benchmarks under JMH, for forked JVMs, its profilers and its own JSON results.
+ * JMH refuses benchmarks in the default package, where the server's classes are, and a named package cannot name those classes,
+ * so each fixture is built by BenchmarkSuite.workload, found by reflection once per trial, and called through Callable.
+ * decode and relay batches handle 100 messages, which OperationsPerInvocation divides by to report time per message as BenchmarkSuite does.
+ * The loopback benchmark is not run here, as it needs running servers and records its own latency histogram.
+ * Build with: mvn -f benchmarks/pom.xml package
+ * Run with: java -jar benchmarks/target/benchmarks.jar [JMH options], adding -prof gc for the bytes allocated per operation
+ */
+package benchmarks;
+
+import java.util.concurrent.Callable; // Necessary imports
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ChatBenchmarks
+{
+
+	private static final int MESSAGES = 100; // Messages in each decode and relay batch, as in BenchmarkSuite
+
+	/**
+	 * Room the broadcast benchmark fans out to
+	 */
+	@State(Scope.Benchmark)
+	public static class Broadcast
+	{
+		@Param({"10", "100", "1000", "10000"})
+		public int recipients;
+		private Callable<Integer> broadcast;
+
+		@Setup
+		public void setup() throws Exception
+		{
+			broadcast = workload("broadcast", recipients);
+		}
+	}
+
+	/**
+	 * Read buffers of text lines and binary frames for the decode benchmarks
+	 */
+	@State(Scope.Benchmark)
+	public static class Decode
+	{
+		@Param({"32", "512"})
+		public int length;
+		private Callable<Integer> line;
+		private Callable<Integer> frame;
+
+		@Setup
+		public void setup() throws Exception
+		{
+			line = workload("decode.line", length);
+			frame = workload("decode.frame", length);
+		}
+	}
+
+	/**
+	 * Read buffers and rooms for the relay benchmarks
+	 */
+	@State(Scope.Benchmark)
+	public static class Relay
+	{
+		@Param({"32", "512"})
+		public int length;
+		private Callable<Integer> string;
+		private Callable<Integer> bytes;
+
+		@Setup
+		public void setup() throws Exception
+		{
+			string = workload("relay.string", length);
+			bytes = workload("relay.bytes", length);
+		}
+	}
+
+	/**
+	 * Registry shared by every thread of a churn benchmark
+	 */
+	@State(Scope.Benchmark)
+	public static class Registry
+	{
+		private Callable<Integer> churn;
+
+		@Setup
+		public void setup() throws Exception
+		{
+			churn = workload("registry.churn", 0);
+		}
+	}
+
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public Integer broadcast(Broadcast state) throws Exception
+	{
+		return state.broadcast.call();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(MESSAGES)
+	public Integer decodeLine(Decode state) throws Exception
+	{
+		return state.line.call();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(MESSAGES)
+	public Integer decodeFrame(Decode state) throws Exception
+	{
+		return state.frame.call();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(MESSAGES)
+	public Integer relayString(Relay state) throws Exception
+	{
+		return state.string.call();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(MESSAGES)
+	public Integer relayBytes(Relay state) throws Exception
+	{
+		return state.bytes.call();
+	}
+
+	@Benchmark
+	@Threads(1)
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public Integer registryChurn1(Registry state) throws Exception
+	{
+		return state.churn.call();
+	}
+
+	@Benchmark
+	@Threads(4)
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public Integer registryChurn4(Registry state) throws Exception
+	{
+		return state.churn.call();
+	}
+
+	@Benchmark
+	@Threads(16)
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.MILLISECONDS)
+	public Integer registryChurn16(Registry state) throws Exception
+	{
+		return state.churn.call();
+	}
+
+	/**
+	 * @param name
+	 * 			Benchmark name, as BenchmarkSuite reports it
+	 * @param param
+	 * 			The benchmark's parameter
+	 * @return
+	 * 			One batch of the benchmark's work, built by BenchmarkSuite
+	 * @throws Exception
+	 * 			If BenchmarkSuite is not on the class path, or cannot build the fixture
+	 */
+	@SuppressWarnings("unchecked")
+	private static Callable<Integer> workload(String name, int param) throws Exception
+	{
+		Class<?> suite = Class.forName("BenchmarkSuite"); // In the default package, so only reachable by name
+		return (Callable<Integer>) suite.getMethod("workload", String.class, int.class).invoke(null, name, param);
+	}
+}